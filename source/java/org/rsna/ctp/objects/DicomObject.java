@@ -867,19 +867,61 @@ public class DicomObject extends FileObject {
 		if (specifier.equals("")) return null;
 		
 		//See if this is a root reference
-		if (specifier.startsWith("root:")) {
-			specifier = specifier.substring(5).trim();
+		boolean rootReference = specifier.startsWith("root:");
+		if (rootReference) specifier = specifier.substring(5).trim();
+		
+		String[] specs = specifier.split("::");
+		return getElementValue(fmi, ds, rootReference, specs, getElementTags(specs), privateNameIndex);
+	}
+
+	/**
+	 * Get the tags for the element IDs of a split element specifier. IDs that
+	 * cannot be resolved without a dataset (private names and private elements
+	 * with block specifiers) are returned as zero.
+	 * @param specs the element IDs of the specifier
+	 * @return the array of tags corresponding to the IDs
+	 */
+	public static int[] getElementTags(String[] specs) {
+		int[] tags = new int[specs.length];
+		for (int k=0; k<specs.length; k++) {
+			tags[k] = getElementTag(specs[k]);
+		}
+		return tags;
+	}
+
+	/**
+	 * Get the value of an element corresponding to an element specifier
+	 * that has already been split into its IDs and whose standard tags have
+	 * already been resolved by getElementTags. This method allows callers
+	 * that evaluate the same specifier for many objects to avoid parsing it
+	 * for each object.
+	 * @param fmi the FileMetaInfo to be used to obtain group 2 elements
+	 * @param ds the Dataset in which to begin the search for non-FileMetaInfo elements
+	 * @param rootReference true if the search is to begin at the root of the dataset tree
+	 * @param specs the element IDs of the specifier
+	 * @param tags the tags corresponding to the IDs, with zero for IDs that must
+	 * be resolved as private elements
+	 * @param privateNameIndex the index of private element keywords, or null
+	 * @return the value of the specified element or null if the element cannot be found
+	 */
+	public static String getElementValue(
+							FileMetaInfo fmi,
+							Dataset ds,
+							boolean rootReference,
+							String[] specs,
+							int[] tags,
+							PrivateNameIndex privateNameIndex ) {
+		if (rootReference) {
 			Dataset parent;
 			while ((parent = ds.getParent()) != null) ds = parent;
 		}
 		
-		String[] specs = specifier.split("::");
 		DcmElement de = null;
 		for (int k=0; k<specs.length; k++) {
 			String spec = specs[k];
 			
-			//Try it as a standard element specifier
-			int tag = getElementTag(spec);
+			//Use the standard element tag if it was resolved
+			int tag = tags[k];
 			
 			//If that fails, try it as a private name
 			if ((tag == 0) && (privateNameIndex != null)) tag = privateNameIndex.getTag(spec);
@@ -900,7 +942,7 @@ public class DicomObject extends FileObject {
 			//If this is not the last element in the sequence, it must be
 			//an SQ element. If it is, get its first item dataset
 			if (k < specs.length-1) {
-				if (!VRs.toString(de.vr()).equals("SQ")) return null;
+				if (de.vr() != VRs.SQ) return null;
 				ds = de.getItem(0);
 				if (ds == null) return null;
 			}
@@ -1471,6 +1513,18 @@ public class DicomObject extends FileObject {
 	 * @throws Exception on any error
 	 */
 	public void setElementValue(int tag, String value) throws Exception {
+		setElementValue(dataset, tag, value);
+	}
+
+	/**
+	 * Set the contents of a DICOM element in a dataset, in the same way
+	 * as the setElementValue(int, String) method of a DicomObject.
+	 * @param dataset the dataset.
+	 * @param tag the tag specifying the element (in the form 0xggggeeee).
+	 * @param value the text value to set in the element.
+	 * @throws Exception on any error
+	 */
+	public static void setElementValue(Dataset dataset, int tag, String value) throws Exception {
 		if ((tag&0x10000) != 0) dataset.putUT(tag,value);
 		else {
 			int vr = 0;
@@ -2425,15 +2479,15 @@ public class DicomObject extends FileObject {
 	/**
 	 * Evaluate a boolean script for this DicomObject. See the RSNA
 	 * CTP wiki article (The CTP DicomFilter) for information on the
-	 * script language.
+	 * script language. The script is compiled once and recompiled
+	 * only when the file changes.
 	 * @param scriptFile the text file containing the expression to
 	 * compute based on the values in this DicomObject.
 	 * @return the computed boolean value of the script.
 	 */
 	public boolean matches(File scriptFile) {
 		if (scriptFile != null) {
-			String script = FileUtil.getText(scriptFile);
-			return matches(script);
+			return FilterScript.getInstance(scriptFile, FilterScript.DICOM).matches(this);
 		}
 		return true;
 	}
@@ -2448,370 +2502,9 @@ public class DicomObject extends FileObject {
 	 */
 	public boolean matches(String script) {
 		logger.debug("Match script:\n"+script);
-
-		Tokenizer tokenizer = new Tokenizer(script);
-		Stack<Operator> operators = new Stack<Operator>();
-		Stack<Token> tokens = new Stack<Token>();
-		operators.push(Operator.createSentinel());
-
-		//Get the expression, evaluate it, and return the result.
-		boolean result = false;
-		try {
-			expression(tokenizer, operators, tokens);
-			tokenizer.expect(Token.END);
-			result = unstack(tokens);
-		}
-		catch (Exception ex) { logger.error("", ex); }
-		logger.debug("Match result = "+result);
-		return result;
-	}
-
-	boolean unstack(Stack<Token> tokens) {
-		if (tokens.size() == 0) return false;
-		Token tok = tokens.pop();
-		if (tok instanceof Operand) {
-			return ((Operand)tok).getValue();
-		}
-		else {
-			Operator op = (Operator)tok;
-			boolean value = false;
-			boolean v1, v2;
-			if (op.c == '!')
-				value = !unstack(tokens);
-			else if (op.c == '+') {
-				//note: you must unstack separately and then do the logic
-				//or the optimizer may omit one unstack, leaving the stack
-				//in a mess.
-				v1 = unstack(tokens);
-				v2 = unstack(tokens);
-				value = v1 || v2;
-			}
-			else if (op.c == '*') {
-				//see the note above.
-				v1 = unstack(tokens);
-				v2 = unstack(tokens);
-				value = v1 && v2;
-			}
-			return value;
-		}
-	}
-
-	void expression(Tokenizer t, Stack<Operator> ops, Stack<Token> toks) throws Exception {
-		parse(t,ops,toks);
-		while (t.next().isOperator() &&
-				((Operator)t.next()).isBinary()) {
-			pushOperator(t.next(),ops,toks);
-			t.consume();
-			parse(t,ops,toks);
-		}
-		while (!ops.peek().isSentinel()) {
-			popOperator(ops,toks);
-		}
-	}
-
-	void parse(Tokenizer t, Stack<Operator> ops, Stack<Token> toks) throws Exception {
-		if (t.next().isOperand()) {
-			toks.push(t.next());
-			t.consume();
-		}
-		else if (t.next().isLP()) {
-			t.consume();
-			ops.push(Operator.createSentinel());
-			expression(t,ops,toks);
-			t.expect(Token.RP);
-			ops.pop();
-		}
-		else if (t.next().isOperator() &&
-				((Operator)t.next()).isUnary()) {
-			pushOperator(t.next(),ops,toks);
-			t.consume();
-			parse(t,ops,toks);
-		}
-		else throw new Exception("Failure in parsing the script.");
-	}
-
-	void popOperator(Stack<Operator> ops, Stack<Token> toks) {
-		toks.push(ops.pop());
-	}
-
-	void pushOperator(Token tok, Stack<Operator> ops, Stack<Token> toks) {
-		Operator op = (Operator)tok;
-		while (ops.peek().isHigherThan(op))
-			popOperator(ops,toks);
-		ops.push(op);
-	}
-
-
-	//The rest of the code is for parsing the script and evaluating the result.
-	class Tokenizer {
-		String script;
-		int index;
-		Token nextToken;
-
-		public Tokenizer(String script) {
-			this.script = script;
-			index = 0;
-			nextToken = getToken();
-		}
-		public void expect(int type) throws Exception {
-			if (nextToken.equals(type))
-				consume();
-			else
-				throw new Exception(
-					"Error in script: "
-					+Token.getTypeName(type)
-					+" expected, but "
-					+Token.getTypeName(nextToken.getType())
-					+" found.");
-		}
-		public Token next() {
-			return nextToken;
-		}
-		public Token consume() {
-			Token temp = nextToken;
-			nextToken = getToken();
-			return temp;
-		}
-		Token getToken() {
-			skipWhitespace();
-			if (index >= script.length())
-				return new End();
-			char c = script.charAt(index);
-			if ((c == '[') || Character.isLetter(c))
-				return new Operand(this);
-			else if (c == '(')
-				return new LP(this);
-			else if (c == ')')
-				return new RP(this);
-			else if (Operator.isOperator(c))
-				return new Operator(this);
-			return new Unknown();
-		}
-		void skipWhitespace() {
-			boolean inComment = false;
-			while (index < script.length()) {
-				char c = script.charAt(index);
-				if (inComment) {
-					if (c == '\n') inComment = false;
-					index++;
-				}
-				else if (c == '/') {
-					int k = index + 1;
-					if ((k < script.length()) && (script.charAt(k) == '/')) {
-						inComment = true;
-						index += 2;
-					}
-					else return;
-				}
-				else if (Character.isWhitespace(c)) index++;
-				else return;
-			}
-		}
-		public char getChar() {
-			if (index < script.length())
-				return script.charAt(index++);
-			return 0;
-		}
-	}
-
-	static class Operator extends Token {
-		public char c;	//the operator character
-		public int p;	//the precedence
-		static String ops = "?+*!";
-		static int[] prec = {0,1,2,3};
-
-		public Operator(Tokenizer t) {
-			super(OPERATOR);
-			this.c = t.getChar();
-			this.p = ops.indexOf(c);
-			if (p != -1) p = prec[p];
-		}
-		public Operator(char c) {
-			super(OPERATOR);
-			this.c = c;
-			this.p = ops.indexOf(c);
-			if (p != -1) p = prec[p];
-		}
-		public static Operator createSentinel() {
-			return new Operator('?');
-		}
-		public static boolean isOperator(char c) {
-			int x = ops.indexOf(c);
-			return (x > 0);
-		}
-		public boolean isOperator() {
-			return (p != -1);
-		}
-		public boolean isSentinel() {
-			return (c == '?');
-		}
-		public boolean isUnary() {
-			return (c == '!');
-		}
-		public boolean isBinary() {
-			return (c == '+') || (c == '*');
-		}
-		public boolean isHigherThan(Operator q) {
-			return (p >= q.p);
-		}
-		public boolean isLowerThan(Operator q) {
-			return (p < q.p);
-		}
-		public String toString() {
-			return "" + c;
-		}
-	}
-
-	class Operand extends Token {
-		public boolean value = false;
-		public Operand(Tokenizer t) {
-			super(OPERAND);
-			String identifier = getField(t,'.').trim();
-			if (identifier.equals("true"))
-				value = true;
-			else if (identifier.equals("false"))
-				value = false;
-			else {
-				String method = getField(t,'(').trim();
-				String match = getField(t,')').trim();
-				if ((match.length() > 1) &&
-						(match.charAt(0) == '"') &&
-							(match.charAt(match.length()-1) == '"')) {
-
-					//Update the properties for the value of the identifier.
-					String element = getElementValue(identifier);
-
-					String elementLC = element.toLowerCase();
-					match = match.substring(1, match.length()-1);
-					String matchLC = match.toLowerCase();
-
-					if (method.equals("equals"))
-						value = element.equals(match);
-
-					else if (method.equals("equalsIgnoreCase"))
-						value = element.equalsIgnoreCase(match);
-
-					else if (method.equals("matches"))
-						value = element.matches(match);
-
-					else if (method.equals("contains"))
-						value = (element.contains(match));
-
-					else if (method.equals("containsIgnoreCase"))
-						value = (elementLC.contains(matchLC));
-
-					else if (method.equals("startsWith"))
-						value = element.startsWith(match);
-
-					else if (method.equals("startsWithIgnoreCase"))
-						value = elementLC.startsWith(matchLC);
-
-					else if (method.equals("endsWith"))
-						value = element.endsWith(match);
-
-					else if (method.equals("endsWithIgnoreCase"))
-						value = elementLC.endsWith(matchLC);
-
-					else {
-						logger.error("Unknown function: "+identifier+"."+method+"(\""+match+"\")");
-						value = false;
-					}
-					logger.debug(identifier+"="+element+" -> { "+identifier+"."+method+"(\""+match+"\")="+value+" }");
-				}
-			}
-		}
-		String getField(Tokenizer t, char delim) {
-			String f = "";
-			char c;
-			boolean inQuote = false;
-			while ((c = t.getChar()) != 0) {
-				if (c == '"') inQuote = !inQuote;
-				if (!inQuote && (c == delim)) break;
-				f += c;
-			}
-			return f;
-		}
-		public boolean getValue() {
-			return value;
-		}
-		public String toString() {
-			return value ? "true" : "false";
-		}
-	}
-
-	class LP extends Token {
-		public LP(Tokenizer t) {
-			super(LP);
-			t.getChar();
-		}
-	}
-
-	class RP extends Token {
-		public RP(Tokenizer t) {
-			super(RP);
-			t.getChar();
-		}
-	}
-
-	class End extends Token {
-		public End() {
-			super(END);
-		}
-	}
-
-	class Unknown extends Token {
-		public Unknown() {
-			super(UNKNOWN);
-		}
+		return FilterScript.getInstance(script, FilterScript.DICOM).matches(this);
 	}
 
-	static class Token {
-		static int OPERATOR = 0;
-		static int OPERAND = 1;
-		static int LP = 2;
-		static int RP = 3;
-		static int END = -1;
-		static int UNKNOWN = -2;
-		int type;
-		public Token(int type) {
-			this.type = type;
-		}
-		public boolean equals(int type) {
-			return (this.type == type);
-		}
-		public boolean isOperator() {
-			return (type == OPERATOR);
-		}
-		public boolean isOperand() {
-			return (type == OPERAND);
-		}
-		public boolean isLP() {
-			return (type == LP);
-		}
-		public boolean isRP() {
-			return (type == RP);
-		}
-		public boolean isEND() {
-			return (type == END);
-		}
-		public int getType() {
-			return type;
-		}
-		public String getTypeName() {
-			return getTypeName(this.type);
-		}
-		public static String getTypeName(int type) {
-			if (type == OPERATOR) return "OPERATOR";
-			else if (type == OPERAND) return "OPERAND";
-			else if (type == LP) return "LP";
-			else if (type == RP) return "RP";
-			else if (type == END) return "END";
-			else return "UNKNOWN";
-		}
-		public String toString() {
-			return getTypeName();
-		}
-	}
 	//**********************************
 	// End of the code for the matcher
 	//**********************************
@@ -0,0 +1,428 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.objects;
+
+import java.io.File;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+import org.rsna.util.XmlUtil;
+import org.w3c.dom.Document;
+
+/**
+ * A compiled boolean filter script. See the RSNA CTP wiki articles
+ * (The CTP DicomFilter and The CTP XmlFilter) for information on the
+ * script language.
+ * <p>
+ * A script is parsed once into an expression tree. For DICOM scripts,
+ * the element specifiers are split and their tags are resolved when the
+ * script is compiled; for all scripts, the regular expressions of matches()
+ * calls are compiled once. Instances obtained from a file are cached and
+ * are only recompiled when the file's last modified time changes.
+ * Instances are immutable and can be shared by multiple threads.
+ */
+public class FilterScript {
+
+	static final Logger logger = Logger.getLogger(FilterScript.class);
+
+	/** The dialect for scripts evaluated against DicomObjects. */
+	public static final int DICOM = 0;
+
+	/** The dialect for scripts evaluated against XML documents (XmlObjects and ZipObject manifests). */
+	public static final int XML = 1;
+
+	static final int maxCachedTexts = 256;
+
+	static Hashtable<String,FilterScript> scripts = new Hashtable<String,FilterScript>();
+	static Map<String,FilterScript> texts = new LinkedHashMap<String,FilterScript>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String,FilterScript> eldest) {
+			return size() > maxCachedTexts;
+		}
+	};
+
+	final int dialect;
+	final long lastModified;
+	final Expression expression;
+
+	/**
+	 * Get the compiled instance of a script file, compiling a new instance
+	 * if the file has changed since it was last compiled.
+	 * @param file the file containing the script.
+	 * @param dialect DICOM or XML.
+	 * @return the compiled script.
+	 */
+	public static synchronized FilterScript getInstance(File file, int dialect) {
+		String key = dialect + ":" + file.getAbsolutePath().replaceAll("\\\\","/");
+		long lastModified = file.lastModified();
+		FilterScript fs = scripts.get(key);
+		if ((fs != null) && (fs.lastModified == lastModified)) return fs;
+
+		fs = new FilterScript(FileUtil.getText(file), dialect, lastModified);
+		scripts.put(key, fs);
+		return fs;
+	}
+
+	/**
+	 * Get the compiled instance of a script supplied as text. The most
+	 * recently used compiled texts are cached.
+	 * @param script the text of the script.
+	 * @param dialect DICOM or XML.
+	 * @return the compiled script.
+	 */
+	public static FilterScript getInstance(String script, int dialect) {
+		if (script == null) script = "";
+		String key = dialect + ":" + script;
+		synchronized (texts) {
+			FilterScript fs = texts.get(key);
+			if (fs != null) return fs;
+		}
+		FilterScript fs = new FilterScript(script, dialect, 0);
+		synchronized (texts) {
+			texts.put(key, fs);
+		}
+		return fs;
+	}
+
+	/**
+	 * Protected constructor; compile a script.
+	 * @param script the text of the script.
+	 * @param dialect DICOM or XML.
+	 * @param lastModified the last modified time of the file from which the
+	 * script was obtained, or zero if the script was not obtained from a file.
+	 */
+	protected FilterScript(String script, int dialect, long lastModified) {
+		this.dialect = dialect;
+		this.lastModified = lastModified;
+		Expression exp = null;
+		try {
+			Parser parser = new Parser(script, dialect);
+			exp = parser.expression();
+			parser.expect(Parser.END);
+		}
+		catch (Exception ex) {
+			logger.error("Unable to compile the filter script: "+ex.getMessage());
+			exp = null;
+		}
+		this.expression = exp;
+	}
+
+	/**
+	 * Determine whether the script compiled without errors.
+	 * @return true if the script is valid; false otherwise.
+	 */
+	public boolean isValid() {
+		return (expression != null);
+	}
+
+	/**
+	 * Evaluate the script for a DicomObject.
+	 * @param dicomObject the object.
+	 * @return the computed boolean value of the script, or false if
+	 * the script is not valid.
+	 */
+	public boolean matches(DicomObject dicomObject) {
+		if (expression == null) return false;
+		boolean result = expression.evaluate(dicomObject);
+		logger.debug("Match result = "+result);
+		return result;
+	}
+
+	/**
+	 * Evaluate the script for an XML document.
+	 * @param document the document.
+	 * @return the computed boolean value of the script, or false if
+	 * the script is not valid or the document is null.
+	 */
+	public boolean matches(Document document) {
+		if ((expression == null) || (document == null)) return false;
+		return expression.evaluate(document.getDocumentElement());
+	}
+
+	//The expression tree
+	static abstract class Expression {
+		abstract boolean evaluate(Object target);
+	}
+
+	static class Constant extends Expression {
+		final boolean value;
+		Constant(boolean value) { this.value = value; }
+		boolean evaluate(Object target) { return value; }
+	}
+
+	static class Not extends Expression {
+		final Expression e;
+		Not(Expression e) { this.e = e; }
+		boolean evaluate(Object target) { return !e.evaluate(target); }
+	}
+
+	static class Or extends Expression {
+		final Expression left;
+		final Expression right;
+		Or(Expression left, Expression right) { this.left = left; this.right = right; }
+		boolean evaluate(Object target) { return left.evaluate(target) || right.evaluate(target); }
+	}
+
+	static class And extends Expression {
+		final Expression left;
+		final Expression right;
+		And(Expression left, Expression right) { this.left = left; this.right = right; }
+		boolean evaluate(Object target) { return left.evaluate(target) && right.evaluate(target); }
+	}
+
+	//A test of the value of an element against a literal, e.g. Modality.equals("CT")
+	static class Test extends Expression {
+		static final int EQUALS = 0;
+		static final int EQUALS_IGNORE_CASE = 1;
+		static final int MATCHES = 2;
+		static final int CONTAINS = 3;
+		static final int CONTAINS_IGNORE_CASE = 4;
+		static final int STARTS_WITH = 5;
+		static final int STARTS_WITH_IGNORE_CASE = 6;
+		static final int ENDS_WITH = 7;
+		static final int ENDS_WITH_IGNORE_CASE = 8;
+		static final String[] methods = {
+			"equals", "equalsIgnoreCase", "matches",
+			"contains", "containsIgnoreCase",
+			"startsWith", "startsWithIgnoreCase",
+			"endsWith", "endsWithIgnoreCase" };
+
+		final int dialect;
+		final String identifier;
+		final int method;
+		final String match;
+		final String matchLC;
+		final Pattern pattern;
+		//Pre-resolved DICOM element specifier
+		boolean rootReference = false;
+		String[] specs = null;
+		int[] tags = null;
+
+		Test(int dialect, String identifier, int method, String match) {
+			this.dialect = dialect;
+			this.identifier = identifier;
+			this.method = method;
+			this.match = match;
+			this.matchLC = match.toLowerCase();
+			this.pattern = (method == MATCHES) ? Pattern.compile(match) : null;
+			if (dialect == DICOM) {
+				String specifier = identifier.trim();
+				rootReference = specifier.startsWith("root:");
+				if (rootReference) specifier = specifier.substring(5).trim();
+				specs = specifier.split("::");
+				tags = DicomObject.getElementTags(specs);
+			}
+		}
+
+		static int getMethod(String name) {
+			for (int i=0; i<methods.length; i++) {
+				if (methods[i].equals(name)) return i;
+			}
+			return -1;
+		}
+
+		boolean evaluate(Object target) {
+			String element = getValue(target);
+			boolean value = false;
+			switch (method) {
+				case EQUALS:				value = element.equals(match); break;
+				case EQUALS_IGNORE_CASE:	value = element.equalsIgnoreCase(match); break;
+				case MATCHES:				value = pattern.matcher(element).matches(); break;
+				case CONTAINS:				value = element.contains(match); break;
+				case CONTAINS_IGNORE_CASE:	value = element.toLowerCase().contains(matchLC); break;
+				case STARTS_WITH:			value = element.startsWith(match); break;
+				case STARTS_WITH_IGNORE_CASE: value = element.toLowerCase().startsWith(matchLC); break;
+				case ENDS_WITH:				value = element.endsWith(match); break;
+				case ENDS_WITH_IGNORE_CASE:	value = element.toLowerCase().endsWith(matchLC); break;
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug(identifier+"="+element+" -> { "+identifier+"."+methods[method]+"(\""+match+"\")="+value+" }");
+			}
+			return value;
+		}
+
+		String getValue(Object target) {
+			String value = null;
+			if (dialect == DICOM) {
+				if (specs.length > 0) {
+					DicomObject dob = (DicomObject)target;
+					value = DicomObject.getElementValue(
+								dob.getFileMetaInfo(), dob.getDataset(), rootReference, specs, tags, null);
+				}
+			}
+			else value = XmlUtil.getTextContent((org.w3c.dom.Node)target, identifier);
+			return (value != null) ? value : "";
+		}
+	}
+
+	//A recursive descent parser for the script language. The grammar is:
+	//   expression = term { "+" term }
+	//   term       = factor { "*" factor }
+	//   factor     = "!" factor | "(" expression ")" | operand
+	//   operand    = "true" | "false" | identifier "." method "(" "\"" literal "\"" ")"
+	//The lexical rules match those of the original interpreters, including
+	//the DICOM dialect's support for // comments.
+	static class Parser {
+		static final int OPERAND = 1;
+		static final int LP = 2;
+		static final int RP = 3;
+		static final int OPERATOR = 4;
+		static final int END = -1;
+		static final int UNKNOWN = -2;
+
+		final String script;
+		final int dialect;
+		int index = 0;
+		int type;
+		char operator;
+		Expression operand;
+
+		Parser(String script, int dialect) throws Exception {
+			this.script = script;
+			this.dialect = dialect;
+			advance();
+		}
+
+		Expression expression() throws Exception {
+			Expression e = term();
+			while ((type == OPERATOR) && (operator == '+')) {
+				advance();
+				e = new Or(e, term());
+			}
+			return e;
+		}
+
+		Expression term() throws Exception {
+			Expression e = factor();
+			while ((type == OPERATOR) && (operator == '*')) {
+				advance();
+				e = new And(e, factor());
+			}
+			return e;
+		}
+
+		Expression factor() throws Exception {
+			if (type == OPERAND) {
+				Expression e = operand;
+				advance();
+				return e;
+			}
+			else if (type == LP) {
+				advance();
+				Expression e = expression();
+				expect(RP);
+				return e;
+			}
+			else if ((type == OPERATOR) && (operator == '!')) {
+				advance();
+				return new Not(factor());
+			}
+			throw new Exception("Failure in parsing the script.");
+		}
+
+		void expect(int t) throws Exception {
+			if (type == t) advance();
+			else throw new Exception(
+					"Error in script: " + getTypeName(t)
+					+ " expected, but " + getTypeName(type) + " found.");
+		}
+
+		static String getTypeName(int t) {
+			if (t == OPERATOR) return "OPERATOR";
+			else if (t == OPERAND) return "OPERAND";
+			else if (t == LP) return "LP";
+			else if (t == RP) return "RP";
+			else if (t == END) return "END";
+			else return "UNKNOWN";
+		}
+
+		//Get the next token
+		void advance() throws Exception {
+			skipWhitespace();
+			if (index >= script.length()) { type = END; return; }
+			char c = script.charAt(index);
+			boolean startsOperand = (dialect == DICOM)
+									? ((c == '[') || Character.isLetter(c))
+									: ((c == '"') || (c == '/') || Character.isLetter(c));
+			if (startsOperand) {
+				operand = getOperand();
+				type = OPERAND;
+			}
+			else if (c == '(') { index++; type = LP; }
+			else if (c == ')') { index++; type = RP; }
+			else if ((c == '+') || (c == '*') || (c == '!')) {
+				index++;
+				operator = c;
+				type = OPERATOR;
+			}
+			else type = UNKNOWN;
+		}
+
+		void skipWhitespace() {
+			boolean inComment = false;
+			while (index < script.length()) {
+				char c = script.charAt(index);
+				if (inComment) {
+					if (c == '\n') inComment = false;
+					index++;
+				}
+				else if ((c == '/') && (dialect == DICOM)) {
+					int k = index + 1;
+					if ((k < script.length()) && (script.charAt(k) == '/')) {
+						inComment = true;
+						index += 2;
+					}
+					else return;
+				}
+				else if (Character.isWhitespace(c)) index++;
+				else return;
+			}
+		}
+
+		Expression getOperand() throws Exception {
+			String identifier = getField('.').trim();
+			if ((dialect == XML)
+					&& (identifier.length() > 1)
+						&& identifier.startsWith("\"")
+							&& identifier.endsWith("\"")) {
+				identifier = identifier.substring(1, identifier.length()-1).trim();
+			}
+			if (identifier.equals("true")) return new Constant(true);
+			if (identifier.equals("false")) return new Constant(false);
+
+			String method = getField('(').trim();
+			String match = getField(')').trim();
+			if ((match.length() > 1)
+					&& (match.charAt(0) == '"')
+						&& (match.charAt(match.length()-1) == '"')) {
+				match = match.substring(1, match.length()-1);
+				int m = Test.getMethod(method);
+				if (m != -1) return new Test(dialect, identifier, m, match);
+				if (dialect == DICOM) {
+					logger.error("Unknown function: "+identifier+"."+method+"(\""+match+"\")");
+				}
+			}
+			return new Constant(false);
+		}
+
+		String getField(char delim) {
+			StringBuffer sb = new StringBuffer();
+			boolean inQuote = false;
+			while (index < script.length()) {
+				char c = script.charAt(index++);
+				if (c == '"') inQuote = !inQuote;
+				if (!inQuote && (c == delim)) break;
+				sb.append(c);
+			}
+			return sb.toString();
+		}
+	}
+
+}
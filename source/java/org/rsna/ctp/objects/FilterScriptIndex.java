@@ -0,0 +1,234 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.objects;
+
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.List;
+import org.apache.log4j.Logger;
+
+/**
+ * An index of an ordered list of DICOM filter scripts, for finding the
+ * first script in the list which matches a DicomObject.
+ * <p>
+ * A script which can only be true if certain elements have certain values
+ * (for example, { Modality.equals("US") * Rows.equals("600") * ... })
+ * is indexed by the combination of those values. To find the first matching
+ * script for an object, the values of the indexed elements are obtained once
+ * from the object, and only the scripts indexed by the object's values, plus
+ * any scripts which could not be indexed, are evaluated. The result is the
+ * same as evaluating every script in order.
+ * <p>
+ * Only equals() and equalsIgnoreCase() tests which are combined with the
+ * rest of a script by the AND operator are used as index keys.
+ * Instances are immutable and can be shared by multiple threads.
+ */
+public class FilterScriptIndex {
+
+	static final Logger logger = Logger.getLogger(FilterScriptIndex.class);
+
+	final FilterScript[] scripts;
+	final LinkedList<Dimension> dimensions = new LinkedList<Dimension>();
+	final Dimension[] dims;
+	final Group[] groups;
+	final int[] unindexed;
+
+	/**
+	 * Compile and index a list of DICOM filter scripts.
+	 * @param texts the texts of the scripts, in the order in which
+	 * they are to be tested.
+	 */
+	public FilterScriptIndex(List<String> texts) {
+		scripts = new FilterScript[texts.size()];
+		int i = 0;
+		for (String text : texts) {
+			scripts[i++] = new FilterScript(text, FilterScript.DICOM, 0);
+		}
+
+		Hashtable<String,Group> groupTable = new Hashtable<String,Group>();
+		LinkedList<Group> groupList = new LinkedList<Group>();
+		LinkedList<Integer> unindexedList = new LinkedList<Integer>();
+		for (i=0; i<scripts.length; i++) {
+			Hashtable<Integer,String> keys = new Hashtable<Integer,String>();
+			if (scripts[i].expression != null) getKeys(scripts[i].expression, keys);
+			if (keys.isEmpty()) {
+				unindexedList.add(i);
+				continue;
+			}
+			int[] groupDims = new int[keys.size()];
+			int k = 0;
+			for (Integer d : keys.keySet()) groupDims[k++] = d.intValue();
+			Arrays.sort(groupDims);
+			String[] values = new String[groupDims.length];
+			for (k=0; k<groupDims.length; k++) values[k] = keys.get(groupDims[k]);
+
+			String groupKey = Arrays.toString(groupDims);
+			Group group = groupTable.get(groupKey);
+			if (group == null) {
+				group = new Group(groupDims);
+				groupTable.put(groupKey, group);
+				groupList.add(group);
+			}
+			group.add(getKey(values), i);
+		}
+		dims = dimensions.toArray(new Dimension[dimensions.size()]);
+		groups = groupList.toArray(new Group[groupList.size()]);
+		unindexed = toArray(unindexedList);
+		for (Group group : groups) group.close();
+
+		logger.debug(scripts.length+" scripts indexed: "+groups.length+" groups on "
+						+dims.length+" elements; "+unindexed.length+" unindexed");
+	}
+
+	/**
+	 * Get the number of scripts in the index.
+	 * @return the number of scripts.
+	 */
+	public int size() {
+		return scripts.length;
+	}
+
+	/**
+	 * Get the number of scripts which are evaluated for every object
+	 * because they could not be indexed.
+	 * @return the number of unindexed scripts.
+	 */
+	public int getUnindexedCount() {
+		return unindexed.length;
+	}
+
+	/**
+	 * Find the first script which matches a DicomObject.
+	 * @param dicomObject the object.
+	 * @return the index of the first matching script in the list from
+	 * which the index was constructed, or -1 if no script matches.
+	 */
+	public int getFirstMatch(DicomObject dicomObject) {
+		String[] values = new String[dims.length];
+		int first = find(unindexed, dicomObject, Integer.MAX_VALUE);
+		for (Group group : groups) {
+			String[] groupValues = new String[group.dims.length];
+			for (int k=0; k<group.dims.length; k++) {
+				int d = group.dims[k];
+				if (values[d] == null) values[d] = dims[d].getValue(dicomObject);
+				groupValues[k] = values[d];
+			}
+			int[] candidates = group.table.get(getKey(groupValues));
+			if (candidates != null) first = find(candidates, dicomObject, first);
+		}
+		return (first != Integer.MAX_VALUE) ? first : -1;
+	}
+
+	//Find the first script in a sorted list of candidates which comes before
+	//the current first match and matches the object. Return the index of the
+	//script, or the current first match if no earlier script matches.
+	private int find(int[] candidates, DicomObject dicomObject, int first) {
+		for (int i : candidates) {
+			if (i >= first) break;
+			if (scripts[i].matches(dicomObject)) return i;
+		}
+		return first;
+	}
+
+	//Get the equality tests which must be true for an expression to be true,
+	//mapping the index of the dimension of each test to its value.
+	private void getKeys(FilterScript.Expression e, Hashtable<Integer,String> keys) {
+		if (e instanceof FilterScript.And) {
+			getKeys(((FilterScript.And)e).left, keys);
+			getKeys(((FilterScript.And)e).right, keys);
+		}
+		else if (e instanceof FilterScript.Test) {
+			FilterScript.Test test = (FilterScript.Test)e;
+			boolean ignoreCase;
+			if (test.method == FilterScript.Test.EQUALS) ignoreCase = false;
+			else if (test.method == FilterScript.Test.EQUALS_IGNORE_CASE) ignoreCase = true;
+			else return;
+			Integer d = getDimension(test, ignoreCase);
+			if (!keys.containsKey(d)) keys.put(d, Dimension.normalize(test.match, ignoreCase));
+		}
+	}
+
+	//Get the index of the dimension for a test, creating it if necessary.
+	private int getDimension(FilterScript.Test test, boolean ignoreCase) {
+		String name = test.identifier.trim() + (ignoreCase ? "/i" : "");
+		int i = 0;
+		for (Dimension dim : dimensions) {
+			if (dim.name.equals(name)) return i;
+			i++;
+		}
+		dimensions.add(new Dimension(name, test, ignoreCase));
+		return i;
+	}
+
+	private static String getKey(String[] values) {
+		StringBuffer sb = new StringBuffer();
+		for (String value : values) sb.append(value).append('\u0000');
+		return sb.toString();
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		int i = 0;
+		for (Integer n : list) array[i++] = n.intValue();
+		return array;
+	}
+
+	//An element tested by the scripts, obtained from an object the same way the test obtains it.
+	static class Dimension {
+		final String name;
+		final FilterScript.Test test;
+		final boolean ignoreCase;
+
+		Dimension(String name, FilterScript.Test test, boolean ignoreCase) {
+			this.name = name;
+			this.test = test;
+			this.ignoreCase = ignoreCase;
+		}
+
+		String getValue(DicomObject dicomObject) {
+			return normalize(test.getValue(dicomObject), ignoreCase);
+		}
+
+		//Fold the case of a value the way String.equalsIgnoreCase compares characters.
+		static String normalize(String value, boolean ignoreCase) {
+			if (!ignoreCase) return value;
+			char[] chars = value.toCharArray();
+			for (int i=0; i<chars.length; i++) {
+				chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+			}
+			return new String(chars);
+		}
+	}
+
+	//The scripts which test the same set of dimensions, indexed by their values.
+	static class Group {
+		final int[] dims;
+		Hashtable<String,LinkedList<Integer>> lists = new Hashtable<String,LinkedList<Integer>>();
+		final Hashtable<String,int[]> table = new Hashtable<String,int[]>();
+
+		Group(int[] dims) {
+			this.dims = dims;
+		}
+
+		void add(String key, int script) {
+			LinkedList<Integer> list = lists.get(key);
+			if (list == null) {
+				list = new LinkedList<Integer>();
+				lists.put(key, list);
+			}
+			list.add(script);
+		}
+
+		void close() {
+			for (String key : lists.keySet()) table.put(key, toArray(lists.get(key)));
+			lists = null;
+		}
+	}
+
+}
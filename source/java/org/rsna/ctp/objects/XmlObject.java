@@ -314,15 +314,15 @@ public class XmlObject extends FileObject {
 	/**
 	 * Evaluate a boolean script for this XmlObject. See the RSNA
 	 * CTP wiki article (The CTP XmlFilter) for information on the
-	 * script language.
+	 * script language. The script is compiled once and recompiled
+	 * only when the file changes.
 	 * @param scriptFile the text file containing the expression
 	 * to compute based on the values in this XmlObject.
 	 * @return the computed boolean value of the script.
 	 */
 	public boolean matches(File scriptFile) {
 		if (scriptFile != null) {
-			String script = FileUtil.getText(scriptFile);
-			return XmlUtil.matches(document, script);
+			return FilterScript.getInstance(scriptFile, FilterScript.XML).matches(document);
 		}
 		return true;
 	}
@@ -336,7 +336,7 @@ public class XmlObject extends FileObject {
 	 * @return the computed boolean value of the script.
 	 */
 	public boolean matches(String script) {
-		return XmlUtil.matches(document, script);
+		return FilterScript.getInstance(script, FilterScript.XML).matches(document);
 	}
 
 }
@@ -436,7 +436,8 @@ public class ZipObject extends FileObject {
 	/**
 	 * Evaluate a boolean script for the manifest of this ZipObject.
 	 * See the RSNA CTP wiki article (The CTP XmlFilter) for information
-	 * on the script language.
+	 * on the script language. The script is compiled once and recompiled
+	 * only when the file changes.
 	 * @param scriptFile the text file containing the expression to
 	 * compute based on the values in this ZipObject.
 	 * @return the computed boolean value of the script, or false if
@@ -445,8 +446,7 @@ public class ZipObject extends FileObject {
 	public boolean matches(File scriptFile) {
 		if (scriptFile != null) {
 			if (manifestXML != null) {
-				String script = FileUtil.getText(scriptFile);
-				return XmlUtil.matches(manifestXML, script);
+				return FilterScript.getInstance(scriptFile, FilterScript.XML).matches(manifestXML);
 			}
 			return false;
 		}
@@ -464,7 +464,7 @@ public class ZipObject extends FileObject {
 	 */
 	public boolean matches(String script) {
 		if (manifestXML != null) {
-			return XmlUtil.matches(manifestXML, script);
+			return FilterScript.getInstance(script, FilterScript.XML).matches(manifestXML);
 		}
 		return false;
 	}
@@ -36,21 +36,19 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 	static final int minInterval = 1000;
 	static final int maxInterval = 2 * defaultInterval;
 	static final int maxThrottle = 5000;
-
-	int successCount = 0;
-	int retryCount = 0;
+	static final int minThreads = 1;
+	static final int maxThreads = 10;
 
 	int throttle = 0;
 	int interval = defaultInterval;
-	Exporter exporter = null;
+	int threads = minThreads;
+	Exporter[] exporters = null;
 	public boolean enableExport = true;
 
 	AuditLog auditLog = null;
 	String auditLogID = null;
 	LinkedList<Integer> auditLogTags = null;
 
-	volatile long lastElapsedTime = -1;
-
 	/**
 	 * Construct an ExportService.
 	 * @param element the XML element from the configuration file
@@ -65,7 +63,11 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 			interval = StringUtil.getInt(element.getAttribute("interval").trim());
 			if ((interval < minInterval) || (interval > maxInterval)) interval = defaultInterval;
 			enableExport = !element.getAttribute("enableExport").trim().equals("no");
-			exporter = new Exporter();
+			threads = StringUtil.getInt(element.getAttribute("threads").trim(), minThreads);
+			if (threads < minThreads) threads = minThreads;
+			if (threads > maxThreads) threads = maxThreads;
+			exporters = new Exporter[threads];
+			for (int i=0; i<threads; i++) exporters[i] = new Exporter(i);
 		}
 
 		//Get the AuditLog parameters
@@ -83,15 +85,15 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 	}
 
 	/**
-	 * Start the export thread. This method is called by the subclass
+	 * Start the export threads. This method is called by the subclass
 	 * that does the actual exporting after it has had time to set up.
 	 */
 	public void start() {
 		//Get the AuditLog plugin, if there is one.
 		auditLog = (AuditLog)Configuration.getInstance().getRegisteredPlugin(auditLogID);
 
-		if (enableExport && (exporter != null)) {
-			exporter.start();
+		if (enableExport && (exporters != null)) {
+			for (Exporter exporter : exporters) exporter.start();
 		}
 	}
 
@@ -99,11 +101,40 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 	 * Determine whether the pipeline stage has shut down.
 	 */
 	public synchronized boolean isDown() {
-		if ((exporter != null) && !exporter.getState().equals(Thread.State.TERMINATED))
-			return false;
+		if (exporters != null) {
+			for (Exporter exporter : exporters) {
+				if (!exporter.getState().equals(Thread.State.TERMINATED)) return false;
+			}
+		}
 		return stop;
 	}
 
+	/**
+	 * Get the number of exporter threads. Each thread takes files from
+	 * the export queue and calls the export method independently, so
+	 * when a stage is configured with more than one thread, its export
+	 * method must be thread-safe.
+	 * @return the number of exporter threads.
+	 */
+	public int getThreadCount() {
+		return threads;
+	}
+
+	/**
+	 * Get the index of the exporter thread calling this method. ExportServices
+	 * that keep a connection or association open between exports can use the
+	 * index to give each exporter thread its own connection.
+	 * @return the index of the calling exporter thread (0 to getThreadCount()-1),
+	 * or 0 if the caller is not one of the exporter threads of this stage.
+	 */
+	public int getThreadIndex() {
+		Thread thread = Thread.currentThread();
+		if ((thread instanceof Exporter) && (((Exporter)thread).getService() == this)) {
+			return ((Exporter)thread).index;
+		}
+		return 0;
+	}
+
 	/**
 	 * Abstract method to export a file.
 	 * @param file the file to export.
@@ -135,6 +166,44 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 		return Status.OK;
 	}
 	
+	/**
+	 * Determine whether the result of exporting a file is not known yet
+	 * because the export completes after export() returns. This method
+	 * always returns false, but ExportServices that export asynchronously
+	 * should override it.
+	 * @param file the file which was exported.
+	 * @return true if the result of the export is not known yet; false otherwise.
+	 */
+	protected boolean isPending(File file) {
+		return false;
+	}
+
+	/**
+	 * Count the result of an export which completed after export() returned.
+	 * An OK or a FAIL is counted in the exporter's statistics. A RETRY counts
+	 * toward the string of retries after which the exporter thread waits for
+	 * the polling interval, as a RETRY returned by export() does, and an OK
+	 * ends the string. This method must be called on the exporter thread
+	 * which exported the file.
+	 * @param status the result of the export.
+	 */
+	protected void countDeferredResult(Status status) {
+		Thread thread = Thread.currentThread();
+		if ((thread instanceof Exporter) && (((Exporter)thread).getService() == this)) {
+			Exporter exporter = (Exporter)thread;
+			if (status.equals(Status.RETRY)) {
+				exporter.successCount = 0;
+				exporter.retryCount++;
+			}
+			else if (status.equals(Status.OK)) {
+				exporter.successCount++;
+				exporter.exportCount++;
+				exporter.retryCount = 0;
+			}
+			else if (status.equals(Status.FAIL)) exporter.failureCount++;
+		}
+	}
+
 	/**
 	 * Get the interval for polling the export queue.
 	 * @return the interval in milliseconds
@@ -143,12 +212,33 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 		return interval;
 	}
 
+	/**
+	 * Get a suffix which distinguishes names generated by different exporter
+	 * threads at the same time, for example names made from the current time.
+	 * @return "-" followed by the index of the calling exporter thread if
+	 * the stage has more than one exporter thread; otherwise, the empty string.
+	 */
+	public String getThreadSuffix() {
+		return (threads > 1) ? ("-" + getThreadIndex()) : "";
+	}
+
 	class Exporter extends Thread {
-		public Exporter() {
-			super(name + " Exporter");
+		final int index;
+		int successCount = 0;
+		int retryCount = 0;
+		volatile long exportCount = 0;
+		volatile long failureCount = 0;
+		volatile long lastElapsedTime = -1;
+
+		public Exporter(int index) {
+			super(name + " Exporter" + ((threads > 1) ? (" " + index) : ""));
+			this.index = index;
+		}
+		AbstractExportService getService() {
+			return AbstractExportService.this;
 		}
 		public void run() {
-			logger.info(name+": Exporter Thread: Started");
+			logger.info(getName()+" Thread: Started");
 			File file = null;
 			while (enableExport && !stop && !interrupted()) {
 				try {
@@ -163,17 +253,15 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 								logger.warn(name+": Unable to export "+file);
 								if (quarantine != null) quarantine.insert(file);
 								else file.delete();
+								failureCount++;
 							}
 							else if (result.equals(Status.RETRY)) {
 								//Something is wrong, but probably not with the file.
 								//Note that the file has been removed from the queue,
 								//so it is necessary to requeue it. This has the
 								//effect of moving it to the end of the queue.
-								getQueueManager().enqueue(file);
-								//Note that enqueuing a file does not delete it
-								//from the source location, so we must delete it now.
-								file.delete();
-								logger.debug("Status.RETRY received: successCount = "+successCount+"; retryCount = "+retryCount);
+								getQueueManager().enqueueMove(file);
+								logger.debug(getName()+": Status.RETRY received: successCount = "+successCount+"; retryCount = "+retryCount);
 								successCount = 0;
 								//Only break if we have had a string of failures
 								//in a row; otherwise, move on to the next file.
@@ -185,8 +273,15 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 									catch (Exception ignore) { }
 								}
 								release(file);
-								successCount++;
-								retryCount = 0;
+								//If the result of the export is not known yet, it is
+								//counted when it arrives, and the retries counted from
+								//earlier results still stand.
+								if (!isPending(file)) {
+									successCount++;
+									exportCount++;
+									retryCount = 0;
+								}
+								else if (retryCount > 5) break;
 							}
 						}
 						disconnect();
@@ -200,11 +295,11 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 					if (!stop && (getQueueSize() < 20)) recount();
 				}
 				catch (Exception e) {
-					logger.warn(name+" Exporter Thread: Exception received",e);
+					logger.warn(getName()+" Thread: Exception received",e);
 					stop = true;
 				}
 			}
-			logger.info(name+" Thread: Interrupt received; exporter thread stopped");
+			logger.info(getName()+" Thread: Interrupt received; exporter thread stopped");
 		}
 	}
 
@@ -275,8 +370,21 @@ public abstract class AbstractExportService extends AbstractQueuedExportService
 				+ "<td>"
 				+ (enableExport ? "yes" : "no")
 				+ "</td></tr>");
-		if (lastElapsedTime >= 0) {
-			long et = lastElapsedTime / 1000000;
+		if ((exporters != null) && (exporters.length > 1)) {
+			for (Exporter exporter : exporters) {
+				long et = exporter.lastElapsedTime / 1000000;
+				sb.append(
+					  "<tr><td width=\"20%\">Exporter "+exporter.index+":</td>"
+					+ "<td>"
+					+ exporter.exportCount + " exported; "
+					+ exporter.failureCount + " failed; "
+					+ exporter.retryCount + " consecutive retries"
+					+ ((exporter.lastElapsedTime >= 0) ? String.format("; last elapsed time %d msec", et) : "")
+					+ "</td></tr>");
+			}
+		}
+		else if ((exporters != null) && (exporters[0].lastElapsedTime >= 0)) {
+			long et = exporters[0].lastElapsedTime / 1000000;
 			sb.append(
 				  "<tr><td width=\"20%\">Last export elapsed time:</td>"
 				+ "<td>"
@@ -53,7 +53,7 @@ public abstract class AbstractImportService extends AbstractPipelineStage implem
 			temp = new File(root, "temp");
 			temp.mkdirs();
 			File queue = new File(root, "queue");
-			queueManager = new QueueManager(queue, 0, 0); //use default settings
+			queueManager = QueueManager.getInstance(queue, element);
 			active = new File(root, "active");
 			active.mkdirs();
 			activePath = active.getAbsolutePath();
@@ -95,25 +95,49 @@ public abstract class AbstractImportService extends AbstractPipelineStage implem
 	}
 
 	/**
-	 * Enqueue a file and log it.
+	 * Determine whether the pipeline of this stage is throttled, in which
+	 * case the stage should slow down or refuse new objects.
+	 * @return true if the pipeline is throttled; false otherwise.
+	 */
+	public boolean isThrottled() {
+		Pipeline pipe = getPipeline();
+		return (pipe != null) && pipe.isThrottled();
+	}
+
+	/**
+	 * Enqueue a file and log it. The file is moved into the queue
+	 * under the lock of the QueueManager only, so receiving threads
+	 * do not wait for the stage while the pipeline is using it.
 	 * @param file the file that was received.
 	 */
-	public synchronized void fileReceived(File file) {
+	public void fileReceived(File file) {
 		if (file.length() > 0) {
-			count++; //Count the file
 			//The received file is in the temp directory.
-			File qFile = getQueueManager().enqueue(file);
-			//Now log the file. Here, we're logging the enqueued
-			//file instead of the version in the temp directory.
-			lastFileIn = qFile;
-			lastTimeIn = System.currentTimeMillis();
+			//Move it into the queue.
+			File qFile = queueManager.enqueueMove(file);
+			//Now count and log the file. Here, we're logging the
+			//enqueued file instead of the version in the temp directory.
+			synchronized (this) {
+				count++;
+				lastFileIn = qFile;
+				lastTimeIn = System.currentTimeMillis();
+			}
 		}
-		//Enqueuing the file does not delete it
-		//from the source directory, so we have to
-		//delete it here.
+		//If the file was not moved into the queue
+		//(e.g., it was empty), delete it here.
 		file.delete();
 	}
 
+	/**
+	 * Determine whether this ImportService can supply another object while
+	 * the objects it has supplied are still in the pipeline. Each object is
+	 * dequeued into the active directory, so it is supplied only once.
+	 * @return true
+	 */
+	public boolean canSupplyConcurrently() {
+		return true;
+	}
+
 	/**
 	 * Get the next object available for processing.
 	 * @return the next object available, or null if no object is available.
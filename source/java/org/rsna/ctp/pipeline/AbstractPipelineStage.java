@@ -27,7 +27,7 @@ import org.w3c.dom.Node;
  * override the getStatusHTML method to provide status relevant
  * to the PipelineStage being implemented.
  */
-public abstract class AbstractPipelineStage implements PipelineStage {
+public abstract class AbstractPipelineStage implements PipelineStage, ConcurrentStage {
 
 	protected final Element element;
 	protected final String name;
@@ -125,6 +125,39 @@ public abstract class AbstractPipelineStage implements PipelineStage {
 		return stop;
 	}
 
+	/**
+	 * Determine whether this stage can be called by several pipeline
+	 * worker threads at the same time. This method returns false. It
+	 * should be overridden by stages whose processing is thread-safe.
+	 * @return false
+	 */
+	public boolean isThreadSafe() {
+		return false;
+	}
+
+	/**
+	 * Determine whether this stage requires the objects of a study to
+	 * arrive in the order in which they were imported. This method
+	 * returns false. It should be overridden by stages that depend on
+	 * the order of the objects within a study.
+	 * @return false
+	 */
+	public boolean requiresStudyOrder() {
+		return false;
+	}
+
+	/**
+	 * Determine whether this stage, if it is an ImportService, can supply
+	 * another object while the objects it has supplied are still in the
+	 * pipeline. This method returns false. It should be overridden by
+	 * ImportServices whose getNextObject method never supplies an object
+	 * which has not been released.
+	 * @return false
+	 */
+	public boolean canSupplyConcurrently() {
+		return false;
+	}
+
 	/**
 	 * Get the name of this pipeline stage as specified in the
 	 * configuration element for the stage.
@@ -59,7 +59,7 @@ public abstract class AbstractQueuedExportService
 			temp.mkdirs();
 			
 			File queue = new File(root, "queue");
-			queueManager = new QueueManager(queue, 0, 0); //use default settings
+			queueManager = QueueManager.getInstance(queue, element);
 			active = new File(root, "active");
 			activePath = active.getAbsolutePath();
 			queueManager.enqueueDir(active); //requeue any files that are left from an ungraceful shutdown.
@@ -100,6 +100,15 @@ public abstract class AbstractQueuedExportService
 		return cacheManager;
 	}
 
+	/**
+	 * Determine whether this stage can be called by several pipeline
+	 * worker threads at the same time.
+	 * @return true
+	 */
+	public boolean isThreadSafe() {
+		return true;
+	}
+
 	/**
 	 * Add a FileObject to the export queue if the ExportService is
 	 * configured to accept the FileObject class or subclass.
@@ -109,8 +118,10 @@ public abstract class AbstractQueuedExportService
 	 * @param fileObject the object to be exported.
 	 */
 	public void export(FileObject fileObject) {
-		lastFileIn = fileObject.getFile();
-		lastTimeIn = System.currentTimeMillis();
+		synchronized (this) {
+			lastFileIn = fileObject.getFile();
+			lastTimeIn = System.currentTimeMillis();
+		}
 		if (fileObject instanceof DicomObject) {
 			if (acceptDicomObjects) {
 				if (((DicomObject)fileObject).matches(dicomScriptFile))
@@ -130,16 +141,20 @@ public abstract class AbstractQueuedExportService
 			}
 		}
 		else if (acceptFileObjects) enqueue(fileObject);
-		lastFileOut = new File(fileObject.getFile().getAbsolutePath());
-		lastTimeOut = System.currentTimeMillis();
+		synchronized (this) {
+			lastFileOut = new File(fileObject.getFile().getAbsolutePath());
+			lastTimeOut = System.currentTimeMillis();
+		}
 	}
 
 	//Queue a fileObject.
 	//Note: if caching is enabled, this puts the object in the cache;
 	//if caching is not enabled, it puts the object directly in the export queue
 	//because in that case cacheManager and queueManger point to the same queue.
+	//The object is linked into the queue rather than copied where possible;
+	//the pipeline unshares it before any later stage can modify it.
 	private void enqueue(FileObject fileObject) {
-		if (cacheManager.enqueue(lastFileIn) == null) {
+		if (cacheManager.enqueueLink(fileObject.getFile()) == null) {
 			if (quarantine != null) quarantine.insertCopy(fileObject);
 		}
 	}
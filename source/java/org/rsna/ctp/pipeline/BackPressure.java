@@ -0,0 +1,184 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedList;
+import org.apache.log4j.Logger;
+
+/**
+ * A class to apply back-pressure to the ImportServices of a pipeline
+ * when the pipeline falls behind. The backlog of the pipeline is the total
+ * number of objects in the queues of its ImportServices and queued
+ * ExportServices. When the backlog reaches the high watermark, the pipeline
+ * is throttled, and its ImportServices slow down or refuse new objects.
+ * The pipeline is released when the backlog falls to the low watermark.
+ * <p>
+ * The backlog is measured at most once per second, on the thread
+ * of an ImportService which asks whether the pipeline is throttled.
+ */
+public class BackPressure {
+
+	static final Logger logger = Logger.getLogger(BackPressure.class);
+
+	static final long checkInterval = 1000;
+	static final int maxTransitions = 20;
+
+	final Pipeline pipeline;
+	final int highWatermark;
+	final int lowWatermark;
+
+	volatile boolean throttled = false;
+	volatile int backlog = 0;
+	volatile long lastCheck = 0;
+	long throttledSince = 0;
+	long throttledTime = 0;
+	int transitionCount = 0;
+	final LinkedList<Transition> transitions = new LinkedList<Transition>();
+
+	/**
+	 * Construct a BackPressure.
+	 * @param pipeline the pipeline.
+	 * @param highWatermark the backlog at which the pipeline is throttled,
+	 * or zero if the pipeline is never to be throttled.
+	 * @param lowWatermark the backlog at which the pipeline is released.
+	 * If this value is not less than the high watermark, half the high
+	 * watermark is used.
+	 */
+	public BackPressure(Pipeline pipeline, int highWatermark, int lowWatermark) {
+		this.pipeline = pipeline;
+		this.highWatermark = Math.max(highWatermark, 0);
+		if ((lowWatermark < 0) || (lowWatermark >= this.highWatermark)) lowWatermark = this.highWatermark / 2;
+		this.lowWatermark = lowWatermark;
+	}
+
+	/**
+	 * Determine whether back-pressure is configured for the pipeline.
+	 * @return true if the pipeline has a high watermark; false otherwise.
+	 */
+	public boolean isEnabled() {
+		return (highWatermark > 0);
+	}
+
+	/**
+	 * Determine whether the pipeline is throttled, measuring the
+	 * backlog if it has not been measured in the last second.
+	 * @return true if the ImportServices of the pipeline are to slow
+	 * down or refuse new objects; false otherwise.
+	 */
+	public boolean isThrottled() {
+		if (highWatermark <= 0) return false;
+		long now = System.currentTimeMillis();
+		if (now - lastCheck >= checkInterval) {
+			lastCheck = now;
+			//Measure the backlog without holding the lock on this object,
+			//so the locks on the stages are never requested while it is held.
+			update(getBacklog());
+		}
+		return throttled;
+	}
+
+	/**
+	 * Get the last measured backlog of the pipeline.
+	 * @return the number of objects in the import and export queues
+	 * of the pipeline when the backlog was last measured.
+	 */
+	public int getLastBacklog() {
+		return backlog;
+	}
+
+	/**
+	 * Get the current backlog of the pipeline.
+	 * @return the number of objects in the import and export queues of the pipeline.
+	 */
+	public int getBacklog() {
+		int count = 0;
+		for (PipelineStage stage : pipeline.getStages()) {
+			if (stage instanceof ImportService) {
+				count += ((ImportService)stage).getQueueSize();
+			}
+			else if (stage instanceof AbstractQueuedExportService) {
+				count += ((AbstractQueuedExportService)stage).getQueueSize();
+			}
+		}
+		return count;
+	}
+
+	//Record a measurement of the backlog, and throttle
+	//or release the pipeline if a watermark was crossed.
+	private synchronized void update(int backlog) {
+		this.backlog = backlog;
+		long now = System.currentTimeMillis();
+		if (!throttled && (backlog >= highWatermark)) {
+			throttled = true;
+			throttledSince = now;
+			addTransition(now, true, backlog);
+		}
+		else if (throttled && (backlog <= lowWatermark)) {
+			throttled = false;
+			throttledTime += now - throttledSince;
+			addTransition(now, false, backlog);
+		}
+	}
+
+	private void addTransition(long time, boolean throttled, int backlog) {
+		transitionCount++;
+		transitions.add(new Transition(time, throttled, backlog));
+		if (transitions.size() > maxTransitions) transitions.removeFirst();
+		logger.info(pipeline.getPipelineName() + (throttled ? ": throttled" : ": released")
+						+ " (backlog = " + backlog + ")");
+	}
+
+	/**
+	 * Get the total time for which the pipeline has been throttled.
+	 * @return the time in ms for which the pipeline has been throttled.
+	 */
+	public synchronized long getThrottledTime() {
+		return throttledTime + (throttled ? System.currentTimeMillis() - throttledSince : 0);
+	}
+
+	/**
+	 * Get HTML text displaying the watermarks, the state of the pipeline,
+	 * and the most recent transitions.
+	 * @return HTML text displaying the back-pressure status of the pipeline.
+	 */
+	public synchronized String getStatusHTML() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("<h3>Back-pressure</h3>");
+		sb.append("<table border=\"1\" width=\"100%\">");
+		sb.append("<tr><td width=\"20%\">State:</td><td>"+(throttled ? "Throttled" : "Open")+"</td></tr>");
+		sb.append("<tr><td width=\"20%\">Backlog:</td><td>"+String.format("%,d",backlog)+"</td></tr>");
+		sb.append("<tr><td width=\"20%\">Watermarks:</td><td>high: "+String.format("%,d",highWatermark)
+						+"; low: "+String.format("%,d",lowWatermark)+"</td></tr>");
+		sb.append("<tr><td width=\"20%\">Transitions:</td><td>"+transitionCount
+						+"; time throttled: "+(getThrottledTime()/1000)+" s</td></tr>");
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		for (int i=transitions.size()-1; i>=0; i--) {
+			Transition t = transitions.get(i);
+			sb.append("<tr><td width=\"20%\">"+format.format(new Date(t.time))+"</td>");
+			sb.append("<td>"+(t.throttled ? "Throttled" : "Released")
+						+" at backlog "+String.format("%,d",t.backlog)+"</td></tr>");
+		}
+		sb.append("</table>");
+		return sb.toString();
+	}
+
+	static class Transition {
+		final long time;
+		final boolean throttled;
+		final int backlog;
+
+		Transition(long time, boolean throttled, int backlog) {
+			this.time = time;
+			this.throttled = throttled;
+			this.backlog = backlog;
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+/**
+ * The interface specifying the methods that a PipelineStage uses to
+ * tell its Pipeline how it can be scheduled when the Pipeline runs
+ * in concurrent mode. Stages that do not implement this interface
+ * are treated as not thread-safe and not requiring study order.
+ */
+public interface ConcurrentStage {
+
+	/**
+	 * Determine whether the stage's process, store, or export method
+	 * can be called by several pipeline worker threads at the same time.
+	 * @return true if the stage is thread-safe; false otherwise.
+	 */
+	public boolean isThreadSafe();
+
+	/**
+	 * Determine whether the stage requires that the objects of a study
+	 * be presented to it in the order in which they were imported.
+	 * @return true if the stage requires per-study ordering; false otherwise.
+	 */
+	public boolean requiresStudyOrder();
+
+	/**
+	 * Determine whether an ImportService can supply another object while
+	 * objects it has already supplied are still in the pipeline. The
+	 * Pipeline does not call the getNextObject method of an ImportService
+	 * which cannot until the object it supplied has been released.
+	 * @return true if the ImportService can supply objects concurrently;
+	 * false otherwise.
+	 */
+	public boolean canSupplyConcurrently();
+
+}
@@ -0,0 +1,201 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import jdbm.RecordManager;
+import org.apache.log4j.Logger;
+import org.rsna.util.StringUtil;
+import org.w3c.dom.Element;
+
+/**
+ * A class to manage the commits of a JDBM RecordManager for a stage or plugin.
+ * In the default (always) mode, each call to commit() commits the RecordManager,
+ * so every update is durable when the call returns. In batch mode, commits are
+ * grouped: the RecordManager is committed when a number of calls have accumulated
+ * or when a time interval has elapsed since the first uncommitted call, whichever
+ * comes first. Updates made since the last commit are lost if the program
+ * terminates abnormally.
+ * <p>
+ * Because a timed commit is made on a separate thread, a caller that makes
+ * several related updates should make them and call commit() while synchronized
+ * on the GroupCommitter so that a timed commit cannot divide them.
+ * <p>
+ * The mode is selected in the configuration element of the stage or plugin:
+ * <ul>
+ * <li>commit="always" or commit="batch" (default: always)
+ * <li>commitCount="500" the maximum number of uncommitted calls in batch mode
+ * <li>commitInterval="200" the maximum time in ms that a call can remain uncommitted in batch mode
+ * </ul>
+ */
+public class GroupCommitter {
+
+	static final Logger logger = Logger.getLogger(GroupCommitter.class);
+
+	public static final int defaultCommitCount = 500;
+	public static final long defaultCommitInterval = 200;
+
+	static Timer timer = null;
+
+	final RecordManager recman;
+	final String name;
+	final boolean batch;
+	final int commitCount;
+	final long commitInterval;
+
+	int pending = 0;
+	long calls = 0;
+	long commits = 0;
+	TimerTask task = null;
+	boolean closed = false;
+
+	/**
+	 * Construct a GroupCommitter from the attributes of a configuration element.
+	 * @param recman the RecordManager to be committed.
+	 * @param name the name of the database, for logging.
+	 * @param element the configuration element of the stage or plugin, or
+	 * null if commits are to be made on every call.
+	 */
+	public GroupCommitter(RecordManager recman, String name, Element element) {
+		this(recman,
+			 name,
+			 (element != null) && element.getAttribute("commit").trim().equals("batch"),
+			 (element != null) ? StringUtil.getInt(element.getAttribute("commitCount"), defaultCommitCount) : defaultCommitCount,
+			 (element != null) ? StringUtil.getLong(element.getAttribute("commitInterval"), defaultCommitInterval) : defaultCommitInterval);
+	}
+
+	/**
+	 * Construct a GroupCommitter.
+	 * @param recman the RecordManager to be committed.
+	 * @param name the name of the database, for logging.
+	 * @param batch true if commits are to be grouped; false if every call is to be committed.
+	 * @param commitCount the maximum number of uncommitted calls in batch mode.
+	 * @param commitInterval the maximum time in ms that a call can remain uncommitted in batch mode.
+	 */
+	public GroupCommitter(RecordManager recman, String name, boolean batch, int commitCount, long commitInterval) {
+		this.recman = recman;
+		this.name = name;
+		this.batch = batch;
+		this.commitCount = Math.max(commitCount, 1);
+		this.commitInterval = Math.max(commitInterval, 1);
+		if (batch) {
+			logger.info(name+": batch commits every "+this.commitCount+" updates or "+this.commitInterval+"ms");
+		}
+	}
+
+	/**
+	 * Get the RecordManager managed by this GroupCommitter.
+	 * @return the RecordManager.
+	 */
+	public RecordManager getRecordManager() {
+		return recman;
+	}
+
+	/**
+	 * Determine whether commits are grouped.
+	 * @return true if the GroupCommitter is in batch mode; false otherwise.
+	 */
+	public boolean isBatch() {
+		return batch;
+	}
+
+	/**
+	 * Record that the caller has completed a set of updates. In always mode,
+	 * the RecordManager is committed immediately. In batch mode, it is
+	 * committed if the count has been reached; otherwise a commit is
+	 * scheduled for the end of the interval.
+	 * @throws IOException if the RecordManager cannot be committed.
+	 */
+	public synchronized void commit() throws IOException {
+		if (closed) return;
+		calls++;
+		if (!batch) {
+			recman.commit();
+			commits++;
+		}
+		else {
+			pending++;
+			if (pending >= commitCount) flush();
+			else if (task == null) {
+				task = new FlushTask();
+				getTimer().schedule(task, commitInterval);
+			}
+		}
+	}
+
+	/**
+	 * Commit any uncommitted updates now.
+	 * @throws IOException if the RecordManager cannot be committed.
+	 */
+	public synchronized void flush() throws IOException {
+		if (task != null) {
+			task.cancel();
+			task = null;
+		}
+		if ((pending > 0) && !closed) {
+			pending = 0;
+			recman.commit();
+			commits++;
+		}
+	}
+
+	/**
+	 * Commit any uncommitted updates and close the RecordManager.
+	 * Calls to commit() after the GroupCommitter is closed are ignored.
+	 */
+	public synchronized void close() {
+		if (closed) return;
+		try {
+			if (task != null) task.cancel();
+			task = null;
+			recman.commit();
+			recman.close();
+		}
+		catch (Exception ex) {
+			logger.warn(name+": Unable to commit and close the database", ex);
+		}
+		closed = true;
+		logger.debug(name+": "+calls+" updates in "+commits+" commits");
+	}
+
+	/**
+	 * Get the number of calls to commit().
+	 * @return the number of sets of updates made by the caller.
+	 */
+	public synchronized long getCalls() {
+		return calls;
+	}
+
+	/**
+	 * Get the number of commits of the RecordManager.
+	 * @return the number of commits actually made.
+	 */
+	public synchronized long getCommits() {
+		return commits;
+	}
+
+	//Get the timer shared by all the GroupCommitters
+	private static synchronized Timer getTimer() {
+		if (timer == null) timer = new Timer("GroupCommitter", true);
+		return timer;
+	}
+
+	class FlushTask extends TimerTask {
+		public void run() {
+			synchronized (GroupCommitter.this) {
+				if (task != this) return;
+				task = null;
+				try { flush(); }
+				catch (Exception ex) { logger.warn(name+": Unable to commit the database", ex); }
+			}
+		}
+	}
+
+}
@@ -0,0 +1,292 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * A QueueManager that keeps its files in sequence-numbered segment directories
+ * and tracks the head and tail of the queue, so that enqueuing, dequeuing, and
+ * obtaining the size of the queue do not require listing or walking the tree.
+ * <p>
+ * Each queued file is stored as root/Snnnnnnnnnn/nnnnnnnnnnnnnnnn, where the file
+ * name is its sequence number and the segment directory name is the sequence number
+ * divided by the segment size. The head and tail sequence numbers are saved in the
+ * checkpoint file root/__checkpoint periodically.
+ * When the queue is opened, the checkpoint is verified against the segment directories,
+ * so files enqueued or dequeued after the last checkpoint are accounted for.
+ * <p>
+ * Files placed in the tree of a directory-tree QueueManager for the same root
+ * are moved into the journal, in queue order, when the queue is opened.
+ * Files placed in the segment directories by hand are not seen.
+ */
+public class JournalQueueManager extends QueueManager {
+
+	static final Logger logger = Logger.getLogger(JournalQueueManager.class);
+
+	static final String checkpointName = "__checkpoint";
+	static final int segmentSize = 1000;
+	static final int checkpointInterval = 100;
+
+	private File root;
+	private File checkpoint;
+	private long head = 0;
+	private long tail = 0;
+	private int changes = 0;
+	private boolean checkpointLoaded = false;
+
+	/**
+	 * Create a JournalQueueManager for a root directory.
+	 * @param root the root directory of the queue.
+	 * If the root directory does not exist, it is created.
+	 */
+	public JournalQueueManager(File root) {
+		super(root);
+		this.root = root;
+		checkpoint = new File(root, checkpointName);
+		loadCheckpoint();
+		recover();
+		migrate();
+		saveCheckpoint();
+	}
+
+	/**
+	 * Get the size of the queue.
+	 * @return the number of objects in the queue.
+	 */
+	public synchronized int size() {
+		return (int)(tail - head);
+	}
+
+	//Insert a file into the queue.
+	synchronized File insert(File file, int mode) {
+		if ((file == null) || (file.length() == 0)) return null;
+		File qFile = getFile(tail);
+		qFile.getParentFile().mkdirs();
+		if (transfer(file, qFile, mode)) {
+			tail++;
+			changed();
+			return qFile;
+		}
+		return null;
+	}
+
+	/**
+	 * Retrieve a file from the queue. The file is removed from
+	 * the queue and placed into a directory supplied by the calling
+	 * method. Files are returned in FIFO order.
+	 * @param dir the directory into which to place the file to be retrieved.
+	 * @return a File pointing to the file in the supplied directory. If
+	 * no file is available in the queue, null is returned. If the supplied
+	 * directory file is null or not a directory, null is returned.
+	 */
+	public synchronized File dequeue(File dir) {
+		if (dir == null) return null;
+		if (dir.exists() && !dir.isDirectory()) return null;
+		dir.mkdirs();
+
+		while (head < tail) {
+			File qFile = getFile(head);
+			File file = qFile.exists() ? moveFile(qFile, dir) : null;
+			if ((file == null) && qFile.exists()) return null; //leave it at the head and try again later
+			advanceHead();
+			if (file != null) return file;
+		}
+		return null;
+	}
+
+	/**
+	 * Find the next file in the queue without removing it from the queue.
+	 * @return a File pointing to the file in the queue, or null
+	 * if no file is available in the queue.
+	 */
+	public synchronized File peek() {
+		while (head < tail) {
+			File qFile = getFile(head);
+			if (qFile.exists()) return qFile;
+			advanceHead();
+		}
+		return null;
+	}
+
+	/**
+	 * Verify the head and tail of the queue against the segment directories.
+	 * @return the number of files in the queue.
+	 */
+	public synchronized int recount() {
+		recover();
+		saveCheckpoint();
+		return size();
+	}
+
+	//Get the file for a sequence number.
+	private File getFile(long seq) {
+		String segName = String.format("S%010d", seq / segmentSize);
+		return new File(new File(root, segName), String.format("%016d", seq));
+	}
+
+	//Advance the head past the current file, removing
+	//the segment directory when it has been emptied.
+	private void advanceHead() {
+		File segment = getFile(head).getParentFile();
+		head++;
+		if ((head % segmentSize == 0) || (head == tail)) segment.delete(); //only succeeds if it is empty
+		changed();
+	}
+
+	//Count a change, and save the checkpoint if enough changes have
+	//accumulated. A checkpoint that is behind the queue is corrected
+	//by recover() when the queue is opened.
+	private void changed() {
+		if (++changes >= checkpointInterval) saveCheckpoint();
+	}
+
+	//Load the head and tail from the checkpoint file.
+	private void loadCheckpoint() {
+		if (!checkpoint.exists()) return;
+		try {
+			String[] values = FileUtil.getText(checkpoint).trim().split("\\s+");
+			head = Long.parseLong(values[0]);
+			tail = Long.parseLong(values[1]);
+			checkpointLoaded = true;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to read the checkpoint in "+root+"; the queue will be rebuilt.");
+			head = 0;
+			tail = 0;
+		}
+	}
+
+	//Save the head and tail in the checkpoint file.
+	private void saveCheckpoint() {
+		changes = 0;
+		File temp = new File(root, checkpointName + ".tmp");
+		try {
+			FileUtil.setText(temp, head + " " + tail);
+			Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (Exception ex) { logger.warn("Unable to save the checkpoint in "+root, ex); }
+	}
+
+	//Reconcile the checkpoint with the segment directories. The checkpoint
+	//may be behind the queue if the program did not shut down cleanly.
+	//The tail is the sequence number following the last file in the
+	//last segment containing files. The head is the first file at or
+	//after the checkpointed head (files before it were all dequeued).
+	private void recover() {
+		File[] segments = root.listFiles(new SegmentFilter());
+		if (segments == null) segments = new File[0];
+		Arrays.sort(segments);
+
+		long last = -1;
+		long first = -1;
+		for (int i=segments.length-1; (i>=0) && (last < 0); i--) {
+			last = getLastSequence(segments[i]);
+			if (last < 0) segments[i].delete(); //remove empty segments at the end
+		}
+		if (last < 0) {
+			//The queue is empty.
+			head = tail;
+			checkpointLoaded = true;
+			return;
+		}
+		tail = Math.max(tail, last + 1);
+
+		//If there was no checkpoint, find the first file.
+		if (!checkpointLoaded) {
+			for (int i=0; (i<segments.length) && (first < 0); i++) {
+				first = getFirstSequence(segments[i]);
+			}
+			head = first;
+			checkpointLoaded = true;
+		}
+		head = Math.min(head, tail);
+		while ((head < tail) && !getFile(head).exists()) head++;
+	}
+
+	//Get the sequence number of the last file in a segment, or -1 if the segment is empty.
+	private long getLastSequence(File segment) {
+		long seq = -1;
+		File[] files = segment.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				try { seq = Math.max(seq, Long.parseLong(file.getName())); }
+				catch (Exception ignore) { if (file.getName().endsWith(".partial")) file.delete(); }
+			}
+		}
+		return seq;
+	}
+
+	//Get the sequence number of the first file in a segment, or -1 if the segment is empty.
+	private long getFirstSequence(File segment) {
+		long seq = -1;
+		File[] files = segment.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				try {
+					long n = Long.parseLong(file.getName());
+					seq = (seq < 0) ? n : Math.min(seq, n);
+				}
+				catch (Exception ignore) { }
+			}
+		}
+		return seq;
+	}
+
+	//Move the files from a directory-tree queue into the journal.
+	private void migrate() {
+		File[] files = root.listFiles();
+		if (files == null) return;
+		Arrays.sort(files);
+		int count = 0;
+		for (File file : files) {
+			if (file.isDirectory() && file.getName().replaceAll("[\\d\\.]","").length() == 0) {
+				count += migrate(file);
+			}
+		}
+		if (count > 0) logger.info(count+" files moved from the directory tree into the journal in "+root);
+	}
+
+	//Move the files in a directory and its subdirectories, in
+	//sorted order, into the journal, and delete the directories.
+	private int migrate(File dir) {
+		int count = 0;
+		File[] files = dir.listFiles();
+		if (files == null) return 0;
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory()) count += migrate(file);
+			else if (file.length() == 0) file.delete();
+			else {
+				File qFile = getFile(tail);
+				qFile.getParentFile().mkdirs();
+				if (transfer(file, qFile, MOVE)) {
+					tail++;
+					count++;
+				}
+			}
+		}
+		dir.delete();
+		return count;
+	}
+
+	//An implementation of java.io.FileFilter to return only segment directories.
+	class SegmentFilter implements FileFilter {
+		public boolean accept(File file) {
+			String name = file.getName();
+			return file.isDirectory() && name.startsWith("S") && (name.substring(1).replaceAll("\\d","").length() == 0);
+		}
+	}
+
+}
@@ -10,17 +10,37 @@ package org.rsna.ctp.pipeline;
 import java.io.File;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.server.User;
+import org.rsna.util.StringUtil;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
 /**
  * The class that represents a single pipeline.
+ * <p>
+ * By default, the pipeline thread drives each object through all the
+ * stages in turn. If the Pipeline element has the attribute concurrent="yes",
+ * each stage is run by its own StageWorkerPool, with bounded queues between
+ * the stages. Stages that declare themselves thread-safe (see ConcurrentStage)
+ * get the number of workers specified by the threads attribute (default: the
+ * number of processors); all other stages get a single worker. The queueSize
+ * attribute specifies the capacity of each worker's queue (default: 16). If
+ * any stage requires per-study ordering, objects are assigned to the workers
+ * of thread-safe stages by StudyInstanceUID. An ImportService which cannot
+ * supply objects concurrently (see ConcurrentStage) is not asked for another
+ * object until the one it supplied has left the pipeline.
+ * <p>
+ * If the Pipeline element has a highWatermark attribute, the ImportServices
+ * of the pipeline slow down or refuse new objects when the total number of
+ * objects in the import and export queues of the pipeline reaches that value,
+ * until it falls to the value of the lowWatermark attribute (see BackPressure).
  */
 public class Pipeline extends Thread {
 
@@ -35,6 +55,15 @@ public class Pipeline extends Thread {
 	int pipelineIndex = -1;
 	String admin = "";
 
+	static final int defaultQueueSize = 16;
+	boolean concurrent = false;
+	int threads = 1;
+	int queueSize = defaultQueueSize;
+	List<StageWorkerPool> pools = null;
+	final AtomicInteger inProcess = new AtomicInteger(0);
+	final HashSet<ImportService> busySuppliers = new HashSet<ImportService>();
+	final BackPressure backPressure;
+
 	/**
 	 * A Thread representing a processing pipeline for FileObjects
 	 * (and subclasses of FileObjects - DicomObjects, XmlObjects,
@@ -50,6 +79,14 @@ public class Pipeline extends Thread {
 		setName(name);
 		admin = pipeline.getAttribute("admin").trim();
 		enabled = !pipeline.getAttribute("enabled").equals("no");
+		concurrent = pipeline.getAttribute("concurrent").trim().equals("yes");
+		threads = StringUtil.getInt(pipeline.getAttribute("threads").trim(), Runtime.getRuntime().availableProcessors());
+		if (threads < 1) threads = 1;
+		queueSize = StringUtil.getInt(pipeline.getAttribute("queueSize").trim(), defaultQueueSize);
+		if (queueSize < 1) queueSize = defaultQueueSize;
+		backPressure = new BackPressure(this,
+							StringUtil.getInt(pipeline.getAttribute("highWatermark").trim(), 0),
+							StringUtil.getInt(pipeline.getAttribute("lowWatermark").trim(), -1));
 		stages = new ArrayList<PipelineStage>();
 		importServices = new ArrayList<ImportService>();
 		Node child = pipeline.getFirstChild();
@@ -149,6 +186,31 @@ public class Pipeline extends Thread {
 		return stages;
 	}
 
+	/**
+	 * Check whether this pipeline runs its stages concurrently.
+	 * @return true if this pipeline is in concurrent mode, false otherwise.
+	 */
+	public synchronized boolean isConcurrent() {
+		return concurrent;
+	}
+
+	/**
+	 * Get the back-pressure controller of this pipeline.
+	 * @return the BackPressure for this pipeline.
+	 */
+	public BackPressure getBackPressure() {
+		return backPressure;
+	}
+
+	/**
+	 * Determine whether the ImportServices of this pipeline are to
+	 * slow down or refuse new objects because the pipeline is behind.
+	 * @return true if the pipeline is throttled; false otherwise.
+	 */
+	public boolean isThrottled() {
+		return backPressure.isThrottled();
+	}
+
 	/**
 	 * Shut down the pipeline
 	 */
@@ -192,14 +254,22 @@ public class Pipeline extends Thread {
 			//Start the stages
 			for (PipelineStage stage: stages) stage.start();
 
+			//Start the worker pools if we are in concurrent mode.
+			if (concurrent) startPools();
+
 			//Process objects, sleeping when there are none available.
 			while (!stop && !interrupted()) {
 				try {
-					processObjects();
+					if (concurrent) feedObjects();
+					else processObjects();
 					if (!stop) sleep(1000);
 				}
 				catch (Exception ex) { stop = true; }
 			}
+
+			//Stop the worker pools, giving them a chance to finish the objects in process.
+			if (concurrent) stopPools();
+
 			//Stop all the stages
 			for (PipelineStage stage: stages) stage.shutdown();
 		}
@@ -232,15 +302,7 @@ public class Pipeline extends Thread {
 			//processing. That's why the condition in the while
 			//statement includes a test for (fileObject != null).
 			while ((fileObject != null) && sit.hasNext()) {
-				PipelineStage stage = sit.next();
-				if (stage instanceof Processor)
-					fileObject = ((Processor)stage).process(fileObject);
-				else if (stage instanceof StorageService)
-					fileObject = ((StorageService)stage).store(fileObject);
-				else if (stage instanceof ExportService)
-					((ExportService)stage).export(fileObject);
-				//Note that ImportServices are skipped;
-				//they are only suppliers, not processors.
+				fileObject = processStage(sit.next(), fileObject);
 			}
 			//Release the file and yield in case
 			//someone else has anything on his mind.
@@ -250,6 +312,128 @@ public class Pipeline extends Thread {
 		//Nothing left to do; return.
 	}
 
+	/**
+	 * Pass an object to a stage, calling the method appropriate to the
+	 * type of the stage. ImportServices are skipped; they are only suppliers,
+	 * not processors.
+	 * @param stage the stage.
+	 * @param fileObject the object to be processed.
+	 * @return the object to be passed to the next stage, or null if the
+	 * stage has quarantined the object.
+	 */
+	static FileObject processStage(PipelineStage stage, FileObject fileObject) {
+		if (stage instanceof Processor) {
+			//Export queues may hold hard links to the file; make sure
+			//that changes made by the stage cannot reach them.
+			QueueManager.unshare(fileObject.getFile());
+			return ((Processor)stage).process(fileObject);
+		}
+		else if (stage instanceof StorageService) {
+			QueueManager.unshare(fileObject.getFile());
+			return ((StorageService)stage).store(fileObject);
+		}
+		else if (stage instanceof ExportService)
+			((ExportService)stage).export(fileObject);
+		return fileObject;
+	}
+
+	//Create and start a worker pool for each stage that processes objects.
+	private void startPools() {
+		boolean studyAffinity = false;
+		for (PipelineStage stage: stages) {
+			if ((stage instanceof ConcurrentStage) && ((ConcurrentStage)stage).requiresStudyOrder())
+				studyAffinity = true;
+		}
+		pools = new ArrayList<StageWorkerPool>();
+		StageWorkerPool last = null;
+		for (PipelineStage stage: stages) {
+			if ((stage instanceof Processor)
+					|| (stage instanceof StorageService)
+						|| (stage instanceof ExportService)) {
+				boolean threadSafe = (stage instanceof ConcurrentStage) && ((ConcurrentStage)stage).isThreadSafe();
+				int nWorkers = threadSafe ? threads : 1;
+				StageWorkerPool pool = new StageWorkerPool(this, stage, nWorkers, queueSize, studyAffinity);
+				if (last != null) last.setNextPool(pool);
+				pools.add(pool);
+				last = pool;
+			}
+		}
+		for (StageWorkerPool pool : pools) pool.start();
+		logger.info(name+": Concurrent mode: "+pools.size()+" worker pools started");
+	}
+
+	//Wait a while for the objects in process to clear the pipeline, then stop the pools.
+	private void stopPools() {
+		long endTime = System.currentTimeMillis() + 10000;
+		while ((inProcess.get() > 0) && (System.currentTimeMillis() < endTime)) {
+			try { sleep(100); }
+			catch (Exception ex) { break; }
+		}
+		for (StageWorkerPool pool : pools) pool.shutdown();
+		int n = inProcess.get();
+		if (n > 0) logger.info(name+": "+n+" objects left in process at shutdown");
+	}
+
+	//Hand objects to the first worker pool until none are left.
+	//The hand-off blocks when the first pool's queues are full.
+	private void feedObjects() throws InterruptedException {
+		ImportedObject importedObject;
+
+		while (!stop && !interrupted() && !paused) {
+			if ((importedObject=getNextObject()) == null) {
+				//If an ImportService is only waiting for its
+				//object to leave the pipeline, wait for it.
+				if (waitForSupplier()) continue;
+				break;
+			}
+			FileObject fileObject = importedObject.object;
+			if (!canSupplyConcurrently(importedObject.provider)) {
+				synchronized (busySuppliers) { busySuppliers.add(importedObject.provider); }
+			}
+
+			//Make sure it has a standard extension
+			fileObject.setStandardExtension();
+
+			StageWorkerPool.PipelineItem item =
+				new StageWorkerPool.PipelineItem(fileObject, importedObject.provider);
+			inProcess.incrementAndGet();
+			if (pools.size() > 0) pools.get(0).submit(item);
+			else complete(item);
+		}
+		//Nothing left to do; return.
+	}
+
+	/**
+	 * Release an object that has left a concurrent pipeline, either
+	 * because it has passed through all the stages or because a stage
+	 * has quarantined it.
+	 * @param item the object that has left the pipeline.
+	 */
+	void complete(StageWorkerPool.PipelineItem item) {
+		item.provider.release(item.importedFile);
+		inProcess.decrementAndGet();
+		synchronized (busySuppliers) {
+			if (busySuppliers.remove(item.provider)) busySuppliers.notifyAll();
+		}
+	}
+
+	//Determine whether an ImportService can supply objects
+	//while the objects it has supplied are in process.
+	private boolean canSupplyConcurrently(ImportService importService) {
+		return (importService instanceof ConcurrentStage)
+					&& ((ConcurrentStage)importService).canSupplyConcurrently();
+	}
+
+	//Wait briefly for an ImportService which has an object in process.
+	//Return false if no ImportService is waiting for its object.
+	private boolean waitForSupplier() throws InterruptedException {
+		synchronized (busySuppliers) {
+			if (busySuppliers.isEmpty()) return false;
+			busySuppliers.wait(1000);
+			return true;
+		}
+	}
+
 	//Find the first ImportService which has an object available.
 	private ImportedObject getNextObject() {
 		if (!stop) {
@@ -258,6 +442,9 @@ public class Pipeline extends Thread {
 			Iterator<ImportService> lit = importServices.iterator();
 			while (lit.hasNext()) {
 				importService = lit.next();
+				synchronized (busySuppliers) {
+					if (busySuppliers.contains(importService)) continue;
+				}
 				fileObject = importService.getNextObject();
 				if (fileObject != null) return new ImportedObject(fileObject, importService);
 			}
@@ -301,6 +488,18 @@ public class Pipeline extends Thread {
 	public synchronized String getStatusHTML() {
 		StringBuffer sb = new StringBuffer();
 		sb.append("<h2>"+name+"</h2>");
+		if (backPressure.isEnabled()) sb.append(backPressure.getStatusHTML());
+		if (concurrent && (pools != null)) {
+			sb.append("<h3>Concurrent Processing</h3>");
+			sb.append("<table border=\"1\" width=\"100%\">");
+			sb.append("<tr><td width=\"20%\">Objects in process:</td><td>"+inProcess.get()+"</td></tr>");
+			for (StageWorkerPool pool : pools) {
+				sb.append("<tr><td width=\"20%\">"+pool.getStage().getName()+":</td>");
+				sb.append("<td>"+pool.getWorkerCount()+" worker"+((pool.getWorkerCount()==1)?"":"s"));
+				sb.append("; "+pool.getQueueSize()+" queued</td></tr>");
+			}
+			sb.append("</table>");
+		}
 		Iterator<PipelineStage> sit = stages.iterator();
 		while (sit.hasNext()) sb.append(sit.next().getStatusHTML());
 		return sb.toString();
@@ -11,8 +11,10 @@ import java.io.File;
 import java.util.Arrays;
 import java.util.Hashtable;
 import java.util.LinkedList;
+import jdbm.btree.BTree;
 import jdbm.htree.HTree;
-import jdbm.helper.FastIterator;
+import jdbm.helper.Tuple;
+import jdbm.helper.TupleBrowser;
 import jdbm.RecordManager;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.*;
@@ -28,6 +30,17 @@ import org.w3c.dom.Element;
 /**
  * A singleton class representing the quarantine directories and providing
  * methods for inserting FileObjects.
+ * <p>
+ * The index keeps a record for each file, study, and series. Two BTrees
+ * index the studies in sorted order and the files in each series, so the numbers
+ * of files and studies are available without walking the index, the studies
+ * can be listed a page at a time, and adding a file to a large series does
+ * not rewrite a list of all the files in the series.
+ * <p>
+ * Files are requeued to a QueueManager in batches, moving the files and
+ * removing their index entries in one transaction per batch. A requeue of
+ * the whole quarantine, a study, or a series can be run in the background
+ * by a Requeuer thread, which reports its progress and can be cancelled.
  */
 public class Quarantine {
 
@@ -37,6 +50,7 @@ public class Quarantine {
 	private static PurgeThread purgeThread = new PurgeThread();
 	private static long oneHour = 60 * 60 * 1000; //ms
 	private static long oneDay = 24 * oneHour; //ms
+	private static final int requeueBatchSize = 500;
 
 	File directory = null;
 	File indexDir = null;
@@ -48,13 +62,19 @@ public class Quarantine {
 	private static final String studyTableName = "STUDY";
 	private static final String seriesTableName = "SERIES";
 	private static final String instanceTableName = "INSTANCE";
+	private static final String studyIndexName = "STUDYINDEX";
+	private static final String fileIndexName = "FILEINDEX";
 	private static final String versionKey = "version";
-	private static final String versionID = "2";
+	private static final String versionID = "3";
 
 	private HTree versionTable = null;
 	private HTree studyTable = null; 	//Map from StudyInstanceUID to QStudy
 	private HTree seriesTable = null; 	//Map from SeriesInstanceUID to QSeries
 	private HTree instanceTable = null; //Map from filename to QInstance
+	private BTree studyIndex = null;	//Map from the sort key of a QStudy to StudyInstanceUID
+	private BTree fileIndex = null;		//Map from SeriesInstanceUID and filename to filename
+
+	private Requeuer requeuer = null;
 
 	/**
 	 * Get the Quarantine object for a directory.
@@ -143,6 +163,8 @@ public class Quarantine {
 		studyTable = JdbmUtil.getHTree(recman, studyTableName);
 		seriesTable = JdbmUtil.getHTree(recman, seriesTableName);
 		instanceTable = JdbmUtil.getHTree(recman, instanceTableName);
+		studyIndex = JdbmUtil.getBTree(recman, studyIndexName);
+		fileIndex = JdbmUtil.getBTree(recman, fileIndexName);
 	}
 
 	/**
@@ -198,17 +220,29 @@ public class Quarantine {
 
 	/**
 	 * Get the number of files in the quarantine.
-	 * @return the number of files in the instanceTable.
+	 * @return the number of files in the index.
 	 */
 	public synchronized int getSize() {
-		Object object;
-		int count = 0;
-		try {
-			FastIterator fit = instanceTable.values();
-			while ( (object=fit.next()) != null ) count++;
-		}
-		catch (Exception ignore) { }
-		return count;
+		return (fileIndex != null) ? fileIndex.size() : 0;
+	}
+
+	/**
+	 * Get the number of studies in the quarantine.
+	 * @return the number of studies in the index.
+	 */
+	public synchronized int getNumberOfStudies() {
+		return (studyIndex != null) ? studyIndex.size() : 0;
+	}
+
+	//Get the key of a study in the studyIndex. The key sorts
+	//in the same order as the natural order of QStudy objects.
+	private static String getStudyKey(QStudy qstudy) {
+		return qstudy.patientID + "\u0000" + qstudy.studyDate + "\u0000" + qstudy.studyUID;
+	}
+
+	//Get the key of a file in the fileIndex.
+	private static String getFileKey(String seriesUID, String filename) {
+		return seriesUID + "\u0000" + filename;
 	}
 
 	//Add a file to the quarantine index
@@ -221,22 +255,29 @@ public class Quarantine {
 		File file = fileObject.getFile();
 		if (file.isFile() && file.getParentFile().equals(directory)) {
 			try {
+				QFile qfile = new QFile(fileObject);
+				if (instanceTable.get(qfile.getName()) != null) return true;
 				String studyUID = QStudy.getStudyUID(fileObject);
 				QStudy qstudy = (QStudy)studyTable.get(studyUID);
-				if (qstudy == null) {
+				boolean newStudy = (qstudy == null);
+				if (newStudy) {
 					qstudy = new QStudy(fileObject);
 				}
 				String seriesUID = QSeries.getSeriesUID(fileObject);
 				QSeries qseries = (QSeries)seriesTable.get(seriesUID);
-				if (qseries == null) {
+				boolean newSeries = (qseries == null);
+				if (newSeries) {
 					qseries = new QSeries(fileObject);
 				}
-				QFile qfile = new QFile(fileObject);
 				qseries.add(qfile);
-				qstudy.add(qseries);
 				instanceTable.put(qfile.getName(), qfile);
+				fileIndex.insert(getFileKey(seriesUID, qfile.getName()), qfile.getName(), true);
 				seriesTable.put(seriesUID, qseries);
-				studyTable.put(studyUID, qstudy);
+				if (newStudy || newSeries) {
+					qstudy.add(qseries);
+					studyTable.put(studyUID, qstudy);
+				}
+				if (newStudy) studyIndex.insert(getStudyKey(qstudy), studyUID, true);
 				return true;
 			}
 			catch (Exception unable) { logger.warn("index", unable); }
@@ -246,15 +287,22 @@ public class Quarantine {
 
 	//Remove a file from the quarantine index
 	private synchronized void deindex(File file) {
+		deindex(file, true);
+	}
+
+	//Remove a file from the quarantine index, committing the change if requested.
+	private synchronized void deindex(File file, boolean commit) {
 		if (file.isFile() && file.getParentFile().equals(directory)) {
 			try {
 				String name = file.getName();
 				QFile qfile = (QFile)instanceTable.get(name);
+				if (qfile == null) return;
 				String seriesUID = qfile.getSeriesUID();
 				QSeries qseries = (QSeries)seriesTable.get(seriesUID);
 				String studyUID = qseries.getStudyUID();
 				QStudy qstudy = (QStudy)studyTable.get(studyUID);
 				instanceTable.remove(name);
+				fileIndex.remove(getFileKey(seriesUID, name));
 				qseries.remove(qfile);
 				if (!qseries.isEmpty()) {
 					seriesTable.put(seriesUID, qseries);
@@ -264,9 +312,11 @@ public class Quarantine {
 					qstudy.removeSeries(seriesUID);
 					if (qstudy.isEmpty()) {
 						studyTable.remove(studyUID);
+						studyIndex.remove(getStudyKey(qstudy));
 					}
+					else studyTable.put(studyUID, qstudy);
 				}
-				commitIndex();
+				if (commit) commitIndex();
 			}
 			catch (Exception unable) { }
 		}
@@ -281,6 +331,129 @@ public class Quarantine {
 		}
 	}
 
+	/**
+	 * A thread to queue files from the quarantine in the background.
+	 */
+	public class Requeuer extends Thread {
+		final String description;
+		final String studyUID;
+		final String seriesUID;
+		final QueueManager queueManager;
+		volatile boolean cancelled = false;
+		volatile int total = 0;
+		volatile int processed = 0;
+		volatile int queued = 0;
+		volatile int failed = 0;
+		volatile long startTime = 0;
+		volatile long endTime = 0;
+
+		Requeuer(String description, String studyUID, String seriesUID, QueueManager queueManager) {
+			super("Quarantine Requeuer: "+directory.getName());
+			this.description = description;
+			this.studyUID = studyUID;
+			this.seriesUID = seriesUID;
+			this.queueManager = queueManager;
+		}
+
+		public void run() {
+			startTime = System.currentTimeMillis();
+			try {
+				String[] names;
+				if (seriesUID != null) names = getFilenames(seriesUID);
+				else if (studyUID != null) names = getStudyFilenames(studyUID);
+				else names = getAllFilenames();
+				total = names.length;
+				requeue(names, queueManager, this);
+			}
+			catch (Exception ex) { logger.warn(getName()+": requeue failed", ex); }
+			endTime = System.currentTimeMillis();
+			logger.info(getName()+": "+description+": "+queued+" files queued; "+failed+" failed"
+						+ (cancelled ? " (cancelled)" : ""));
+		}
+
+		//Record the progress of a batch.
+		void update(int processed, int queued, int failed) {
+			this.processed = processed;
+			this.queued += queued;
+			this.failed += failed;
+		}
+
+		/**
+		 * Stop the job after the current batch.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		/**
+		 * Get a description of the files being queued.
+		 * @return the description of the job.
+		 */
+		public String getDescription() {
+			return description;
+		}
+
+		/**
+		 * Get the number of files selected for the job.
+		 * @return the number of files to be processed.
+		 */
+		public int getTotal() {
+			return total;
+		}
+
+		/**
+		 * Get the number of files processed so far, including
+		 * files which were queued, files which failed, and
+		 * files which were no longer in the quarantine.
+		 * @return the number of files processed.
+		 */
+		public int getProcessed() {
+			return processed;
+		}
+
+		/**
+		 * Get the number of files queued so far.
+		 * @return the number of files queued.
+		 */
+		public int getQueued() {
+			return queued;
+		}
+
+		/**
+		 * Get the number of files which could not be queued.
+		 * @return the number of files which could not be queued.
+		 */
+		public int getFailed() {
+			return failed;
+		}
+
+		/**
+		 * Get the time the job has been running.
+		 * @return the elapsed time in ms.
+		 */
+		public long getElapsedTime() {
+			if (startTime == 0) return 0;
+			return ((endTime != 0) ? endTime : System.currentTimeMillis()) - startTime;
+		}
+
+		/**
+		 * Get the rate at which files have been queued.
+		 * @return the rate in files per second.
+		 */
+		public double getRate() {
+			long time = getElapsedTime();
+			return (time > 0) ? (queued * 1000.0 / time) : 0.0;
+		}
+
+		/**
+		 * Determine whether the job was cancelled.
+		 * @return true if the job was cancelled.
+		 */
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
 	//Thread to purge all quarantines
 	static class PurgeThread extends Thread {
 		public PurgeThread() { }
@@ -347,11 +520,8 @@ public class Quarantine {
 	 */
 	public void deleteSeries(String seriesUID) {
 		try {
-			QSeries series = (QSeries)seriesTable.get(seriesUID);
-			if (series != null) {
-				for (String filename : series.getFilenames()) {
-					deleteFile( getFile(filename) );
-				}
+			for (String filename : getFilenames(seriesUID)) {
+				deleteFile( getFile(filename) );
 			}
 		}
 		catch (Exception unable) { }
@@ -384,10 +554,7 @@ public class Quarantine {
 	 * @param queueManager the QueueManager to receive the files.
 	 */
 	public void queueAll(QueueManager queueManager) {
-		File[] files = directory.listFiles();
-		for (File file : files) {
-			queueFile(file, queueManager);
-		}
+		requeue(getAllFilenames(), queueManager, null);
 	}
 
 	/**
@@ -396,15 +563,7 @@ public class Quarantine {
 	 * @param queueManager the QueueManager to receive the files.
 	 */
 	public void queueStudy(String studyUID, QueueManager queueManager) {
-		try {
-			QStudy study = (QStudy)studyTable.get(studyUID);
-			if (study != null) {
-				for (String seriesUID : study.getSeriesUIDs()) {
-					queueSeries(seriesUID, queueManager);
-				}
-			}
-		}
-		catch (Exception unable) { }
+		requeue(getStudyFilenames(studyUID), queueManager, null);
 	}
 
 	/**
@@ -413,15 +572,108 @@ public class Quarantine {
 	 * @param queueManager the QueueManager to receive the files.
 	 */
 	public void queueSeries(String seriesUID, QueueManager queueManager) {
+		requeue(getFilenames(seriesUID), queueManager, null);
+	}
+
+	/**
+	 * Start a background job to queue all the files in the Quarantine to a QueueManager.
+	 * @param queueManager the QueueManager to receive the files.
+	 * @return true if the job was started; false if another job is running.
+	 */
+	public synchronized boolean startQueueAll(QueueManager queueManager) {
+		return startRequeuer(new Requeuer("All files", null, null, queueManager));
+	}
+
+	/**
+	 * Start a background job to queue all the files in a study to a QueueManager.
+	 * @param studyUID the UID of the study to queue.
+	 * @param queueManager the QueueManager to receive the files.
+	 * @return true if the job was started; false if another job is running.
+	 */
+	public synchronized boolean startQueueStudy(String studyUID, QueueManager queueManager) {
+		return startRequeuer(new Requeuer("Study "+studyUID, studyUID, null, queueManager));
+	}
+
+	/**
+	 * Start a background job to queue all the files in a series to a QueueManager.
+	 * @param seriesUID the UID of the series to queue.
+	 * @param queueManager the QueueManager to receive the files.
+	 * @return true if the job was started; false if another job is running.
+	 */
+	public synchronized boolean startQueueSeries(String seriesUID, QueueManager queueManager) {
+		return startRequeuer(new Requeuer("Series "+seriesUID, null, seriesUID, queueManager));
+	}
+
+	/**
+	 * Get the most recent background requeue job.
+	 * @return the running or most recently completed Requeuer, or null
+	 * if no job has been started.
+	 */
+	public synchronized Requeuer getRequeuer() {
+		return requeuer;
+	}
+
+	//Start a Requeuer unless one is already running.
+	private boolean startRequeuer(Requeuer job) {
+		if ((requeuer != null) && requeuer.isAlive()) return false;
+		requeuer = job;
+		requeuer.start();
+		return true;
+	}
+
+	//Get the names of all the files in the quarantine directory.
+	private String[] getAllFilenames() {
+		LinkedList<String> names = new LinkedList<String>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile()) names.add(file.getName());
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	//Get the names of all the files in a study.
+	private synchronized String[] getStudyFilenames(String studyUID) {
+		LinkedList<String> names = new LinkedList<String>();
 		try {
-			QSeries series = (QSeries)seriesTable.get(seriesUID);
-			if (series != null) {
-				for (String filename : series.getFilenames()) {
-					queueFile( getFile(filename), queueManager);
+			QStudy study = (QStudy)studyTable.get(studyUID);
+			if (study != null) {
+				for (String seriesUID : study.getSeriesUIDs()) {
+					names.addAll(Arrays.asList(getFilenames(seriesUID)));
 				}
 			}
 		}
 		catch (Exception unable) { }
+		return names.toArray(new String[names.size()]);
+	}
+
+	//Queue files to a QueueManager in batches. Each file is removed from the
+	//index and moved into the queue; the index is committed once per batch.
+	//A file which cannot be queued is indexed again. The job, if supplied,
+	//is updated after each batch, and it stops the requeue if it is cancelled.
+	private void requeue(String[] names, QueueManager queueManager, Requeuer job) {
+		int next = 0;
+		while ((next < names.length) && ((job == null) || !job.cancelled)) {
+			int count = 0;
+			int failures = 0;
+			synchronized (this) {
+				if (recman == null) return;
+				int end = Math.min(next + requeueBatchSize, names.length);
+				for ( ; next < end; next++) {
+					File file = getFile(names[next]);
+					if (!file.isFile()) continue;
+					deindex(file, false);
+					if (queueManager.enqueueMove(file) != null) count++;
+					else {
+						index(file);
+						failures++;
+					}
+				}
+				commitIndex();
+			}
+			if (job != null) job.update(next, count, failures);
+		}
 	}
 
 	/**
@@ -433,8 +685,7 @@ public class Quarantine {
 		if ((file != null) && file.isFile() && file.getParentFile().equals(directory)) {
 			try {
 				deindex(file);
-				queueManager.enqueue(file);
-				file.delete();
+				if (queueManager.enqueueMove(file) == null) file.delete();
 				recman.commit();
 			}
 			catch (Exception unable) { }
@@ -499,19 +750,29 @@ public class Quarantine {
 	 * @return the sorted array of studies
 	 */
 	public synchronized QStudy[] getStudies() {
+		return getStudies(0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Get a page of the array of QStudy objects, sorted in natural order.
+	 * @param offset the index of the first study to return.
+	 * @param limit the maximum number of studies to return.
+	 * @return the sorted array of studies
+	 */
+	public synchronized QStudy[] getStudies(int offset, int limit) {
 		LinkedList<QStudy> studyList = new LinkedList<QStudy>();
 		try {
-			FastIterator fit = studyTable.values();
-			QStudy study;
-			while ((study=(QStudy)fit.next()) != null) {
-				studyList.add(study);
+			TupleBrowser browser = studyIndex.browse();
+			Tuple tuple = new Tuple();
+			for (int i=0; (i<offset) && browser.getNext(tuple); i++) ;
+			while ((studyList.size() < limit) && browser.getNext(tuple)) {
+				QStudy study = (QStudy)studyTable.get(tuple.getValue());
+				if (study != null) studyList.add(study);
 			}
 		}
 		catch (Exception ex) { }
 		QStudy[] studies = new QStudy[studyList.size()];
-		studies = studyList.toArray(studies);
-		Arrays.sort(studies);
-		return studies;
+		return studyList.toArray(studies);
 	}
 
 	/**
@@ -568,7 +829,7 @@ public class Quarantine {
 		LinkedList<QFile> fileList = new LinkedList<QFile>();
 		try {
 			if (series != null) {
-				String[] names = series.getFilenames();
+				String[] names = getFilenames(series.getSeriesUID());
 				for (String name : names) {
 					QFile file = (QFile)instanceTable.get(name);
 					if (file != null) fileList.add(file);
@@ -582,6 +843,26 @@ public class Quarantine {
 		return fileArray;
 	}
 
+	/**
+	 * Get the names of the files in a series.
+	 * @param seriesUID the UID of the series.
+	 * @return the names of the files in the series, or the
+	 * empty array if the series has no files.
+	 */
+	public synchronized String[] getFilenames(String seriesUID) {
+		LinkedList<String> names = new LinkedList<String>();
+		try {
+			String prefix = getFileKey(seriesUID, "");
+			TupleBrowser browser = fileIndex.browse(prefix);
+			Tuple tuple = new Tuple();
+			while (browser.getNext(tuple) && ((String)tuple.getKey()).startsWith(prefix)) {
+				names.add((String)tuple.getValue());
+			}
+		}
+		catch (Exception ex) { }
+		return names.toArray(new String[names.size()]);
+	}
+
 	/**
 	 * Get an array of all the files in the quarantine index,
 	 * sorted in natural order.
@@ -620,10 +901,39 @@ public class Quarantine {
 	 * @throws Exception on any error
 	 */
 	public Document getStudiesXML() throws Exception {
+		return getStudiesXML(0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Get an XML document listing a page of the studies in the quarantine.
+	 * If the offset is past the last study, the last page is listed.
+	 * The root element has attributes for the offset of the page, the limit,
+	 * the total number of studies, and the total number of files.
+	 * @param offset the index of the first study to list.
+	 * @param limit the maximum number of studies to list.
+	 * @return the XML Document containing the page of studies.
+	 * @throws Exception on any error
+	 */
+	public Document getStudiesXML(int offset, int limit) throws Exception {
+		limit = Math.max(limit, 1);
+		int total;
+		int nFiles;
+		QStudy[] studies;
+		synchronized (this) {
+			total = getNumberOfStudies();
+			nFiles = getSize();
+			if (offset >= total) offset = ((total - 1) / limit) * limit;
+			offset = Math.max(offset, 0);
+			studies = getStudies(offset, limit);
+		}
 		Document doc = XmlUtil.getDocument();
 		Element root = doc.createElement("Studies");
+		root.setAttribute("offset", Integer.toString(offset));
+		root.setAttribute("limit", Integer.toString(limit));
+		root.setAttribute("total", Integer.toString(total));
+		root.setAttribute("nFiles", Integer.toString(nFiles));
 		doc.appendChild(root);
-		for (QStudy q : getStudies()) {
+		for (QStudy q : studies) {
 			Element study = doc.createElement("Study");
 			root.appendChild(study);
 			study.setAttribute("patientName", q.patientName);
@@ -9,9 +9,12 @@ package org.rsna.ctp.pipeline;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import org.apache.log4j.Logger;
 import org.rsna.util.FileUtil;
+import org.w3c.dom.Element;
 
 /**
  * A class to manage a queue directory and multiple subdirectories to
@@ -23,6 +26,10 @@ public class QueueManager {
 
 	static final Logger logger = Logger.getLogger(QueueManager.class);
 
+	static final int COPY = 0;
+	static final int LINK = 1;
+	static final int MOVE = 2;
+
 	private File root;
 	private int nLevels;
 	private int maxSize;
@@ -58,6 +65,33 @@ public class QueueManager {
 		subNameLength = Integer.toString(this.maxSize).length();
 	}
 
+	/**
+	 * Construct a QueueManager subclass that manages its own
+	 * storage below the root directory.
+	 * @param root the root directory of the queue.
+	 * If the root directory does not exist, it is created.
+	 */
+	protected QueueManager(File root) {
+		this.root = root;
+		root.mkdirs();
+	}
+
+	/**
+	 * Get a QueueManager for a stage. The queueType attribute of
+	 * the stage's configuration element selects the implementation:
+	 * "journal" selects a JournalQueueManager; any other value
+	 * selects a QueueManager with the default settings.
+	 * @param root the root directory of the queue.
+	 * @param element the configuration element of the stage.
+	 * @return the QueueManager.
+	 */
+	public static QueueManager getInstance(File root, Element element) {
+		if ((element != null) && element.getAttribute("queueType").trim().equals("journal")) {
+			return new JournalQueueManager(root);
+		}
+		return new QueueManager(root, 0, 0); //use default settings
+	}
+
 	/**
 	 * Get the size of the queue.
 	 * @return the number of objects in the queue.
@@ -76,9 +110,46 @@ public class QueueManager {
 	 * or null if the file had zero length.
 	 */
 	public synchronized File enqueue(File file) {
+		return insert(file, COPY);
+	}
+
+	/**
+	 * Move a file into the queue. This method is for callers that
+	 * give up the file: it is renamed into the queue if possible, and
+	 * copied and deleted otherwise, so it no longer exists in its
+	 * original directory if the call succeeds.
+	 * Note: this method does not enqueue a zero-length file.
+	 * @param file the file to be inserted.
+	 * @return a File pointing to the object in the queue
+	 * or null if the file had zero length or could not be moved.
+	 */
+	public synchronized File enqueueMove(File file) {
+		return insert(file, MOVE);
+	}
+
+	/**
+	 * Insert a file into the queue as a hard link to the original,
+	 * leaving the file in its original directory. This method is for
+	 * files which are shared by several queues and which are not modified
+	 * in place; the pipeline calls unshare() before passing an object to
+	 * a stage that might modify it. If the file system does not support
+	 * hard links, or the queue is on a different file system, the file
+	 * is copied.
+	 * Note: this method does not enqueue a zero-length file.
+	 * @param file the file to be inserted.
+	 * @return a File pointing to the object in the queue
+	 * or null if the file had zero length.
+	 */
+	public synchronized File enqueueLink(File file) {
+		return insert(file, LINK);
+	}
+
+	//Insert a file into the queue directory tree.
+	synchronized File insert(File file, int mode) {
 		if ((file == null) || (file.length() == 0)) return null;
 		lastFileIn = getNextFileIn();
-		lastFileIn = copyFile(file, lastFileIn);
+		lastFileIn.getParentFile().mkdirs();
+		if (!transfer(file, lastFileIn, mode)) lastFileIn = null;
 		if (lastFileIn != null) size++;
 		return lastFileIn;
 	}
@@ -99,7 +170,7 @@ public class QueueManager {
 			File[] files = dir.listFiles();
 			for (int i=0; i<files.length; i++) {
 				if (files[i].isFile()) {
-					enqueue(files[i]);
+					insert(files[i], MOVE);
 					files[i].delete();
 					count++;
 				}
@@ -288,23 +359,72 @@ public class QueueManager {
 		}
 	}
 
-	//Copy a file. Return null if the operation does not succeed. If the
-	//operation succeeds, return a file pointing to the location of the copy.
-	private File copyFile(File file, File copy) {
+	//Put a file into the queue at a specified location by
+	//copying, linking, or moving it. Return true if the operation
+	//succeeded. Links and moves fall back to copies if they fail.
+	//Copies are made to a temporary name and renamed so that a
+	//file at a queue name is always complete.
+	static boolean transfer(File file, File dest, int mode) {
+		if ((mode == MOVE) && file.renameTo(dest)) return true;
+		if ((mode == LINK) && (getLinkCount(file) > 0)) {
+			try {
+				Files.createLink(dest.toPath(), file.toPath());
+				return true;
+			}
+			catch (Exception useCopy) { }
+		}
+		File temp = new File(dest.getParentFile(), dest.getName() + ".partial");
 		try {
-			copy.getParentFile().mkdirs();
-			boolean ok = FileUtil.copy(file, copy);
-			if (ok) return copy;
-			else return null;
+			if (FileUtil.copy(file, temp) && temp.renameTo(dest)) {
+				if (mode == MOVE) file.delete();
+				return true;
+			}
 		}
-		catch (Exception ex) { return null; }
+		catch (Exception ex) { logger.debug("Unable to copy "+file+" to "+dest, ex); }
+		temp.delete();
+		return false;
+	}
+
+	/**
+	 * Get the number of hard links to a file.
+	 * @param file the file.
+	 * @return the number of links, or -1 if the number cannot
+	 * be determined on this file system.
+	 */
+	public static int getLinkCount(File file) {
+		try { return ((Number)Files.getAttribute(file.toPath(), "unix:nlink")).intValue(); }
+		catch (Exception ex) { return -1; }
+	}
+
+	/**
+	 * Make sure that a file is not shared with a queue. If the file has
+	 * other hard links (because it was enqueued with enqueueLink), it is
+	 * replaced by a copy of itself, so that changes made to the file
+	 * cannot change the queued files. The pipeline calls this method
+	 * before it passes an object to a stage that might modify it.
+	 * @param file the file.
+	 * @return true if the file is not shared; false if it could not be unshared.
+	 */
+	public static boolean unshare(File file) {
+		if ((file == null) || (getLinkCount(file) <= 1)) return true;
+		File temp = null;
+		try {
+			temp = File.createTempFile("QS-", ".tmp", file.getParentFile());
+			if (FileUtil.copy(file, temp)) {
+				Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				return true;
+			}
+		}
+		catch (Exception ex) { logger.warn("Unable to unshare "+file, ex); }
+		if (temp != null) temp.delete();
+		return false;
 	}
 
 	//Move a file to a directory, using a generated name.
 	//Return null if the operation does not succeed. If the
 	//operation succeeds, remove the source file and return
 	//a file pointing to the new location.
-	private File moveFile(File file, File dir) {
+	File moveFile(File file, File dir) {
 		try {
 			dir.mkdirs();
 			File dest = File.createTempFile("QF-", "", dir);
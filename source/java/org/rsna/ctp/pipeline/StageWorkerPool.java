@@ -0,0 +1,191 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.pipeline;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.FileObject;
+
+/**
+ * A class to run one stage of a Pipeline that is operating in
+ * concurrent mode. The pool has one or more worker threads, each
+ * with its own bounded input queue. When a worker has processed an
+ * object, it hands the object to the pool of the next stage, blocking
+ * if that pool's queue is full. Objects can be assigned to the workers
+ * by StudyInstanceUID so that the objects of a study stay in order.
+ */
+public class StageWorkerPool {
+
+	static final Logger logger = Logger.getLogger(StageWorkerPool.class);
+
+	final Pipeline pipeline;
+	final PipelineStage stage;
+	final Worker[] workers;
+	final boolean studyAffinity;
+	StageWorkerPool nextPool = null;
+	volatile boolean stop = false;
+
+	/**
+	 * Construct a StageWorkerPool.
+	 * @param pipeline the Pipeline to notify when an object has left the pipeline.
+	 * @param stage the stage to be run by the workers.
+	 * @param nWorkers the number of worker threads.
+	 * @param queueSize the capacity of each worker's input queue.
+	 * @param studyAffinity true if all the objects of a study are to be
+	 * processed by the same worker; false if objects are to be assigned to
+	 * the least busy worker.
+	 */
+	public StageWorkerPool(Pipeline pipeline, PipelineStage stage, int nWorkers, int queueSize, boolean studyAffinity) {
+		this.pipeline = pipeline;
+		this.stage = stage;
+		this.studyAffinity = studyAffinity;
+		nWorkers = Math.max(nWorkers, 1);
+		queueSize = Math.max(queueSize, 1);
+		workers = new Worker[nWorkers];
+		for (int i=0; i<nWorkers; i++) {
+			workers[i] = new Worker(i, queueSize);
+		}
+	}
+
+	/**
+	 * Set the pool of the next stage in the pipeline.
+	 * @param nextPool the pool to which processed objects are to be passed,
+	 * or null if this is the last stage in the pipeline.
+	 */
+	public void setNextPool(StageWorkerPool nextPool) {
+		this.nextPool = nextPool;
+	}
+
+	/**
+	 * Start the worker threads.
+	 */
+	public void start() {
+		for (Worker worker : workers) worker.start();
+	}
+
+	/**
+	 * Stop the worker threads and wait for them to terminate.
+	 * Objects still in the queues are abandoned; they remain in
+	 * the active directories of their ImportServices and are
+	 * requeued when the ImportServices restart.
+	 */
+	public void shutdown() {
+		stop = true;
+		for (Worker worker : workers) worker.interrupt();
+		for (Worker worker : workers) {
+			try { worker.join(5000); }
+			catch (Exception ignore) { }
+		}
+	}
+
+	/**
+	 * Get the stage run by this pool.
+	 * @return the stage.
+	 */
+	public PipelineStage getStage() {
+		return stage;
+	}
+
+	/**
+	 * Get the number of worker threads.
+	 * @return the number of worker threads.
+	 */
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	/**
+	 * Get the number of objects waiting in the queues of this pool.
+	 * @return the number of objects waiting to be processed.
+	 */
+	public int getQueueSize() {
+		int n = 0;
+		for (Worker worker : workers) n += worker.queue.size();
+		return n;
+	}
+
+	/**
+	 * Pass an object to one of the workers, blocking if the
+	 * selected worker's queue is full.
+	 * @param item the object to be processed.
+	 * @throws InterruptedException if the calling thread is interrupted
+	 * while waiting for space in the queue.
+	 */
+	public void submit(PipelineItem item) throws InterruptedException {
+		Worker worker = selectWorker(item.fileObject);
+		while (!stop) {
+			if (worker.queue.offer(item, 1000, TimeUnit.MILLISECONDS)) return;
+		}
+		throw new InterruptedException(stage.getName()+": worker pool stopped");
+	}
+
+	//Choose the worker for an object.
+	private Worker selectWorker(FileObject fileObject) {
+		if (workers.length == 1) return workers[0];
+		if (studyAffinity) {
+			String uid = fileObject.getStudyInstanceUID();
+			int hash = (uid != null) ? uid.hashCode() : 0;
+			return workers[ (hash & 0x7fffffff) % workers.length ];
+		}
+		Worker selected = workers[0];
+		for (Worker worker : workers) {
+			if (worker.queue.size() < selected.queue.size()) selected = worker;
+		}
+		return selected;
+	}
+
+	class Worker extends Thread {
+		final ArrayBlockingQueue<PipelineItem> queue;
+		public Worker(int index, int queueSize) {
+			super(pipeline.getPipelineName() + " " + stage.getName() + " Worker " + index);
+			queue = new ArrayBlockingQueue<PipelineItem>(queueSize);
+		}
+		public void run() {
+			while (!stop) {
+				PipelineItem item = null;
+				try {
+					item = queue.poll(1000, TimeUnit.MILLISECONDS);
+					if (item == null) continue;
+					item.fileObject = Pipeline.processStage(stage, item.fileObject);
+					//Note: if the stage returned null, it has quarantined
+					//the object, so it leaves the pipeline here.
+					if ((item.fileObject != null) && (nextPool != null)) nextPool.submit(item);
+					else pipeline.complete(item);
+				}
+				catch (InterruptedException stopped) { break; }
+				catch (Exception ex) {
+					//Treat an exception as the sequential pipeline does: stop
+					//the pipeline and leave the object in the active directory
+					//of its ImportService so it will be requeued on restart.
+					logger.warn(getName()+": Exception received; stopping the pipeline", ex);
+					pipeline.shutdown();
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A class to encapsulate an object in a concurrent pipeline,
+	 * the ImportService which provided it, and the original file
+	 * to be released when the object leaves the pipeline.
+	 */
+	public static class PipelineItem {
+		public FileObject fileObject;
+		public final ImportService provider;
+		public final File importedFile;
+		public PipelineItem(FileObject fileObject, ImportService provider) {
+			this.fileObject = fileObject;
+			this.provider = provider;
+			this.importedFile = fileObject.getFile();
+		}
+	}
+
+}
@@ -9,18 +9,19 @@ package org.rsna.ctp.quarantine;
 
 import java.io.File;
 import java.io.Serializable;
-import java.util.HashSet;
 import org.rsna.ctp.objects.*;
 
 /**
-  * A class to encapsulate a series in a quarantine.
+  * A class to encapsulate a series in a quarantine. The files in
+  * the series are indexed by the Quarantine; the QSeries only
+  * keeps the number of files.
   */
 public class QSeries implements Serializable, Comparable<QSeries> {
 
 	public final String seriesNumber;
 	public final String seriesUID;
 	public final String studyUID;
-	private HashSet<String> filenames;
+	private int nFiles;
 
 	/**
 	 * Construct a QSeries from a File.
@@ -39,7 +40,7 @@ public class QSeries implements Serializable, Comparable<QSeries> {
 		this.seriesNumber = getSeriesNumber(fileObject);
 		this.seriesUID = getSeriesUID(fileObject);
 		this.studyUID = QStudy.getStudyUID(fileObject);
-		this.filenames = new HashSet<String>();
+		this.nFiles = 0;
 	}
 
 	/**
@@ -89,7 +90,7 @@ public class QSeries implements Serializable, Comparable<QSeries> {
 	 * @return true if the series has no files; false otherwise.
 	 */
 	public boolean isEmpty() {
-		return filenames.isEmpty();
+		return (nFiles <= 0);
 	}
 
 	/**
@@ -97,16 +98,7 @@ public class QSeries implements Serializable, Comparable<QSeries> {
 	 * @return the number of files stored for this series.
 	 */
 	public int getNumberOfFiles() {
-		return filenames.size();
-	}
-
-	/**
-	 * Get the filenames for this series.
-	 * @return the array of filenames stored for this series.
-	 */
-	public String[] getFilenames() {
-		String[] names = new String[filenames.size()];
-		return filenames.toArray(names);
+		return nFiles;
 	}
 
 	/**
@@ -114,7 +106,7 @@ public class QSeries implements Serializable, Comparable<QSeries> {
 	 * @param file the file to be added to this series
 	 */
 	public void add(QFile file) {
-		filenames.add(file.getName());
+		nFiles++;
 	}
 
 	/**
@@ -122,7 +114,7 @@ public class QSeries implements Serializable, Comparable<QSeries> {
 	 * @param file the file to be removed from this series
 	 */
 	public void remove(QFile file) {
-		filenames.remove(file.getName());
+		if (nFiles > 0) nFiles--;
 	}
 
 	/**
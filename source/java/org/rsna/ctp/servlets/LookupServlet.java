@@ -225,7 +225,11 @@ public class LookupServlet extends CTPServlet {
 
 				if (file != null) {
 					synchronized (this) {
-						Properties props = getProperties(file);
+						//An indexed table records single-key edits in its delta
+						//log; other tables are loaded and rewritten.
+						LookupTable lut = LookupTable.getInstance(file);
+						boolean indexed = (lut != null) && lut.isIndexed();
+						Properties props = indexed ? lut.getProperties() : getProperties(file);
 
 						//Handle the main entry fields.
 						String phi = req.getParameter("phi");
@@ -263,7 +267,10 @@ public class LookupServlet extends CTPServlet {
 						}
 
 						//Save the LUT if the properties changed
-						if (changed) saveProperties(props, file);
+						if (changed) {
+							if (indexed) lut.save();
+							else saveProperties(props, file);
+						}
 					}
 
 					//Make a new page from the new data and send it out
@@ -503,7 +510,8 @@ public class LookupServlet extends CTPServlet {
 		}
 
 		//Now add in the individual LUT entries
-		Properties lutProps = getProperties(lutFile);
+		LookupTable lut = LookupTable.getInstance(lutFile);
+		Properties lutProps = ((lut != null) && lut.isIndexed()) ? lut.getProperties() : getProperties(lutFile);
 		Set<String> keySet = lutProps.stringPropertyNames();
 		String[] keys = new String[keySet.size()];
 		keys = keySet.toArray(keys);
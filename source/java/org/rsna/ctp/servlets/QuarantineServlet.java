@@ -35,12 +35,23 @@ import org.w3c.dom.Node;
 
 /**
  * The QuarantineServlet. This implementation provides access
- * to the contents of the quarantines.
+ * to the contents of the quarantines. The studies page lists the studies
+ * a page at a time, starting at the index specified by the offset
+ * parameter and listing no more than the number specified by the
+ * limit parameter.
+ * <p>
+ * Requests to queue all the files, a study, or a series are run in the
+ * background by the quarantine. The studies page shows the progress of
+ * the job, refreshing itself while the job is running, and allows the
+ * job to be cancelled.
  */
 public class QuarantineServlet extends CTPServlet {
 
 	static final Logger logger = Logger.getLogger(QuarantineServlet.class);
 
+	static final int defaultLimit = 100;
+	static final int maxLimit = 1000;
+
 	Quarantine quarantine = null;
 
 	/**
@@ -94,7 +105,7 @@ public class QuarantineServlet extends CTPServlet {
 		else if (command.equals("queueAll")) {
 			if (quarantine != null) {
 				QueueManager queueManager = getClosestQueueManager();
-				if (queueManager != null) quarantine.queueAll(queueManager);
+				if (queueManager != null) quarantine.startQueueAll(queueManager);
 			}
 			studiesPage(req, res, p, s);
 		}
@@ -111,7 +122,7 @@ public class QuarantineServlet extends CTPServlet {
 			String studyUID = req.getParameter("studyUID");
 			if (quarantine != null) {
 				QueueManager queueManager = getClosestQueueManager();
-				if (queueManager != null) quarantine.queueStudy(studyUID, queueManager);
+				if (queueManager != null) quarantine.startQueueStudy(studyUID, queueManager);
 			}
 			studiesPage(req, res, p, s);
 		}
@@ -120,11 +131,19 @@ public class QuarantineServlet extends CTPServlet {
 			String seriesUID = req.getParameter("seriesUID");
 			if (quarantine != null) {
 				QueueManager queueManager = getClosestQueueManager();
-				if (queueManager != null) quarantine.queueSeries(seriesUID, queueManager);
+				if (queueManager != null) quarantine.startQueueSeries(seriesUID, queueManager);
 			}
 			studiesPage(req, res, p, s); //******remove this when switching to AJAX
 		}
 
+		else if (command.equals("cancelQueue")) {
+			if (quarantine != null) {
+				Quarantine.Requeuer requeuer = quarantine.getRequeuer();
+				if (requeuer != null) requeuer.cancel();
+			}
+			studiesPage(req, res, p, s);
+		}
+
 		else if (command.equals("queueFile")) {
 			String filename = req.getParameter("filename");
 			if ((quarantine != null) && (filename != null)) {
@@ -257,7 +276,11 @@ public class QuarantineServlet extends CTPServlet {
 	//List the studies in a quarantine
 	void studiesPage(HttpRequest req, HttpResponse res, int pipelineIndex, int stageIndex) {
 		try {
-			Document doc = quarantine.getStudiesXML();
+			int offset = Math.max(StringUtil.getInt(req.getParameter("offset"), 0), 0);
+			int limit = StringUtil.getInt(req.getParameter("limit"), defaultLimit);
+			if ((limit < 1) || (limit > maxLimit)) limit = defaultLimit;
+			Document doc = quarantine.getStudiesXML(offset, limit);
+			addRequeueStatus(doc);
 			Document xsl = XmlUtil.getDocument( FileUtil.getStream( "/QuarantineServlet.xsl" ) );
 			Object[] params = {
 				"context", context,
@@ -277,6 +300,23 @@ public class QuarantineServlet extends CTPServlet {
 		}
 	}
 
+	//Add an element describing the status of the quarantine's background requeue job.
+	void addRequeueStatus(Document doc) {
+		Quarantine.Requeuer requeuer = quarantine.getRequeuer();
+		if (requeuer == null) return;
+		Element job = doc.createElement("Requeue");
+		job.setAttribute("description", requeuer.getDescription());
+		job.setAttribute("total", Integer.toString(requeuer.getTotal()));
+		job.setAttribute("processed", Integer.toString(requeuer.getProcessed()));
+		job.setAttribute("queued", Integer.toString(requeuer.getQueued()));
+		job.setAttribute("failed", Integer.toString(requeuer.getFailed()));
+		job.setAttribute("time", Long.toString(requeuer.getElapsedTime() / 1000));
+		job.setAttribute("rate", String.format("%.1f", requeuer.getRate()));
+		job.setAttribute("running", requeuer.isAlive() ? "yes" : "no");
+		job.setAttribute("cancelled", requeuer.isCancelled() ? "yes" : "no");
+		doc.getDocumentElement().appendChild(job);
+	}
+
 	void seriesXML(HttpRequest req, HttpResponse res, int pipelineIndex, int stageIndex) {
 		try {
 			String studyUID = req.getParameter("studyUID");
@@ -14,6 +14,7 @@ import java.util.LinkedList;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.plugin.Plugin;
+import org.rsna.ctp.pipeline.BackPressure;
 import org.rsna.ctp.pipeline.Pipeline;
 import org.rsna.ctp.pipeline.ImportService;
 import org.rsna.ctp.pipeline.ExportService;
@@ -161,6 +162,8 @@ public class SummaryServlet extends CTPServlet {
 			sb.append("</center>");
 			sb.append("<hr/>");
 			sb.append("<div id=\"status\" class=\"status\">");
+			BackPressure bp = pipe.getBackPressure();
+			if (bp.isEnabled()) sb.append( bp.getStatusHTML() );
 			for (PipelineStage stage : pipe.getStages()) {
 				sb.append( stage.getStatusHTML() );
 			}
@@ -235,10 +238,18 @@ public class SummaryServlet extends CTPServlet {
 		sb.append("<td class=\"number\">"+String.format("%,d",getImportQueueTotal(pipe))+"</td>");
 		sb.append("<td class=\"number\">"+String.format("%,d",getExportQueueTotal(pipe))+"</td>");
 		sb.append("<td class=\"number\">"+String.format("%,d",getQuarantineTotal(pipe))+"</td>");
+		sb.append("<td class=\"name\">"+getImportState(pipe)+"</td>");
 		sb.append("</tr>\n");
 		return sb.toString();
 	}
 
+	//Get the state of the back-pressure on the ImportServices of a pipeline.
+	private String getImportState(Pipeline pipe) {
+		BackPressure bp = pipe.getBackPressure();
+		if (!bp.isEnabled()) return "";
+		return bp.isThrottled() ? "<b>Throttled</b>" : "Open";
+	}
+
 	private int getImportQueueTotal(Pipeline pipe) {
 		int count = 0;
 		if (pipe != null) {
@@ -279,7 +290,8 @@ public class SummaryServlet extends CTPServlet {
 				+ "<th class=\"name\"><br/>Pipeline</th>"
 				+ "<th>Import<br/>Queues</th>"
 				+ "<th>Export<br/>Queues</th>"
-				+ "<th><br/>Quarantines</th></tr>";
+				+ "<th><br/>Quarantines</th>"
+				+ "<th>Import<br/>State</th></tr>";
 	}
 
 	private String responseHead(String title) {
@@ -16,6 +16,7 @@ import jdbm.helper.TupleBrowser;
 import jdbm.htree.HTree;
 import jdbm.RecordManager;
 import org.apache.log4j.Logger;
+import org.rsna.ctp.pipeline.GroupCommitter;
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.plugin.AbstractPlugin;
 import org.rsna.ctp.servlets.AuditLogServlet;
@@ -44,6 +45,7 @@ public class AuditLog extends AbstractPlugin {
 	String servletContext;
 
 	private RecordManager recman;
+	private GroupCommitter committer;
 
 	private HTree count = null;
 	private HTree entryTable = null;
@@ -77,6 +79,7 @@ public class AuditLog extends AbstractPlugin {
 			patientIDIndex = JdbmUtil.getHTree(recman, "patientID");
 			studyUIDIndex = JdbmUtil.getHTree(recman, "studyUID");
 			objectUIDIndex = JdbmUtil.getHTree(recman, "objectUID");
+			committer = new GroupCommitter(recman, getID(), element);
 		}
 		catch (Exception unable) { logger.warn("Unable to open the AuditLog database."); }
 
@@ -99,10 +102,7 @@ public class AuditLog extends AbstractPlugin {
 	 * Stop the plugin.
 	 */
 	public synchronized void shutdown() {
-		if (recman != null) {
-			try { recman.commit(); recman.close(); recman = null; }
-			catch (Exception ignore) { }
-		}
+		if (committer != null) { committer.close(); recman = null; }
 		stop = true;
 		logger.info("AuditLog Plugin stopped");
 	}
@@ -154,15 +154,17 @@ public class AuditLog extends AbstractPlugin {
 										 String patientID,
 										 String studyUID,
 										 String objectUID) throws Exception {
-		Integer id = getNextID();
-		entryTable.put(id, entry);
-		timeTable.put(id, new Long(System.currentTimeMillis()));
-		if (contentType != null) contentTypeTable.put(id, contentType);
-		if (patientID != null) appendID(patientIDIndex, patientID, id);
-		if (studyUID != null) appendID(studyUIDIndex, studyUID, id);
-		if (objectUID != null) appendID(objectUIDIndex, objectUID, id);
-		recman.commit();
-		return id;
+		synchronized (committer) {
+			Integer id = getNextID();
+			entryTable.put(id, entry);
+			timeTable.put(id, new Long(System.currentTimeMillis()));
+			if (contentType != null) contentTypeTable.put(id, contentType);
+			if (patientID != null) appendID(patientIDIndex, patientID, id);
+			if (studyUID != null) appendID(studyUIDIndex, studyUID, id);
+			if (objectUID != null) appendID(objectUIDIndex, objectUID, id);
+			committer.commit();
+			return id;
+		}
 	}
 
 	/**
@@ -181,11 +183,13 @@ public class AuditLog extends AbstractPlugin {
 												 String patientID,
 												 String studyUID,
 												 String objectUID) throws Exception {
-		if (patientID != null) appendID(patientIDIndex, patientID, entryID);
-		if (studyUID != null) appendID(studyUIDIndex, studyUID, entryID);
-		if (objectUID != null) appendID(objectUIDIndex, objectUID, entryID);
-		recman.commit();
-		return entryID;
+		synchronized (committer) {
+			if (patientID != null) appendID(patientIDIndex, patientID, entryID);
+			if (studyUID != null) appendID(studyUIDIndex, studyUID, entryID);
+			if (objectUID != null) appendID(objectUIDIndex, objectUID, entryID);
+			committer.commit();
+			return entryID;
+		}
 	}
 
 	//Get the next available ID for an entry
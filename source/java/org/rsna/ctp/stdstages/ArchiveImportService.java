@@ -8,7 +8,11 @@
 package org.rsna.ctp.stdstages;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import org.apache.commons.compress.archivers.*;
 import org.apache.commons.compress.archivers.tar.*;
@@ -22,9 +26,9 @@ import org.rsna.ctp.pipeline.AbstractPipelineStage;
 import org.rsna.ctp.pipeline.ImportService;
 import org.rsna.ctp.pipeline.Pipeline;
 import org.rsna.ctp.pipeline.PipelineStage;
+import org.rsna.ctp.stdstages.archive.CheckpointWriter;
 import org.rsna.ctp.stdstages.archive.FileSource;
 import org.rsna.util.FileUtil;
-import org.rsna.util.SerializerUtil;
 import org.rsna.util.StringUtil;
 import org.w3c.dom.Element;
 
@@ -36,6 +40,24 @@ import org.w3c.dom.Element;
  * losing its place. It is designed to walk through the directory tree
  * once. It does not detect changes in the tree which occur in parts of
  * the tree that have already been walked.
+ * <p>
+ * If the stage is configured with readers greater than zero, the tree is
+ * walked by a pool of reader threads instead of the pipeline thread. Each
+ * subdirectory of the root of the tree is a separate subtree, walked by one
+ * reader, and the files in the root directory itself are one more subtree.
+ * The readers copy files into the active directory ahead of the pipeline, up to
+ * the number of files specified by the lookAhead attribute, setting the names in
+ * DicomObjects as they are copied. Each subtree is checkpointed separately, and
+ * subtrees which have been completely walked are recorded so they are not walked
+ * again when the program restarts. Files in the active directory when the program
+ * starts are supplied before any others. Files copied between the last checkpoint
+ * of a subtree and an abnormal termination are copied again when the program restarts.
+ * <p>
+ * Checkpoints are written in the background, when the number of files specified
+ * by the checkpointCount attribute have been passed or when the time specified by
+ * the checkpointInterval attribute has elapsed since the first file was passed,
+ * whichever comes first. A checkpoint records only the directories being walked
+ * and the positions in them, so it is small no matter how large the tree is.
  */
 public class ArchiveImportService extends AbstractPipelineStage implements ImportService {
 
@@ -43,10 +65,18 @@ public class ArchiveImportService extends AbstractPipelineStage implements Impor
 
 	static final int defaultAge = 5000;
 	static final int minAge = 1000;
+	static final int defaultLookAhead = 100;
+	static final int maxReaders = 16;
+	static final long rateInterval = 10000;
+	static final String doneName = "subtrees.done";
+	static final String rootSubtree = ".";
 	long age;
 	File treeRoot = null;
 	boolean expandTARs;
 	FileSource fileSource = null;
+	CheckpointWriter checkpointWriter = null;
+	int checkpointCount = CheckpointWriter.defaultCount;
+	long checkpointInterval = CheckpointWriter.defaultInterval;
 	File active = null;
 	
 	String fsName = "";
@@ -59,7 +89,25 @@ public class ArchiveImportService extends AbstractPipelineStage implements Impor
 	int fileNameTag = 0;
 	boolean setFileName;
 	
-	File lastArchiveFileFound = null;
+	volatile File lastArchiveFileFound = null;
+
+	int readers = 0;
+	int lookAhead = defaultLookAhead;
+	Reader[] readerThreads = null;
+	File subtreesDir = null;
+	File doneFile = null;
+	LinkedList<String> pendingSubtrees = null;
+	Hashtable<String,String> doneSubtrees = null;
+	int subtreeCount = 0;
+	LinkedList<File> staged = new LinkedList<File>();
+	HashSet<File> supplied = new HashSet<File>();
+	int reserved = 0;
+	long sequence = 0;
+	long filesStaged = 0;
+
+	long rateTime = 0;
+	long rateCount = 0;
+	double rate = 0;
 
 	/**
 	 * Class constructor; creates a new instance of the ImportService.
@@ -91,21 +139,78 @@ public class ArchiveImportService extends AbstractPipelineStage implements Impor
 		fileNameTag = DicomObject.getElementTag(element.getAttribute("fileNameTag"));
 		setFileName = (fileNameTag > 0);
 
+		//Get the number of reader threads and the number of files they can read ahead
+		readers = StringUtil.getInt(element.getAttribute("readers").trim(), 0);
+		if (readers < 0) readers = 0;
+		if (readers > maxReaders) readers = maxReaders;
+		lookAhead = StringUtil.getInt(element.getAttribute("lookAhead").trim(), defaultLookAhead);
+		if (lookAhead < 1) lookAhead = defaultLookAhead;
+
+		//Get the checkpointing parameters
+		checkpointCount = StringUtil.getInt(element.getAttribute("checkpointCount").trim(), CheckpointWriter.defaultCount);
+		if (checkpointCount < 1) checkpointCount = 1;
+		checkpointInterval = StringUtil.getInt(element.getAttribute("checkpointInterval").trim(), (int)CheckpointWriter.defaultInterval);
+		if (checkpointInterval < 1) checkpointInterval = CheckpointWriter.defaultInterval;
+
 		if ((root != null) && (treeRoot != null)) {
 			active = new File(root, "active");
 			active.mkdirs();
-			fileSource = FileSource.getInstance(treeRoot, root);
-			logger.info("FileSource instantiated: starting file count = "+fileSource.getFileCount());
+			if (readers == 0) {
+				fileSource = FileSource.getInstance(treeRoot, root);
+				checkpointWriter = new CheckpointWriter(fileSource, new File(root, FileSource.compactCheckpointName),
+														checkpointCount, checkpointInterval);
+				logger.info("FileSource instantiated: starting file count = "+fileSource.getFileCount());
+			}
+			else {
+				initSubtrees();
+				readerThreads = new Reader[readers];
+				for (int i=0; i<readers; i++) readerThreads[i] = new Reader(i);
+				logger.info(name+": "+readers+" readers; "+pendingSubtrees.size()+" of "+subtreeCount+" subtrees to walk");
+			}
+		}
+	}
+
+	/**
+	 * Start the reader threads, if the stage is configured to use them.
+	 */
+	public synchronized void start() {
+		if (readerThreads != null) {
+			for (Reader reader : readerThreads) reader.start();
 		}
 	}
 
+	/**
+	 * Stop the pipeline stage.
+	 */
+	public synchronized void shutdown() {
+		stop = true;
+		if (readerThreads != null) {
+			for (Reader reader : readerThreads) reader.interrupt();
+		}
+		if (checkpointWriter != null) checkpointWriter.close();
+		super.shutdown();
+	}
+
+	/**
+	 * Determine whether the pipeline stage has shut down.
+	 */
+	public synchronized boolean isDown() {
+		if (readerThreads != null) {
+			for (Reader reader : readerThreads) {
+				if (reader.isAlive()) return false;
+			}
+		}
+		return stop;
+	}
+
 	/**
 	 * Get the number of objects in the import queue. Since this stage can walk a huge tree,
 	 * it isn't worth the cost to count the tree, so to satisfy the contract of the ImportService
-	 * interface, we just return zero.
+	 * interface, we just return zero, or the number of files which have been read ahead if
+	 * the stage uses reader threads.
 	 */
 	public synchronized int getQueueSize() {
-		return 0;
+		synchronized (staged) { return staged.size(); }
 	}
 
 	/**
@@ -115,7 +220,7 @@ public class ArchiveImportService extends AbstractPipelineStage implements Impor
 	public synchronized FileObject getNextObject() {
 		File file;
 		long maxLM = System.currentTimeMillis() - age;
-		while ((file = findFile(maxLM)) != null) {
+		while ((file = (readerThreads != null) ? takeStagedFile() : findFile(maxLM)) != null) {
 
 			FileObject fileObject = FileObject.getInstance(file);
 			if (acceptable(fileObject)) {
@@ -123,9 +228,13 @@ public class ArchiveImportService extends AbstractPipelineStage implements Impor
 					//Only change the extension if it isn't a TAR file.
 					fileObject.setStandardExtension();
 				}
-				if (setFileSystemName || setFilePath || setFileName) fileObject = setNames(fileObject);
+				if ((readerThreads == null) && (setFileSystemName || setFilePath || setFileName)) {
+					//The reader threads set the names when they copy the files.
+					fileObject = setNames(fileObject);
+				}
 				lastFileOut = fileObject.getFile();
 				lastTimeOut = System.currentTimeMillis();
+				if (readerThreads == null) supplied.add(lastFileOut);
 				return fileObject;
 			}
 
@@ -150,13 +259,7 @@ public class ArchiveImportService extends AbstractPipelineStage implements Impor
 				//Set the names
 				if (setFileSystemName) dob.setElementValue(fsNameTag, fsName);
 				if (setFilePath) {
-					String path = fileSource.getCurrentDirectory().getAbsolutePath();
-					File treeRootParent = treeRoot.getAbsoluteFile().getParentFile();
-					if (treeRootParent == null) treeRootParent = treeRoot;
-					String treeRootPath =  treeRootParent.getAbsolutePath();
-					path = path.substring( treeRootPath.length()+1 );
-					path = path.replace("\\", "/");
-					dob.setElementValue(filePathTag, path);
+					dob.setElementValue(filePathTag, getPath(fileSource.getCurrentDirectory()));
 				}
 				if (setFileName) dob.setElementValue(fileNameTag, dob.getFile().getName());
 				
@@ -182,36 +285,53 @@ public class ArchiveImportService extends AbstractPipelineStage implements Impor
 	}
 
 	//Get files from the FileSource until we find one with a
-	//last-modified-time earlier than a specified time.
+	//last-modified-time earlier than a specified time. A file
+	//in the active directory which has been supplied but not
+	//yet released is not supplied again.
 	private File findFile(long maxLM) {
+		File file = null;
 		File[] files = active.listFiles();
 		if (files.length == 0) {
 			//The active directory is empty; try to reload it from the FileSource.
-			File file;
-			while ((file = fileSource.getNextFile()) != null) {
-				lastArchiveFileFound = file;
-				if (file.lastModified() < maxLM) {
-					if (!expandTARs || !file.getName().endsWith(".tar")) {
-						//It isn't a TAR or we aren't expanding TARs;
-						//just copy the file and return it.
-						File dest = new File(active, file.getName());
-						FileUtil.copy(file, dest);
-						return dest;
-					}
-					else {
-						//It's a TAR and we are expanding TARs;
-						//expand the file into the active directory,
-						//which right now is empty.
-						expandTAR(file, active);
-						files = active.listFiles();
-						if (files.length == 0) return null;
-						return files[0];
-					}
+			//The FileSource is locked while the file is copied so that a
+			//checkpoint cannot be saved until the file is in the active directory.
+			supplied.clear();
+			synchronized (fileSource) { file = copyNextFile(maxLM); }
+		}
+		else {
+			for (File f : files) {
+				if (!supplied.contains(f)) { file = f; break; }
+			}
+		}
+		return file;
+	}
+
+	//Get files from the FileSource until we find one with a last-modified-time
+	//earlier than a specified time, and copy it into the active directory.
+	private File copyNextFile(long maxLM) {
+		File file;
+		while ((file = fileSource.getNextFile()) != null) {
+			lastArchiveFileFound = file;
+			if (file.lastModified() < maxLM) {
+				if (!expandTARs || !file.getName().endsWith(".tar")) {
+					//It isn't a TAR or we aren't expanding TARs;
+					//just copy the file and return it.
+					File dest = new File(active, file.getName());
+					FileUtil.copy(file, dest);
+					return dest;
+				}
+				else {
+					//It's a TAR and we are expanding TARs;
+					//expand the file into the active directory,
+					//which right now is empty.
+					expandTAR(file, active);
+					File[] files = active.listFiles();
+					if (files.length == 0) return null;
+					return files[0];
 				}
 			}
-			return null;
 		}
-		return files[0];
+		return null;
 	}
 
 	//Expand a tar, writing its files into a destination directory.
@@ -252,15 +372,246 @@ public class ArchiveImportService extends AbstractPipelineStage implements Impor
 	 * @param file the file to be released.
 	 */
 	public synchronized void release(File file) {
+		if (file != null) supplied.remove(file);
 		if ((file != null) && file.exists()) {
 			//Only delete if the path includes the active directory.
 			if (file.getAbsolutePath().startsWith(active.getAbsolutePath())) {
 				 file.delete();
 			}
 		}
-		//We have just released a file. Checkpoint the FileSource,
-		//which now points to the next file to retrieve.
-		SerializerUtil.serialize(new File(root, FileSource.checkpointName), fileSource);
+		//We have just released a file. Count it for the checkpoint of the
+		//FileSource, which now points to the next file to retrieve.
+		//(The reader threads checkpoint their own subtrees.)
+		if (checkpointWriter != null) checkpointWriter.changed();
+	}
+
+	//Get the list of subtrees to be walked: those which were in process
+	//when the program stopped, followed by those which have not been started.
+	//Also make the queue of files which were read ahead before the program
+	//stopped.
+	private void initSubtrees() {
+		subtreesDir = new File(root, "subtrees");
+		subtreesDir.mkdirs();
+		doneFile = new File(root, doneName);
+		doneSubtrees = new Hashtable<String,String>();
+		if (doneFile.exists()) {
+			//Each line is the escaped name of a subtree.
+			String[] lines = FileUtil.getText(doneFile).split("\n");
+			for (String line : lines) {
+				if (!line.equals("")) doneSubtrees.put(FileSource.unescape(line), "");
+			}
+		}
+		pendingSubtrees = new LinkedList<String>();
+		Hashtable<String,String> listed = new Hashtable<String,String>();
+		File[] checkpoints = subtreesDir.listFiles();
+		Arrays.sort(checkpoints);
+		for (File checkpoint : checkpoints) {
+			String subtree = checkpoint.getName();
+			if (subtree.endsWith(".txt") || subtree.endsWith(".bin")) {
+				//Checkpoints saved by earlier versions are serialized objects in .bin files.
+				subtree = subtree.substring(0, subtree.length() - ".txt".length());
+				if (subtree.equals("")) subtree = rootSubtree;
+				if (!doneSubtrees.containsKey(subtree) && !listed.containsKey(subtree)) {
+					pendingSubtrees.add(subtree);
+					listed.put(subtree, "");
+				}
+			}
+		}
+		if (!doneSubtrees.containsKey(rootSubtree) && !listed.containsKey(rootSubtree)) {
+			pendingSubtrees.add(rootSubtree);
+		}
+		File[] dirs = treeRoot.listFiles();
+		if (dirs == null) dirs = new File[0];
+		Arrays.sort(dirs);
+		for (File dir : dirs) {
+			String subtree = dir.getName();
+			if (dir.isDirectory() && !dir.isHidden()
+					&& !doneSubtrees.containsKey(subtree) && !listed.containsKey(subtree)) {
+				pendingSubtrees.add(subtree);
+			}
+		}
+		subtreeCount = doneSubtrees.size() + pendingSubtrees.size();
+
+		//Requeue the files which were read ahead
+		File[] files = active.listFiles();
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory() || file.getName().endsWith(".partial")) FileUtil.deleteAll(file);
+			else {
+				staged.add(file);
+				try { sequence = Math.max(sequence, Long.parseLong(file.getName().substring(0, file.getName().indexOf("-")))); }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+
+	//Get the next subtree to walk, or null if there are none left.
+	private String nextSubtree() {
+		synchronized (pendingSubtrees) {
+			return pendingSubtrees.isEmpty() ? null : pendingSubtrees.removeFirst();
+		}
+	}
+
+	//Record that a subtree has been completely walked.
+	private void subtreeDone(String subtree, File checkpoint) {
+		synchronized (pendingSubtrees) {
+			doneSubtrees.put(subtree, "");
+			try {
+				FileWriter writer = new FileWriter(doneFile, true);
+				writer.write(FileSource.escape(subtree) + "\n");
+				writer.close();
+			}
+			catch (Exception ex) { logger.warn(name+": Unable to record the completion of "+subtree, ex); }
+			checkpoint.delete();
+		}
+		logger.info(name+": Subtree "+subtree+" complete");
+	}
+
+	//Get the next file read ahead by the readers, or null if none is available.
+	private File takeStagedFile() {
+		synchronized (staged) {
+			File file = staged.poll();
+			if (file != null) staged.notifyAll();
+			return file;
+		}
+	}
+
+	//Wait until there is room to read another file ahead.
+	private void reserve() throws InterruptedException {
+		synchronized (staged) {
+			while (staged.size() + reserved >= lookAhead) staged.wait();
+			reserved++;
+		}
+	}
+
+	//Add files to the queue, releasing a reservation.
+	private void unreserve(List<File> files) {
+		synchronized (staged) {
+			reserved--;
+			staged.addAll(files);
+			filesStaged += files.size();
+			staged.notifyAll();
+		}
+	}
+
+	//Get a unique name in the active directory for a file,
+	//preserving the order in which the files were read.
+	private File getStagedFile(String name) {
+		synchronized (staged) {
+			return new File(active, String.format("%012d-%s", ++sequence, name));
+		}
+	}
+
+	//Walk one subtree, copying files into the active directory.
+	private void walk(String subtree, Reader reader) throws InterruptedException {
+		boolean filesOnly = subtree.equals(rootSubtree);
+		File dir = filesOnly ? treeRoot : new File(treeRoot, subtree);
+		File checkpoint = new File(subtreesDir, (filesOnly ? "" : subtree) + ".txt");
+		FileSource source = FileSource.getInstance(dir, checkpoint, filesOnly);
+		CheckpointWriter writer = new CheckpointWriter(source, checkpoint, checkpointCount, checkpointInterval);
+		reader.writer = writer;
+		try {
+			while (!stop) {
+				//Reserve room before taking the file from the FileSource so
+				//the FileSource never gets ahead of the files actually read.
+				reserve();
+				LinkedList<File> files = new LinkedList<File>();
+				try {
+					//Lock the FileSource so a checkpoint cannot be saved
+					//until the file has been copied.
+					synchronized (source) {
+						File file = source.getNextFile();
+						if (file == null) break;
+						lastArchiveFileFound = file;
+						if (file.lastModified() < System.currentTimeMillis() - age) stage(file, files);
+					}
+				}
+				finally { unreserve(files); }
+				writer.changed();
+			}
+		}
+		finally { writer.close(); }
+		if (!stop) subtreeDone(subtree, checkpoint);
+	}
+
+	//Copy a file into the active directory, or expand it there if it is a TAR.
+	private void stage(File file, List<File> files) {
+		if (!expandTARs || !file.getName().endsWith(".tar")) {
+			File dest = stage(file, file.getName(), file.getParentFile());
+			if (dest != null) files.add(dest);
+		}
+		else {
+			File dir = new File(active, getStagedFile("tar").getName());
+			dir.mkdirs();
+			expandTAR(file, dir);
+			File[] entries = dir.listFiles();
+			Arrays.sort(entries);
+			for (File entry : entries) {
+				File dest = stage(entry, entry.getName(), file.getParentFile());
+				if (dest != null) files.add(dest);
+			}
+			FileUtil.deleteAll(dir);
+		}
+	}
+
+	//Copy one file into the active directory. If any names are to be set and the
+	//file is a DicomObject, it is parsed once and written with the names set.
+	//The file is written under a temporary name and then renamed, so a partially
+	//written file is never supplied.
+	private File stage(File file, String fileName, File dir) {
+		File dest = getStagedFile(fileName);
+		File partial = new File(active, dest.getName() + ".partial");
+		boolean written = false;
+		if (setFileSystemName || setFilePath || setFileName) {
+			DicomObject dob = null;
+			try { dob = new DicomObject(file, true); } //leave the stream open
+			catch (Exception notDicom) { }
+			if (dob != null) {
+				try {
+					if (setFileSystemName) dob.setElementValue(fsNameTag, fsName);
+					if (setFilePath) dob.setElementValue(filePathTag, getPath(dir));
+					if (setFileName) dob.setElementValue(fileNameTag, fileName);
+					dob.saveAs(partial, false);
+					written = true;
+				}
+				catch (Exception unableToSetNames) {
+					logger.warn("Unable to set the FileSystem name: \""+fsName+"\"");
+					logger.warn("                               in: "+file);
+				}
+				dob.close();
+			}
+		}
+		if (!written) written = FileUtil.copy(file, partial);
+		if (written && partial.renameTo(dest)) return dest;
+		logger.warn(name+": Unable to copy "+file);
+		partial.delete();
+		return null;
+	}
+
+	//Get the path of a directory relative to the parent of the treeRoot.
+	private String getPath(File dir) {
+		String path = dir.getAbsolutePath();
+		File treeRootParent = treeRoot.getAbsoluteFile().getParentFile();
+		if (treeRootParent == null) treeRootParent = treeRoot;
+		String treeRootPath =  treeRootParent.getAbsolutePath();
+		path = path.substring( treeRootPath.length()+1 );
+		return path.replace("\\", "/");
+	}
+
+	//A thread to walk subtrees of the archive.
+	class Reader extends Thread {
+		volatile CheckpointWriter writer = null;
+		public Reader(int index) {
+			super(name + " Reader " + index);
+		}
+		public void run() {
+			String subtree;
+			while (!stop && !interrupted() && ((subtree = nextSubtree()) != null)) {
+				try { walk(subtree, this); }
+				catch (InterruptedException ex) { break; }
+				catch (Exception ex) { logger.warn(getName()+": Unable to walk "+subtree, ex); }
+			}
+		}
 	}
 
 	/**
@@ -275,13 +626,43 @@ public class ArchiveImportService extends AbstractPipelineStage implements Impor
 		sb.append("<h3>"+name+"</h3>");
 		sb.append("<table border=\"1\" width=\"100%\">");
 
-		sb.append("<tr><td width=\"20%\">Archive traversal:</td>");
-		if (fileSource.isDone())
-			sb.append("<td>complete</td></tr>");
-		else sb.append("<td>in process</td></tr>");
+		if (fileSource != null) {
+			sb.append("<tr><td width=\"20%\">Archive traversal:</td>");
+			if (fileSource.isDone())
+				sb.append("<td>complete</td></tr>");
+			else sb.append("<td>in process</td></tr>");
+
+			sb.append("<tr><td width=\"20%\">Archive files supplied:</td>");
+				sb.append("<td>"+fileSource.getFileCount()+"</td></tr>");
 
-		sb.append("<tr><td width=\"20%\">Archive files supplied:</td>");
-			sb.append("<td>"+fileSource.getFileCount()+"</td></tr>");
+			appendRate(sb, fileSource.getFileCount());
+			appendLag(sb, checkpointWriter.getLag(), checkpointWriter.getLagTime());
+		}
+		else if (readerThreads != null) {
+			sb.append("<tr><td width=\"20%\">Subtrees walked:</td>");
+			sb.append("<td>"+doneSubtrees.size()+" of "+subtreeCount+"</td></tr>");
+
+			synchronized (staged) {
+				sb.append("<tr><td width=\"20%\">Archive files read:</td>");
+				sb.append("<td>"+filesStaged+"</td></tr>");
+				sb.append("<tr><td width=\"20%\">Files read ahead:</td>");
+				sb.append("<td>"+staged.size()+" (limit "+lookAhead+")</td></tr>");
+			}
+
+			int lag = 0;
+			long lagTime = 0;
+			for (Reader reader : readerThreads) {
+				CheckpointWriter writer = reader.writer;
+				if (writer != null) {
+					lag += writer.getLag();
+					lagTime = Math.max(lagTime, writer.getLagTime());
+				}
+			}
+			long count;
+			synchronized (staged) { count = filesStaged; }
+			appendRate(sb, count);
+			appendLag(sb, lag, lagTime);
+		}
 
 		sb.append("<tr><td width=\"20%\">Last archive file found:</td>");
 		if (lastArchiveFileFound != null)
@@ -299,4 +680,26 @@ public class ArchiveImportService extends AbstractPipelineStage implements Impor
 		return sb.toString();
 	}
 
+	//Append the rate at which files are read, averaged over at least the rateInterval.
+	private void appendRate(StringBuffer sb, long count) {
+		long now = System.currentTimeMillis();
+		if (rateTime == 0) {
+			rateTime = now;
+			rateCount = count;
+		}
+		else if (now - rateTime >= rateInterval) {
+			rate = (count - rateCount) * 1000.0 / (now - rateTime);
+			rateTime = now;
+			rateCount = count;
+		}
+		sb.append("<tr><td width=\"20%\">Archive read rate:</td>");
+		sb.append("<td>"+String.format("%.1f",rate)+" files/s</td></tr>");
+	}
+
+	//Append the number of files and the time since the last checkpoint.
+	private void appendLag(StringBuffer sb, int lag, long lagTime) {
+		sb.append("<tr><td width=\"20%\">Checkpoint lag:</td>");
+		sb.append("<td>"+lag+" files / "+(lagTime/1000)+" s</td></tr>");
+	}
+
 }
\ No newline at end of file
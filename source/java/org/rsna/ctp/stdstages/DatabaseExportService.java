@@ -177,10 +177,7 @@ public class DatabaseExportService extends AbstractQueuedExportService {
 								//Note that the file has been removed from the queue,
 								//so it is necessary to requeue it. This has the
 								//effect of moving it to the end of the queue.
-								getQueueManager().enqueue(file);
-								//Note that enqueuing a file does not delete it
-								//from the source location, so we must delete it.
-								file.delete();
+								getQueueManager().enqueueMove(file);
 								break;
 							}
 							else release(file);
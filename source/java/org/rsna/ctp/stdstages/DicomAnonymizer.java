@@ -21,6 +21,8 @@ import org.rsna.ctp.servlets.SummaryLink;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
 import org.rsna.ctp.stdstages.anonymizer.IntegerTable;
 import org.rsna.ctp.stdstages.anonymizer.LookupTable;
+import org.rsna.ctp.stdstages.anonymizer.dicom.CompiledDAScript;
+import org.rsna.ctp.stdstages.anonymizer.dicom.FunctionCache;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DAScript;
 import org.rsna.ctp.stdstages.anonymizer.dicom.DICOMAnonymizer;
 import org.rsna.server.User;
@@ -38,6 +40,7 @@ public class DicomAnonymizer extends AbstractPipelineStage implements Processor,
 	public File lookupTableFile = null;
 	public IntegerTable intTable = null;
 	File dicomScriptFile = null; //the DicomFilter script that determines whether to anonymize the object
+	volatile CompiledDAScript lastScript = null; //the compiled script used for the last object
 
 	/**
 	 * Construct the DicomAnonymizer PipelineStage.
@@ -56,7 +59,7 @@ public class DicomAnonymizer extends AbstractPipelineStage implements Processor,
 			lookupTableFile = new File(lookupTable);
 		}
 
-		try { intTable = new IntegerTable(root); }
+		try { intTable = new IntegerTable(root, element); }
 		catch (Exception ex) { logger.warn(name+": "+ex.getMessage()); }
 
 		dicomScriptFile = getFilterScriptFile(element.getAttribute("dicomScript"));
@@ -130,6 +133,15 @@ public class DicomAnonymizer extends AbstractPipelineStage implements Processor,
 		return links;
 	}
 
+	/**
+	 * Determine whether this stage can be called by several pipeline
+	 * worker threads at the same time.
+	 * @return true
+	 */
+	public boolean isThreadSafe() {
+		return true;
+	}
+
 	/**
 	 * Process a DicomObject, anonymizing it and returning the processed object.
 	 * If there is no script file, pass the object unmodified.
@@ -138,8 +150,10 @@ public class DicomAnonymizer extends AbstractPipelineStage implements Processor,
 	 * @return the processed FileObject.
 	 */
 	public FileObject process(FileObject fileObject) {
-		lastFileIn = new File(fileObject.getFile().getAbsolutePath());
-		lastTimeIn = System.currentTimeMillis();
+		synchronized (this) {
+			lastFileIn = new File(fileObject.getFile().getAbsolutePath());
+			lastTimeIn = System.currentTimeMillis();
+		}
 
 		if ( (fileObject instanceof DicomObject) && (scriptFile != null) ) {
 
@@ -149,10 +163,11 @@ public class DicomAnonymizer extends AbstractPipelineStage implements Processor,
 				//Okay, anonymize the object
 				File file = fileObject.getFile();
 				DAScript dascript = DAScript.getInstance(scriptFile);
-				Properties script = dascript.toProperties();
+				CompiledDAScript script = dascript.getCompiledScript();
+				lastScript = script;
 				Properties lookup = LookupTable.getProperties(lookupTableFile);
 				AnonymizerStatus status =
-							DICOMAnonymizer.anonymize(file, file, script, lookup, intTable, false, false);
+							DICOMAnonymizer.anonymize((DicomObject)fileObject, file, script, lookup, intTable, false, false);
 				if (status.isOK()) {
 					fileObject = FileObject.getInstance(file);
 				}
@@ -164,11 +179,38 @@ public class DicomAnonymizer extends AbstractPipelineStage implements Processor,
 			}
 		}
 
-		lastFileOut = new File(fileObject.getFile().getAbsolutePath());
-		lastTimeOut = System.currentTimeMillis();
+		synchronized (this) {
+			lastFileOut = new File(fileObject.getFile().getAbsolutePath());
+			lastTimeOut = System.currentTimeMillis();
+		}
 		return fileObject;
 	}
 
+	/**
+	 * Get HTML text displaying the active status of the stage,
+	 * including the statistics of the function cache of the script.
+	 * @param childUniqueStatus the status of the stage of which
+	 * this class is the parent.
+	 * @return HTML text displaying the active status of the stage.
+	 */
+	public synchronized String getStatusHTML(String childUniqueStatus) {
+		String stageUniqueStatus = "";
+		CompiledDAScript script = lastScript;
+		if (script != null) {
+			FunctionCache cache = script.getFunctionCache();
+			long hits = cache.getHits();
+			long misses = cache.getMisses();
+			long calls = hits + misses;
+			stageUniqueStatus =
+				"<tr><td width=\"20%\">Function cache:</td><td>"
+					+ String.format("%,d", cache.size()) + " of " + String.format("%,d", cache.getMaxSize()) + " results; "
+					+ String.format("%,d", hits) + " hits, " + String.format("%,d", misses) + " misses"
+					+ ((calls > 0) ? String.format(" (%.1f%% hits)", 100.0 * hits / calls) : "")
+					+ "</td></tr>";
+		}
+		return super.getStatusHTML(childUniqueStatus + stageUniqueStatus);
+	}
+
 	/**
 	 * Stop the pipeline stage.
 	 */
@@ -81,7 +81,7 @@ public class DicomDifferenceLogger extends AbstractPipelineStage implements Expo
 		temp = new File(root, "temp");
 		temp.mkdirs();
 		File queue = new File(root, "queue");
-		queueManager = new QueueManager(queue, 0, 0); //use default settings
+		queueManager = QueueManager.getInstance(queue, element);
 		active = new File(root, "active");
 		activePath = active.getAbsolutePath();
 		queueManager.enqueueDir(active); //requeue any files that are left from an ungraceful shutdown.
@@ -183,7 +183,7 @@ public class DicomDifferenceLogger extends AbstractPipelineStage implements Expo
 				try {
 					File entryFile = File.createTempFile("QF-", ".bin", temp);
 					SerializerUtil.serialize(entryFile, entry);
-					if (queueManager.enqueue(entryFile) == null) {
+					if (queueManager.enqueueMove(entryFile) == null) {
 						if (quarantine != null) quarantine.insertCopy(fileObject);
 						logger.warn(name+": Unable to enter difference object in the export queue");
 					}
@@ -235,10 +235,7 @@ public class DicomDifferenceLogger extends AbstractPipelineStage implements Expo
 								//Note that the file has been removed from the queue,
 								//so it is necessary to requeue it. This has the
 								//effect of moving it to the end of the queue.
-								queueManager.enqueue(file);
-								//Note that enqueuing a file does not delete it
-								//from the source location, so we must delete it now.
-								file.delete();
+								queueManager.enqueueMove(file);
 							}
 							else {
 								if (throttle > 0) {
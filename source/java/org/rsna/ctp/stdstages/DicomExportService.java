@@ -8,6 +8,7 @@
 package org.rsna.ctp.stdstages;
 
 import java.io.*;
+import java.util.Hashtable;
 import java.util.LinkedList;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.pipeline.AbstractExportService;
@@ -21,13 +22,23 @@ import org.w3c.dom.Element;
 
 /**
  * An ExportService that exports files via the DICOM protocol.
+ * If the stage is configured to allow more than one outstanding request
+ * per association, files are released, quarantined, or requeued when the
+ * responses to their requests are received, and the exporter thread waits
+ * for all the outstanding responses when the queue is empty.
  */
 public class DicomExportService extends AbstractExportService {
 
 	static final Logger logger = Logger.getLogger(DicomExportService.class);
 
-	DicomStorageSCU dicomSender = null;
+	DicomStorageSCU[] dicomSenders = null;
 	String url = "";
+	int maxOutstanding = 1;
+	Hashtable<File,File> pendingFiles = new Hashtable<File,File>();
+	ResponseHandler responseHandler = new ResponseHandler();
+	volatile long responseOKCount = 0;
+	volatile long responseFailCount = 0;
+	volatile long responseRetryCount = 0;
 
 	/**
 	 * Class constructor; creates a new instance of the ExportService.
@@ -62,8 +73,15 @@ public class DicomExportService extends AbstractExportService {
 		//Get the callingAETTag, if any
 		int callingAETTag = DicomObject.getElementTag(element.getAttribute("callingAETTag").trim());
 
-		//Get the DicomSender
-		dicomSender = new DicomStorageSCU(url, timeout, forceClose, hostTag, portTag, calledAETTag, callingAETTag);
+		//Get the maximum number of outstanding requests per association
+		maxOutstanding = StringUtil.getInt(element.getAttribute("maxOutstanding").trim(), 1);
+		if (maxOutstanding < 1) maxOutstanding = 1;
+
+		//Get a DicomSender for each exporter thread, so each has its own association
+		dicomSenders = new DicomStorageSCU[getThreadCount()];
+		for (int i=0; i<dicomSenders.length; i++) {
+			dicomSenders[i] = new DicomStorageSCU(url, timeout, forceClose, hostTag, portTag, calledAETTag, callingAETTag, maxOutstanding);
+		}
 	}
 
 	/**
@@ -71,7 +89,7 @@ public class DicomExportService extends AbstractExportService {
 	 * @param fileToExport the file to export.
 	 * @return the status of the attempt to export the file.
 	 */
-	public synchronized Status export(File fileToExport) {
+	public Status export(File fileToExport) {
 		DicomObject dicomObject = null;
 
 		//Get a DicomObject for the file.
@@ -82,7 +100,16 @@ public class DicomExportService extends AbstractExportService {
 			return Status.FAIL; }
 
 		//Got the object; send it.
-		Status status = dicomSender.send(dicomObject);
+		if (maxOutstanding > 1) {
+			//Don't wait for the response. The file is left in the active
+			//directory until the ResponseHandler disposes of it.
+			pendingFiles.put(fileToExport, fileToExport);
+			Status status = dicomSenders[getThreadIndex()].send(dicomObject, responseHandler);
+			dicomObject.close();
+			if (!status.equals(Status.OK)) pendingFiles.remove(fileToExport);
+			return status;
+		}
+		Status status = dicomSenders[getThreadIndex()].send(dicomObject);
 		dicomObject.close();
 
 		//Make an AuditLog entry if required
@@ -91,11 +118,94 @@ public class DicomExportService extends AbstractExportService {
 		return status;
 	}
 
+	/**
+	 * Wait for the responses to the outstanding requests of the calling
+	 * exporter thread when it has emptied the queue. This method is not
+	 * synchronized because the responses are handled on the exporter thread
+	 * and releasing a file requires the lock on the stage.
+	 * @return the status from the superclass.
+	 */
+	public Status disconnect() {
+		if (maxOutstanding > 1) dicomSenders[getThreadIndex()].flush();
+		return super.disconnect();
+	}
+
+	/**
+	 * Release a file from the active directory unless the response to its
+	 * request has not yet been received. In that case, the file is
+	 * released by the ResponseHandler.
+	 * @param file the file to be released.
+	 * @return true if the file was released; false otherwise.
+	 */
+	protected boolean release(File file) {
+		if (isPending(file)) return false;
+		return super.release(file);
+	}
+
+	/**
+	 * Determine whether the response to the request for a file has not been received.
+	 * @param file the file which was exported.
+	 * @return true if the response has not been received; false otherwise.
+	 */
+	protected boolean isPending(File file) {
+		return pendingFiles.containsKey(file);
+	}
+
+	/**
+	 * Get HTML text displaying the active status of the stage.
+	 * @param childUniqueStatus the status of the stage of which
+	 * this class is the parent.
+	 * @return HTML text displaying the active status of the stage.
+	 */
+	public synchronized String getStatusHTML(String childUniqueStatus) {
+		StringBuffer sb = new StringBuffer(childUniqueStatus);
+		if (maxOutstanding > 1) {
+			int outstanding = 0;
+			for (DicomStorageSCU dicomSender : dicomSenders) outstanding += dicomSender.getOutstandingCount();
+			sb.append(
+				  "<tr><td width=\"20%\">Outstanding requests:</td>"
+				+ "<td>" + outstanding + "</td></tr>"
+				+ "<tr><td width=\"20%\">Responses:</td>"
+				+ "<td>"
+				+ responseOKCount + " stored; "
+				+ responseFailCount + " failed; "
+				+ responseRetryCount + " requeued"
+				+ "</td></tr>");
+		}
+		return super.getStatusHTML(sb.toString());
+	}
+
+	//Dispose of a file when the response to its request is received.
+	class ResponseHandler implements DicomStorageSCU.ResponseListener {
+		public synchronized void responseReceived(DicomObject dicomObject, Status status) {
+			File file = dicomObject.getFile();
+			pendingFiles.remove(file);
+			countDeferredResult(status);
+			makeAuditLogEntry(dicomObject, status, getName(), url);
+			if (status.equals(Status.OK)) {
+				release(file);
+				responseOKCount++;
+			}
+			else if (status.equals(Status.FAIL)) {
+				logger.warn(name+": Unable to export "+file);
+				if (quarantine != null) quarantine.insert(file);
+				else file.delete();
+				responseFailCount++;
+			}
+			else {
+				queueManager.enqueueMove(file);
+				responseRetryCount++;
+			}
+		}
+	}
+
 	/**
 	 * Stop the pipeline stage.
 	 */
 	public synchronized void shutdown() {
-		if (dicomSender != null) dicomSender.interrupt();
+		if (dicomSenders != null) {
+			for (DicomStorageSCU dicomSender : dicomSenders) dicomSender.interrupt();
+		}
 		super.shutdown();
 	}
 
@@ -38,6 +38,15 @@ public class DicomFilter extends AbstractPipelineStage implements Processor, Scr
 		scriptFile = getFilterScriptFile(element.getAttribute("script"));
 	}
 
+	/**
+	 * Determine whether this stage can be called by several pipeline
+	 * worker threads at the same time.
+	 * @return true
+	 */
+	public boolean isThreadSafe() {
+		return true;
+	}
+
 	/**
 	 * Evaluate the script for the object and quarantine the object if
 	 * the result is false.
@@ -45,20 +54,26 @@ public class DicomFilter extends AbstractPipelineStage implements Processor, Scr
 	 * @return the same FileObject if the result is true; otherwise null.
 	 */
 	public FileObject process(FileObject fileObject) {
-		lastFileIn = new File(fileObject.getFile().getAbsolutePath());
-		lastTimeIn = System.currentTimeMillis();
+		synchronized (this) {
+			lastFileIn = new File(fileObject.getFile().getAbsolutePath());
+			lastTimeIn = System.currentTimeMillis();
+		}
 
 		if (fileObject instanceof DicomObject) {
 			boolean match = ((DicomObject)fileObject).matches(scriptFile);
 			if (!match) {
 				if (quarantine != null) quarantine.insert(fileObject);
-				lastFileOut = null;
-				lastTimeOut = System.currentTimeMillis();
+				synchronized (this) {
+					lastFileOut = null;
+					lastTimeOut = System.currentTimeMillis();
+				}
 				return null;
 			}
 		}
-		lastFileOut = new File(fileObject.getFile().getAbsolutePath());
-		lastTimeOut = System.currentTimeMillis();
+		synchronized (this) {
+			lastFileOut = new File(fileObject.getFile().getAbsolutePath());
+			lastTimeOut = System.currentTimeMillis();
+		}
 		return fileObject;
 	}
 
@@ -33,6 +33,13 @@ public class DicomImportService extends AbstractImportService {
 	int connectionIPTag = 0;
 	int timeTag = 0;
 	long throttle = 0L;
+	int maxClients = 50;
+	int handlerThreads = 4;
+	int handlerQueueSize = 100;
+	boolean rejectWhenThrottled = false;
+	long maxThrottledDelay = 30000L;
+	int delayedObjects = 0;
+	int refusedObjects = 0;
 	boolean suppressDuplicates = false;
 	boolean logAllConnections = false;
 	boolean logRejectedConnections = false;
@@ -73,6 +80,18 @@ public class DicomImportService extends AbstractImportService {
 		//Get the throttle (the response delay for the SCP)
 		throttle = StringUtil.getLong(element.getAttribute("throttle").trim(), throttle);
 
+		//Get the sizes of the SCP's pools: the maximum number of simultaneous
+		//associations, and the threads and queue which hand objects to the import queue
+		maxClients = Math.max(1, StringUtil.getInt(element.getAttribute("maxClients").trim(), maxClients));
+		handlerThreads = Math.max(1, StringUtil.getInt(element.getAttribute("handlerThreads").trim(), handlerThreads));
+		handlerQueueSize = Math.max(1, StringUtil.getInt(element.getAttribute("handlerQueueSize").trim(), handlerQueueSize));
+
+		//Get what the SCP is to do when the pipeline is throttled
+		//(see Pipeline): delay the response to each object, or refuse
+		//objects with an out of resources status.
+		rejectWhenThrottled = element.getAttribute("backPressure").trim().equals("reject");
+		maxThrottledDelay = StringUtil.getLong(element.getAttribute("maxThrottledDelay").trim(), maxThrottledDelay);
+
 		//Get the flag indicating whether we are to suppress recent duplicates
 		suppressDuplicates = element.getAttribute("suppressDuplicates").trim().equals("yes");
 
@@ -212,6 +231,77 @@ public class DicomImportService extends AbstractImportService {
 		return throttle;
 	}
 
+	/**
+	 * Get the maximum number of simultaneous associations.
+	 * @return the maximum number of clients of the SCP.
+	 */
+	public int getMaxClients() {
+		return maxClients;
+	}
+
+	/**
+	 * Get the number of threads which hand received objects to the import queue.
+	 * @return the number of Handler threads of the SCP.
+	 */
+	public int getHandlerThreads() {
+		return handlerThreads;
+	}
+
+	/**
+	 * Get the maximum number of received objects waiting for a Handler thread.
+	 * @return the size of the Handler queue of the SCP.
+	 */
+	public int getHandlerQueueSize() {
+		return handlerQueueSize;
+	}
+
+	/**
+	 * Get the flag indicating whether to refuse objects when the pipeline is throttled.
+	 * @return true if objects are to be refused with an out of resources status;
+	 * false if the responses to objects are to be delayed.
+	 */
+	public boolean getRejectWhenThrottled() {
+		return rejectWhenThrottled;
+	}
+
+	/**
+	 * Get the maximum time to delay the response to an object while the pipeline is throttled.
+	 * @return the maximum delay in ms.
+	 */
+	public long getMaxThrottledDelay() {
+		return maxThrottledDelay;
+	}
+
+	/**
+	 * Count an object whose response was delayed because the pipeline was throttled.
+	 */
+	public synchronized void objectDelayed() {
+		delayedObjects++;
+	}
+
+	/**
+	 * Count an object which was refused because the pipeline was throttled.
+	 */
+	public synchronized void objectRefused() {
+		refusedObjects++;
+	}
+
+	/**
+	 * Get HTML text displaying the active status of the stage.
+	 * @param childUniqueStatus the status of the stage of which
+	 * this class is the parent.
+	 * @return HTML text displaying the active status of the stage.
+	 */
+	public synchronized String getStatusHTML(String childUniqueStatus) {
+		String stageUniqueStatus = dicomStorageSCP.getStatusHTML();
+		if ((delayedObjects > 0) || (refusedObjects > 0)) {
+			stageUniqueStatus +=
+				"<tr><td width=\"20%\">Delayed by back-pressure:</td><td>" + delayedObjects + "</td></tr>"
+				+ "<tr><td width=\"20%\">Refused by back-pressure:</td><td>" + refusedObjects + "</td></tr>";
+		}
+		return super.getStatusHTML(childUniqueStatus + stageUniqueStatus);
+	}
+
 	/**
 	 * Get the IP white list
 	 * @return the IP white list
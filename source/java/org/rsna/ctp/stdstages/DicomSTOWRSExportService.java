@@ -12,6 +12,7 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.security.SecureRandom;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -34,9 +35,20 @@ import org.rsna.util.StringUtil;
 import org.rsna.util.XmlUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 
 /**
  * An ExportService that exports files via the DICOM STOW-RS protocol.
+ * <p>
+ * If the stage is configured with a batchCount greater than one, each
+ * exporter thread collects files into a batch, which is sent in one
+ * multipart/related request, with the instances of each study together,
+ * when it reaches the batchCount or the batchSize, or when the queue is
+ * empty. The files are streamed from the disk. The response is examined
+ * for each instance: files of stored instances are released, files of
+ * failed instances are quarantined, and files whose status is unknown or
+ * which failed for lack of resources are requeued. The files stay in the
+ * active directory until their batch has been sent.
  */
 public class DicomSTOWRSExportService extends AbstractExportService {
 
@@ -56,6 +68,17 @@ public class DicomSTOWRSExportService extends AbstractExportService {
 	boolean logUnauthorizedResponses = true;
 	boolean logDuplicates = false;
 
+	static final int bufferSize = 64 * 1024;
+	static final String crlf = "\r\n";
+	int batchCount = 1;
+	long batchSize = 32L * 1024 * 1024;
+	Batch[] batches = null;
+	Hashtable<File,File> pendingFiles = new Hashtable<File,File>();
+	volatile long batchesSent = 0;
+	volatile long instancesStored = 0;
+	volatile long instancesFailed = 0;
+	volatile long instancesRequeued = 0;
+
 /**/LinkedList<String> recentUIDs = new LinkedList<String>();
 /**/LinkedList<Long> recentTimes = new LinkedList<Long>();
 /**/static final int maxQueueSize = 10;
@@ -109,6 +132,17 @@ public class DicomSTOWRSExportService extends AbstractExportService {
 			throw new Exception();
 		}
 		logger.info(name+": "+url.getProtocol()+" protocol; port "+url.getPort());
+
+		//Get the batch limits
+		batchCount = StringUtil.getInt(element.getAttribute("batchCount").trim(), batchCount);
+		if (batchCount < 1) batchCount = 1;
+		long mb = StringUtil.getLong(element.getAttribute("batchSize").trim(), batchSize / (1024 * 1024));
+		if (mb > 0) batchSize = mb * 1024 * 1024;
+		if (batchCount > 1) {
+			batches = new Batch[getThreadCount()];
+			for (int i=0; i<batches.length; i++) batches[i] = new Batch();
+			logger.info(name+": batches of up to "+batchCount+" instances ("+(batchSize/(1024*1024))+" MB)");
+		}
 	}
 	
 	/**
@@ -122,6 +156,8 @@ public class DicomSTOWRSExportService extends AbstractExportService {
 		long fileLength = fileToExport.length();
 		if (fileLength == 0) return Status.FAIL;
 		
+		if (batches != null) return addToBatch(fileToExport, fileLength);
+
 		HttpURLConnection conn = null;
 		OutputStream svros = null;
 		try {
@@ -134,7 +170,50 @@ public class DicomSTOWRSExportService extends AbstractExportService {
 			if (authenticate) conn.setRequestProperty("Authorization", authHeader);
 			//if (logger.isDebugEnabled()) logConnection(conn);
 
-			if (logDuplicates) {
+			checkDuplicate(fileObject);
+
+			//Send the file to the server
+			ClientHttpRequest req = new ClientHttpRequest(conn, "multipart/related; type=application/dicom;");
+			if (!includeContentDispositionHeader) req.addFilePart(fileToExport, "application/dicom");
+			else {
+				String ctHeader = "Content-Type: application/dicom";
+				String cdHeader = "Content-Disposition: form-data; name=\"stowrs\"; filename=\""+fileToExport.getName()+"\";";
+				String[] headers = { cdHeader, ctHeader };
+				req.addFilePart(fileToExport, headers);
+			}
+			InputStream is = req.post();
+			String response = FileUtil.getText(is, "UTF-8");
+			conn.disconnect();
+
+			//Get the response code and log Unauthorized responses
+			int responseCode = conn.getResponseCode();
+			if (logger.isDebugEnabled()) {
+				logResponse(responseCode, response);
+			}
+
+			if (!checkAuthorization(responseCode)) {
+				conn.disconnect();
+				return failOrRetry();
+			}
+
+			if (responseCode == HttpResponse.ok) {
+				makeAuditLogEntry(fileObject, Status.OK, getName(), url.toString());
+				return Status.OK;
+			}
+			
+			else return Status.FAIL;
+		}
+		catch (Exception e) {
+			if (logger.isDebugEnabled()) logger.debug(name+": export failed: " + e.getMessage(), e);
+			else logger.warn(name+": export failed: " + e.getMessage());
+			return failOrRetry();
+		}
+	}
+
+	//Log a duplicate transmission if enabled.
+	private void checkDuplicate(FileObject fileObject) {
+		if (logDuplicates) {
+			synchronized (recentUIDs) {
 				//*********************************************************************************************
 				//See if this object has the same UID as a recent one.
 				String currentUID = fileObject.getUID();
@@ -158,69 +237,372 @@ public class DicomSTOWRSExportService extends AbstractExportService {
 				if (recentUIDs.size() > maxQueueSize) { recentUIDs.remove(); recentTimes.remove(); }
 				//*********************************************************************************************
 			}
-			
-			//Send the file to the server
-			ClientHttpRequest req = new ClientHttpRequest(conn, "multipart/related; type=application/dicom;");
-			if (!includeContentDispositionHeader) req.addFilePart(fileToExport, "application/dicom");
-			else {
-				String ctHeader = "Content-Type: application/dicom";
-				String cdHeader = "Content-Disposition: form-data; name=\"stowrs\"; filename=\""+fileToExport.getName()+"\";";
-				String[] headers = { cdHeader, ctHeader };
-				req.addFilePart(fileToExport, headers);
+		}
+	}
+
+	//Log the response to a request.
+	private void logResponse(int responseCode, String response) {
+		try {
+			Document doc = XmlUtil.getDocument(response);
+			response = XmlUtil.toPrettyString(doc);
+		}
+		catch (Exception ex) { }
+		logger.debug(name+": Response code: "+responseCode);
+		logger.debug(name+": XML Response Message:\n"+response);
+	}
+
+	//Check whether the credentials were accepted, disabling
+	//the export if they were not, and log changes.
+	private boolean checkAuthorization(int responseCode) {
+		if (responseCode == HttpResponse.unauthorized) {
+			if (logUnauthorizedResponses) {
+				logger.warn(name + ": Credentials for "+username+" were not accepted by "+url);
+				logUnauthorizedResponses = false;
 			}
-			InputStream is = req.post();
-			String response = FileUtil.getText(is, "UTF-8");
-			conn.disconnect();
+			enableExport = false;
+			return false;
+		}
+		else if (responseCode == HttpResponse.forbidden) {
+			if (logUnauthorizedResponses) {
+				logger.warn(name + ": User "+username+" was not accepted by "+url);
+				logUnauthorizedResponses = false;
+			}
+			enableExport = false;
+			return false;
+		}
+		else if (!logUnauthorizedResponses) {
+			logger.warn(name + ": Credentials for "+username+" have been accepted by "+url);
+			logUnauthorizedResponses = true;
+		}
+		return true;
+	}
 
-			//Get the response code and log Unauthorized responses
-			int responseCode = conn.getResponseCode();
-			if (logger.isDebugEnabled()) {
-				try {
-					Document doc = XmlUtil.getDocument(response);
-					response = XmlUtil.toPrettyString(doc);
+	//Add a file to the batch of the calling exporter thread, sending the batch
+	//first if the file does not fit. The file is left in the active directory
+	//until the batch is sent. If the batch cannot be sent at all, return RETRY
+	//so the exporter requeues the file and backs off after repeated failures.
+	private Status addToBatch(File file, long fileLength) {
+		FileObject fileObject = FileObject.getInstance(file);
+		checkDuplicate(fileObject);
+		String studyUID = "";
+		String sopUID = "";
+		if (fileObject instanceof DicomObject) {
+			studyUID = ((DicomObject)fileObject).getStudyInstanceUID();
+			sopUID = ((DicomObject)fileObject).getSOPInstanceUID();
+		}
+		Batch batch = batches[getThreadIndex()];
+		if (!batch.canAdd(fileLength)) {
+			if (sendBatch(batch).equals(Status.RETRY)) return Status.RETRY;
+		}
+		pendingFiles.put(file, file);
+		batch.add(new Instance(file, fileObject, studyUID, sopUID, fileLength));
+		return Status.OK;
+	}
+
+	/**
+	 * Send the batch of the calling exporter thread when it has emptied the
+	 * queue. This method is not synchronized because the files of the batch
+	 * are disposed of on the exporter thread and releasing a file requires
+	 * the lock on the stage.
+	 * @return the status from the superclass.
+	 */
+	public Status disconnect() {
+		if (batches != null) sendBatch(batches[getThreadIndex()]);
+		return super.disconnect();
+	}
+
+	/**
+	 * Release a file from the active directory unless it is in a batch
+	 * which has not yet been sent. In that case, the file is released
+	 * when the response to the batch is received.
+	 * @param file the file to be released.
+	 * @return true if the file was released; false otherwise.
+	 */
+	protected boolean release(File file) {
+		if (isPending(file)) return false;
+		return super.release(file);
+	}
+
+	/**
+	 * Determine whether a file is in a batch which has not yet been sent.
+	 * The result of exporting such a file is counted when the response
+	 * to its batch is received.
+	 * @param file the file which was exported.
+	 * @return true if the file is waiting to be sent; false otherwise.
+	 */
+	protected boolean isPending(File file) {
+		return pendingFiles.containsKey(file);
+	}
+
+	//Send a batch in one multipart/related request and dispose of each of its files.
+	//Return RETRY if the request failed as a whole and the files were requeued.
+	private Status sendBatch(Batch batch) {
+		if (batch.isEmpty()) return Status.OK;
+		LinkedList<Instance> instances = batch.getInstances();
+		batch.clear();
+		HttpURLConnection conn = null;
+		try {
+			String boundary = "-----" + Long.toHexString(new SecureRandom().nextLong()) + Long.toHexString(System.nanoTime());
+			LinkedList<byte[]> partHeaders = new LinkedList<byte[]>();
+			long length = 0;
+			for (Instance instance : instances) {
+				StringBuffer sb = new StringBuffer();
+				sb.append("--" + boundary + crlf);
+				sb.append("Content-Type: application/dicom" + crlf);
+				if (includeContentDispositionHeader) {
+					sb.append("Content-Disposition: form-data; name=\"stowrs\"; filename=\""+instance.file.getName()+"\";" + crlf);
 				}
-				catch (Exception ex) { }
-				logger.debug(name+": Response code: "+responseCode);
-				logger.debug(name+": XML Response Message:\n"+response);
+				sb.append(crlf);
+				byte[] header = sb.toString().getBytes("UTF-8");
+				partHeaders.add(header);
+				length += header.length + instance.length + crlf.length();
 			}
-			
-			if (responseCode == HttpResponse.unauthorized) {
-				if (logUnauthorizedResponses) {
-					logger.warn(name + ": Credentials for "+username+" were not accepted by "+url);
-					logUnauthorizedResponses = false;
+			byte[] trailer = ("--" + boundary + "--" + crlf).getBytes("UTF-8");
+			length += trailer.length;
+
+			//Stream the parts from the disk
+			conn = HttpUtil.getConnection(url);
+			conn.setReadTimeout(readTimeout);
+			conn.setConnectTimeout(connectionTimeout);
+			conn.setRequestMethod("POST");
+			conn.setDoOutput(true);
+			conn.setFixedLengthStreamingMode(length);
+			conn.setRequestProperty("Content-Type", "multipart/related; type=application/dicom; boundary=" + boundary);
+			conn.setRequestProperty("Accept", "application/dicom+xml");
+			if (authenticate) conn.setRequestProperty("Authorization", authHeader);
+			OutputStream out = conn.getOutputStream();
+			byte[] buffer = new byte[bufferSize];
+			Iterator<byte[]> hit = partHeaders.iterator();
+			for (Instance instance : instances) {
+				out.write(hit.next());
+				FileInputStream in = new FileInputStream(instance.file);
+				try {
+					long remaining = instance.length;
+					int n;
+					while ((remaining > 0) && ((n = in.read(buffer, 0, (int)Math.min(buffer.length, remaining))) > 0)) {
+						out.write(buffer, 0, n);
+						remaining -= n;
+					}
+					if (remaining > 0) throw new EOFException("File changed while sending: "+instance.file);
 				}
-				conn.disconnect();
-				enableExport = false;
-				return failOrRetry();
+				finally { in.close(); }
+				out.write(crlf.getBytes("UTF-8"));
 			}
-			else if (responseCode == HttpResponse.forbidden) {
-				if (logUnauthorizedResponses) {
-					logger.warn(name + ": User "+username+" was not accepted by "+url);
-					logUnauthorizedResponses = false;
-				}
-				conn.disconnect();
-				enableExport = false;
-				return failOrRetry();
+			out.write(trailer);
+			out.close();
+
+			//Get the response
+			int responseCode = conn.getResponseCode();
+			String response = "";
+			InputStream is = (responseCode < 400) ? conn.getInputStream() : conn.getErrorStream();
+			if (is != null) response = FileUtil.getText(is, "UTF-8");
+			conn.disconnect();
+			batchesSent++;
+			if (logger.isDebugEnabled()) {
+				logResponse(responseCode, response);
+			}
+
+			if (!checkAuthorization(responseCode)) {
+				dispose(instances, failOrRetry());
+				return Status.RETRY;
 			}
-			else if (!logUnauthorizedResponses) {
-				logger.warn(name + ": Credentials for "+username+" have been accepted by "+url);
-				logUnauthorizedResponses = true;
+			if (responseCode >= 500) {
+				logger.warn(name+": batch of "+instances.size()+" requeued; response code: "+responseCode);
+				dispose(instances, Status.RETRY);
+				return Status.RETRY;
 			}
 
-			if (responseCode == HttpResponse.ok) {
-				makeAuditLogEntry(fileObject, Status.OK, getName(), url.toString());
-				return Status.OK;
+			//Get the status of each instance from the response.
+			//If the response cannot be parsed, the response code applies
+			//to all the instances.
+			Hashtable<String,Status> results = null;
+			try { results = getResults(XmlUtil.getDocument(response)); }
+			catch (Exception unparseable) { }
+			Status defaultStatus;
+			if (responseCode == HttpResponse.ok) defaultStatus = Status.OK;
+			else if ((responseCode == 202) && (results != null)) defaultStatus = Status.RETRY; //not reported
+			else defaultStatus = Status.FAIL;
+			for (Instance instance : instances) {
+				Status status = null;
+				if (results != null) status = results.get(instance.sopUID);
+				dispose(instance, (status != null) ? status : defaultStatus);
 			}
-			
-			else return Status.FAIL;
+			return Status.OK;
 		}
 		catch (Exception e) {
-			if (logger.isDebugEnabled()) logger.debug(name+": export failed: " + e.getMessage(), e);
-			else logger.warn(name+": export failed: " + e.getMessage());
-			return failOrRetry();
+			if (conn != null) conn.disconnect();
+			if (logger.isDebugEnabled()) logger.debug(name+": batch export failed: " + e.getMessage(), e);
+			else logger.warn(name+": batch export failed: " + e.getMessage());
+			dispose(instances, Status.RETRY);
+			return Status.RETRY;
 		}
 	}
-	
+
+	//Get the status of each instance in a STOW-RS response, indexed by SOPInstanceUID.
+	//Instances in the ReferencedSOPSequence were stored; instances in the
+	//FailedSOPSequence failed, and are retried if the failure was for lack of resources.
+	private Hashtable<String,Status> getResults(Document doc) {
+		Hashtable<String,Status> results = new Hashtable<String,Status>();
+		Node child = doc.getDocumentElement().getFirstChild();
+		while (child != null) {
+			if ((child instanceof Element) && child.getNodeName().equals("DicomAttribute")) {
+				Element seq = (Element)child;
+				String tag = seq.getAttribute("tag");
+				String keyword = seq.getAttribute("keyword");
+				boolean referenced = tag.equals("00081199") || keyword.equals("ReferencedSOPSequence");
+				boolean failed = tag.equals("00081198") || keyword.equals("FailedSOPSequence");
+				if (referenced || failed) {
+					Node item = seq.getFirstChild();
+					while (item != null) {
+						if ((item instanceof Element) && item.getNodeName().equals("Item")) {
+							String uid = getValue((Element)item, "00081155");
+							if (uid != null) {
+								Status status = Status.OK;
+								if (failed) {
+									String reason = getValue((Element)item, "00081197");
+									int code = StringUtil.getInt(reason, 0);
+									status = ((code & 0xFF00) == 0xA700) ? Status.RETRY : Status.FAIL;
+								}
+								results.put(uid, status);
+							}
+						}
+						item = item.getNextSibling();
+					}
+				}
+			}
+			child = child.getNextSibling();
+		}
+		return results;
+	}
+
+	//Get the first value of an attribute in an item of a NativeDicomModel document.
+	private static String getValue(Element item, String tag) {
+		Node child = item.getFirstChild();
+		while (child != null) {
+			if ((child instanceof Element) && ((Element)child).getAttribute("tag").equals(tag)) {
+				Node value = child.getFirstChild();
+				while (value != null) {
+					if ((value instanceof Element) && value.getNodeName().equals("Value")) {
+						return value.getTextContent().trim();
+					}
+					value = value.getNextSibling();
+				}
+			}
+			child = child.getNextSibling();
+		}
+		return null;
+	}
+
+	private void dispose(LinkedList<Instance> instances, Status status) {
+		for (Instance instance : instances) dispose(instance, status);
+	}
+
+	//Release, quarantine, or requeue the file of an instance,
+	//and count the result for the exporter thread.
+	private void dispose(Instance instance, Status status) {
+		File file = instance.file;
+		pendingFiles.remove(file);
+		countDeferredResult(status);
+		if (status.equals(Status.OK)) {
+			makeAuditLogEntry(instance.fileObject, Status.OK, getName(), url.toString());
+			release(file);
+			instancesStored++;
+		}
+		else if (status.equals(Status.RETRY)) {
+			getQueueManager().enqueueMove(file);
+			instancesRequeued++;
+		}
+		else {
+			logger.warn(name+": Unable to export "+file);
+			if (quarantine != null) quarantine.insert(file);
+			else file.delete();
+			instancesFailed++;
+		}
+	}
+
+	/**
+	 * Get HTML text displaying the active status of the stage.
+	 * @param childUniqueStatus the status of the stage of which
+	 * this class is the parent.
+	 * @return HTML text displaying the active status of the stage.
+	 */
+	public synchronized String getStatusHTML(String childUniqueStatus) {
+		StringBuffer sb = new StringBuffer(childUniqueStatus);
+		if (batches != null) {
+			sb.append(
+				  "<tr><td width=\"20%\">Batches sent:</td>"
+				+ "<td>" + batchesSent + "</td></tr>"
+				+ "<tr><td width=\"20%\">Instances:</td>"
+				+ "<td>"
+				+ instancesStored + " stored; "
+				+ instancesFailed + " failed; "
+				+ instancesRequeued + " requeued"
+				+ "</td></tr>");
+		}
+		return super.getStatusHTML(sb.toString());
+	}
+
+	//An instance waiting to be sent.
+	static class Instance {
+		final File file;
+		final FileObject fileObject;
+		final String studyUID;
+		final String sopUID;
+		final long length;
+
+		Instance(File file, FileObject fileObject, String studyUID, String sopUID, long length) {
+			this.file = file;
+			this.fileObject = fileObject;
+			this.studyUID = studyUID;
+			this.sopUID = sopUID;
+			this.length = length;
+		}
+	}
+
+	//The instances collected by one exporter thread, kept together by study.
+	class Batch {
+		final Hashtable<String,LinkedList<Instance>> studies = new Hashtable<String,LinkedList<Instance>>();
+		final LinkedList<String> studyOrder = new LinkedList<String>();
+		int count = 0;
+		long size = 0;
+
+		boolean isEmpty() {
+			return (count == 0);
+		}
+
+		//Determine whether a file can be added without exceeding the limits.
+		//A file larger than the batchSize can be added to an empty batch.
+		boolean canAdd(long length) {
+			return isEmpty() || ((count < batchCount) && (size + length <= batchSize));
+		}
+
+		void add(Instance instance) {
+			LinkedList<Instance> list = studies.get(instance.studyUID);
+			if (list == null) {
+				list = new LinkedList<Instance>();
+				studies.put(instance.studyUID, list);
+				studyOrder.add(instance.studyUID);
+			}
+			list.add(instance);
+			count++;
+			size += instance.length;
+		}
+
+		//Get the instances, study by study.
+		LinkedList<Instance> getInstances() {
+			LinkedList<Instance> instances = new LinkedList<Instance>();
+			for (String studyUID : studyOrder) instances.addAll(studies.get(studyUID));
+			return instances;
+		}
+
+		void clear() {
+			studies.clear();
+			studyOrder.clear();
+			count = 0;
+			size = 0;
+		}
+	}
+
 	private Status failOrRetry() {
 		return logger.isDebugEnabled() ? Status.FAIL : Status.RETRY;
 	}
@@ -20,6 +20,7 @@ import org.rsna.ctp.Configuration;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
+import org.rsna.ctp.pipeline.GroupCommitter;
 import org.rsna.ctp.pipeline.Pipeline;
 import org.rsna.ctp.pipeline.PipelineStage;
 import org.rsna.ctp.pipeline.Processor;
@@ -51,6 +52,7 @@ public class DuplicateFilter extends AbstractPipelineStage implements Processor
 	static final Logger logger = Logger.getLogger(DuplicateFilter.class);
 
     RecordManager recman = null;
+    GroupCommitter committer = null;
     public HTree hashIndex = null;
 
 	/**
@@ -67,6 +69,7 @@ public class DuplicateFilter extends AbstractPipelineStage implements Processor
 				File indexFile = new File(indexDir, "HashIndex");
 				recman = JdbmUtil.getRecordManager( indexFile.getAbsolutePath() );
 				hashIndex = JdbmUtil.getHTree( recman, "HashIndex" );
+				committer = new GroupCommitter(recman, name, element);
 			}
 			catch (Exception unable) {
 				logger.error(name+": Unable to load the index.");
@@ -79,15 +82,7 @@ public class DuplicateFilter extends AbstractPipelineStage implements Processor
 	 * Stop the stage.
 	 */
 	public synchronized void shutdown() {
-		if (recman != null) {
-			try {
-				recman.commit();
-				recman.close();
-			}
-			catch (Exception ex) {
-				logger.debug("Unable to commit and close the database");
-			}
-		}
+		if (committer != null) committer.close();
 		super.shutdown();
 	}
 
@@ -103,12 +98,17 @@ public class DuplicateFilter extends AbstractPipelineStage implements Processor
 		boolean duplicate = false;
 		try {
 			String digest = fileObject.getDigest();
-			duplicate = (hashIndex.get(digest) != null);
-			if (!duplicate) {
-				hashIndex.put(digest,"");
-				recman.commit();
+			//Check and update the index while holding the lock
+			//the committer uses, so a timed commit cannot run
+			//between the lookup and the update.
+			synchronized (committer) {
+				duplicate = (hashIndex.get(digest) != null);
+				if (!duplicate) {
+					hashIndex.put(digest,"");
+					committer.commit();
+				}
 			}
-			else {
+			if (duplicate) {
 				if (quarantine != null) quarantine.insert(fileObject);
 				lastFileOut = null;
 				lastTimeOut = System.currentTimeMillis();
@@ -195,6 +195,15 @@ public class FileStorageService extends AbstractPipelineStage implements Storage
 		catch (Exception ex) { return null;}
 	}
 
+	/**
+	 * Determine whether this stage requires the objects of a study to
+	 * arrive in the order in which they were imported.
+	 * @return true
+	 */
+	public boolean requiresStudyOrder() {
+		return true;
+	}
+
 	/**
 	 * Store an object if the object is of a type that the StorageService is
 	 * configured to accept. If the StorageService is not configured to accept
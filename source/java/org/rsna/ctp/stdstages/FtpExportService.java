@@ -33,7 +33,7 @@ public class FtpExportService extends AbstractExportService {
 
 	static final Logger logger = Logger.getLogger(FtpExportService.class);
 
-	FtpSender ftpSender;
+	FtpSender[] ftpSenders;
 	URL url;
 
 	/**
@@ -58,8 +58,11 @@ public class FtpExportService extends AbstractExportService {
 		if (ftpPort == -1) ftpPort = 21;
 		String ftpRoot = url.getPath();
 
-		//Instantiate the FtpSender
-		ftpSender = new FtpSender(ftpHost, ftpPort, username, password, ftpRoot);
+		//Instantiate an FtpSender for each exporter thread
+		ftpSenders = new FtpSender[getThreadCount()];
+		for (int i=0; i<ftpSenders.length; i++) {
+			ftpSenders[i] = new FtpSender(ftpHost, ftpPort, username, password, ftpRoot);
+		}
 	}
 
 	/**
@@ -74,7 +77,7 @@ public class FtpExportService extends AbstractExportService {
 			String dirName = fileObject.getStudyUID();
 			dirName = (dirName==null) ? "" : dirName.trim();
 			if (dirName.equals("")) dirName = "bullpen";
-			ftpSender.send(fileToExport, ext, dirName);
+			ftpSenders[getThreadIndex()].send(fileToExport, ext, dirName);
 			makeAuditLogEntry(fileObject, Status.OK, getName(), url.toString());
 			return Status.OK;
 		}
@@ -143,7 +146,7 @@ public class FtpExportService extends AbstractExportService {
 				//to work on all servers, so make a name using
 				//the makeNameFromDate method, and append the
 				//supplied extension.
-				String filename = StringUtil.makeNameFromDate() + ext;
+				String filename = StringUtil.makeNameFromDate() + getThreadSuffix() + ext;
 
 				//Upload the file.
 				client.uploadFile(file.getAbsolutePath(), filename);
@@ -210,28 +210,30 @@ public class HttpExportService extends AbstractExportService {
 			conn.connect();
 
 			if (logDuplicates) {
-				//*********************************************************************************************
-				//See if this object has the same UID as a recent one.
-				String currentUID = fileObject.getUID();
-				if (recentUIDs.contains(currentUID)) {
-					logger.warn("----------------------------------------------------------------");
-					logger.warn(name);
-					logger.warn("Duplicate UID in last "+maxQueueSize+" objects: "+currentUID);
-					String s = "";
-					long time = 0;
-					for (int i=0; i<recentUIDs.size(); i++) {
-						String uid = recentUIDs.get(i);
-						s += uid.equals(currentUID) ? "!" : "*";
-						time = recentTimes.get(i).longValue();
+				synchronized (recentUIDs) {
+					//*********************************************************************************************
+					//See if this object has the same UID as a recent one.
+					String currentUID = fileObject.getUID();
+					if (recentUIDs.contains(currentUID)) {
+						logger.warn("----------------------------------------------------------------");
+						logger.warn(name);
+						logger.warn("Duplicate UID in last "+maxQueueSize+" objects: "+currentUID);
+						String s = "";
+						long time = 0;
+						for (int i=0; i<recentUIDs.size(); i++) {
+							String uid = recentUIDs.get(i);
+							s += uid.equals(currentUID) ? "!" : "*";
+							time = recentTimes.get(i).longValue();
+						}
+						long deltaT = System.currentTimeMillis() - time;
+						logger.warn("[oldest] "+s+"! [newest]  deltaT = "+deltaT+"ms");
+						logger.warn("----------------------------------------------------------------");
 					}
-					long deltaT = System.currentTimeMillis() - time;
-					logger.warn("[oldest] "+s+"! [newest]  deltaT = "+deltaT+"ms");
-					logger.warn("----------------------------------------------------------------");
+					recentUIDs.add(currentUID);
+					recentTimes.add( new Long( System.currentTimeMillis() ) );
+					if (recentUIDs.size() > maxQueueSize) { recentUIDs.remove(); recentTimes.remove(); }
+					//*********************************************************************************************
 				}
-				recentUIDs.add(currentUID);
-				recentTimes.add( new Long( System.currentTimeMillis() ) );
-				if (recentUIDs.size() > maxQueueSize) { recentUIDs.remove(); recentTimes.remove(); }
-				//*********************************************************************************************
 			}
 
 			//Send the file to the server
@@ -378,8 +380,7 @@ public class HttpExportService extends AbstractExportService {
 				if (nFiles > 0) {
 					logger.debug("Compressing "+nFiles+" files for transmission.");
 					if (FileUtil.zipDirectory(cacheTemp, zip, true)) {
-						getQueueManager().enqueue(zip);
-						zip.delete();
+						if (getQueueManager().enqueueMove(zip) == null) zip.delete();
 						for (File file : cacheTemp.listFiles()) FileUtil.deleteAll(file);
 					}
 				}
@@ -486,11 +487,11 @@ public class HttpExportService extends AbstractExportService {
 			return cookieName != null;
 		}
 		
-		public void invalidate() {
+		public synchronized void invalidate() {
 			lastTime = 0;
 		}
 		
-		public void setCookie(HttpURLConnection conn) {
+		public synchronized void setCookie(HttpURLConnection conn) {
 			if (url != null) {
 				long time = System.currentTimeMillis();
 				if ((time - lastTime) > timeout) cookieValue = getCookie();
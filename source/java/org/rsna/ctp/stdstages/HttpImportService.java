@@ -8,17 +8,18 @@
 package org.rsna.ctp.stdstages;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.security.MessageDigest;
 import java.util.Enumeration;
 import java.util.zip.*;
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLServerSocketFactory;
 import org.apache.log4j.Logger;
-import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractImportService;
 import org.rsna.server.HttpRequest;
 import org.rsna.server.HttpResponse;
@@ -31,6 +32,13 @@ import org.w3c.dom.Element;
 
 /**
  * An ImportService that receives files via the HTTP protocol.
+ * <p>
+ * A posted file is written once, into the temp directory of the stage,
+ * with its MD5 digest computed as it is received. It is then renamed
+ * into the queue. The number of uploads received at the same time and
+ * the size of the queue can be limited; when either limit is reached, or
+ * when the pipeline is throttled (see Pipeline), uploads are refused with
+ * HTTP 503 and a Retry-After header.
  */
 public class HttpImportService extends AbstractImportService {
 
@@ -47,6 +55,13 @@ public class HttpImportService extends AbstractImportService {
 	WhiteList ipWhiteList = null;
 	BlackList ipBlackList = null;
 
+	static final int bufferSize = 64 * 1024;
+	int maxConcurrentUploads = 0;
+	int queueHighWaterMark = 0;
+	int retryAfter = 10;
+	int activeUploads = 0;
+	int rejectedUploads = 0;
+
 	/**
 	 * Class constructor; creates a new instance of the ImportService.
 	 * @param element the configuration element.
@@ -77,6 +92,11 @@ public class HttpImportService extends AbstractImportService {
 		requireAuthentication =
 				element.getAttribute("requireAuthentication").trim().equals("yes");
 
+		//Get the limits on uploads. Zero means no limit.
+		maxConcurrentUploads = getInt(element, "maxConcurrentUploads", 0);
+		queueHighWaterMark = getInt(element, "queueHighWaterMark", 0);
+		retryAfter = Math.max(getInt(element, "retryAfter", 10), 1);
+
 		//Get the whitelist and blacklist
 		ipWhiteList = new WhiteList(element, "ip");
 		ipBlackList = new BlackList(element, "ip");
@@ -91,6 +111,16 @@ public class HttpImportService extends AbstractImportService {
 		}
 	}
 
+	private int getInt(Element element, String attr, int defaultValue) {
+		String s = element.getAttribute(attr).trim();
+		if (s.equals("")) return defaultValue;
+		try { return Math.max(Integer.parseInt(s), 0); }
+		catch (Exception ex) {
+			logger.error(name+": Unparseable "+attr+" value: "+s);
+			return defaultValue;
+		}
+	}
+
 	/**
 	 * Stop the pipeline stage.
 	 */
@@ -110,6 +140,45 @@ public class HttpImportService extends AbstractImportService {
 		}
 	}
 
+	//Reserve a place for an upload, or return false if the stage is
+	//receiving the maximum number of uploads, the queue is full, or
+	//the pipeline is throttled.
+	private boolean startUpload() {
+		synchronized (this) {
+			if ((maxConcurrentUploads > 0) && (activeUploads >= maxConcurrentUploads)) {
+				rejectedUploads++;
+				return false;
+			}
+			activeUploads++;
+		}
+		if (((queueHighWaterMark > 0) && (getQueueSize() >= queueHighWaterMark)) || isThrottled()) {
+			endUpload();
+			synchronized (this) { rejectedUploads++; }
+			return false;
+		}
+		return true;
+	}
+
+	private synchronized void endUpload() {
+		activeUploads--;
+	}
+
+	/**
+	 * Get HTML text displaying the active status of the stage.
+	 * @param childUniqueStatus the status of the stage of which
+	 * this class is the parent.
+	 * @return HTML text displaying the active status of the stage.
+	 */
+	public synchronized String getStatusHTML(String childUniqueStatus) {
+		String stageUniqueStatus = "";
+		if ((maxConcurrentUploads > 0) || (queueHighWaterMark > 0) || (rejectedUploads > 0)) {
+			stageUniqueStatus =
+				"<tr><td width=\"20%\">Active uploads:</td><td>" + activeUploads + "</td></tr>"
+				+ "<tr><td width=\"20%\">Refused uploads:</td><td>" + rejectedUploads + "</td></tr>";
+		}
+		return super.getStatusHTML(childUniqueStatus + stageUniqueStatus);
+	}
+
 	class Receiver implements Service {
 
 		boolean requireAuthentication;
@@ -153,17 +222,31 @@ public class HttpImportService extends AbstractImportService {
 					//Only accept POST requests that have Content-Type = application/x-mirc.
 					if ( req.method.equals("POST") &&
 							req.getContentType().contains("application/x-mirc") ) {
-						if (getPostedFile(req)) {
-							res.write("OK");
-							String transferEncoding = req.getHeader("Transfer-Encoding");
-							boolean isChunked = (transferEncoding != null) && transferEncoding.equals("chunked");
-							if (logAllConnections) logger.info("Posted file received successfully"
-																+ (isChunked ? " (chunked streaming mode)" : ""));
+						if (!startUpload()) {
+							//Too busy; tell the sender to try again later.
+							discardPostedFile(req);
+							res.setResponseCode(503);
+							res.setHeader("Retry-After", Integer.toString(retryAfter));
+							if (logAllConnections || logRejectedConnections) {
+								logger.info("Upload refused: the service is busy");
+							}
 						}
 						else {
-							res.setResponseCode(res.notfound); //error during transmission
-							if (logAllConnections || logRejectedConnections) {
-								logger.info("Unable to obtain the posted file");
+							boolean ok;
+							try { ok = getPostedFile(req); }
+							finally { endUpload(); }
+							if (ok) {
+								res.write("OK");
+								String transferEncoding = req.getHeader("Transfer-Encoding");
+								boolean isChunked = (transferEncoding != null) && transferEncoding.equals("chunked");
+								if (logAllConnections) logger.info("Posted file received successfully"
+																	+ (isChunked ? " (chunked streaming mode)" : ""));
+							}
+							else {
+								res.setResponseCode(res.notfound); //error during transmission
+								if (logAllConnections || logRejectedConnections) {
+									logger.info("Unable to obtain the posted file");
+								}
 							}
 						}
 					}
@@ -204,6 +287,8 @@ public class HttpImportService extends AbstractImportService {
 		//Read one file from the HttpRequest.
 		//Write the file with a temporary name in the temp
 		//directory and then rename it to the queue directory.
+		//If there is a digest header, the digest is computed
+		//while the file is received.
 		private boolean getPostedFile(HttpRequest req) {
 			String transferEncoding = req.getHeader("Transfer-Encoding");
 			boolean isChunked = (transferEncoding != null) && transferEncoding.equals("chunked");
@@ -217,34 +302,46 @@ public class HttpImportService extends AbstractImportService {
 			}
 			InputStream in = req.getInputStream();
 			FileOutputStream out = null;
+			File tempFile = null;
 			boolean result = true;
 			try {
 				if (isChunked) in = new ChunkedInputStream(in);
+				String digestHeader = req.getHeader("Digest");
+				MessageDigest md = (digestHeader != null) ? MessageDigest.getInstance("MD5") : null;
 				String prefix = "HTTP-";
-				File tempFile = File.createTempFile(prefix, ".md", getTempDirectory());
+				tempFile = File.createTempFile(prefix, ".md", getTempDirectory());
 				out = new FileOutputStream(tempFile);
-				byte[] b = new byte[10000];
+				byte[] b = new byte[bufferSize];
 				int len;
-				int bytesRead = 0;
-				while ((bytesRead < contentLength) && ((len=in.read(b,0,b.length)) > 0)) {
+				long bytesRead = 0;
+				while ((bytesRead < contentLength)
+						&& ((len=in.read(b, 0, (int)Math.min(b.length, contentLength - bytesRead))) > 0)) {
 					out.write(b,0,len);
+					if (md != null) md.update(b,0,len);
 					bytesRead += len;
 				}
 				logger.debug("bytesRead = "+bytesRead);
-				out.flush(); out.close(); out = null;
+				out.close(); out = null;
+
+				//If the file was not chunked, make sure it was all received
+				if (!isChunked && (bytesRead != contentLength)) {
+					logger.warn("Incomplete file received ("+bytesRead+" of "+contentLength+" bytes)");
+					return false;
+				}
 
 				//If there is a digest header, check the file
-				String digestHeader = req.getHeader("Digest");
-				if (digestHeader != null) {
-					FileObject fob = new FileObject(tempFile);
-					if (!digestHeader.equals(fob.getDigest())) {
+				if (md != null) {
+					String digest = new BigInteger(1, md.digest()).toString(16);
+					if (!digestHeader.equals(digest)) {
 						logger.warn("Digest comparison failure detected for "+tempFile);
 						return false;
 					}
 				}
 
-				if (!zip) fileReceived(tempFile);
-				else unpackAndReceive(tempFile);
+				File file = tempFile;
+				tempFile = null;
+				if (!zip) fileReceived(file);
+				else unpackAndReceive(file);
 			}
 			catch (Exception ex) {
 				result = false;
@@ -255,6 +352,8 @@ public class HttpImportService extends AbstractImportService {
 					try { out.close(); }
 					catch (Exception ignore) { logger.warn("Unable to close the output stream."); }
 				}
+				//Delete a file which was not received.
+				if (tempFile != null) tempFile.delete();
 			}
 			return result;
 		}
@@ -20,6 +20,7 @@ import org.rsna.ctp.Configuration;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
+import org.rsna.ctp.pipeline.GroupCommitter;
 import org.rsna.ctp.pipeline.Pipeline;
 import org.rsna.ctp.pipeline.PipelineStage;
 import org.rsna.ctp.pipeline.Processor;
@@ -51,6 +52,7 @@ public class IDMap extends AbstractPipelineStage implements Processor {
 	static final Logger logger = Logger.getLogger(IDMap.class);
 
     RecordManager recman = null;
+    GroupCommitter committer = null;
     public HTree uidIndex = null;
     public HTree ptIDIndex = null;
     public HTree anIndex = null;
@@ -87,15 +89,7 @@ public class IDMap extends AbstractPipelineStage implements Processor {
 	 * Stop the stage.
 	 */
 	public void shutdown() {
-		if (recman != null) {
-			try {
-				recman.commit();
-				recman.close();
-			}
-			catch (Exception ex) {
-				logger.debug("Unable to commit and close the database");
-			}
-		}
+		if (committer != null) committer.close();
 		super.shutdown();
 	}
 
@@ -137,10 +131,9 @@ public class IDMap extends AbstractPipelineStage implements Processor {
 				DicomObject dob = (DicomObject)fileObject;
 				if (dcmScript != null) {
 					DAScript daScript = DAScript.getInstance(dcmScript);
-					Properties cmds = daScript.toProperties();
 					Properties lkup = LookupTable.getProperties(dcmLUT);
 					DICOMAnonymizerContext context =
-								new DICOMAnonymizerContext(cmds, lkup, dcmIntTab, dob.getDataset(), null);
+								new DICOMAnonymizerContext(daScript.getCompiledScript(), lkup, dcmIntTab, dob.getDataset(), null);
 
 					int sopiUIDtag		= 0x00080018;
 					String sopiUID		= dob.getSOPInstanceUID();
@@ -167,14 +160,16 @@ public class IDMap extends AbstractPipelineStage implements Processor {
 					String accNumberscript= context.getScriptFor(accNumbertag);
 					String accNumberrepl= DICOMAnonymizer.makeReplacement(accNumberscript, context, accNumbertag);
 
-					index(sopiUID, sopiUIDrepl, uidIndex, uidInverseIndex);
-					index(siUID, siUIDrepl, uidIndex, uidInverseIndex);
-					index(ptID, ptIDrepl, ptIDIndex, ptIDInverseIndex);
-					index(seriesUID, seriesUIDrepl, uidIndex, uidInverseIndex);
-					index(accNumber, accNumberrepl, anIndex, anInverseIndex);
+					synchronized (committer) {
+						index(sopiUID, sopiUIDrepl, uidIndex, uidInverseIndex);
+						index(siUID, siUIDrepl, uidIndex, uidInverseIndex);
+						index(ptID, ptIDrepl, ptIDIndex, ptIDInverseIndex);
+						index(seriesUID, seriesUIDrepl, uidIndex, uidInverseIndex);
+						index(accNumber, accNumberrepl, anIndex, anInverseIndex);
 
-					//Now commit everything
-					recman.commit();
+						//Now commit everything
+						committer.commit();
+					}
 				}
 			}
 		}
@@ -257,6 +252,7 @@ public class IDMap extends AbstractPipelineStage implements Processor {
 			uidInverseIndex	= getHTree(recman, "uidInverseIndex", "Trial UID", "Original UID");
 			ptIDInverseIndex= getHTree(recman, "ptIDInverseIndex", "Trial PatientID", "Original PatientID");
 			anInverseIndex	= getHTree(recman, "anInverseIndex", "Trial AccessionNumber", "Original AccessionNumber");
+			committer		= new GroupCommitter(recman, name, element);
 		}
 		catch (Exception ex) {
 			recman = null;
@@ -9,7 +9,6 @@ package org.rsna.ctp.stdstages;
 
 import java.io.File;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.regex.Matcher;
@@ -42,7 +41,6 @@ import org.rsna.util.XmlUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
-import org.dcm4che.data.SpecificCharacterSet;
 import org.dcm4che.data.Dataset;
 import org.dcm4che.data.DcmElement;
 import org.dcm4che.dict.VRs;
@@ -60,11 +58,9 @@ public class LookupTableChecker extends AbstractPipelineStage implements Process
 
     Pipeline pipe = null;
     DicomAnonymizer anonymizer = null;
-    File daScriptFile = null;
-    File lutFile = null;
-	ScriptTable scriptTable = null;
-	Properties lutProps = null;
-	SpecificCharacterSet charset = null;
+    volatile File daScriptFile = null;
+    volatile File lutFile = null;
+	volatile LookupPlan plan = null;
 
     static final Pattern processPattern = Pattern.compile("@\\s*process\\s*\\(\\s*\\)");
     static final Pattern lookupPattern = Pattern.compile("@\\s*lookup\\s*\\(([^,)]+),([^,)]+),?([^,)]*),?([^\\)]*)\\)");
@@ -123,11 +119,14 @@ public class LookupTableChecker extends AbstractPipelineStage implements Process
 
 	/**
 	 * Check a DicomObject and record any failing lookups in the database.
+	 * The checks are taken from a LookupPlan which is computed once for
+	 * each version of the anonymizer script. The object is checked without
+	 * holding the lock on the stage, which is only held while the failing
+	 * lookups are recorded.
 	 * @param fileObject the object to process.
 	 * @return the same FileObject if the result is true; otherwise null.
 	 */
 	public FileObject process(FileObject fileObject) {
-		String cmd;
 		lastFileIn = new File(fileObject.getFile().getAbsolutePath());
 		lastTimeIn = System.currentTimeMillis();
 		if (fileObject instanceof DicomObject) {
@@ -135,19 +134,14 @@ public class LookupTableChecker extends AbstractPipelineStage implements Process
 			daScriptFile = anonymizer.getDAScriptFile();
 			lutFile = anonymizer.getLookupTableFile();
 			if (daScriptFile != null) {
-				DAScript daScript = DAScript.getInstance(daScriptFile);
-				scriptTable = new ScriptTable(daScript);
-				lutProps = LookupTable.getProperties(lutFile);
-				synchronized(this) {
-					Dataset ds = dob.getDataset();
-					charset = ds.getSpecificCharacterSet();
-					boolean ok = checkDataset(ds) & handleAlwaysCalls(ds);
-					if (!ok) {
-						try { recman.commit(); }
-						catch (Exception unable) { };
-						if (quarantine != null) quarantine.insert(fileObject);
-						return null;
-					}
+				LookupPlan plan = getPlan(DAScript.getInstance(daScriptFile));
+				Properties lutProps = LookupTable.getProperties(lutFile);
+				Dataset ds = dob.getDataset();
+				Hashtable<String,String> missing = new Hashtable<String,String>();
+				plan.check(ds, lutProps, missing);
+				if (!missing.isEmpty() && recordMissingKeys(missing)) {
+					if (quarantine != null) quarantine.insert(fileObject);
+					return null;
 				}
 			}
 		}
@@ -157,134 +151,38 @@ public class LookupTableChecker extends AbstractPipelineStage implements Process
 		return fileObject;
 	}
 
-	private boolean checkDataset(Dataset ds) {		
-		boolean ok = true;
-		for (Iterator it=ds.iterator(); it.hasNext(); ) {
-			DcmElement el = (DcmElement)it.next();
-			int tag = 0;
-			try { tag = el.tag(); }
-			catch (Exception useZero) { }
-			String command = scriptTable.get(new Integer(tag));
-			if (command != null) {
-				if (el.vr() == VRs.SQ) {
-					Matcher processMatcher = processPattern.matcher(command);
-					if (processMatcher.find()) {
-						int i = 0;
-						Dataset child;
-						while ((child=el.getItem(i++)) != null) {
-							ok &= checkDataset(child);
-						}
-					}
-				}
-				else {
-					//Look for lookup function calls
-					ok &= checkLookupCalls(ds, tag, command);
-					
-					//Look for dateinterval function calls
-					ok &= checkDateIntervalCalls(ds, tag, command);
-				}
-			}
+	//Get the plan for a version of the script, computing it if the script has changed.
+	private synchronized LookupPlan getPlan(DAScript daScript) {
+		if ((plan == null) || (plan.script != daScript)) {
+			plan = new LookupPlan(daScript);
 		}
-		return ok;
+		return plan;
 	}
-	
-	private boolean checkLookupCalls(Dataset ds, int tag, String command) {
-		boolean ok = true;
-		Matcher lookupMatcher = lookupPattern.matcher(command);
-		while (lookupMatcher.find()) {
-
-			int nGroups = lookupMatcher.groupCount();
-			String element = lookupMatcher.group(1).trim();
-			String keyType = lookupMatcher.group(2).trim() + "/";
-			String action = (nGroups > 2) ? lookupMatcher.group(3).trim() : "";
-			String regex = (nGroups > 3) ? lookupMatcher.group(4).trim() : "";
-
-			//logger.info("...nGroups  = "+nGroups);
-			//logger.info("...element: |"+element+"|");
-			//logger.info("...keyType: |"+keyType+"|");
-			//logger.info("...action : |"+action+"|");
-			//logger.info("...regex:   |"+regex+"|");
-
-			int targetTag = ( element.equals("this") ? tag : DicomObject.getElementTag(element) );
-			String targetValue = handleNull( ds.getString(targetTag) );
-
-			if (!targetValue.equals("")) {
-				String key = keyType + targetValue;
-				if (lutProps.getProperty(key) == null) {
-					boolean there = false;
-					if (action.equals("keep")   ||
-						action.equals("skip")   ||
-						action.equals("remove") ||
-						action.equals("empty")  ||
-						action.equals("default")) there = true;
-					else if (action.equals("ignore")) {
-						regex = removeQuotes(regex);
-						there = targetValue.matches(regex);
-					}
-					try {
-						if (!there) {
-							index.insert(key, keyType, true);
-							ok = false;
-						}
-					}
-					catch (Exception ignore) { }
-				}
-			}
-		}
-		return ok;
-	}		
-
-	private boolean checkDateIntervalCalls(Dataset ds, int tag, String command) {
-		boolean ok = true;
-		Matcher intervalMatcher = intervalPattern.matcher(command);
-		while (intervalMatcher.find()) {
-
-			int nGroups = intervalMatcher.groupCount();
-			String dateElement = intervalMatcher.group(1).trim();
-			String keyType = intervalMatcher.group(2).trim() + "/";
-			String keyElement = intervalMatcher.group(3).trim();
-
-			logger.info("...nGroups  = "+nGroups);
-			logger.info("...dateElement: |"+dateElement+"|");
-			logger.info("...keyType:     |"+keyType+"|");
-			logger.info("...keyElement : |"+keyElement+"|");
-
-			int targetTag = ( keyElement.equals("this") ? tag : DicomObject.getElementTag(keyElement) );
-			String targetValue = handleNull( ds.getString(targetTag) );
-
-			if (!targetValue.equals("")) {
-				String key = keyType + targetValue;
-				if (lutProps.getProperty(key) == null) {
-					try {
-						index.insert(key, keyType, true);
-						ok = false;
-					}
-					catch (Exception ignore) { }
-				}
+
+	//Record the keys which are missing from the lookup table in the database.
+	//Return true if any key was recorded.
+	private synchronized boolean recordMissingKeys(Hashtable<String,String> missing) {
+		boolean recorded = false;
+		for (String key : missing.keySet()) {
+			try {
+				index.insert(key, missing.get(key), true);
+				recorded = true;
 			}
+			catch (Exception ignore) { }
 		}
-		return ok;
-	}
-	
-	private boolean handleAlwaysCalls(Dataset ds) {
-		boolean ok = true;
-		for (Integer tagInteger : scriptTable.keySet()) {
-			String command = scriptTable.get(tagInteger);
-			if (command.contains("@always")) {
-				int tag = tagInteger.intValue();
-				ok = ok & checkLookupCalls(ds, tag, command);
-				ok = ok & checkDateIntervalCalls(ds, tag, command);
-			}
+		if (recorded) {
+			try { recman.commit(); }
+			catch (Exception unable) { };
 		}
-		return ok;
+		return recorded;
 	}
 
-	private String handleNull(String s) {
+	private static String handleNull(String s) {
 		if (s != null) return s.trim();
 		return "";
 	}
 
-	private String removeQuotes(String s) {
+	private static String removeQuotes(String s) {
 		if (s == null) return "";
 		s = s.trim();
 		if ((s.length() > 1) && s.startsWith("\"") && s.endsWith("\"")) {
@@ -416,10 +314,19 @@ public class LookupTableChecker extends AbstractPipelineStage implements Process
 		return super.getStatusHTML(childUniqueStatus + stageUniqueStatus);
 	}
 
-	//A Hashtable of the script, keeping only the @process and @lookup scripts
-	class ScriptTable extends Hashtable<Integer,String> {
-		public ScriptTable(DAScript script) {
-			super();
+	//The checks required by a version of the anonymizer script: for each element
+	//whose script contains @process, @lookup, or @dateinterval calls, the lookups
+	//which the anonymizer will make. The plan is immutable once it is built,
+	//so it can be used by several threads at once.
+	static class LookupPlan {
+		final DAScript script;
+		final PlanEntry[] entries;
+		final PlanEntry[] alwaysEntries;
+
+		LookupPlan(DAScript script) {
+			this.script = script;
+			LinkedList<PlanEntry> list = new LinkedList<PlanEntry>();
+			LinkedList<PlanEntry> always = new LinkedList<PlanEntry>();
 			Document scriptXML = script.toXML();
 			Element scriptRoot = scriptXML.getDocumentElement();
 			Node child = scriptRoot.getFirstChild();
@@ -428,19 +335,121 @@ public class LookupTableChecker extends AbstractPipelineStage implements Process
 					Element eChild = (Element)child;
 					if (eChild.getAttribute("en").equals("T")) {
 						int tag = StringUtil.getHexInt(eChild.getAttribute("t"));
-						String command = eChild.getTextContent();
-						Matcher processMatcher = processPattern.matcher(command);
-						Matcher lookupMatcher = lookupPattern.matcher(command);
-						Matcher intervalMatcher = intervalPattern.matcher(command);
-						Integer tagInteger = new Integer(tag);
-						if (processMatcher.find() || lookupMatcher.find() || intervalMatcher.find()) {
-							this.put(tagInteger, command);
-							//logger.info("ScriptTable: "+Integer.toHexString(tagInteger.intValue())+" "+command);
+						PlanEntry entry = new PlanEntry(tag, eChild.getTextContent());
+						if (entry.process || (entry.checks.length > 0)) {
+							list.add(entry);
+							if (entry.always) always.add(entry);
 						}
 					}
 				}
 				child = child.getNextSibling();
 			}
+			entries = list.toArray(new PlanEntry[list.size()]);
+			alwaysEntries = always.toArray(new PlanEntry[always.size()]);
+			logger.debug("LookupPlan: "+entries.length+" elements, "+alwaysEntries.length+" @always");
+		}
+
+		//Check a dataset, putting the missing keys and their KeyTypes in a table.
+		void check(Dataset ds, Properties lutProps, Hashtable<String,String> missing) {
+			checkDataset(ds, lutProps, missing);
+			for (PlanEntry entry : alwaysEntries) {
+				entry.check(ds, lutProps, missing);
+			}
+		}
+
+		//Check the elements of a dataset which have entries in the plan,
+		//recursing into the items of sequences whose scripts call @process.
+		private void checkDataset(Dataset ds, Properties lutProps, Hashtable<String,String> missing) {
+			for (PlanEntry entry : entries) {
+				DcmElement el = ds.get(entry.tag);
+				if (el == null) continue;
+				if (el.vr() == VRs.SQ) {
+					if (entry.process) {
+						int i = 0;
+						Dataset child;
+						while ((child=el.getItem(i++)) != null) {
+							checkDataset(child, lutProps, missing);
+						}
+					}
+				}
+				else entry.check(ds, lutProps, missing);
+			}
+		}
+	}
+
+	//The lookups in the script of one element.
+	static class PlanEntry {
+		final int tag;
+		final boolean process;
+		final boolean always;
+		final Check[] checks;
+
+		PlanEntry(int tag, String command) {
+			this.tag = tag;
+			this.process = processPattern.matcher(command).find();
+			this.always = command.contains("@always");
+			LinkedList<Check> list = new LinkedList<Check>();
+			Matcher lookupMatcher = lookupPattern.matcher(command);
+			while (lookupMatcher.find()) {
+				int nGroups = lookupMatcher.groupCount();
+				String element = lookupMatcher.group(1).trim();
+				String keyType = lookupMatcher.group(2).trim() + "/";
+				String action = (nGroups > 2) ? lookupMatcher.group(3).trim() : "";
+				String regex = (nGroups > 3) ? lookupMatcher.group(4).trim() : "";
+				int targetTag = ( element.equals("this") ? tag : DicomObject.getElementTag(element) );
+				list.add(new Check(targetTag, keyType, action, regex));
+			}
+			Matcher intervalMatcher = intervalPattern.matcher(command);
+			while (intervalMatcher.find()) {
+				String keyType = intervalMatcher.group(2).trim() + "/";
+				String keyElement = intervalMatcher.group(3).trim();
+				int targetTag = ( keyElement.equals("this") ? tag : DicomObject.getElementTag(keyElement) );
+				list.add(new Check(targetTag, keyType, "", ""));
+			}
+			checks = list.toArray(new Check[list.size()]);
+		}
+
+		void check(Dataset ds, Properties lutProps, Hashtable<String,String> missing) {
+			for (Check c : checks) {
+				String targetValue = handleNull( ds.getString(c.targetTag) );
+				if (!targetValue.equals("")) {
+					String key = c.keyType + targetValue;
+					if ((lutProps.getProperty(key) == null) && !c.allowsMissingKey(targetValue)) {
+						missing.put(key, c.keyType);
+					}
+				}
+			}
+		}
+	}
+
+	//One lookup: the element whose value is the key, the KeyType, and
+	//whether the anonymizer tolerates a missing key. A @dateinterval
+	//lookup has no action, so a missing key always fails.
+	static class Check {
+		final int targetTag;
+		final String keyType;
+		final boolean tolerated;
+		final Pattern ignorePattern;
+
+		Check(int targetTag, String keyType, String action, String regex) {
+			this.targetTag = targetTag;
+			this.keyType = keyType;
+			this.tolerated = action.equals("keep")   ||
+							 action.equals("skip")   ||
+							 action.equals("remove") ||
+							 action.equals("empty")  ||
+							 action.equals("default");
+			Pattern p = null;
+			if (action.equals("ignore")) {
+				try { p = Pattern.compile(removeQuotes(regex)); }
+				catch (Exception ex) { logger.warn("Invalid regex in @lookup call: "+regex); }
+			}
+			this.ignorePattern = p;
+		}
+
+		boolean allowsMissingKey(String targetValue) {
+			return tolerated
+					|| ((ignorePattern != null) && ignorePattern.matcher(targetValue).matches());
 		}
 	}
 
@@ -17,6 +17,7 @@ import org.rsna.ctp.Configuration;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
 import org.rsna.ctp.pipeline.AbstractPipelineStage;
+import org.rsna.ctp.pipeline.GroupCommitter;
 import org.rsna.ctp.pipeline.Pipeline;
 import org.rsna.ctp.pipeline.PipelineStage;
 import org.rsna.ctp.pipeline.Processor;
@@ -32,6 +33,7 @@ public class ObjectTracker extends AbstractPipelineStage implements Processor {
 	static final Logger logger = Logger.getLogger(ObjectTracker.class);
 
     RecordManager recman = null;
+    GroupCommitter committer = null;
     public HTree dateIndex = null;
     public HTree patientIndex = null;
     public HTree studyIndex = null;
@@ -56,15 +58,7 @@ public class ObjectTracker extends AbstractPipelineStage implements Processor {
 	 */
 	public synchronized void shutdown() {
 		//Commit and close the database
-		if (recman != null) {
-			try {
-				recman.commit();
-				recman.close();
-			}
-			catch (Exception ex) {
-				logger.warn("Unable to commit and close the database.");
-			}
-		}
+		if (committer != null) committer.close();
 		super.shutdown();
 	}
 
@@ -100,12 +94,13 @@ public class ObjectTracker extends AbstractPipelineStage implements Processor {
 				String seriesInstanceUID = dob.getSeriesInstanceUID();
 				String sopInstanceUID = dob.getSOPInstanceUID();
 
-				index(dateIndex, date, patientID);
-				index(patientIndex, patientID, studyInstanceUID);
-				index(studyIndex, studyInstanceUID, seriesInstanceUID);
-				index(seriesIndex, seriesInstanceUID, sopInstanceUID);
-
-				recman.commit();
+				synchronized (committer) {
+					index(dateIndex, date, patientID);
+					index(patientIndex, patientID, studyInstanceUID);
+					index(studyIndex, studyInstanceUID, seriesInstanceUID);
+					index(seriesIndex, seriesInstanceUID, sopInstanceUID);
+					committer.commit();
+				}
 			}
 		}
 		catch (Exception skip) {
@@ -148,6 +143,7 @@ public class ObjectTracker extends AbstractPipelineStage implements Processor {
 		patientIndex= JdbmUtil.getHTree(recman, "patientIndex");
 		studyIndex	= JdbmUtil.getHTree(recman, "studyIndex");
 		seriesIndex	= JdbmUtil.getHTree(recman, "seriesIndex");
+		committer	= new GroupCommitter(recman, name, element);
 	}
 
 }
\ No newline at end of file
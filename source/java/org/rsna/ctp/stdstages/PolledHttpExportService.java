@@ -9,8 +9,14 @@ package org.rsna.ctp.stdstages;
 
 import java.io.*;
 import java.net.*;
-import javax.net.ServerSocketFactory;
-import javax.net.ssl.SSLServerSocketFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Hashtable;
+import java.util.LinkedList;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.pipeline.AbstractQueuedExportService;
 import org.rsna.util.StringUtil;
@@ -18,15 +24,47 @@ import org.w3c.dom.Element;
 
 /**
  * An ExportService that serves files via the HTTP protocol.
+ * <p>
+ * In the legacy protocol, each connection delivers one file: the service sends
+ * the length of the file in four bytes (little endian), followed by the file, and
+ * the client responds with one byte (1 for success). A length of zero indicates
+ * that no file is available. Because of this, empty files cannot be exported by
+ * either protocol. The export queue does not accept them, and a queued file which
+ * is found to be empty when it is to be sent is removed from the queue and quarantined.
+ * <p>
+ * If the stage is configured with protocol="stream", it also accepts connections
+ * from clients using the stream protocol, which deliver batches of files on a
+ * long-lived connection. The client opens the connection by sending the streamMagic
+ * bytes, the protocol version (one byte), the maximum number of unacknowledged files
+ * (four bytes), and its polling interval in milliseconds (four bytes). The service
+ * responds with the streamMagic bytes and the protocol version. Then, each time the
+ * client sends a byte with the value 1, the service sends the files in its queue back
+ * to back, each preceded by its length in eight bytes (little endian), followed by
+ * a length of zero. The client acknowledges each file with one byte (1 for success),
+ * and the service waits for an acknowledgement only when the window is full.
+ * The client closes the session by sending a zero byte. Files whose transfers are not
+ * acknowledged are requeued. Each stream protocol session is served on its own
+ * thread, so it does not block the other clients. A client that sends nothing when it connects is
+ * served with the legacy protocol, and later connections from its address are
+ * served with the legacy protocol without waiting for it to identify itself.
  */
 public class PolledHttpExportService extends AbstractQueuedExportService {
 
 	static final Logger logger = Logger.getLogger(PolledHttpExportService.class);
 
+	static final byte[] streamMagic = { (byte)'C', (byte)'T', (byte)'P', (byte)0xFF };
+	static final int streamVersion = 2;
+	static final int helloTimeout = 1000;
+	static final long legacyClientTimeout = 10 * 60 * 1000;
+	static final int maxWindow = 256;
+
 	Connector connector = null;
 	int port = 9100;
+	boolean streamProtocol = false;
+	Hashtable<String,Long> legacyClients = new Hashtable<String,Long>();
 	volatile boolean waiting = false;
 	volatile boolean handling = false;
+	LinkedList<StreamSession> sessions = new LinkedList<StreamSession>();
 	WhiteList ipWhiteList = null;
 	BlackList ipBlackList = null;
 
@@ -42,6 +80,9 @@ public class PolledHttpExportService extends AbstractQueuedExportService {
 		try { port = Integer.parseInt(element.getAttribute("port").trim()); }
 		catch (Exception ex) { logger.error(name+": Unparseable port value"); }
 
+		//See whether the stream protocol is enabled
+		streamProtocol = element.getAttribute("protocol").trim().equals("stream");
+
 		//Get the whitelist and blacklist
 		ipWhiteList = new WhiteList(element, "ip");
 		ipBlackList = new BlackList(element, "ip");
@@ -60,6 +101,9 @@ public class PolledHttpExportService extends AbstractQueuedExportService {
 	public synchronized void shutdown() {
 		stop = true;
 		if (connector != null) connector.interrupt();
+		synchronized (sessions) {
+			for (StreamSession session : sessions) session.interrupt();
+		}
 		super.shutdown();
 	}
 
@@ -67,7 +111,9 @@ public class PolledHttpExportService extends AbstractQueuedExportService {
 	 * Determine whether the pipeline stage has shut down.
 	 */
 	public synchronized boolean isDown() {
-		return stop && !handling;
+		synchronized (sessions) {
+			return stop && !handling && sessions.isEmpty();
+		}
 	}
 
 	/**
@@ -80,12 +126,12 @@ public class PolledHttpExportService extends AbstractQueuedExportService {
 	//A server to return files from the queue.
 	class Connector extends Thread {
 
-		ServerSocket serverSocket;
+		ServerSocketChannel serverSocket;
 
 		public Connector() throws Exception {
 			super(name + " Connector");
-			ServerSocketFactory serverSocketFactory = ServerSocketFactory.getDefault();
-			serverSocket = serverSocketFactory.createServerSocket(port);
+			serverSocket = ServerSocketChannel.open();
+			serverSocket.socket().bind(new InetSocketAddress(port));
 		}
 
 		/**
@@ -96,14 +142,14 @@ public class PolledHttpExportService extends AbstractQueuedExportService {
 				try {
 					//Wait for a connection
 					waiting = true;
-					final Socket socket = serverSocket.accept();
+					final SocketChannel channel = serverSocket.accept();
 					handling = true;
 					waiting = false;
 
 					//Serve the connection in this thread
 					//to ensure that files are delivered
 					//synchronously.
-					if (!socket.isClosed()) handle(socket);
+					if (channel.isOpen()) handle(channel);
 					handling = false;
 				}
 				catch (Exception ex) {
@@ -119,8 +165,10 @@ public class PolledHttpExportService extends AbstractQueuedExportService {
 		}
 
 		//Handle one connection.
-		private void handle(Socket socket) {
+		private void handle(SocketChannel channel) {
 			//logger.warn("Entering handle method");
+			Socket socket = channel.socket();
+			boolean closeSocket = true;
 			String connectionIP = getRemoteAddress(socket);
 			boolean accept = ipWhiteList.contains(connectionIP) && !ipBlackList.contains(connectionIP);
 			try {
@@ -136,50 +184,181 @@ public class PolledHttpExportService extends AbstractQueuedExportService {
 				InputStream in = socket.getInputStream();
 				OutputStream out = socket.getOutputStream();
 
-				//Get the file
-				File next = null;
-				;
-				if (accept && ((next=getNextFile()) != null)) {
+				//See if the client is using the stream protocol
+				Hello hello = (streamProtocol && !isLegacyClient(connectionIP)) ? getHello(socket, in) : null;
+				if (hello != null) {
+					//Serve the session on its own thread, which closes the socket.
+					new StreamSession(channel, in, hello, accept).start();
+					closeSocket = false;
+				}
+				else handleLegacy(in, out, accept);
+			}
+			catch (ClosedByInterruptException ex) {
+				logger.debug("Connection closed by shutdown");
+			}
+			catch (Exception ex) {
+				logger.error("Internal error.",ex);
+			}
 
-					logger.debug("Exporting "+next);
+			//Close everything.
+			if (closeSocket) close(socket);
+			//logger.warn("Leaving handle method");
+		}
 
-					//Send the length
-					sendLong(out, next.length());
+		//Deliver one file using the legacy protocol.
+		private void handleLegacy(InputStream in, OutputStream out, boolean accept) throws Exception {
+			//Get the file
+			File next = null;
+			if (accept && ((next=getNextNonEmptyFile()) != null)) {
 
-					//Send the file
-					FileInputStream fis = new FileInputStream(next);
-					int nbytes;
-					byte[] buffer = new byte[2048];
-					while ((nbytes = fis.read(buffer)) != -1) {
-						out.write(buffer,0,nbytes);
-					}
-					fis.close();
+				logger.debug("Exporting "+next);
 
-					//Get the response
-					if (in.read() == 1) {
-						//Success, release the file from the queue
-						release(next);
-					}
-					else {
-						//Something went wrong. Requeue the file and
-						//delete it from its temporary location.
-						getQueueManager().enqueue(next);
-						next.delete();
-					}
+				//Send the length
+				sendLong(out, next.length());
+
+				//Send the file
+				FileInputStream fis = new FileInputStream(next);
+				int nbytes;
+				byte[] buffer = new byte[2048];
+				while ((nbytes = fis.read(buffer)) != -1) {
+					out.write(buffer,0,nbytes);
+				}
+				fis.close();
+
+				//Get the response
+				if (in.read() == 1) {
+					//Success, release the file from the queue
+					release(next);
 				}
 				else {
-					//No file is available, send a zero length;
-					sendLong(out, 0);
+					//Something went wrong. Requeue the file.
+					getQueueManager().enqueueMove(next);
 				}
 			}
-			catch (Exception ex) {
-				logger.error("Internal error.",ex);
+			else {
+				//No file is available, send a zero length;
+				sendLong(out, 0);
 			}
+		}
 
-			//Close everything.
-			try { socket.close(); }
-			catch (Exception ignore) { logger.warn("Unable to close the socket."); }
-			//logger.warn("Leaving handle method");
+		//Get the next file in the queue, setting aside empty files. An empty file
+		//cannot be sent because a length of zero marks the end of a batch.
+		private File getNextNonEmptyFile() {
+			File next;
+			while (((next = getNextFile()) != null) && (next.length() == 0)) {
+				logger.warn(name+": Empty file removed from the export queue: "+next);
+				if ((quarantine == null) || !quarantine.insert(next)) release(next);
+			}
+			return next;
+		}
+
+		//Determine whether a client has recently connected without identifying itself.
+		private boolean isLegacyClient(String ip) {
+			Long time = legacyClients.get(ip);
+			if (time == null) return false;
+			if (System.currentTimeMillis() - time.longValue() < legacyClientTimeout) return true;
+			legacyClients.remove(ip);
+			return false;
+		}
+
+		//Wait briefly for a stream protocol client to identify itself.
+		//Return null if the client sends nothing, as a legacy client does.
+		private Hello getHello(Socket socket, InputStream in) throws Exception {
+			byte[] bytes = new byte[streamMagic.length + 9];
+			int n = 0;
+			socket.setSoTimeout(helloTimeout);
+			try {
+				int k;
+				while ((n < bytes.length) && ((k = in.read(bytes, n, bytes.length - n)) != -1)) n += k;
+			}
+			catch (SocketTimeoutException noHello) { }
+			if (n == 0) {
+				socket.setSoTimeout(0);
+				legacyClients.put(getRemoteAddress(socket), Long.valueOf(System.currentTimeMillis()));
+				return null;
+			}
+			for (int i=0; i<streamMagic.length; i++) {
+				if ((n < bytes.length) || (bytes[i] != streamMagic[i])) {
+					throw new IOException("Unrecognized protocol request from "+getRemoteAddress(socket));
+				}
+			}
+			ByteBuffer bb = ByteBuffer.wrap(bytes, streamMagic.length, 9).order(ByteOrder.LITTLE_ENDIAN);
+			int version = bb.get() & 0xff;
+			int window = bb.getInt();
+			int interval = bb.getInt();
+			return new Hello(Math.min(version, streamVersion),
+							 Math.max(1, Math.min(window, maxWindow)),
+							 Math.max(interval, 0));
+		}
+
+		//Serve batches of files on a long-lived connection using the stream protocol.
+		void handleStream(SocketChannel channel, InputStream in, Hello hello, boolean accept) throws Exception {
+			logger.debug("Stream protocol session opened (window: "+hello.window+")");
+			ByteBuffer reply = ByteBuffer.allocate(streamMagic.length + 1);
+			reply.put(streamMagic).put((byte)hello.version).flip();
+			write(channel, reply);
+
+			//Allow the client to sleep between batches, but not to hold the connector forever.
+			channel.socket().setSoTimeout((int)Math.min(2L * hello.interval + 30000, Integer.MAX_VALUE));
+
+			LinkedList<File> unacked = new LinkedList<File>();
+			try {
+				while (!stop && (in.read() == 1)) {
+					File next;
+					while (accept && !stop && ((next=getNextNonEmptyFile()) != null)) {
+						logger.debug("Exporting "+next);
+						//Track the file before sending it, so it is requeued if the transfer fails.
+						unacked.add(next);
+						sendFile(channel, next);
+						if (unacked.size() >= hello.window) receiveAck(in, unacked);
+					}
+					write(channel, getLongBuffer(0));
+					while (unacked.size() > 0) receiveAck(in, unacked);
+				}
+			}
+			finally {
+				//Requeue the files whose transfers were not acknowledged.
+				for (File file : unacked) getQueueManager().enqueueMove(file);
+			}
+			logger.debug("Stream protocol session closed");
+		}
+
+		//Send the length of a file and then the file itself, using the
+		//FileChannel to transfer the data directly to the socket.
+		private void sendFile(SocketChannel channel, File file) throws Exception {
+			long length = file.length();
+			write(channel, getLongBuffer(length));
+			FileInputStream fis = new FileInputStream(file);
+			FileChannel fc = fis.getChannel();
+			try {
+				long position = 0;
+				while (position < length) {
+					position += fc.transferTo(position, length - position, channel);
+				}
+			}
+			finally { fis.close(); }
+		}
+
+		//Receive the acknowledgement of the oldest unacknowledged file
+		//and release or requeue the file.
+		private void receiveAck(InputStream in, LinkedList<File> unacked) throws Exception {
+			int ack = in.read();
+			if (ack == -1) throw new EOFException("Connection closed with "+unacked.size()+" files unacknowledged");
+			File file = unacked.removeFirst();
+			if (ack == 1) release(file);
+			else getQueueManager().enqueueMove(file);
+		}
+
+		//Get a long as eight bytes, little endian
+		private ByteBuffer getLongBuffer(long x) {
+			ByteBuffer bb = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			bb.putLong(x).flip();
+			return bb;
+		}
+
+		//Write a buffer completely
+		private void write(SocketChannel channel, ByteBuffer bb) throws Exception {
+			while (bb.hasRemaining()) channel.write(bb);
 		}
 
 		//Send a long as four bytes
@@ -190,6 +369,12 @@ public class PolledHttpExportService extends AbstractQueuedExportService {
 			}
 		}
 
+		//Close a socket, logging a failure.
+		void close(Socket socket) {
+			try { socket.close(); }
+			catch (Exception ignore) { logger.warn("Unable to close the socket."); }
+		}
+
 		String getRemoteAddress(Socket socket) {
 			SocketAddress rsa = socket.getRemoteSocketAddress();
 			String rsaString = "unknown";
@@ -200,4 +385,47 @@ public class PolledHttpExportService extends AbstractQueuedExportService {
 		}
 	}
 
+	//A thread to serve one stream protocol session.
+	class StreamSession extends Thread {
+		final SocketChannel channel;
+		final InputStream in;
+		final Hello hello;
+		final boolean accept;
+
+		public StreamSession(SocketChannel channel, InputStream in, Hello hello, boolean accept) {
+			super(name + " Stream Session");
+			this.channel = channel;
+			this.in = in;
+			this.hello = hello;
+			this.accept = accept;
+			synchronized (sessions) { sessions.add(this); }
+		}
+
+		public void run() {
+			try { connector.handleStream(channel, in, hello, accept); }
+			catch (ClosedByInterruptException ex) {
+				logger.debug("Stream protocol session closed by shutdown");
+			}
+			catch (Exception ex) {
+				logger.warn("Stream protocol session failed: "+ex.getMessage());
+			}
+			finally {
+				connector.close(channel.socket());
+				synchronized (sessions) { sessions.remove(this); }
+			}
+		}
+	}
+
+	//The parameters of a stream protocol session.
+	class Hello {
+		final int version;
+		final int window;
+		final long interval;
+		public Hello(int version, int window, long interval) {
+			this.version = version;
+			this.window = window;
+			this.interval = interval;
+		}
+	}
+
 }
\ No newline at end of file
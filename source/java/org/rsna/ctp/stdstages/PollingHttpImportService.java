@@ -9,12 +9,19 @@ package org.rsna.ctp.stdstages;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Enumeration;
 import java.util.zip.*;
 import org.apache.log4j.Logger;
@@ -26,6 +33,11 @@ import org.w3c.dom.Element;
 
 /**
  * An ImportService that polls a PolledHttpExportService to obtain files on request.
+ * By default, the service uses the legacy protocol, making one connection per file.
+ * If the stage is configured with protocol="stream", it keeps one connection
+ * open and receives batches of files on it (see PolledHttpExportService). If
+ * the PolledHttpExportService does not support the stream protocol, the service
+ * reverts to the legacy protocol.
  */
 public class PollingHttpImportService extends AbstractImportService {
 
@@ -35,6 +47,9 @@ public class PollingHttpImportService extends AbstractImportService {
 	boolean zip = false;
 	Poller poller = null;
 	long interval = 10000;
+	boolean streamProtocol = false;
+	int window = 16;
+	static final int streamTimeout = 60000;
 
 	/**
 	 * Construct a PollingHttpImportService.
@@ -51,6 +66,12 @@ public class PollingHttpImportService extends AbstractImportService {
 		//Get the attribute that specifies whether files
 		//are to be unzipped when received.
 		zip = element.getAttribute("zip").trim().equals("yes");
+
+		//Get the protocol and the number of files which can be
+		//received before the server waits for an acknowledgement.
+		streamProtocol = element.getAttribute("protocol").trim().equals("stream");
+		window = StringUtil.getInt(element.getAttribute("window").trim(), window);
+		if (window < 1) window = 1;
 	}
 
 	/**
@@ -82,9 +103,16 @@ public class PollingHttpImportService extends AbstractImportService {
 		public void run() {
 			File file;
 			while (!isInterrupted()) {
-				while ( !isInterrupted() && (file=getFile()) != null ) {
-					if (!zip) fileReceived(file);
-					else unpackAndReceive(file);
+				if (streamProtocol) {
+					//Receive files until the session ends.
+					//If the server only supports the legacy
+					//protocol, poll it without waiting.
+					if (!receiveStream()) continue;
+				}
+				else {
+					while ( !isInterrupted() && (file=getFile()) != null ) {
+						receive(file);
+					}
 				}
 				if (!isInterrupted()) {
 					try { sleep(interval); }
@@ -93,6 +121,118 @@ public class PollingHttpImportService extends AbstractImportService {
 			}
 		}
 
+		//Pass a received file to the pipeline.
+		private void receive(File file) {
+			if (!zip) fileReceived(file);
+			else unpackAndReceive(file);
+		}
+
+		//Open a stream protocol session and receive batches of files
+		//until the thread is interrupted or the connection fails.
+		//Return false if the server does not support the stream protocol.
+		private boolean receiveStream() {
+			Socket socket = null;
+			try {
+				//Establish the connection
+				socket = new Socket(url.getHost(), url.getPort());
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(streamTimeout);
+				InputStream in = new BufferedInputStream(socket.getInputStream());
+				OutputStream out = socket.getOutputStream();
+
+				//Identify the protocol and see if the server understands it
+				ByteBuffer hello = ByteBuffer.allocate(PolledHttpExportService.streamMagic.length + 9);
+				hello.order(ByteOrder.LITTLE_ENDIAN);
+				hello.put(PolledHttpExportService.streamMagic);
+				hello.put((byte)PolledHttpExportService.streamVersion);
+				hello.putInt(window);
+				hello.putInt((int)interval);
+				out.write(hello.array());
+				out.flush();
+				byte[] reply = new byte[PolledHttpExportService.streamMagic.length + 1];
+				readFully(in, reply);
+				for (int i=0; i<PolledHttpExportService.streamMagic.length; i++) {
+					if (reply[i] != PolledHttpExportService.streamMagic[i]) {
+						logger.warn(name+": The server does not support the stream protocol; reverting to the legacy protocol");
+						streamProtocol = false;
+						return false;
+					}
+				}
+				logger.debug(name+": Stream protocol session opened");
+
+				//Request batches of files until interrupted
+				ReadableByteChannel channel = Channels.newChannel(in);
+				while (!isInterrupted()) {
+					out.write(1);
+					out.flush();
+					int count = 0;
+					long length;
+					while ((length = getLong8(in)) > 0) {
+						File file = receiveFile(channel, out, length);
+						receive(file);
+						count++;
+					}
+					if ((count == 0) && !isInterrupted()) {
+						try { sleep(interval); }
+						catch (InterruptedException ex) { interrupt(); }
+					}
+				}
+				out.write(0); //end the session
+				out.flush();
+			}
+			catch (Exception ex) { logger.debug("Exception in stream protocol session", ex); }
+			finally { close(socket); }
+			return true;
+		}
+
+		//Receive one file and acknowledge it. If the file cannot be
+		//stored, the failure is acknowledged and the session is ended.
+		private File receiveFile(ReadableByteChannel channel, OutputStream out, long length) throws Exception {
+			File file = File.createTempFile(prefix,".md", getTempDirectory());
+			FileOutputStream fos = new FileOutputStream(file);
+			try {
+				FileChannel fc = fos.getChannel();
+				long position = 0;
+				while (position < length) {
+					long n = fc.transferFrom(channel, position, length - position);
+					if (n <= 0) throw new EOFException("Connection closed while receiving a file");
+					position += n;
+				}
+				fos.close();
+				out.write(1); //send OK
+				out.flush();
+				return file;
+			}
+			catch (Exception ex) {
+				logger.warn("Exception while receiving a file", ex);
+				try {
+					fos.close();
+					out.write(0); //send not ok
+					out.flush();
+				}
+				catch (Exception ignore) { logger.warn("Unable to send a negative response."); }
+				file.delete();
+				throw ex;
+			}
+		}
+
+		//Read an array completely from an InputStream.
+		private void readFully(InputStream in, byte[] bytes) throws IOException {
+			int n = 0;
+			int k;
+			while (n < bytes.length) {
+				if ((k = in.read(bytes, n, bytes.length - n)) == -1) throw new EOFException();
+				n += k;
+			}
+		}
+
+		//Get a long value transmitted as eight bytes, little endian.
+		private long getLong8(InputStream in) throws IOException {
+			byte[] bytes = new byte[8];
+			readFully(in, bytes);
+			return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getLong();
+		}
+
 		//Get a file from the external system.
 		private File getFile() {
 			File file = null;
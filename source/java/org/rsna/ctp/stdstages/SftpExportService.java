@@ -82,7 +82,7 @@ public class SftpExportService extends AbstractExportService {
 			//Construct the destination path from the object elements	
 			String remotePath = replaceElementNames(structure, fileObject);			
 			if (remotePath.equals("")) remotePath = "bullpen/";
-			if (remotePath.endsWith("/")) remotePath += StringUtil.makeNameFromDate();
+			if (remotePath.endsWith("/")) remotePath += StringUtil.makeNameFromDate() + getThreadSuffix();
 			String ext = fileObject.getStandardExtension();
 			if (!remotePath.endsWith(ext)) remotePath += ext;
 			remotePath = filter(remotePath);
@@ -39,6 +39,15 @@ public class XmlFilter extends AbstractPipelineStage implements Processor, Scrip
 		scriptFile = getFilterScriptFile(element.getAttribute("script"));
 	}
 
+	/**
+	 * Determine whether this stage can be called by several pipeline
+	 * worker threads at the same time.
+	 * @return true
+	 */
+	public boolean isThreadSafe() {
+		return true;
+	}
+
 	/**
 	 * Evaluate the script for the object and quarantine the object if
 	 * the result is false.
@@ -46,19 +55,25 @@ public class XmlFilter extends AbstractPipelineStage implements Processor, Scrip
 	 * @return the same FileObject if the result is true; otherwise null.
 	 */
 	public FileObject process(FileObject fileObject) {
-		lastFileIn = new File(fileObject.getFile().getAbsolutePath());
-		lastTimeIn = System.currentTimeMillis();
+		synchronized (this) {
+			lastFileIn = new File(fileObject.getFile().getAbsolutePath());
+			lastTimeIn = System.currentTimeMillis();
+		}
 
 		if (fileObject instanceof XmlObject) {
 			if (!((XmlObject)fileObject).matches(scriptFile)) {
 				if (quarantine != null) quarantine.insert(fileObject);
-				lastFileOut = null;
-				lastTimeOut = System.currentTimeMillis();
+				synchronized (this) {
+					lastFileOut = null;
+					lastTimeOut = System.currentTimeMillis();
+				}
 				return null;
 			}
 		}
-		lastFileOut = new File(fileObject.getFile().getAbsolutePath());
-		lastTimeOut = System.currentTimeMillis();
+		synchronized (this) {
+			lastFileOut = new File(fileObject.getFile().getAbsolutePath());
+			lastTimeOut = System.currentTimeMillis();
+		}
 		return fileObject;
 	}
 
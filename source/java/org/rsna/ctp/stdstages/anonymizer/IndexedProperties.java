@@ -0,0 +1,667 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.stdstages.anonymizer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * A Properties object for a large CSV lookup table which is not loaded
+ * into memory. Lookups are done through a hash index of the byte offsets
+ * of the lines of the CSV file. The index is stored in a file next to the
+ * CSV file (name.csv.idx) and is memory-mapped. It is rebuilt when the
+ * CSV file changes.
+ * <p>
+ * Changes to the table are kept in memory and appended to a delta log
+ * (name.csv.delta), so an edit does not rewrite the CSV file. The delta log
+ * is replayed when the table is opened, and it is merged into the CSV file
+ * by compact() when it grows large.
+ * <p>
+ * The methods which enumerate the table (keySet, entrySet, etc.) load the
+ * whole table, and are intended only for the lookup table editor.
+ * <p>
+ * Lookups are done under a shared lock, so they can proceed in parallel.
+ * Changes, compaction, and closing the table take the lock exclusively.
+ */
+public class IndexedProperties extends Properties {
+
+	static final long serialVersionUID = 1L;
+	static final Logger logger = Logger.getLogger(IndexedProperties.class);
+
+	static final long magic = 0x4354504C55543031L; //"CTPLUT01"
+	static final int headerLength = 40;
+	static final int slotLength = 12; //int hash, long offset+1
+	static final int maxDeltaEntries = 50000;
+
+	final File file;
+	final File indexFile;
+	final File deltaFile;
+	final String defaultKeyType;
+	long fileLength;
+	long fileLastModified;
+
+	transient RandomAccessFile raf = null;
+	transient FileChannel channel = null;
+	transient MappedByteBuffer index = null;
+	int capacity = 0;
+	int count = 0;
+
+	final Hashtable<String,String> changes = new Hashtable<String,String>();
+	final HashSet<String> removals = new HashSet<String>();
+	int size = 0;
+	int deltaEntries = 0;
+	transient Writer delta = null;
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Open an IndexedProperties object for a CSV file, building the index
+	 * if it does not exist or is out of date, and replaying the delta log.
+	 * @param file the CSV file containing the lookup table.
+	 * @param defaultKeyType the KeyType to be prepended to keys which do
+	 * not have a KeyType, or null if keys are to be used as they are.
+	 * @throws Exception if the index cannot be built or opened.
+	 */
+	public IndexedProperties(File file, String defaultKeyType) throws Exception {
+		super();
+		this.file = file;
+		this.defaultKeyType = defaultKeyType;
+		this.indexFile = new File(file.getParentFile(), file.getName() + ".idx");
+		this.deltaFile = new File(file.getParentFile(), file.getName() + ".delta");
+		lock.writeLock().lock();
+		try { open(); }
+		finally { lock.writeLock().unlock(); }
+	}
+
+	//Open the CSV file, build the index if it is not current,
+	//map it, and load the changes from the delta log.
+	//This method must be called while holding the write lock.
+	private void open() throws Exception {
+		fileLength = file.length();
+		fileLastModified = file.lastModified();
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		if (!indexIsCurrent()) buildIndex();
+		openIndex();
+		size = count;
+		changes.clear();
+		removals.clear();
+		deltaEntries = 0;
+		replayDelta();
+	}
+
+	/**
+	 * Close the CSV file and the delta log, and drop the reference to the
+	 * index. This method is called when the LookupTable which owns this
+	 * object is reloaded. Java provides no way to unmap a file explicitly,
+	 * so the mapping of the index remains until the buffer is garbage
+	 * collected; on Windows, the index file cannot be deleted until then.
+	 */
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			FileUtil.close(delta);
+			delta = null;
+			closeFile();
+		}
+		finally { lock.writeLock().unlock(); }
+	}
+
+	//Close the CSV file and drop the reference to the index.
+	//The mapping remains until the buffer is garbage collected.
+	private void closeFile() {
+		try { if (raf != null) raf.close(); }
+		catch (Exception ex) { logger.warn("Unable to close "+file, ex); }
+		raf = null;
+		channel = null;
+		index = null;
+	}
+
+	/**
+	 * Get the last modified time of the CSV file from which the index was built.
+	 * @return the last modified time of the CSV file when it was opened or compacted.
+	 */
+	public long getFileLastModified() {
+		lock.readLock().lock();
+		try { return fileLastModified; }
+		finally { lock.readLock().unlock(); }
+	}
+
+	/**
+	 * Get the value of a key.
+	 * @param key the key.
+	 * @return the value of the key, or null if the key is not in the table.
+	 */
+	public String getProperty(String key) {
+		if (key == null) return null;
+		lock.readLock().lock();
+		try {
+			String value = changes.get(key);
+			if (value != null) return value;
+			if (removals.contains(key)) return null;
+			return lookup(key);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to read "+file, ex);
+			return null;
+		}
+		finally { lock.readLock().unlock(); }
+	}
+
+	/**
+	 * Get the value of a key.
+	 * @param key the key.
+	 * @param defaultValue the value to return if the key is not in the table.
+	 * @return the value of the key, or the default value if the key is not in the table.
+	 */
+	public String getProperty(String key, String defaultValue) {
+		String value = getProperty(key);
+		return (value != null) ? value : defaultValue;
+	}
+
+	public Object get(Object key) {
+		return (key instanceof String) ? getProperty((String)key) : null;
+	}
+
+	public boolean containsKey(Object key) {
+		return (get(key) != null);
+	}
+
+	/**
+	 * Set the value of a key, recording the change in the delta log.
+	 * @param key the key.
+	 * @param value the value.
+	 * @return the previous value of the key, or null if it had none.
+	 */
+	public Object setProperty(String key, String value) {
+		return put(key, value);
+	}
+
+	public Object put(Object key, Object value) {
+		String k = key.toString();
+		String v = value.toString();
+		lock.writeLock().lock();
+		try {
+			String old = getProperty(k);
+			if (old == null) size++;
+			removals.remove(k);
+			changes.put(k, v);
+			append("+" + escape(k) + "," + escape(v));
+			return old;
+		}
+		finally { lock.writeLock().unlock(); }
+	}
+
+	public void putAll(Map<?,?> map) {
+		lock.writeLock().lock();
+		try {
+			for (Map.Entry<?,?> e : map.entrySet()) {
+				put(e.getKey(), e.getValue());
+			}
+		}
+		finally { lock.writeLock().unlock(); }
+	}
+
+	public Object remove(Object key) {
+		String k = key.toString();
+		lock.writeLock().lock();
+		try {
+			String old = getProperty(k);
+			if (old == null) return null;
+			size--;
+			changes.remove(k);
+			removals.add(k);
+			append("-" + escape(k));
+			return old;
+		}
+		finally { lock.writeLock().unlock(); }
+	}
+
+	public int size() {
+		lock.readLock().lock();
+		try { return size; }
+		finally { lock.readLock().unlock(); }
+	}
+
+	public boolean isEmpty() {
+		return (size() == 0);
+	}
+
+	public Set<String> stringPropertyNames() {
+		return getAll().stringPropertyNames();
+	}
+
+	public Set<Object> keySet() {
+		return Collections.unmodifiableSet(getAll().keySet());
+	}
+
+	public Set<Map.Entry<Object,Object>> entrySet() {
+		return Collections.unmodifiableSet(getAll().entrySet());
+	}
+
+	public Collection<Object> values() {
+		return Collections.unmodifiableCollection(getAll().values());
+	}
+
+	public Enumeration<Object> keys() {
+		return getAll().keys();
+	}
+
+	public Enumeration<Object> elements() {
+		return getAll().elements();
+	}
+
+	public Enumeration<?> propertyNames() {
+		return getAll().propertyNames();
+	}
+
+	/**
+	 * Get the number of changes in the delta log.
+	 * @return the number of changes recorded since the CSV file was last written.
+	 */
+	public int getDeltaEntries() {
+		lock.readLock().lock();
+		try { return deltaEntries; }
+		finally { lock.readLock().unlock(); }
+	}
+
+	/**
+	 * Flush the delta log, and merge it into the CSV file if it has grown large.
+	 */
+	public void save() {
+		lock.writeLock().lock();
+		try {
+			try { if (delta != null) delta.flush(); }
+			catch (Exception ex) { logger.warn("Unable to flush "+deltaFile, ex); }
+			if (deltaEntries > maxDeltaEntries) compact();
+		}
+		finally { lock.writeLock().unlock(); }
+	}
+
+	/**
+	 * Write a new CSV file containing the table with all its changes,
+	 * and start a new delta log. Changes which cannot be represented in
+	 * a CSV file (keys or values containing commas or line breaks) are
+	 * carried over to the new delta log. The CSV file is closed while it
+	 * is replaced, and then this object is reopened on the new file. If the
+	 * file cannot be replaced, it is reopened unchanged with its delta log.
+	 */
+	public void compact() {
+		lock.writeLock().lock();
+		try { compactTable(); }
+		finally { lock.writeLock().unlock(); }
+	}
+
+	//Merge the changes into the CSV file.
+	//This method must be called while holding the write lock.
+	private void compactTable() {
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		File backup = new File(file.getParentFile(), file.getName() + ".bak");
+		LinkedList<String> carried = new LinkedList<String>();
+		BufferedReader br = null;
+		BufferedWriter bw = null;
+		try {
+			br = new BufferedReader( new InputStreamReader( new FileInputStream(file), "UTF-8") );
+			bw = new BufferedWriter( new OutputStreamWriter( new FileOutputStream(temp), "UTF-8") );
+			String line;
+			while ( (line=br.readLine()) != null ) {
+				String[] kv = LookupTable.parseLine(line, defaultKeyType);
+				if ((kv != null) && (changes.containsKey(kv[0]) || removals.contains(kv[0]))) continue;
+				bw.write(line);
+				bw.write("\n");
+			}
+			for (Map.Entry<String,String> e : changes.entrySet()) {
+				if ((e.getKey() + e.getValue()).matches("[^,\\r\\n]*")) {
+					bw.write(e.getKey() + "," + e.getValue() + "\n");
+				}
+				else carried.add("+" + escape(e.getKey()) + "," + escape(e.getValue()));
+			}
+			br.close();
+			br = null;
+			bw.close();
+			bw = null;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to compact "+file, ex);
+			FileUtil.close(br);
+			FileUtil.close(bw);
+			temp.delete();
+			return;
+		}
+
+		//Release the CSV file so it can be replaced, and keep
+		//the original until the new file is in place.
+		FileUtil.close(delta);
+		delta = null;
+		closeFile();
+		backup.delete();
+		boolean replaced = false;
+		if (file.renameTo(backup)) {
+			if (temp.renameTo(file)) replaced = true;
+			else backup.renameTo(file);
+		}
+		if (replaced) {
+			backup.delete();
+			try {
+				bw = new BufferedWriter( new OutputStreamWriter( new FileOutputStream(deltaFile), "UTF-8") );
+				bw.write("#" + file.length() + "," + file.lastModified() + "\n");
+				for (String change : carried) bw.write(change + "\n");
+			}
+			catch (Exception ex) { logger.warn("Unable to write "+deltaFile, ex); }
+			finally { FileUtil.close(bw); }
+			logger.info("Compacted "+file);
+		}
+		else {
+			temp.delete();
+			logger.warn("Unable to replace "+file+"; its changes remain in "+deltaFile);
+		}
+
+		//Reopen the table on the current file and delta log.
+		try { open(); }
+		catch (Exception ex) { logger.error("Unable to reopen "+file+"; changes will not be saved", ex); }
+	}
+
+	//Look up a key in the index.
+	private String lookup(String key) throws IOException {
+		if (index == null) throw new IOException("The table is closed");
+		int hash = key.hashCode();
+		int mask = capacity - 1;
+		for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+			int pos = headerLength + slot * slotLength;
+			long offset = index.getLong(pos + 4);
+			if (offset == 0) return null;
+			if (index.getInt(pos) == hash) {
+				String[] kv = LookupTable.parseLine(readLine(offset - 1), defaultKeyType);
+				if ((kv != null) && kv[0].equals(key)) return kv[1];
+			}
+		}
+	}
+
+	//Spread the bits of a hash code over the slots.
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	//Read the line of the CSV file which starts at an offset.
+	private String readLine(long offset) throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate(256);
+		while (true) {
+			int n = channel.read(bb, offset + bb.position());
+			byte[] b = bb.array();
+			for (int i=0; i<bb.position(); i++) {
+				if (b[i] == '\n') return new String(b, 0, i, "UTF-8");
+			}
+			if (n < 0) return new String(b, 0, bb.position(), "UTF-8");
+			if (!bb.hasRemaining()) {
+				ByteBuffer larger = ByteBuffer.allocate(bb.capacity() * 2);
+				bb.flip();
+				larger.put(bb);
+				bb = larger;
+			}
+		}
+	}
+
+	//Determine whether the index file was built from the current CSV file.
+	private boolean indexIsCurrent() {
+		if (!indexFile.exists()) return false;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream( new FileInputStream(indexFile) );
+			if ((in.readLong() != magic)
+					|| (in.readLong() != fileLength)
+						|| (in.readLong() != fileLastModified)
+							|| (in.readInt() != keyTypeHash())) return false;
+			in.readInt(); //the number of entries
+			int cap = in.readInt();
+			return (indexFile.length() == headerLength + (long)slotLength * cap);
+		}
+		catch (Exception ex) { return false; }
+		finally { FileUtil.close(in); }
+	}
+
+	private int keyTypeHash() {
+		return (defaultKeyType != null) ? defaultKeyType.hashCode() : 0;
+	}
+
+	//Build the index of the CSV file in a temporary file,
+	//and then move it into place.
+	private void buildIndex() throws Exception {
+		long startTime = System.currentTimeMillis();
+
+		//Count the entries to size the index.
+		int n = 0;
+		LineReader lr = new LineReader(file);
+		try {
+			while (lr.next()) {
+				if (LookupTable.parseLine(lr.line, defaultKeyType) != null) n++;
+			}
+		}
+		finally { lr.close(); }
+
+		//Make a power of two with a load factor of no more than 0.75.
+		int cap = 16;
+		while (cap < (n / 3) * 4 + 4) cap <<= 1;
+		long length = headerLength + (long)slotLength * cap;
+		if (length > Integer.MAX_VALUE) throw new Exception("Too many entries to index ("+n+")");
+
+		File temp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+		temp.delete();
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		int entries = 0;
+		try {
+			out.setLength(length);
+			MappedByteBuffer mbb = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			int mask = cap - 1;
+			lr = new LineReader(file);
+			try {
+				while (lr.next()) {
+					String[] kv = LookupTable.parseLine(lr.line, defaultKeyType);
+					if (kv == null) continue;
+					int hash = kv[0].hashCode();
+					for (int slot = mix(hash) & mask; ; slot = (slot + 1) & mask) {
+						int pos = headerLength + slot * slotLength;
+						long offset = mbb.getLong(pos + 4);
+						if (offset == 0) {
+							entries++;
+						}
+						else if (mbb.getInt(pos) == hash) {
+							//A later line with the same key replaces the
+							//earlier one, as when a Properties object is loaded.
+							String[] old = LookupTable.parseLine(readLine(offset - 1), defaultKeyType);
+							if ((old == null) || !old[0].equals(kv[0])) continue;
+						}
+						else continue;
+						mbb.putInt(pos, hash);
+						mbb.putLong(pos + 4, lr.offset + 1);
+						break;
+					}
+				}
+			}
+			finally { lr.close(); }
+			mbb.putLong(0, magic);
+			mbb.putLong(8, fileLength);
+			mbb.putLong(16, fileLastModified);
+			mbb.putInt(24, keyTypeHash());
+			mbb.putInt(28, entries);
+			mbb.putInt(32, cap);
+			mbb.force();
+		}
+		finally { out.close(); }
+
+		indexFile.delete();
+		if (!temp.renameTo(indexFile)) throw new Exception("Unable to rename "+temp);
+		logger.info("Indexed "+entries+" entries of "+file+" in "+(System.currentTimeMillis()-startTime)+"ms");
+	}
+
+	//Map the index file.
+	private void openIndex() throws Exception {
+		RandomAccessFile in = new RandomAccessFile(indexFile, "r");
+		try {
+			index = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+		}
+		finally { in.close(); }
+		count = index.getInt(28);
+		capacity = index.getInt(32);
+	}
+
+	//Load the changes from the delta log, if it was written for the current CSV file.
+	//A delta log for a different version of the CSV file is set aside.
+	private void replayDelta() throws Exception {
+		String header = "#" + fileLength + "," + fileLastModified;
+		if (deltaFile.exists()) {
+			BufferedReader br = new BufferedReader(
+									new InputStreamReader(
+										new FileInputStream(deltaFile), "UTF-8") );
+			try {
+				String line = br.readLine();
+				if ((line != null) && line.equals(header)) {
+					while ( (line=br.readLine()) != null ) {
+						if (line.startsWith("+")) {
+							int k = line.indexOf(",");
+							if (k < 0) continue;
+							String key = unescape(line.substring(1, k));
+							if (getProperty(key) == null) size++;
+							removals.remove(key);
+							changes.put(key, unescape(line.substring(k+1)));
+						}
+						else if (line.startsWith("-")) {
+							String key = unescape(line.substring(1));
+							if (getProperty(key) != null) size--;
+							changes.remove(key);
+							removals.add(key);
+						}
+						deltaEntries++;
+					}
+				}
+				else {
+					File old = new File(deltaFile.getParentFile(), deltaFile.getName() + ".old");
+					old.delete();
+					deltaFile.renameTo(old);
+					logger.warn(file+" has changed; its delta log was moved to "+old);
+				}
+			}
+			finally { FileUtil.close(br); }
+		}
+		boolean exists = deltaFile.exists();
+		delta = new BufferedWriter(
+					new OutputStreamWriter(
+						new FileOutputStream(deltaFile, true), "UTF-8") );
+		if (!exists) {
+			delta.write(header + "\n");
+			delta.flush();
+		}
+	}
+
+	//Append a change to the delta log.
+	private void append(String line) {
+		try {
+			if (delta != null) {
+				delta.write(line + "\n");
+				delta.flush();
+				deltaEntries++;
+			}
+			else logger.warn("Unable to record a change; "+deltaFile+" is not open");
+		}
+		catch (Exception ex) { logger.warn("Unable to write "+deltaFile, ex); }
+	}
+
+	//Escape the characters which cannot appear in a line of the delta log.
+	//Commas are escaped so the first unescaped comma separates the key and the value.
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r").replace(",", "\\c");
+	}
+
+	private static String unescape(String s) {
+		if (s.indexOf('\\') < 0) return s;
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c == '\\') && (i+1 < s.length())) {
+				c = s.charAt(++i);
+				if (c == 'n') c = '\n';
+				else if (c == 'r') c = '\r';
+				else if (c == 'c') c = ',';
+			}
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	//Load the whole table, with its changes, into a Properties object.
+	private Properties getAll() {
+		Properties props = new Properties();
+		lock.readLock().lock();
+		try {
+			try {
+				LineReader lr = new LineReader(file);
+				try {
+					while (lr.next()) {
+						String[] kv = LookupTable.parseLine(lr.line, defaultKeyType);
+						if (kv != null) props.setProperty(kv[0], kv[1]);
+					}
+				}
+				finally { lr.close(); }
+			}
+			catch (Exception ex) { logger.warn("Unable to read "+file, ex); }
+			for (String key : removals) props.remove(key);
+			props.putAll(changes);
+		}
+		finally { lock.readLock().unlock(); }
+		return props;
+	}
+
+	//Read the lines of a UTF-8 file, recording the byte offset of each line.
+	static class LineReader {
+		final InputStream in;
+		String line = null;
+		long offset = 0;
+		long position = 0;
+		byte[] buffer = new byte[256];
+
+		LineReader(File file) throws IOException {
+			in = new BufferedInputStream( new FileInputStream(file), 64 * 1024 );
+		}
+
+		boolean next() throws IOException {
+			offset = position;
+			int n = 0;
+			int b;
+			while ( ((b = in.read()) != -1) && (b != '\n') ) {
+				if (n == buffer.length) {
+					byte[] larger = new byte[buffer.length * 2];
+					System.arraycopy(buffer, 0, larger, 0, n);
+					buffer = larger;
+				}
+				buffer[n++] = (byte)b;
+			}
+			if ((b == -1) && (n == 0)) return false;
+			position += n + ((b == -1) ? 0 : 1);
+			line = new String(buffer, 0, n, "UTF-8");
+			return true;
+		}
+
+		void close() {
+			FileUtil.close(in);
+		}
+	}
+
+}
@@ -12,7 +12,9 @@ import java.util.Properties;
 import jdbm.RecordManager;
 import jdbm.htree.HTree;
 import org.apache.log4j.Logger;
+import org.rsna.ctp.pipeline.GroupCommitter;
 import org.rsna.util.JdbmUtil;
+import org.w3c.dom.Element;
 
 /**
  * A database for tracking assigned integer replacements for text strings.
@@ -24,6 +26,7 @@ public class IntegerTable {
 	File dir;
     RecordManager recman = null;
     HTree index = null;
+    GroupCommitter committer = null;
 
 	/**
 	 * Constructor; create an IntegerTable from a database file.
@@ -31,24 +34,32 @@ public class IntegerTable {
 	 * @throws Exception if the table cannot be loaded.
 	 */
 	public IntegerTable(File dir) throws Exception {
+		this(dir, null);
+	}
+
+	/**
+	 * Constructor; create an IntegerTable from a database file, with the
+	 * commit mode specified by the configuration element of the stage
+	 * that owns the table (see GroupCommitter).
+	 * @param dir the directory in which the database is to be created.
+	 * @param element the configuration element of the stage, or null
+	 * if every new integer is to be committed immediately.
+	 * @throws Exception if the table cannot be loaded.
+	 */
+	public IntegerTable(File dir, Element element) throws Exception {
 		this.dir = dir;
 		File indexFile = new File(dir, "integers");
 		recman = JdbmUtil.getRecordManager( indexFile.getAbsolutePath() );
 		index = JdbmUtil.getHTree( recman, "index" );
 		if (index == null) throw new Exception("Unable to load the integer database.");
+		committer = new GroupCommitter(recman, indexFile.getPath(), element);
 	}
 
 	/**
 	 * Commit and close the IntegerTable.
 	 */
 	public void close() {
-		if (recman != null) {
-			try {
-				recman.commit();
-				recman.close();
-			}
-			catch (Exception ignore) { }
-		}
+		if (committer != null) committer.close();
 	}
 
 	/**
@@ -71,9 +82,11 @@ public class IntegerTable {
 				Integer lastInt = (Integer)index.get(lastIntKey);
 				if (lastInt == null) lastInt = new Integer(0);
 				value = new Integer( lastInt.intValue() + 1 );
-				index.put(lastIntKey, value);
-				index.put(key, value);
-				recman.commit();
+				synchronized (committer) {
+					index.put(lastIntKey, value);
+					index.put(key, value);
+					committer.commit();
+				}
 			}
 			int intValue = value.intValue();
 			String format = (width > 0) ? ("%0"+width+"d") : ("%d");
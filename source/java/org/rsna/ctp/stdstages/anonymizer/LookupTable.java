@@ -21,6 +21,10 @@ import org.rsna.util.FileUtil;
 
 /**
  * An anonymizer lookup table.
+ * <p>
+ * A CSV file larger than indexThreshold is not loaded into memory;
+ * its Properties object is an IndexedProperties, which looks up
+ * keys through an index on disk and records edits in a delta log.
  */
 public class LookupTable {
 
@@ -32,6 +36,7 @@ public class LookupTable {
 	public Properties properties = null;
 	public long lastVersionLoaded = 0;
 	static final String prefix = "..";
+	static final long indexThreshold = 16 * 1024 * 1024;
 	boolean isCSV = false;
 	String defaultKeyType = null;
 
@@ -44,7 +49,13 @@ public class LookupTable {
 		this.file = file;
 		this.defaultKeyType = defaultKeyType;
 		this.isCSV = file.getName().toLowerCase().endsWith(".csv");
-		this.properties = getProps();
+		if (isCSV && (file.length() >= indexThreshold)) {
+			try { this.properties = new IndexedProperties(file, defaultKeyType); }
+			catch (Exception ex) {
+				logger.warn("Unable to index "+file+"; loading it into memory", ex);
+			}
+		}
+		if (this.properties == null) this.properties = getProps();
 		this.lastVersionLoaded = file.lastModified();
 	}
 
@@ -77,8 +88,11 @@ public class LookupTable {
 			else {
 				//We got an instance, but it isn't current;
 				//reload it, reuse the defaultKeyType from
-				//the initial instantiation.
-				lut = new LookupTable(file, lut.defaultKeyType);
+				//the initial instantiation, and release
+				//the files of an indexed table.
+				LookupTable stale = lut;
+				lut = new LookupTable(file, stale.defaultKeyType);
+				if (stale.isIndexed()) ((IndexedProperties)stale.properties).close();
 			}
 		}
 		else {
@@ -103,6 +117,15 @@ public class LookupTable {
 		return ( (lastVersionLoaded >= lastModified) || (age < 1000) );
 	}
 
+	/**
+	 * Determine whether the table is looked up through an index on disk
+	 * rather than loaded into memory.
+	 * @return true if the Properties object of this instance is an IndexedProperties.
+	 */
+	public boolean isIndexed() {
+		return (properties instanceof IndexedProperties);
+	}
+
 	/**
 	 * Get the Properties object for this instance.
 	 * @return the Properties object, or null if it does not exist.
@@ -150,24 +173,10 @@ public class LookupTable {
 				catch (Exception returnEmptyProps) { }
 			}
 			else {
-				String defKeyType = "";
-				boolean hasDefaultKeyType = (defaultKeyType != null);
-				if (hasDefaultKeyType) defKeyType = defaultKeyType.trim() + "/";
 				String line;
 				while ( (line=br.readLine()) != null ) {
-					String[] s = line.split(",");
-					if (s.length == 2) {
-						String key = s[0].trim();
-						if (hasDefaultKeyType && !key.startsWith(prefix) && !key.startsWith(defaultKeyType)) {
-							key = defaultKeyType + key;
-						}
-					}
-					else if (s.length == 1) {
-						String key = s[0].trim();
-						if (key.startsWith(prefix)) {
-							props.setProperty(key, "");
-						}
-					}
+					String[] kv = parseLine(line, defaultKeyType);
+					if (kv != null) props.setProperty(kv[0], kv[1]);
 				}
 			}
 		}
@@ -176,12 +185,49 @@ public class LookupTable {
 		return props;
 	}
 
+	/**
+	 * Parse a line of a CSV lookup table. A line with two fields is an entry;
+	 * if a default KeyType is supplied, it is prepended to a key which does
+	 * not already have it. A line with one field is a preset if it starts
+	 * with the preset prefix. All other lines are ignored.
+	 * @param line the line.
+	 * @param defaultKeyType the KeyType to be prepended to keys, or null.
+	 * @return the key and value, or null if the line is not an entry or a preset.
+	 */
+	static String[] parseLine(String line, String defaultKeyType) {
+		String[] s = line.split(",");
+		if (s.length == 2) {
+			String key = s[0].trim();
+			if (defaultKeyType != null) {
+				String defKeyType = defaultKeyType.trim() + "/";
+				if (!key.startsWith(prefix) && !key.startsWith(defKeyType)) {
+					key = defKeyType + key;
+				}
+			}
+			return new String[] { key, s[1].trim() };
+		}
+		else if (s.length == 1) {
+			String key = s[0].trim();
+			if (key.startsWith(prefix)) return new String[] { key, "" };
+		}
+		return null;
+	}
+
 	/**
 	 * Save the Properties object for this instance,
 	 * saving it in the format of the original file.
+	 * An indexed table has already recorded its changes
+	 * in its delta log, so the file is not rewritten unless
+	 * the table compacts it, in which case the table has
+	 * already reopened itself on the new file.
 	 */
 	public void save() {
-		if (!isCSV) {
+		if (isIndexed()) {
+			IndexedProperties ip = (IndexedProperties)properties;
+			ip.save();
+			lastVersionLoaded = Math.max(lastVersionLoaded, ip.getFileLastModified());
+		}
+		else if (!isCSV) {
 			BufferedWriter bw = null;
 			try {
 				bw = new BufferedWriter(
@@ -200,7 +246,7 @@ public class LookupTable {
 			Arrays.sort(names);
 			for (String name : names) {
 				String value = properties.getProperty(name, "");
-				sb.append( name + "," + value );
+				sb.append( name + "," + value + "\n" );
 			}
 			FileUtil.setText(file, sb.toString());
 		}
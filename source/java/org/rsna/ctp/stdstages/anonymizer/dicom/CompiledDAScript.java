@@ -0,0 +1,330 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.stdstages.anonymizer.dicom;
+
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Properties;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.Dataset;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.PrivateNameIndex;
+
+/**
+ * A DICOM anonymizer script compiled for execution. The global commands
+ * are decoded, the element scripts are indexed by tag, and the replacement
+ * script of each element is parsed into a list of literals and function
+ * calls bound to the anonymizer functions the first time it is used.
+ * Instances are immutable once compiled and can be shared by threads.
+ * The compiled form of a DAScript is obtained from DAScript.getCompiledScript(),
+ * so it is replaced when DAScript.getInstance() reloads a changed script file.
+ */
+public class CompiledDAScript {
+
+	static final Logger logger = Logger.getLogger(CompiledDAScript.class);
+
+	static final int maxCachedResults = 10000;
+
+	final Properties cmds;
+	final boolean rpg; //remove private groups
+	final boolean rue; //remove unscripted elements
+	final boolean rol; //remove overlays
+	final boolean rc;  //remove curves
+	final boolean kspe; //keep safe private elements
+	final int[] keepGroups;
+	final Entry[] entries;
+	final Table table;
+	final FunctionCache functionCache = new FunctionCache(maxCachedResults);
+
+	/**
+	 * Compile a script.
+	 * @param cmds the script, in the form of the Properties
+	 * produced by DAScript.toProperties().
+	 */
+	public CompiledDAScript(Properties cmds) {
+		this.cmds = cmds;
+
+		rpg = (cmds.getProperty("remove.privategroups") != null);
+		rue = (cmds.getProperty("remove.unspecifiedelements") != null);
+		rol = (cmds.getProperty("remove.overlays") != null);
+		rc  = (cmds.getProperty("remove.curves") != null);
+		kspe = (cmds.getProperty("keep.safeprivateelements") != null);
+
+		//Collect the element scripts and the keepGroups in the
+		//order in which the Properties enumerates its keys.
+		LinkedList<Entry> entryList = new LinkedList<Entry>();
+		LinkedList<String> list = new LinkedList<String>();
+		boolean datasetIndependent = true;
+		for (Enumeration it=cmds.keys(); it.hasMoreElements(); ) {
+			String key = (String)it.nextElement();
+
+			if (key.startsWith("set.[")) {
+				int k = findClosingBracket(key, 4);
+				if (k > 0) {
+					Entry entry = new Entry(key.substring(5, k), cmds.getProperty(key), key.substring(k+1).trim());
+					datasetIndependent &= (entry.tag != 0);
+					entryList.add(entry);
+				}
+			}
+			else if (key.startsWith("keep.group")) {
+				list.add(key.substring("keep.group".length()).trim());
+			}
+		}
+		entries = new Entry[entryList.size()];
+		entryList.toArray(entries);
+
+		//Convert the list to an int[]
+		Iterator<String> iter = list.iterator();
+		keepGroups = new int[list.size()];
+		for (int i=0; i<keepGroups.length; i++) {
+			try { keepGroups[i] = Integer.parseInt(iter.next(),16); }
+			catch (Exception ex) { keepGroups[i] = 0; }
+		}
+		Arrays.sort(keepGroups);
+
+		//If every element specification could be decoded without
+		//reference to a dataset, the tag table can be built once.
+		//Otherwise, it must be built for each dataset because
+		//specifications like 0009[blockID]02 depend on the private
+		//creator elements in the dataset.
+		table = datasetIndependent ? new Table(null) : null;
+	}
+
+	/**
+	 * Get the tag table for a dataset.
+	 * @param ds the dataset being anonymized.
+	 * @return the tag table.
+	 */
+	public Table getTable(Dataset ds) {
+		return (table != null) ? table : new Table(ds);
+	}
+
+	/**
+	 * Get the cache of the results of the functions called by this script.
+	 * @return the function cache.
+	 */
+	public FunctionCache getFunctionCache() {
+		return functionCache;
+	}
+
+	/**
+	 * Get the script properties from which this script was compiled.
+	 * @return the script properties.
+	 */
+	public Properties getProperties() {
+		return cmds;
+	}
+
+	private static int findClosingBracket(String s, int start) {
+		int count = 0;
+		for (int i=start; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '[') count++;
+			else if (c == ']') count--;
+			if (count == 0) return i;
+		}
+		return -1;
+	}
+
+	//Remove the enclosing square brackets or parentheses, if present, from an element specification.
+	private static String unwrap(String name) {
+		name = name.trim();
+		int k = name.length() - 1;
+		if (name.startsWith("[") && name.endsWith("]")) name = name.substring(1, k).trim();
+		else if (name.startsWith("(") && name.endsWith(")")) name = name.substring(1, k).trim();
+		return name;
+	}
+
+	/**
+	 * The tag table of a script: the element scripts indexed by tag,
+	 * and the names of the private elements defined in the script.
+	 */
+	public class Table {
+
+		final Hashtable<Integer,String> scripts;
+		final PrivateNameIndex names;
+		final int[] tags;
+		final Entry[] tagEntries;
+		final int[] order;
+
+		/**
+		 * Build the table. The tags of the elements are resolved in the same way
+		 * and in the same order as DICOMAnonymizerContext.getElementTag(String,Dataset).
+		 * @param ds the dataset to use to resolve private element specifications
+		 * containing block owner IDs, or null if no specification requires it.
+		 */
+		Table(Dataset ds) {
+			scripts = new Hashtable<Integer,String>();
+			names = new PrivateNameIndex();
+			Hashtable<Integer,Entry> entryTable = new Hashtable<Integer,Entry>();
+			for (Entry entry : entries) {
+				int tag = entry.tag;
+				if (tag == 0) {
+					String name = unwrap(entry.spec);
+					tag = names.getTag(name);
+					if (tag == 0) tag = DicomObject.getPrivateElementTag(ds, name);
+				}
+				if (tag != 0) {
+					Integer tagInteger = new Integer(tag);
+					scripts.put(tagInteger, entry.script);
+					entryTable.put(tagInteger, entry);
+
+					//If this is a private group element with a name, index the name.
+					if ((tag & 0x10000) != 0) {
+						if (!entry.name.equals("")) names.putTag(entry.name, tag);
+					}
+				}
+			}
+
+			//Make the sorted arrays for lookups by tag
+			tags = new int[entryTable.size()];
+			int i = 0;
+			for (Integer tagInteger : entryTable.keySet()) tags[i++] = tagInteger.intValue();
+			Arrays.sort(tags);
+			tagEntries = new Entry[tags.length];
+			for (i=0; i<tags.length; i++) tagEntries[i] = entryTable.get(new Integer(tags[i]));
+
+			//Preserve the iteration order of the script table
+			//so element insertion happens in the same sequence.
+			order = new int[tags.length];
+			i = 0;
+			for (Integer tagInteger : scripts.keySet()) order[i++] = tagInteger.intValue();
+		}
+
+		/**
+		 * Get the script entry for an element.
+		 * @param tag the element tag.
+		 * @return the entry, or null if the script has no entry for the element.
+		 */
+		public Entry get(int tag) {
+			int k = Arrays.binarySearch(tags, tag);
+			return (k >= 0) ? tagEntries[k] : null;
+		}
+	}
+
+	/**
+	 * One element script.
+	 */
+	public static class Entry {
+
+		final String spec;
+		final String script;
+		final String name;
+		final int tag;
+		volatile Expression expression = null;
+		volatile Expression trimmedExpression = null;
+
+		Entry(String spec, String script, String name) {
+			this.spec = spec;
+			this.script = script;
+			this.name = name;
+			this.tag = DicomObject.getElementTag(unwrap(spec));
+		}
+
+		/**
+		 * Get the text of the script.
+		 * @return the replacement script.
+		 */
+		public String getScript() {
+			return script;
+		}
+
+		/**
+		 * Get the compiled script.
+		 * @return the compiled replacement script.
+		 */
+		Expression getExpression() {
+			if (expression == null) expression = new Expression(script);
+			return expression;
+		}
+
+		/**
+		 * Get the compiled script, with whitespace removed from both ends.
+		 * @return the compiled, trimmed replacement script.
+		 */
+		Expression getTrimmedExpression() {
+			if (trimmedExpression == null) {
+				String trimmed = (script != null) ? script.trim() : null;
+				if ((trimmed == null) || trimmed.equals(script)) trimmedExpression = getExpression();
+				else trimmedExpression = new Expression(trimmed);
+			}
+			return trimmedExpression;
+		}
+	}
+
+	/**
+	 * A replacement script parsed into a sequence of literal strings
+	 * and function calls. The function calls are FnCall instances with
+	 * no context, with their functions bound and their conditional clauses
+	 * compiled. They serve as templates for the calls made when the
+	 * script is executed. The parse follows DICOMAnonymizer.makeReplacement(String,...)
+	 * exactly. If the script cannot be parsed, the parts are null and the script
+	 * is interpreted when it is executed, so any error occurs as it always has.
+	 */
+	static class Expression {
+
+		final String text;
+		final Object[] parts;
+
+		Expression(String text) {
+			this.text = text;
+			parts = parse(text);
+		}
+
+		private static Object[] parse(String cmd) {
+			LinkedList<Object> list = new LinkedList<Object>();
+			if (cmd == null) return list.toArray();
+			try {
+				StringBuffer literal = new StringBuffer();
+				char c;
+				int i = 0;
+				boolean escape = false;
+				while (i < cmd.length()) {
+					c = cmd.charAt(i++);
+					if (escape) {
+						literal.append(c);
+						escape = false;
+					}
+					else if (c == DICOMAnonymizer.escapeChar) escape = true;
+					else if (c == DICOMAnonymizer.functionChar) {
+						FnCall fnCall = new FnCall(cmd.substring(i), null, 0);
+						if (fnCall.length == -1) break;
+						i += fnCall.length;
+						fnCall.function = DICOMAnonymizer.getFunctionCode(fnCall.name);
+						if (fnCall.function == DICOMAnonymizer.UNKNOWN) {
+							literal.append(DICOMAnonymizer.functionChar + fnCall.getCall());
+						}
+						else {
+							if (fnCall.name.equals(FnCall.ifFn)
+									|| fnCall.name.equals(FnCall.selectFn)
+										|| fnCall.name.equals(FnCall.appendFn)) {
+								fnCall.trueExpression = new Expression(fnCall.trueCode);
+								fnCall.falseExpression = new Expression(fnCall.falseCode);
+							}
+							if (literal.length() > 0) {
+								list.add(literal.toString());
+								literal = new StringBuffer();
+							}
+							list.add(fnCall);
+						}
+					}
+					else literal.append(c);
+				}
+				if (literal.length() > 0) list.add(literal.toString());
+				return list.toArray();
+			}
+			catch (RuntimeException ex) {
+				logger.debug("Unable to compile \""+cmd+"\"; it will be interpreted.");
+				return null;
+			}
+		}
+	}
+}
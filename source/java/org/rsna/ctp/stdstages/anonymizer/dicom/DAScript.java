@@ -38,6 +38,7 @@ public class DAScript {
 	public String xmlScript = null;
 	public Document xml = null;
 	public Properties properties = null;
+	public CompiledDAScript compiledScript = null;
 	public long lastVersionLoaded = 0;
 
 	/**
@@ -123,6 +124,17 @@ public class DAScript {
 		return (properties = makeProperties());
 	}
 
+	/**
+	 * Get the script compiled for execution by the anonymizer. The compiled
+	 * script is created once for this instance; when the script file changes,
+	 * getInstance() creates a new instance, which compiles the new script.
+	 * @return the compiled script
+	 */
+	public synchronized CompiledDAScript getCompiledScript() {
+		if (compiledScript == null) compiledScript = new CompiledDAScript(toProperties());
+		return compiledScript;
+	}
+
 	//This method must only be called when the script is XML.
 	private Properties makeProperties() {
 		Properties props = new Properties();
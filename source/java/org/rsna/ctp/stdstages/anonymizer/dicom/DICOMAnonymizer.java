@@ -28,6 +28,7 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
 import java.util.Set;
@@ -54,6 +55,7 @@ import org.dcm4che.dict.VRs;
 
 import org.rsna.ctp.Configuration;
 import org.rsna.ctp.plugin.Plugin;
+import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.PrivateTagIndex;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerFunctions;
 import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
@@ -112,6 +114,83 @@ public class DICOMAnonymizer {
 			IntegerTable intTable,
 			boolean forceIVRLE,
 			boolean renameToSOPIUID) {
+		return anonymize(inFile, outFile, new CompiledDAScript(cmds), lkup, intTable, forceIVRLE, renameToSOPIUID);
+	}
+
+   /**
+     * Anonymizes the input file, writing the result to the output file,
+     * using a script that has already been compiled. This is the method
+     * to use when many files are anonymized with the same script, obtaining
+     * the script from DAScript.getCompiledScript().
+     * @param inFile the file to anonymize.
+     * @param outFile the output file.  It may be same as inFile if you want
+     * to anonymize in place.
+     * @param script the compiled anonymization commands.
+     * @param lkup the properties object containing the local lookup table; null
+     * if local lookup is not to be used.
+     * @param intTable the integer table containing integer remappings for elements.
+     * @param forceIVRLE force the transfer syntax to IVRLE if true; leave
+     * the syntax unmodified if false.
+     * @param renameToSOPIUID rename the output file to [SOPInstanceUID].dcm, where
+     * [SOPInstanceUID] is the value in the anonymized object (in case it is
+     * remapped during anonymization.
+     * @return the static status result
+     */
+    public static AnonymizerStatus anonymize(
+			File inFile,
+			File outFile,
+			CompiledDAScript script,
+			Properties lkup,
+			IntegerTable intTable,
+			boolean forceIVRLE,
+			boolean renameToSOPIUID) {
+		return anonymize(inFile, null, outFile, script, lkup, intTable, forceIVRLE, renameToSOPIUID);
+	}
+
+   /**
+     * Anonymizes a DicomObject, writing the result to the output file.
+     * The dataset of the DicomObject, which has already been parsed,
+     * serves as the original data for reference during the anonymization
+     * process, so the file is parsed only once more, to obtain the dataset
+     * to be modified and to position the input stream at the pixels.
+     * The DicomObject's dataset is not modified.
+     * @param dob the object to anonymize.
+     * @param outFile the output file.  It may be same as the object's file
+     * if you want to anonymize in place.
+     * @param script the compiled anonymization commands.
+     * @param lkup the properties object containing the local lookup table; null
+     * if local lookup is not to be used.
+     * @param intTable the integer table containing integer remappings for elements.
+     * @param forceIVRLE force the transfer syntax to IVRLE if true; leave
+     * the syntax unmodified if false.
+     * @param renameToSOPIUID rename the output file to [SOPInstanceUID].dcm, where
+     * [SOPInstanceUID] is the value in the anonymized object (in case it is
+     * remapped during anonymization.
+     * @return the static status result
+     */
+    public static AnonymizerStatus anonymize(
+			DicomObject dob,
+			File outFile,
+			CompiledDAScript script,
+			Properties lkup,
+			IntegerTable intTable,
+			boolean forceIVRLE,
+			boolean renameToSOPIUID) {
+		return anonymize(dob.getFile(), dob.getDataset(), outFile, script, lkup, intTable, forceIVRLE, renameToSOPIUID);
+	}
+
+	//Anonymize a file. If origds is null, it is obtained by copying the
+	//dataset parsed from the file; otherwise, it must be the dataset of
+	//the file, parsed up to the pixels. The origds is only read.
+    private static AnonymizerStatus anonymize(
+			File inFile,
+			Dataset origds,
+			File outFile,
+			CompiledDAScript script,
+			Properties lkup,
+			IntegerTable intTable,
+			boolean forceIVRLE,
+			boolean renameToSOPIUID) {
 
 		String exceptions = "";
 		BufferedInputStream in = null;
@@ -124,15 +203,6 @@ public class DICOMAnonymizer {
 			//will serve as the original data for reference during
 			//the anonymization process.
 
-			//Get the origds (up to the pixels), and close the input stream.
-			BufferedInputStream origin = new BufferedInputStream(new FileInputStream(inFile));
-			DcmParser origp = pFact.newDcmParser(origin);
-			FileFormat origff = origp.detectFileFormat();
-			Dataset origds = oFact.newDataset();
-			origp.setDcmHandler(origds.getDcmHandler());
-			origp.parseDcmFile(origff, Tags.PixelData);
-			origin.close();
-
 			//Get the dataset (up to the pixels) and leave the input stream open.
 			//This one needs to be left open so we can read the pixels and any
 			//data that comes afterward.
@@ -143,16 +213,22 @@ public class DICOMAnonymizer {
 			Dataset dataset = oFact.newDataset();
 			parser.setDcmHandler(dataset.getDcmHandler());
 			parser.parseDcmFile(fileFormat, Tags.PixelData);
-			
-			//Set a default for the SpecificCharacterSet, if necessary, in both datasets
-			SpecificCharacterSet cs = origds.getSpecificCharacterSet();
+
+			//Set a default for the SpecificCharacterSet, if necessary
+			SpecificCharacterSet cs = dataset.getSpecificCharacterSet();
 			if (cs == null) {
-				origds.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
 				dataset.putCS(Tags.SpecificCharacterSet, "ISO_IR 100");
 			}
 
+			//Get the origds. If the caller didn't supply it, or if it has
+			//no SpecificCharacterSet, copy the dataset rather than parsing
+			//the file again. The caller's dataset is never modified.
+			if ((origds == null) || (origds.getSpecificCharacterSet() == null)) {
+				origds = copy(dataset);
+			}
+
 			//Encapsulate everything in a context
-			DICOMAnonymizerContext context = new DICOMAnonymizerContext(cmds, lkup, intTable, origds, dataset);
+			DICOMAnonymizerContext context = new DICOMAnonymizerContext(script, lkup, intTable, origds, dataset);
 
 			//There are two steps in anonymizing the dataset:
 			// 1. Insert any elements that are required by the script
@@ -254,8 +330,8 @@ public class DICOMAnonymizer {
 				logger.debug("Post-pixels element: "+Tags.toString(tag));
 				int len = parser.getReadLength();
 				boolean isPrivate = ((tag & 0x10000) != 0);
-				String script = context.getScriptFor(tag);
-				if ( (isPrivate && context.rpg) || ((script == null) && context.rue) || ((script != null) && script.startsWith("@remove()") ) ) {
+				String elementScript = context.getScriptFor(tag);
+				if ( (isPrivate && context.rpg) || ((elementScript == null) && context.rue) || ((elementScript != null) && elementScript.startsWith("@remove()") ) ) {
 					//skip this element
 					logger.debug("Skipping element: "+Tags.toString(tag));
 					parser.setStreamPosition(parser.getStreamPosition() + len);
@@ -317,6 +393,38 @@ public class DICOMAnonymizer {
 		return AnonymizerStatus.OK(outFile, exceptions);
     }
 
+	//Make a deep copy of a dataset, including the items of SQ elements.
+	//The FileMetaInfo is shared; it is not modified during anonymization.
+	private static Dataset copy(Dataset ds) {
+		Dataset copy = oFact.newDataset();
+		copyElements(ds, copy);
+		copy.setFileMetaInfo(ds.getFileMetaInfo());
+		return copy;
+	}
+
+	private static void copyElements(Dataset from, Dataset to) {
+		for (Iterator it=from.iterator(); it.hasNext(); ) {
+			DcmElement el = (DcmElement)it.next();
+			int tag = el.tag();
+			int vr = el.vr();
+			if (vr == VRs.SQ) {
+				DcmElement sq = to.putSQ(tag);
+				int n = el.countItems();
+				for (int i=0; i<n; i++) {
+					copyElements(el.getItem(i), sq.addNewItem());
+				}
+			}
+			else if (el.hasDataFragments()) {
+				DcmElement frags = to.putXXsq(tag, vr);
+				int n = el.countItems();
+				for (int i=0; i<n; i++) {
+					frags.addDataFragment(el.getDataFragment(i));
+				}
+			}
+			else to.putXX(tag, vr, el.getByteBuffer());
+		}
+	}
+
 	private static void writeValueTo(
 					DcmParser parser,
 					byte[] buffer,
@@ -375,13 +483,13 @@ public class DICOMAnonymizer {
 	private static void insertElements(DICOMAnonymizerContext context) throws Exception {
 		Dataset ds = context.outDS;
 		int vr = 0;
-		for (Integer intTag : context.scriptTable.keySet()) {
-			int tag = intTag.intValue();
+		for (int tag : context.table.order) {
 			if (!ds.contains(tag)) {
-				String script = context.getScriptFor(tag).trim();
+				CompiledDAScript.Entry entry = context.getEntryFor(tag);
+				String script = entry.script.trim();
 				vr = getVR(tag);
 				if (script.startsWith("@always()") && (vr != VRs.SQ)) {
-					String value = makeReplacement(script, context, tag);
+					String value = makeReplacement(entry.getTrimmedExpression(), context, tag);
 					if (value.equals("@keep()") || value.equals("@remove()")) {
 						//do nothing
 					}
@@ -397,7 +505,7 @@ public class DICOMAnonymizer {
 				else if (script.startsWith("@always()@require()") && (vr == VRs.SQ)) {
 					context.putXX(tag, vr, "");
 				}
-				else if (tag == 0x00120064) updateDeIdentificationMethodCodeSeq(script, context);
+				else if (tag == 0x00120064) updateDeIdentificationMethodCodeSeq(entry.getTrimmedExpression(), context);
 			}
 		}
 	}
@@ -427,7 +535,8 @@ public class DICOMAnonymizer {
 				isSafe = ptIndex.getCode(block, tag).equals("K");
 			}
 
-			String script = context.getScriptFor(tag);
+			CompiledDAScript.Entry entry = context.getEntryFor(tag);
+			String script = (entry != null) ? entry.script : null;
 			boolean hasScript = (script != null);
 
 			boolean keep  = context.containsKeepGroup(group) ||
@@ -469,7 +578,7 @@ public class DICOMAnonymizer {
 					//The element wasn't handled globally
 					//and it isn't DeIdentificationMethodCodeSequence,
 					//process it now.
-					value = makeReplacement(script, context, tag);
+					value = makeReplacement(entry.getExpression(), context, tag);
 					value = (value != null) ? value.trim() : "";
 
 					if (value.contains("@remove()")) { //note, value.equals("") no longer supported
@@ -515,14 +624,15 @@ public class DICOMAnonymizer {
 				}
 				else {
 					//Handle the DeIdentificationMethodCodeSeq element specially
-					updateDeIdentificationMethodCodeSeq(script, context);
+					updateDeIdentificationMethodCodeSeq(entry.getExpression(), context);
 				}
 			}
 		}
 		return exceptions;
 	}
 
-	private static void updateDeIdentificationMethodCodeSeq(String script, DICOMAnonymizerContext context) throws Exception {
+	private static void updateDeIdentificationMethodCodeSeq(CompiledDAScript.Expression expression, DICOMAnonymizerContext context) throws Exception {
+		String script = expression.text;
 		Dataset ds = context.outDS;
 		int tag = Tags.DeIdentificationMethodCodeSeq;
 		if (!script.trim().equals("")) {
@@ -533,7 +643,7 @@ public class DICOMAnonymizer {
 				return;
 			}
 			else {
-				String value = makeReplacement(script, context, tag);
+				String value = makeReplacement(expression, context, tag);
 				value = (value != null) ? value.trim() : "";
 				DcmElement e = null;
 				try {
@@ -628,6 +738,83 @@ public class DICOMAnonymizer {
 	static final String pathelementFn	= "pathelement";
 
 
+	//Function codes, bound to the function names when a script is parsed
+	static final int UNKNOWN		= 0;
+	static final int CONTENTS		= 1;
+	static final int VALUE			= 2;
+	static final int TRUNCATE		= 3;
+	static final int DATE			= 4;
+	static final int DATEINTERVAL	= 5;
+	static final int DECRYPT		= 6;
+	static final int ENCRYPT		= 7;
+	static final int HASH			= 8;
+	static final int HASHNAME		= 9;
+	static final int HASHPTID		= 10;
+	static final int HASHUID		= 11;
+	static final int IF				= 12;
+	static final int SELECT			= 13;
+	static final int APPEND			= 14;
+	static final int ALWAYS			= 15;
+	static final int HASHDATE		= 16;
+	static final int INCREMENTDATE	= 17;
+	static final int LOWERCASE		= 18;
+	static final int UPPERCASE		= 19;
+	static final int MODIFYDATE		= 20;
+	static final int INITIALS		= 21;
+	static final int LOOKUP			= 22;
+	static final int INTEGER		= 23;
+	static final int PARAM			= 24;
+	static final int QUARANTINE		= 25;
+	static final int REQUIRE		= 26;
+	static final int ROUND			= 27;
+	static final int SKIP			= 28;
+	static final int TIME			= 29;
+	static final int PROCESS		= 30;
+	static final int CALL			= 31;
+	static final int PATHELEMENT	= 32;
+
+	static final Hashtable<String,Integer> functionCodes = new Hashtable<String,Integer>();
+	static {
+		functionCodes.put(contentsFn, CONTENTS);
+		functionCodes.put(valueFn, VALUE);
+		functionCodes.put(truncateFn, TRUNCATE);
+		functionCodes.put(dateFn, DATE);
+		functionCodes.put(dateintervalFn, DATEINTERVAL);
+		functionCodes.put(decryptFn, DECRYPT);
+		functionCodes.put(encryptFn, ENCRYPT);
+		functionCodes.put(hashFn, HASH);
+		functionCodes.put(hashnameFn, HASHNAME);
+		functionCodes.put(hashptidFn, HASHPTID);
+		functionCodes.put(hashuidFn, HASHUID);
+		functionCodes.put(ifFn, IF);
+		functionCodes.put(selectFn, SELECT);
+		functionCodes.put(appendFn, APPEND);
+		functionCodes.put(alwaysFn, ALWAYS);
+		functionCodes.put(hashdateFn, HASHDATE);
+		functionCodes.put(incrementdateFn, INCREMENTDATE);
+		functionCodes.put(lowercaseFn, LOWERCASE);
+		functionCodes.put(uppercaseFn, UPPERCASE);
+		functionCodes.put(modifydateFn, MODIFYDATE);
+		functionCodes.put(initialsFn, INITIALS);
+		functionCodes.put(lookupFn, LOOKUP);
+		functionCodes.put(integerFn, INTEGER);
+		functionCodes.put(paramFn, PARAM);
+		functionCodes.put(quarantineFn, QUARANTINE);
+		functionCodes.put(requireFn, REQUIRE);
+		functionCodes.put(roundFn, ROUND);
+		functionCodes.put(skipFn, SKIP);
+		functionCodes.put(timeFn, TIME);
+		functionCodes.put(processFn, PROCESS);
+		functionCodes.put(callFn, CALL);
+		functionCodes.put(pathelementFn, PATHELEMENT);
+	}
+
+	//Get the code of the function bound to a function name.
+	static int getFunctionCode(String name) {
+		Integer code = functionCodes.get(name);
+		return (code != null) ? code.intValue() : UNKNOWN;
+	}
+
 	//Create the replacement for one element.
 	public static String makeReplacement(String cmd, DICOMAnonymizerContext context, int thisTag) throws Exception {
 		logger.debug(Tags.toString(thisTag)+": \""+cmd+"\"");
@@ -647,45 +834,77 @@ public class DICOMAnonymizer {
 				FnCall fnCall = new FnCall(cmd.substring(i), context, thisTag);
 				if (fnCall.length == -1) break;
 				i += fnCall.length;
-				if (fnCall.name.equals(contentsFn)) 		out += contents(fnCall);
-				else if (fnCall.name.equals(valueFn))		out += value(fnCall);
-				else if (fnCall.name.equals(truncateFn))	out += truncate(fnCall);
-				else if (fnCall.name.equals(dateFn)) 		out += date(fnCall);
-				else if (fnCall.name.equals(dateintervalFn)) out += dateinterval(fnCall);
-				else if (fnCall.name.equals(decryptFn))		out += decrypt(fnCall);
-				else if (fnCall.name.equals(encryptFn))		out += encrypt(fnCall);
-				else if (fnCall.name.equals(hashFn))		out += hash(fnCall);
-				else if (fnCall.name.equals(hashnameFn))	out += hashname(fnCall);
-				else if (fnCall.name.equals(hashptidFn))	out += hashptid(fnCall);
-				else if (fnCall.name.equals(hashuidFn)) 	out += hashuid(fnCall);
-				else if (fnCall.name.equals(ifFn))			out += iffn(fnCall);
-				else if (fnCall.name.equals(selectFn))		out += selectfn(fnCall);
-				else if (fnCall.name.equals(appendFn))		out += appendfn(fnCall);
-				else if (fnCall.name.equals(alwaysFn))		out += alwaysfn(fnCall);
-				else if (fnCall.name.equals(hashdateFn))	out += hashdate(fnCall);
-				else if (fnCall.name.equals(incrementdateFn)) out += incrementdate(fnCall);
-				else if (fnCall.name.equals(lowercaseFn))	out += lowercase(fnCall);
-				else if (fnCall.name.equals(uppercaseFn))	out += uppercase(fnCall);
-				else if (fnCall.name.equals(modifydateFn))	out += modifydate(fnCall);
-				else if (fnCall.name.equals(initialsFn)) 	out += initials(fnCall);
-				else if (fnCall.name.equals(lookupFn)) 		out += lookup(fnCall);
-				else if (fnCall.name.equals(integerFn))		out += integer(fnCall);
-				else if (fnCall.name.equals(paramFn)) 		out += param(fnCall);
-				else if (fnCall.name.equals(quarantineFn))	throw new Exception("!quarantine!");
-				else if (fnCall.name.equals(requireFn))		out += require(fnCall);
-				else if (fnCall.name.equals(roundFn))		out += round(fnCall);
-				else if (fnCall.name.equals(skipFn))		throw new Exception("!skip!");
-				else if (fnCall.name.equals(timeFn)) 		out += time(fnCall);
-				else if (fnCall.name.equals(processFn))		out += processfn(fnCall);
-				else if (fnCall.name.equals(callFn))		out += callfn(fnCall);
-				else if (fnCall.name.equals(pathelementFn))	out += pathelement(fnCall);
-				else out += functionChar + fnCall.getCall();
+				fnCall.function = getFunctionCode(fnCall.name);
+				out += execute(fnCall);
 			}
 			else out += c;
 		}
 		return out;
 	}
 
+	//Create the replacement for one element from a compiled script.
+	static String makeReplacement(CompiledDAScript.Expression cmd, DICOMAnonymizerContext context, int thisTag) throws Exception {
+		if (cmd.parts == null) return makeReplacement(cmd.text, context, thisTag);
+		logger.debug(Tags.toString(thisTag)+": \""+cmd.text+"\"");
+		if (cmd.parts.length == 1 && (cmd.parts[0] instanceof String)) return (String)cmd.parts[0];
+		StringBuffer out = new StringBuffer();
+		for (Object part : cmd.parts) {
+			if (part instanceof String) out.append((String)part);
+			else out.append(execute(new FnCall((FnCall)part, context, thisTag)));
+		}
+		return out.toString();
+	}
+
+	//Get the cache of function results for the script of a call.
+	private static FunctionCache cache(FnCall fn) {
+		return fn.context.script.functionCache;
+	}
+
+	//Execute the function bound to a call.
+	private static String execute(FnCall fnCall) throws Exception {
+		switch (fnCall.function) {
+			case CONTENTS:		return contents(fnCall);
+			case VALUE:			return value(fnCall);
+			case TRUNCATE:		return truncate(fnCall);
+			case DATE:			return date(fnCall);
+			case DATEINTERVAL:	return dateinterval(fnCall);
+			case DECRYPT:		return decrypt(fnCall);
+			case ENCRYPT:		return encrypt(fnCall);
+			case HASH:			return hash(fnCall);
+			case HASHNAME:		return hashname(fnCall);
+			case HASHPTID:		return hashptid(fnCall);
+			case HASHUID:		return hashuid(fnCall);
+			case IF:			return iffn(fnCall);
+			case SELECT:		return selectfn(fnCall);
+			case APPEND:		return appendfn(fnCall);
+			case ALWAYS:		return alwaysfn(fnCall);
+			case HASHDATE:		return hashdate(fnCall);
+			case INCREMENTDATE:	return incrementdate(fnCall);
+			case LOWERCASE:		return lowercase(fnCall);
+			case UPPERCASE:		return uppercase(fnCall);
+			case MODIFYDATE:	return modifydate(fnCall);
+			case INITIALS:		return initials(fnCall);
+			case LOOKUP:		return lookup(fnCall);
+			case INTEGER:		return integer(fnCall);
+			case PARAM:			return param(fnCall);
+			case QUARANTINE:	throw new Exception("!quarantine!");
+			case REQUIRE:		return require(fnCall);
+			case ROUND:			return round(fnCall);
+			case SKIP:			throw new Exception("!skip!");
+			case TIME:			return time(fnCall);
+			case PROCESS:		return processfn(fnCall);
+			case CALL:			return callfn(fnCall);
+			case PATHELEMENT:	return pathelement(fnCall);
+			default:			return functionChar + fnCall.getCall();
+		}
+	}
+
+	//Execute a conditional clause of a call, using the compiled clause if available.
+	private static String clause(FnCall fn, CompiledDAScript.Expression expression, String code) throws Exception {
+		if (expression != null) return makeReplacement(expression, fn.context, fn.thisTag);
+		return makeReplacement(code, fn.context, fn.thisTag);
+	}
+
 	//Execute the process function call for an SQ element.
 	//This function loops through the items, calling processElements for each item dataset.
 	//To process an item dataset, it pushes the current context datasets and replaces them
@@ -716,7 +935,7 @@ public class DICOMAnonymizer {
 
 	//Execute the append function call
 	private static String appendfn(FnCall fn) throws Exception {
-		String value = makeReplacement(fn.trueCode, fn.context, fn.thisTag);
+		String value = clause(fn, fn.trueExpression, fn.trueCode);
 		DcmElement el = fn.context.get(fn.thisTag);
 		if (el == null) return value;
 		SpecificCharacterSet cs = fn.context.getSpecificCharacterSet();
@@ -733,17 +952,17 @@ public class DICOMAnonymizer {
 	//Execute the select function call
 	private static String selectfn(FnCall fn) throws Exception {
 		if (fn.context.isRootDataset()) {
-			return makeReplacement(fn.trueCode, fn.context, fn.thisTag);
+			return clause(fn, fn.trueExpression, fn.trueCode);
 		}
-		return makeReplacement(fn.falseCode, fn.context, fn.thisTag);
+		return clause(fn, fn.falseExpression, fn.falseCode);
 	}
 
 	//Execute the if function call
 	private static String iffn(FnCall fn) throws Exception {
 		if (testCondition(fn)) {
-			return makeReplacement(fn.trueCode, fn.context, fn.thisTag);
+			return clause(fn, fn.trueExpression, fn.trueCode);
 		}
-		return makeReplacement(fn.falseCode, fn.context, fn.thisTag);
+		return clause(fn, fn.falseExpression, fn.falseCode);
 	}
 
 	//Determine whether a condition in an if statement is met
@@ -997,7 +1216,13 @@ public class DICOMAnonymizer {
 				try { width = Integer.parseInt(fn.args[2]); }
 				catch (Exception useDefault) { }
 			}
-			return AnonymizerFunctions.integer(fn.context.intTable, keyType, text, width);
+			List<Object> key = FunctionCache.key("integer", fn.context.intTable, keyType, text, width);
+			String result = cache(fn).get(key);
+			if (result == null) {
+				result = AnonymizerFunctions.integer(fn.context.intTable, keyType, text, width);
+				cache(fn).put(key, result);
+			}
+			return result;
 		}
 		catch (Exception ex) {
 			throw new Exception("!quarantine! - "+ex.getMessage());
@@ -1071,7 +1296,13 @@ public class DICOMAnonymizer {
 				try { wordCount = Integer.parseInt(wordCountString); }
 				catch (Exception keepDefault) { wordCount = Integer.MAX_VALUE; }
 			}
-			return AnonymizerFunctions.hashName(string, length, wordCount);
+			List<Object> key = FunctionCache.key("hashname", string, length, wordCount);
+			String result = cache(fn).get(key);
+			if (result == null) {
+				result = AnonymizerFunctions.hashName(string, length, wordCount);
+				cache(fn).put(key, result);
+			}
+			return result;
 		}
 		catch (Exception e) {
 			logger.warn(Tags.toString(fn.thisTag)+": Exception in hashname"+fn.getArgs()+": "+e.getMessage());
@@ -1110,7 +1341,13 @@ public class DICOMAnonymizer {
 			int maxlen = Integer.MAX_VALUE;
 			try { maxlen = Integer.parseInt(maxlenString); }
 			catch (Exception ex) { maxlen = Integer.MAX_VALUE; }
-			return AnonymizerFunctions.hashPtID(siteid, ptid, maxlen);
+			List<Object> key = FunctionCache.key("hashptid", siteid, ptid, maxlen);
+			String result = cache(fn).get(key);
+			if (result == null) {
+				result = AnonymizerFunctions.hashPtID(siteid, ptid, maxlen);
+				cache(fn).put(key, result);
+			}
+			return result;
 		}
 		catch (Exception e) {
 			logger.warn(Tags.toString(fn.thisTag)+": Exception caught in hashptid"+fn.getArgs()+": "+e.getMessage());
@@ -1135,7 +1372,13 @@ public class DICOMAnonymizer {
 					catch (Exception ex) { len = Integer.MAX_VALUE; }
 				}
 			}
-			return AnonymizerFunctions.hash(value,len);
+			List<Object> key = FunctionCache.key("hash", value, len);
+			String result = cache(fn).get(key);
+			if (result == null) {
+				result = AnonymizerFunctions.hash(value,len);
+				cache(fn).put(key, result);
+			}
+			return result;
 		}
 		catch (Exception e) {
 			logger.warn(Tags.toString(fn.thisTag)+": Exception caught in hash"+fn.getArgs()+": "+e.getMessage());
@@ -1161,6 +1404,9 @@ public class DICOMAnonymizer {
 			if (date.length() < 8) return emptyDate;
 			String unhashed = fn.context.contentsNull(fn.args[1], fn.thisTag);
 			if (unhashed == null) return removeDate;
+			List<Object> key = FunctionCache.key("hashdate", date, unhashed);
+			String result = cache(fn).get(key);
+			if (result != null) return result;
 			String incString = AnonymizerFunctions.hash(unhashed, -1);
 			int n = incString.length();
 			if (n > 4) incString = incString.substring( n-4, n);
@@ -1172,7 +1418,9 @@ public class DICOMAnonymizer {
 				if (i > 0) sb.append("\\");
 				sb.append(AnonymizerFunctions.incrementDate(dates[i], inc));
 			}
-			return sb.toString();
+			result = sb.toString();
+			cache(fn).put(key, result);
+			return result;
 		}
 		catch (Exception e) {
 			logger.warn(Tags.toString(fn.thisTag)+": Exception caught in hashdate"+fn.getArgs()+": "+e.getMessage());
@@ -1267,13 +1515,19 @@ public class DICOMAnonymizer {
 			//See if there is a third argument
 			if (fn.args.length > 2) {
 				int argTag = fn.context.getElementTag(fn.args[2]);
-				String argScript = fn.context.getScriptFor(argTag);
-				if (argScript != null) {
-					uid += makeReplacement(argScript, fn.context, argTag);
+				CompiledDAScript.Entry argEntry = fn.context.getEntryFor(argTag);
+				if ((argEntry != null) && (argEntry.script != null)) {
+					uid += makeReplacement(argEntry.getExpression(), fn.context, argTag);
 				}
 			}
 			//Create the replacement UID
-			return AnonymizerFunctions.hashUID(prefix,uid);
+			List<Object> key = FunctionCache.key("hashuid", prefix, uid);
+			String result = cache(fn).get(key);
+			if (result == null) {
+				result = AnonymizerFunctions.hashUID(prefix,uid);
+				cache(fn).put(key, result);
+			}
+			return result;
 		}
 		catch (Exception e) {
 			logger.warn(Tags.toString(fn.thisTag)+": Exception caught in hashuid"+fn.getArgs()+": "+e.getMessage());
@@ -1307,7 +1561,13 @@ public class DICOMAnonymizer {
 		try {
 			String value = fn.context.contents(fn.args[0], fn.thisTag);
 			String key = fn.context.getParam(fn.args[1]);
-			return AnonymizerFunctions.encrypt(value, key);
+			List<Object> cacheKey = FunctionCache.key("encrypt", value, key);
+			String result = cache(fn).get(cacheKey);
+			if (result == null) {
+				result = AnonymizerFunctions.encrypt(value, key);
+				cache(fn).put(cacheKey, result);
+			}
+			return result;
 		}
 		catch (Exception e) {
 			logger.debug(Tags.toString(fn.thisTag)+": Exception caught in encrypt"+fn.getArgs()+": "+e.getMessage());
@@ -8,7 +8,6 @@
 package org.rsna.ctp.stdstages.anonymizer.dicom;
 
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -54,6 +53,8 @@ public class DICOMAnonymizerContext {
 	public int[] keepGroups;
 	public Hashtable<Integer,String> scriptTable;
 
+	CompiledDAScript script;
+	CompiledDAScript.Table table;
 	LinkedList<Dataset> inStack;
 	LinkedList<Dataset> outStack;
 	PrivateGroupsIndex pgIndex;
@@ -73,8 +74,27 @@ public class DICOMAnonymizerContext {
 				IntegerTable intTable,
 				Dataset inDS,
 				Dataset outDS) {
+		this(new CompiledDAScript(cmds), lkup, intTable, inDS, outDS);
+	}
 
-		this.cmds = cmds;
+   /**
+	 * Organize all the data required for anonymization, using
+	 * a script that has already been compiled.
+	 * @param script the compiled script.
+	 * @param lkup the local lookup table.
+     * @param intTable the integer table containing integer remappings for elements.
+	 * @param inDS the input dataset.
+	 * @param outDS the dataset to be modified
+	 */
+    public DICOMAnonymizerContext(
+				CompiledDAScript script,
+				Properties lkup,
+				IntegerTable intTable,
+				Dataset inDS,
+				Dataset outDS) {
+
+		this.script = script;
+		this.cmds = script.cmds;
 		this.lkup = lkup;
 		this.intTable = intTable;
 		this.inDS = inDS;
@@ -84,69 +104,24 @@ public class DICOMAnonymizerContext {
 		//Build the index of private groups
 		pgIndex = new PrivateGroupsIndex(inDS);
 
-		//Make a table to hold locally defined names for private elements
-		privateElementNames = new PrivateNameIndex();
-
-		//Set up the booleans to handle the global cases
-		rpg = (cmds.getProperty("remove.privategroups") != null);
-		rue = (cmds.getProperty("remove.unspecifiedelements") != null);
-		rol = (cmds.getProperty("remove.overlays") != null);
-		rc  = (cmds.getProperty("remove.curves") != null);
-		kspe = (cmds.getProperty("keep.safeprivateelements") != null);
-
-		//Set up the keepGroups and the script Hashtable
-		LinkedList<String> list = new LinkedList<String>();
-		scriptTable = new Hashtable<Integer,String>();
-
-		for (Enumeration it=cmds.keys(); it.hasMoreElements(); ) {
-			String key = (String)it.nextElement();
-
-			if (key.startsWith("set.[")) {
-				int k = findClosingBracket(key, 4);
-				if (k > 0) {
-					int tag = getElementTag(key.substring(5, k));
-					if (tag != 0) {
-						//Store the script
-						Integer tagInteger = new Integer(tag);
-						scriptTable.put( tagInteger, cmds.getProperty(key) );
-
-						//If this is a private group element with a name, index the name.
-						if ((tag & 0x10000) != 0) {
-							String name = key.substring(k+1).trim();
-							if (!name.equals("")) privateElementNames.putTag(name, tag);
-						}
-					}
-				}
-			}
-			else if (key.startsWith("keep.group")) {
-				list.add(key.substring("keep.group".length()).trim());
-			}
-		}
+		//Get the global cases from the script
+		rpg = script.rpg;
+		rue = script.rue;
+		rol = script.rol;
+		rc  = script.rc;
+		kspe = script.kspe;
+		keepGroups = script.keepGroups;
 
-		//Convert the list to an int[]
-		Iterator<String> iter = list.iterator();
-		keepGroups = new int[list.size()];
-		for (int i=0; i<keepGroups.length; i++) {
-			try { keepGroups[i] = Integer.parseInt(iter.next(),16); }
-			catch (Exception ex) { keepGroups[i] = 0; }
-		}
-		Arrays.sort(keepGroups);
+		//Get the table of element scripts and the locally defined
+		//names for private elements
+		table = script.getTable(inDS);
+		scriptTable = table.scripts;
+		privateElementNames = table.names;
 
 		inStack = new LinkedList<Dataset>();
 		outStack = new LinkedList<Dataset>();
 	}
 
-	private int findClosingBracket(String s, int start) {
-		int count = 0;
-		for (int i=start; i<s.length(); i++) {
-			char c = s.charAt(i);
-			if (c == '[') count++;
-			else if (c == ']') count--;
-			if (count == 0) return i;
-		}
-		return -1;
-	}
-
 	/*
 	 * Push the current datasets on their respective stacks
 	 * and set new datasets in place.
@@ -195,7 +170,8 @@ public class DICOMAnonymizerContext {
 	 * no script is available for the specified tag.
 	 */
 	public String getScriptFor(int tag) {
-		return scriptTable.get( new Integer(tag) );
+		CompiledDAScript.Entry entry = table.get(tag);
+		return (entry != null) ? entry.script : null;
 	}
 
 	/*
@@ -205,7 +181,17 @@ public class DICOMAnonymizerContext {
 	 * no script is available for the specified tag.
 	 */
 	public String getScriptFor(Integer tag) {
-		return scriptTable.get(tag);
+		return getScriptFor(tag.intValue());
+	}
+
+	/*
+	 * Get the compiled script entry for a tag
+	 * @param tag the tag value
+	 * @return the script entry, or null if
+	 * no script is available for the specified tag.
+	 */
+	public CompiledDAScript.Entry getEntryFor(int tag) {
+		return table.get(tag);
 	}
 
 	/*
@@ -10,6 +10,7 @@ package org.rsna.ctp.stdstages.anonymizer.dicom;
 import java.awt.Rectangle;
 import java.awt.Shape;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
@@ -23,7 +24,15 @@ import java.io.OutputStream;
 import java.math.BigInteger;
 import java.nio.ByteOrder;
 import java.security.*;
+import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.dcm4che.data.Dataset;
 import org.dcm4che.data.DcmDecodeParam;
@@ -52,6 +61,12 @@ import org.apache.log4j.Logger;
 /**
  * The CTP DICOM pixel anonymizer. The anonymizer blanks regions of
  * DICOM objects for clinical trials.
+ * <p>
+ * Native pixel data is processed in chunks of whole rows, read into a
+ * reusable buffer, with the regions filled and the bytes swapped on the
+ * whole chunk before it is written. The frames of encapsulated objects
+ * are processed in parallel on a shared pool of threads, and they are
+ * written in frame order.
  */
 public class DICOMPixelAnonymizer {
 
@@ -63,6 +78,18 @@ public class DICOMPixelAnonymizer {
 	static final DictionaryFactory dFact = DictionaryFactory.getInstance();
 	static final TagDictionary tagDictionary = dFact.getDefaultTagDictionary();
 
+	static final int chunkSize = 1024 * 1024;
+	static final int outputBufferSize = 64 * 1024;
+	static final int maxFrameThreads = 8;
+	static final int frameThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), maxFrameThreads));
+	static ExecutorService framePool = null;
+
+	static final ThreadLocal<byte[]> chunkBuffer = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[chunkSize];
+		}
+	};
+
    /**
      * Blanks the specified regions of the input file, writing the
      * result to the output file. The input and output files are allowed
@@ -88,7 +115,7 @@ public class DICOMPixelAnonymizer {
 		logger.debug("File length = "+fileLength);
 
 		BufferedInputStream in = null;
-		FileOutputStream out = null;
+		OutputStream out = null;
 		File tempFile = null;
 		byte[] buffer = new byte[4096];
 		try {
@@ -152,7 +179,7 @@ public class DICOMPixelAnonymizer {
 			//Save the dataset to a temporary file, and rename at the end.
 			File tempDir = outFile.getParentFile();
 			tempFile = File.createTempFile("DCMtemp-", ".anon", tempDir);
-            out = new FileOutputStream(tempFile);
+            out = new BufferedOutputStream(new FileOutputStream(tempFile), outputBufferSize);
 
             //Create and write the metainfo for the encoding we are using
 			logger.debug("About to create and write the metadata");
@@ -192,6 +219,7 @@ public class DICOMPixelAnonymizer {
 											  dataset,
 											  out,
 											  encoding,
+											  numberOfFrames,
 											  regions);
 				}
 			}
@@ -273,6 +301,7 @@ public class DICOMPixelAnonymizer {
 							Dataset dataset,
 							OutputStream out,
 							DcmEncodeParam encoding,
+							int numberOfFrames,
 							Regions regions) throws Exception {
 
 		logger.debug("Process Encapsulated Pixels:");
@@ -293,62 +322,107 @@ public class DICOMPixelAnonymizer {
 
 		int frameNumber = 0;
 
-		//Process frames
+		//Process frames. If there is more than one frame, the frames are
+		//processed on the pool, with no more than two frames per thread
+		//waiting to be written.
+		ExecutorService pool = (numberOfFrames > 1) ? getFramePool() : null;
+		int maxPending = 2 * frameThreads;
+		LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
 		ByteArrayOutputStream frame = new ByteArrayOutputStream();
-		parser.parseHeader();
-		while (parser.getReadTag() == Tags.Item) {
-			itemBytes = getItemBytes(parser);
-			frame.write(itemBytes);
-			if (isFrameEnd(itemBytes)) {
-				//Process the frame
-				ByteArrayInputStream inFrame = new ByteArrayInputStream(frame.toByteArray());
-				ByteArrayOutputStream outFrame = new ByteArrayOutputStream();
-				Parse.parse(inFrame, outFrame, shapes);
-
-				//Pad the frame if necessary
-				if ((outFrame.size() & 1) != 0) outFrame.write(0);
-
-				//Write the frame
-				int size = outFrame.size();
-				dataset.writeHeader(out, encoding, Tags.Item, VRs.NONE, size);
-				out.write(outFrame.toByteArray());
-/***************************************************************************************
-//Save the JPEGs as files for testing
-				File jpegs = new File("JPEGs");
-				jpegs.mkdirs();
-				File anon = new File(jpegs, "Frame"+frameNumber+".anon.jpeg");
-				File orig = new File(jpegs, "Frame"+frameNumber+".orig.jpeg");
-				try {
-					FileOutputStream anonfos = new FileOutputStream(anon);
-					anonfos.write(outFrame.toByteArray());
-					anonfos.flush();
-					anonfos.close();
-					FileOutputStream origfos = new FileOutputStream(orig);
-					origfos.write(frame.toByteArray());
-					origfos.flush();
-					origfos.close();
-				}
-				catch (Exception ex) { logger.warn("Unable to write JPEG for frame "+frameNumber); }
-***************************************************************************************/
-				logger.debug("Processed frame " + frameNumber++ + "; item length = " + size);
+		try {
+			parser.parseHeader();
+			while (parser.getReadTag() == Tags.Item) {
+				itemBytes = getItemBytes(parser);
+				frame.write(itemBytes);
+				if (isFrameEnd(itemBytes)) {
+					FrameTask task = new FrameTask(frame.toByteArray(), shapes);
+					if (pool == null) {
+						writeFrame(task.call(), dataset, out, encoding);
+					}
+					else {
+						if (pending.size() >= maxPending) {
+							writeFrame(getFrame(pending.removeFirst()), dataset, out, encoding);
+						}
+						pending.add(pool.submit(task));
+					}
+					logger.debug("Processed frame " + frameNumber++);
 
-				//Reset for the next frame
-				frame.reset();
+					//Reset for the next frame
+					frame.reset();
+				}
+				parser.parseHeader();
 			}
-			parser.parseHeader();
+			while (!pending.isEmpty()) {
+				writeFrame(getFrame(pending.removeFirst()), dataset, out, encoding);
+			}
+		}
+		finally {
+			for (Future<byte[]> f : pending) f.cancel(true);
 		}
 
 		//End the sequence
 		dataset.writeHeader(out, encoding, Tags.SeqDelimitationItem, VRs.NONE, 0);
 	}
 
+	//Write a processed frame as an item.
+	private static void writeFrame(byte[] bytes, Dataset dataset, OutputStream out, DcmEncodeParam encoding) throws Exception {
+		dataset.writeHeader(out, encoding, Tags.Item, VRs.NONE, bytes.length);
+		out.write(bytes);
+	}
+
+	//Wait for a frame to be processed.
+	private static byte[] getFrame(Future<byte[]> future) throws Exception {
+		try { return future.get(); }
+		catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof Exception) throw (Exception)cause;
+			throw ex;
+		}
+	}
+
+	//Get the pool of threads for processing frames.
+	private static synchronized ExecutorService getFramePool() {
+		if (framePool == null) {
+			framePool = Executors.newFixedThreadPool(frameThreads, new ThreadFactory() {
+				int n = 0;
+				public synchronized Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "DICOMPixelAnonymizer frame " + (n++));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return framePool;
+	}
+
+	//A task to blank the regions of one JPEG frame.
+	static class FrameTask implements Callable<byte[]> {
+		final byte[] frame;
+		final Vector<Shape> shapes;
+
+		FrameTask(byte[] frame, Vector<Shape> shapes) {
+			this.frame = frame;
+			this.shapes = new Vector<Shape>(shapes);
+		}
+
+		public byte[] call() throws Exception {
+			ByteArrayInputStream inFrame = new ByteArrayInputStream(frame);
+			ByteArrayOutputStream outFrame = new ByteArrayOutputStream(frame.length + 16);
+			Parse.parse(inFrame, outFrame, shapes);
+
+			//Pad the frame if necessary
+			if ((outFrame.size() & 1) != 0) outFrame.write(0);
+			return outFrame.toByteArray();
+		}
+	}
+
 	private static byte[] getItemBytes(DcmParser parser) throws Exception {
 		if (parser.getReadTag() == Tags.Item) {
 			int len = parser.getReadLength();
 			if (len > 0) {
 				InputStream in = parser.getInputStream();
 				byte[] b = new byte[len];
-				in.read(b, 0, len);
+				readFully(in, b, len);
 				parser.setStreamPosition(parser.getStreamPosition() + len);
 				return b;
 			}
@@ -404,21 +478,33 @@ public class DICOMPixelAnonymizer {
 		//boolean isM2 = pi.equals("MONOCHROME2");
 
 		int bytesPerRow = bytesPerPixel * columns;
-		byte[] buffer = new byte[bytesPerRow];
+
+		//Get the ranges to blank in each row once for all the frames.
+		int[][] rowRanges = new int[rows][];
+		for (int row=0; row<rows; row++) rowRanges[row] = regions.getRangesFor(row);
+
+		//Process the rows in chunks which fit in the buffer.
+		int rowsPerChunk = Math.max(1, Math.min(rows, chunkSize / Math.max(bytesPerRow, 1)));
+		int chunkBytes = rowsPerChunk * bytesPerRow;
+		byte[] buffer = chunkBuffer.get();
+		if (buffer.length < chunkBytes) buffer = new byte[chunkBytes];
 		InputStream in = parser.getInputStream();
 		for (int frame=0; frame<numberOfFrames; frame++) {
 			byte value = (byte)(isYBR ? (test ? 0 : 128) : (test ? 127 : 0));
 			if (isYBR && (planarConfiguration==1) && ((frame%3)==0)) value = 0;
-			for (int row=0; row<rows; row++) {
-				int c = in.read(buffer, 0, buffer.length);
-				if ((c == -1) || (c != bytesPerRow)) throw new EOFException("Unable to read all the pixels");
-				blankRegions(buffer, row, columns, bytesPerPixel, regions, value);
-				if (swap) swapBytes(buffer);
-				out.write(buffer, 0, bytesPerRow);
+			for (int row=0; row<rows; row+=rowsPerChunk) {
+				int n = Math.min(rowsPerChunk, rows - row);
+				int nBytes = n * bytesPerRow;
+				readFully(in, buffer, nBytes);
+				for (int k=0; k<n; k++) {
+					blankRegions(buffer, k * bytesPerRow, bytesPerRow, bytesPerPixel, rowRanges[row + k], value);
+				}
+				if (swap) swapBytes(buffer, nBytes);
+				out.write(buffer, 0, nBytes);
 			}
 		}
 		//Add a byte to the end if we have written an odd number of bytes
-		long nbytes = numberOfFrames * rows * bytesPerRow;
+		long nbytes = (long)numberOfFrames * rows * bytesPerRow;
 		logger.debug("numberOfFrames    = "+numberOfFrames);
 		logger.debug("rows              = "+rows);
 		logger.debug("columns           = "+columns);
@@ -429,17 +515,27 @@ public class DICOMPixelAnonymizer {
 		parser.setStreamPosition(parser.getStreamPosition() + len);
 	}
 
-	private static void blankRegions(byte[] bytes, int row, int columns, int bytesPerPixel, Regions regions, byte value) {
-		int[] ranges = regions.getRangesFor(row);
+	//Blank the ranges of one row in a buffer.
+	private static void blankRegions(byte[] bytes, int offset, int bytesPerRow, int bytesPerPixel, int[] ranges, byte value) {
 		for (int i=0; i<ranges.length; i+=2) {
 			int left = bytesPerPixel * ranges[i];
-			int right = Math.min( bytesPerPixel * (ranges[i+1] + 1), bytes.length );
-			for (int k=left; k<right; k++) bytes[k] = value;
+			int right = Math.min( bytesPerPixel * (ranges[i+1] + 1), bytesPerRow );
+			if (left < right) Arrays.fill(bytes, offset + left, offset + right, value);
+		}
+	}
+
+	//Read a number of bytes into the beginning of a buffer.
+	private static void readFully(InputStream in, byte[] buffer, int len) throws IOException {
+		int n = 0;
+		while (n < len) {
+			int c = in.read(buffer, n, len - n);
+			if (c == -1) throw new EOFException("Unable to read all the pixels");
+			n += c;
 		}
 	}
 
-	private static void swapBytes(byte[] bytes) {
-		int len = bytes.length & 0xffffFFFE;
+	private static void swapBytes(byte[] bytes, int length) {
+		int len = length & 0xffffFFFE;
 		byte b;
 		for (int i=0; i<len; i+=2) {
 			b = bytes[i];
@@ -56,6 +56,33 @@ public class FnCall {
 	LinkedList<String> arglist;
 	int currentIndex = 0;
 
+	/** the code of the anonymizer function bound to the name. */
+	int function = 0;
+
+	/** the compiled trueCode and falseCode, or null if the call was not compiled. */
+	CompiledDAScript.Expression trueExpression = null;
+	CompiledDAScript.Expression falseExpression = null;
+
+	/**
+	 * Constructor; create a call from a compiled call, without parsing.
+	 * @param call the compiled function call.
+	 * @param context the context of the call.
+	 * @param thisTag the tag of the element currently being processed
+	 */
+	public FnCall(FnCall call, DICOMAnonymizerContext context, int thisTag) {
+		this.context = context;
+		this.thisTag = thisTag;
+		this.name = call.name;
+		this.args = call.args;
+		this.trueCode = call.trueCode;
+		this.falseCode = call.falseCode;
+		this.length = call.length;
+		this.fnCall = call.fnCall;
+		this.function = call.function;
+		this.trueExpression = call.trueExpression;
+		this.falseExpression = call.falseExpression;
+	}
+
 	/**
 	 * Constructor; decodes one function call.
 	 * @param call the script of the function call.
@@ -0,0 +1,113 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.stdstages.anonymizer.dicom;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of the results of the anonymizer functions whose
+ * results depend only on their arguments (hashuid, hashptid, hash,
+ * hashname, hashdate, encrypt, and integer). The values which these
+ * functions receive repeat across the objects of a study, so the
+ * digests, ciphers, and IntegerTable lookups are computed once per value.
+ * <p>
+ * The cache belongs to a CompiledDAScript, so it is discarded when the
+ * script changes. The least recently used result is evicted when the
+ * cache is full. The methods are synchronized, so the cache can be
+ * shared by the threads which use the script.
+ */
+public class FunctionCache {
+
+	final int maxSize;
+	final Map<List<Object>,String> results;
+	long hits = 0;
+	long misses = 0;
+
+	/**
+	 * Construct an empty FunctionCache.
+	 * @param maxSize the maximum number of results to keep.
+	 */
+	public FunctionCache(int maxSize) {
+		this.maxSize = maxSize;
+		results = new LinkedHashMap<List<Object>,String>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<List<Object>,String> eldest) {
+				return size() > FunctionCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Make the key for a function call.
+	 * @param function the name of the function.
+	 * @param args the values on which the result depends.
+	 * @return the key.
+	 */
+	public static List<Object> key(String function, Object... args) {
+		Object[] key = new Object[args.length + 1];
+		key[0] = function;
+		System.arraycopy(args, 0, key, 1, args.length);
+		return Arrays.asList(key);
+	}
+
+	/**
+	 * Get the cached result of a function call, counting the hit or miss.
+	 * @param key the key of the function call.
+	 * @return the result, or null if it is not in the cache.
+	 */
+	public synchronized String get(List<Object> key) {
+		String result = results.get(key);
+		if (result != null) hits++;
+		else misses++;
+		return result;
+	}
+
+	/**
+	 * Store the result of a function call.
+	 * @param key the key of the function call.
+	 * @param result the result.
+	 */
+	public synchronized void put(List<Object> key, String result) {
+		if (result != null) results.put(key, result);
+	}
+
+	/**
+	 * Get the number of calls whose results were found in the cache.
+	 * @return the number of hits.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of calls whose results were not found in the cache.
+	 * @return the number of misses.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of results in the cache.
+	 * @return the number of results in the cache.
+	 */
+	public synchronized int size() {
+		return results.size();
+	}
+
+	/**
+	 * Get the maximum number of results in the cache.
+	 * @return the capacity of the cache.
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+}
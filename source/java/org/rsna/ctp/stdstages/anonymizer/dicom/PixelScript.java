@@ -14,17 +14,22 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.objects.FilterScriptIndex;
 import org.rsna.util.FileUtil;
 import org.rsna.util.StringUtil;
 
 /**
- * A DICOMPixelAnonymizer script.
+ * A DICOMPixelAnonymizer script. The signature scripts are compiled
+ * and indexed by the element values they require when the script is
+ * loaded, so only a few signatures are evaluated for each object.
  */
 public class PixelScript {
 
 	static final Logger logger = Logger.getLogger(PixelScript.class);
 
 	List<Signature> signatures = null;
+	Signature[] signatureArray = null;
+	FilterScriptIndex index = null;
 
    /**
 	* Constructor; create a PixelScript from a file.
@@ -32,6 +37,10 @@ public class PixelScript {
 	*/
 	public PixelScript(File file) {
 		signatures = getSignatures(FileUtil.getText(file, FileUtil.utf8));
+		signatureArray = signatures.toArray(new Signature[signatures.size()]);
+		LinkedList<String> scripts = new LinkedList<String>();
+		for (Signature sig : signatures) scripts.add(sig.script);
+		index = new FilterScriptIndex(scripts);
 	}
 
    /**
@@ -42,12 +51,9 @@ public class PixelScript {
 	* @return the regions associated with the DicomObject.
 	*/
 	public Signature getMatchingSignature(DicomObject dicomObject) {
-		if (signatures != null) {
-			for (Signature sig : signatures) {
-				if (dicomObject.matches(sig.script)) {
-					return sig;
-				}
-			}
+		if (index != null) {
+			int i = index.getFirstMatch(dicomObject);
+			if (i >= 0) return signatureArray[i];
 		}
 		return null;
 	}
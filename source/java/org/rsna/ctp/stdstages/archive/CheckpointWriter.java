@@ -0,0 +1,169 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.stdstages.archive;
+
+import java.io.File;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.apache.log4j.Logger;
+
+/**
+ * A class to save the checkpoints of a FileSource in the background.
+ * The user of the FileSource calls changed() each time a file obtained
+ * from the FileSource has been safely disposed of. A checkpoint is saved
+ * when a number of changes have accumulated or when a time interval has
+ * elapsed since the first unsaved change, whichever comes first.
+ * <p>
+ * A timed checkpoint records the position of the FileSource when the
+ * interval expires. A user which must copy a file obtained from the FileSource
+ * before the file can be passed should hold the lock on the FileSource while
+ * it obtains and copies the file, so that a checkpoint cannot pass the file
+ * before it has been copied.
+ * <p>
+ * The checkpoints are written on a thread shared by all CheckpointWriters.
+ */
+public class CheckpointWriter {
+
+	static final Logger logger = Logger.getLogger(CheckpointWriter.class);
+
+	public static final int defaultCount = 100;
+	public static final long defaultInterval = 5000;
+
+	static Timer timer = null;
+
+	final FileSource source;
+	final File file;
+	final int count;
+	final long interval;
+
+	int pending = 0;
+	TimerTask task = null;
+	volatile boolean closed = false;
+	final Object saveLock = new Object();
+	volatile int savedFileCount;
+	volatile long savedTime;
+
+	/**
+	 * Construct a CheckpointWriter.
+	 * @param source the FileSource.
+	 * @param file the checkpoint file.
+	 * @param count the maximum number of unsaved changes.
+	 * @param interval the maximum time in ms that a change can remain unsaved.
+	 */
+	public CheckpointWriter(FileSource source, File file, int count, long interval) {
+		this.source = source;
+		this.file = file;
+		this.count = Math.max(count, 1);
+		this.interval = Math.max(interval, 1);
+		savedFileCount = source.getFileCount();
+		savedTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Record that a file obtained from the FileSource has been disposed of,
+	 * and save a checkpoint in the background if enough changes have accumulated.
+	 */
+	public void changed() {
+		synchronized (this) {
+			if (closed) return;
+			pending++;
+			if (pending < count) {
+				if (task == null) {
+					task = new SaveTask(null);
+					getTimer().schedule(task, interval);
+				}
+				return;
+			}
+			pending = 0;
+			if (task != null) task.cancel();
+			task = null;
+		}
+		//Get the text outside the lock on this object so that
+		//the lock on the FileSource is never requested while it is held.
+		getTimer().schedule(new SaveTask(source.getCheckpoint()), 0);
+	}
+
+	/**
+	 * Save a checkpoint now, on the calling thread, and stop saving checkpoints.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (task != null) task.cancel();
+			task = null;
+			closed = true;
+		}
+		save(source.getCheckpoint());
+	}
+
+	/**
+	 * Get the number of files supplied by the FileSource since the last saved checkpoint.
+	 * @return the number of files which would be supplied again if the program
+	 * terminated abnormally now.
+	 */
+	public int getLag() {
+		return Math.max(source.getFileCount() - savedFileCount, 0);
+	}
+
+	/**
+	 * Get the time since the last checkpoint was saved.
+	 * @return the time in ms since the last checkpoint was saved.
+	 */
+	public long getLagTime() {
+		return System.currentTimeMillis() - savedTime;
+	}
+
+	//Save a checkpoint unless a later one has already been saved.
+	//This method does not lock the CheckpointWriter, so changed()
+	//does not wait while a checkpoint is being written.
+	private void save(String checkpoint) {
+		synchronized (saveLock) {
+			int fileCount = getFileCount(checkpoint);
+			if (fileCount < savedFileCount) return;
+			if (FileSource.save(file, checkpoint)) {
+				savedFileCount = fileCount;
+				savedTime = System.currentTimeMillis();
+			}
+		}
+	}
+
+	//Get the file count recorded in the text of a checkpoint.
+	private static int getFileCount(String checkpoint) {
+		int k = checkpoint.indexOf("fileCount\t");
+		if (k < 0) return 0;
+		k += "fileCount\t".length();
+		try { return Integer.parseInt(checkpoint.substring(k, checkpoint.indexOf("\n", k)).trim()); }
+		catch (Exception ex) { return 0; }
+	}
+
+	//Get the timer shared by all the CheckpointWriters
+	private static synchronized Timer getTimer() {
+		if (timer == null) timer = new Timer("CheckpointWriter", true);
+		return timer;
+	}
+
+	class SaveTask extends TimerTask {
+		final String checkpoint;
+		public SaveTask(String checkpoint) {
+			this.checkpoint = checkpoint;
+		}
+		public void run() {
+			if (checkpoint != null) {
+				if (!closed) save(checkpoint);
+				return;
+			}
+			//This is a timed checkpoint; get the text now.
+			synchronized (CheckpointWriter.this) {
+				if ((task != this) || closed) return;
+				task = null;
+				pending = 0;
+			}
+			save(source.getCheckpoint());
+		}
+	}
+
+}
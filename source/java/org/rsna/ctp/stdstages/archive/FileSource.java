@@ -8,8 +8,11 @@
 package org.rsna.ctp.stdstages.archive;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Stack;
 import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
 import org.rsna.util.SerializerUtil;
 
 /**
@@ -18,17 +21,31 @@ import org.rsna.util.SerializerUtil;
  * losing its place. It is designed to walk through the directory tree
  * once. It does not detect changes in the tree which occur in parts of
  * the tree that have already been passed.
+ * <p>
+ * The checkpoint is a text file recording the path of the directory at each
+ * level of the walk, the position in its listing, and the name of the
+ * last file supplied from it. When a FileSource is loaded from a checkpoint,
+ * only those directories are listed again. The fields of each line are separated
+ * by tabs, and tabs, line breaks, and backslashes in paths and names are escaped.
+ * Checkpoints saved by earlier versions, as serialized objects or as text without
+ * escapes, are still loaded.
  */
 public class FileSource implements Serializable {
 
+	static final long serialVersionUID = -8286146610395332935L; //the value of earlier versions, so their checkpoints can be loaded
 	static final Logger logger = Logger.getLogger(FileSource.class);
 
 	File treeRoot;
 	Frame currentFrame;
 	Stack<Frame> stack;
 	int fileCount;
+	boolean filesOnly;
 
 	public static final String checkpointName = "checkpoint.bin";
+	public static final String compactCheckpointName = "checkpoint.txt";
+
+	static final String header = "FileSource 2";
+	static final String unescapedHeader = "FileSource 1";
 
 	/**
 	 * Protected class constructor to ensure that the class is instantiated
@@ -37,7 +54,18 @@ public class FileSource implements Serializable {
 	 * @param treeRoot the root of the tree to be walked.
 	 */
 	protected FileSource(File treeRoot) {
+		this(treeRoot, false);
+	}
+
+	/**
+	 * Protected class constructor for a FileSource which can be
+	 * limited to the files in the root directory of the tree.
+	 * @param treeRoot the root of the tree to be walked.
+	 * @param filesOnly true if the subdirectories of the root are not to be walked.
+	 */
+	protected FileSource(File treeRoot, boolean filesOnly) {
 		this.treeRoot = treeRoot;
+		this.filesOnly = filesOnly;
 		stack = new Stack<Frame>();
 		currentFrame = new Frame(treeRoot);
 		fileCount = 0;
@@ -53,11 +81,50 @@ public class FileSource implements Serializable {
 	 * checkpoint exists
 	 */
 	public static synchronized FileSource getInstance(File treeRoot, File checkpointDir) {
-		Object fileSource = null;
+		FileSource fileSource = null;
 		if (checkpointDir != null) {
-			fileSource = SerializerUtil.deserialize( new File(checkpointDir, checkpointName) );
+			fileSource = load(new File(checkpointDir, compactCheckpointName),
+							  new File(checkpointDir, checkpointName));
+		}
+		return (fileSource != null) ? fileSource : new FileSource(treeRoot);
+	}
+
+	/**
+	 * Get an instance of the FileSource from a checkpoint file (if available),
+	 * or instantiate a new instance if the checkpoint file does not exist.
+	 * If the checkpoint file does not exist but a serialized checkpoint
+	 * with the same name and the extension ".bin" does, it is loaded instead.
+	 * @param treeRoot the root of the tree to be walked.
+	 * @param checkpoint the checkpoint file.
+	 * @param filesOnly true if the subdirectories of the root are not to be walked.
+	 * @return the instance saved in the checkpoint, or a new one if no
+	 * checkpoint exists
+	 */
+	public static synchronized FileSource getInstance(File treeRoot, File checkpoint, boolean filesOnly) {
+		String name = checkpoint.getName();
+		int k = name.lastIndexOf(".");
+		File legacy = new File(checkpoint.getParentFile(), ((k >= 0) ? name.substring(0, k) : name) + ".bin");
+		FileSource fileSource = load(checkpoint, legacy);
+		return (fileSource != null) ? fileSource : new FileSource(treeRoot, filesOnly);
+	}
+
+	//Load a FileSource from a compact checkpoint, or from a serialized one
+	//if the compact checkpoint does not exist. A serialized checkpoint is
+	//converted to a compact checkpoint and deleted.
+	private static FileSource load(File checkpoint, File legacy) {
+		if (checkpoint.exists()) {
+			try { return fromCheckpoint(FileUtil.getText(checkpoint)); }
+			catch (Exception ex) { logger.warn("Unable to load the checkpoint "+checkpoint, ex); }
 		}
-		return (fileSource != null) ? (FileSource)fileSource : new FileSource(treeRoot);
+		if (!checkpoint.equals(legacy) && legacy.exists()) {
+			Object fileSource = SerializerUtil.deserialize(legacy);
+			if (fileSource != null) {
+				FileSource fs = (FileSource)fileSource;
+				if (save(checkpoint, fs.getCheckpoint())) legacy.delete();
+				return fs;
+			}
+		}
+		return null;
 	}
 
 	/**
@@ -66,7 +133,7 @@ public class FileSource implements Serializable {
 	 * FileSource is finished, and no more files will be supplied.
 	 * @return true if the FileSource is done, false otherwise.
 	 */
-	public boolean isDone() {
+	public synchronized boolean isDone() {
 		return (currentFrame == null);
 	}
 
@@ -77,7 +144,7 @@ public class FileSource implements Serializable {
 	 * @return the number of files supplied by this FileSource since it was
 	 * originally instantiated.
 	 */
-	public int getFileCount() {
+	public synchronized int getFileCount() {
 		return fileCount;
 	}
 
@@ -86,7 +153,7 @@ public class FileSource implements Serializable {
 	 * @return the next file available, or null if no file is available,
 	 * indicating the end of the arboreal perambulation.
 	 */
-	public File getNextFile() {
+	public synchronized File getNextFile() {
 		while (currentFrame != null) {
 			File file = currentFrame.getNextFile();
 			if (file == null) {
@@ -95,6 +162,7 @@ public class FileSource implements Serializable {
 			}
 			else if (!file.isHidden()) {
 				if (file.isDirectory()) {
+					if (filesOnly) continue;
 					stack.push(currentFrame);
 					currentFrame = new Frame(file);
 				}
@@ -111,7 +179,124 @@ public class FileSource implements Serializable {
 	 * Get the directory of the current frame.
 	 * @return the current directory.
 	 */
-	public File getCurrentDirectory() {
+	public synchronized File getCurrentDirectory() {
 		return currentFrame.getCurrentDirectory();
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Get the text of a checkpoint of the current position of the walk.
+	 * The text contains one line for each directory on the stack, so it
+	 * is small, and it can be saved on another thread.
+	 * @return the checkpoint text.
+	 */
+	public synchronized String getCheckpoint() {
+		StringBuffer sb = new StringBuffer();
+		sb.append(header + "\n");
+		sb.append("fileCount\t" + fileCount + "\n");
+		sb.append("filesOnly\t" + filesOnly + "\n");
+		sb.append("root\t" + escape(treeRoot.getPath()) + "\n");
+		if (currentFrame != null) {
+			for (Frame frame : stack) appendFrame(sb, frame);
+			appendFrame(sb, currentFrame);
+		}
+		return sb.toString();
+	}
+
+	private static void appendFrame(StringBuffer sb, Frame frame) {
+		sb.append("frame\t" + frame.getNextIndex()
+					+ "\t" + escape(frame.getLastName())
+					+ "\t" + escape(frame.getCurrentDirectory().getPath()) + "\n");
+	}
+
+	/**
+	 * Save the text of a checkpoint in a file. The text is written to a temporary
+	 * file which then replaces the checkpoint file, so the checkpoint file is
+	 * always complete.
+	 * @param file the checkpoint file.
+	 * @param checkpoint the text of the checkpoint.
+	 * @return true if the checkpoint was saved; false otherwise.
+	 */
+	public static boolean save(File file, String checkpoint) {
+		File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+		try {
+			if (!FileUtil.setText(temp, checkpoint)) return false;
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to save the checkpoint "+file, ex);
+			return false;
+		}
+	}
+
+	//Make a FileSource from the text of a checkpoint.
+	private static FileSource fromCheckpoint(String checkpoint) throws Exception {
+		String[] lines = checkpoint.split("\n");
+		boolean escaped = lines[0].trim().equals(header);
+		if (!escaped && !lines[0].trim().equals(unescapedHeader)) throw new Exception("Unknown checkpoint format");
+		int count = 0;
+		boolean filesOnly = false;
+		File root = null;
+		Stack<Frame> frames = new Stack<Frame>();
+		for (int i=1; i<lines.length; i++) {
+			String[] fields = lines[i].split("\t", -1);
+			if (escaped) {
+				for (int k=1; k<fields.length; k++) fields[k] = unescape(fields[k]);
+			}
+			if (fields[0].equals("fileCount")) count = Integer.parseInt(fields[1]);
+			else if (fields[0].equals("filesOnly")) filesOnly = fields[1].equals("true");
+			else if (fields[0].equals("root")) root = new File(fields[1]);
+			else if (fields[0].equals("frame")) {
+				frames.push(new Frame(new File(fields[3]), Integer.parseInt(fields[1]), fields[2]));
+			}
+		}
+		if (root == null) throw new Exception("Missing root");
+		FileSource fs = new FileSource(root, filesOnly);
+		fs.fileCount = count;
+		fs.currentFrame = frames.isEmpty() ? null : frames.pop();
+		fs.stack = frames;
+		return fs;
+	}
+
+	/**
+	 * Escape the tab, newline, return, and backslash characters in a field
+	 * of a checkpoint, so the field can be written in a tab-separated line.
+	 * @param s the field.
+	 * @return the escaped field, or the empty string if the field is null.
+	 */
+	public static String escape(String s) {
+		if (s == null) return "";
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\') sb.append("\\\\");
+			else if (c == '\t') sb.append("\\t");
+			else if (c == '\n') sb.append("\\n");
+			else if (c == '\r') sb.append("\\r");
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reverse the escape method.
+	 * @param s the escaped field.
+	 * @return the original field.
+	 */
+	public static String unescape(String s) {
+		if (s.indexOf('\\') == -1) return s;
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c == '\\') && (i < s.length()-1)) {
+				c = s.charAt(++i);
+				if (c == 't') sb.append('\t');
+				else if (c == 'n') sb.append('\n');
+				else if (c == 'r') sb.append('\r');
+				else sb.append(c);
+			}
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+}
@@ -15,6 +15,7 @@ import org.apache.log4j.Logger;
  */
 public class Frame implements Serializable {
 
+	static final long serialVersionUID = 6016051524202328696L; //the value of earlier versions, so their checkpoints can be loaded
 	static final Logger logger = Logger.getLogger(Frame.class);
 
 	File dir;
@@ -32,6 +33,33 @@ public class Frame implements Serializable {
 		next = 0;
 	}
 
+	/**
+	 * Construct a Frame for a directory, positioned after a file which
+	 * has already been supplied. The directory is listed again, and the
+	 * position is found by the name of the file if the listing has changed.
+	 * @param dir the directory.
+	 * @param next the index in the listing of the next file to be supplied.
+	 * @param lastName the name of the last file supplied, or the empty
+	 * string if no file has been supplied.
+	 */
+	public Frame(File dir, int next, String lastName) {
+		this(dir);
+		if ((next > 0) && (next <= files.length) && files[next-1].getName().equals(lastName)) {
+			this.next = next;
+		}
+		else {
+			this.next = Math.min(Math.max(next, 0), files.length);
+			if (!lastName.equals("")) {
+				for (int i=0; i<files.length; i++) {
+					if (files[i].getName().equals(lastName)) {
+						this.next = i + 1;
+						break;
+					}
+				}
+			}
+		}
+	}
+
 	/**
 	 * Get the next file available in the directory.
 	 * @return the next file available, or null if no file is available,
@@ -41,6 +69,23 @@ public class Frame implements Serializable {
 		return (next < files.length) ? files[next++] : null;
 	}
 
+	/**
+	 * Get the index in the listing of the next file to be supplied.
+	 * @return the index of the next file.
+	 */
+	public int getNextIndex() {
+		return next;
+	}
+
+	/**
+	 * Get the name of the last file supplied.
+	 * @return the name of the last file supplied, or the empty
+	 * string if no file has been supplied.
+	 */
+	public String getLastName() {
+		return (next > 0) ? files[next-1].getName() : "";
+	}
+
 	/**
 	 * Get the current directory.
 	 * @return the current directory.
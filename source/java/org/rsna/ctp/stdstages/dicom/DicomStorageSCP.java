@@ -14,17 +14,25 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.LinkedList;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.dcm4che.data.Command;
 import org.dcm4che.data.Dataset;
+import org.dcm4che.data.DcmDecodeParam;
+import org.dcm4che.data.DcmEncodeParam;
 import org.dcm4che.data.DcmObjectFactory;
 import org.dcm4che.data.DcmParser;
 import org.dcm4che.data.DcmParserFactory;
@@ -48,6 +56,7 @@ import org.rsna.ctp.stdstages.BlackList;
 import org.rsna.ctp.stdstages.WhiteList;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.stdstages.DicomImportService;
+import org.rsna.util.XmlUtil;
 
 public class DicomStorageSCP extends DcmServiceBase {
 
@@ -66,13 +75,16 @@ public class DicomStorageSCP extends DcmServiceBase {
     private DcmHandler handler = srvFact.newDcmHandler(policy, services);
     private Server server = srvFact.newServer(handler);
 
-    private final int bufferSize = 2048;
+    private final static int bufferSize = 64 * 1024;
 	private final int maxPDULength = 16352;
 	private final int soCloseDelay = 500;
 	private final int dimseTimeout = 0;
 	private final int rqTimeout = 20000; //changed from 10000
-	private final int maxClients = 50; //changed from 10
+	private final int maxClients;
     private final long rspDelay;
+    private final boolean rejectWhenThrottled;
+    private final long maxThrottledDelay;
+    private final long throttledPollInterval = 250;
 
 	private File temp = null;
 	private String localAddress = null; //the IP on which to open the server
@@ -80,6 +92,7 @@ public class DicomStorageSCP extends DcmServiceBase {
 	private int callingAETTag = 0;
 	private int connectionIPTag = 0;
 	private int timeTag = 0;
+	private boolean stampInStream = false;
 	private DicomImportService dicomImportService = null;
 	private boolean suppressDuplicates = false;
 	private boolean logAllConnections = false;
@@ -96,7 +109,18 @@ public class DicomStorageSCP extends DcmServiceBase {
 /**/List<Long> recentTimes;
 /**/static final int maxQueueSize = 20;
 
-	ExecutorService execSvc;
+	ThreadPoolExecutor execSvc;
+	final AtomicInteger callerRunsCount = new AtomicInteger();
+	final ReceiveMeter meter = new ReceiveMeter();
+	final Hashtable<String,ReceiveMeter> aetMeters = new Hashtable<String,ReceiveMeter>();
+	static final int maxAETMeters = 100;
+
+	//The copy buffer for each receiving thread.
+	private static final ThreadLocal<byte[]> copyBuffer = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[bufferSize];
+		}
+	};
 
     public DicomStorageSCP(DicomImportService dicomImportService) {
 		this.dicomImportService  = dicomImportService;
@@ -108,7 +132,10 @@ public class DicomStorageSCP extends DcmServiceBase {
 		logAllConnections = dicomImportService.getLogAllConnections();
 		logRejectedConnections = dicomImportService.getLogRejectedConnections();
 		timeTag = dicomImportService.getTimeTag();
+		stampInStream = canStampInStream();
 		rspDelay = dicomImportService.getThrottle();
+		rejectWhenThrottled = dicomImportService.getRejectWhenThrottled();
+		maxThrottledDelay = dicomImportService.getMaxThrottledDelay();
 		suppressDuplicates = dicomImportService.getSuppressDuplicates();
 		ipWhiteList = dicomImportService.getIPWhiteList();
 		ipBlackList = dicomImportService.getIPBlackList();
@@ -120,8 +147,26 @@ public class DicomStorageSCP extends DcmServiceBase {
 		recentUIDs = new LinkedList<String>();
 		recentTimes = new LinkedList<Long>();
 
-		//Set up a thread pool with 4 concurrent threads.
-		execSvc = Executors.newFixedThreadPool( 4 );
+		//Set up the pool of Handler threads. The queue is bounded; when
+		//it is full, the receiving thread runs the Handler itself, which
+		//slows the association to the rate at which objects can be queued.
+		//After the SCP is stopped, a Handler is rejected rather than
+		//silently discarded, so storeToDir deletes the file and fails the store.
+		int handlerThreads = dicomImportService.getHandlerThreads();
+		execSvc = new ThreadPoolExecutor(
+						handlerThreads, handlerThreads,
+						0L, TimeUnit.MILLISECONDS,
+						new ArrayBlockingQueue<Runnable>(dicomImportService.getHandlerQueueSize()),
+						new RejectedExecutionHandler() {
+							public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+								if (e.isShutdown()) {
+									throw new RejectedExecutionException("The SCP has been stopped");
+								}
+								callerRunsCount.incrementAndGet();
+								r.run();
+							}
+						});
+		maxClients = dicomImportService.getMaxClients();
 
         initServer(dicomImportService.getPort());
         initPolicy();
@@ -134,12 +179,81 @@ public class DicomStorageSCP extends DcmServiceBase {
 
     public void stop() {
 		server.stop();
+		execSvc.shutdown();
+	}
+
+	/**
+	 * Get HTML text displaying the receive statistics of the SCP:
+	 * the active associations, the Handler backlog, the overall rates,
+	 * and the rates for each calling AE Title.
+	 * @return HTML table rows displaying the receive statistics.
+	 */
+	public String getStatusHTML() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("<tr><td width=\"20%\">Active associations:</td><td>"
+					+ server.getNumClients() + " (max " + maxClients + ")</td></tr>");
+		sb.append("<tr><td width=\"20%\">Handler backlog:</td><td>"
+					+ execSvc.getQueue().size() + " queued; "
+					+ execSvc.getActiveCount() + " of " + execSvc.getMaximumPoolSize() + " threads active; "
+					+ callerRunsCount.get() + " run on receiving threads</td></tr>");
+		sb.append("<tr><td width=\"20%\">Receive rate:</td><td>" + getRates(meter) + "</td></tr>");
+		String[] aets;
+		synchronized (aetMeters) {
+			aets = aetMeters.keySet().toArray(new String[aetMeters.size()]);
+		}
+		Arrays.sort(aets);
+		for (String aet : aets) {
+			ReceiveMeter m = aetMeters.get(aet);
+			if (m == null) continue;
+			sb.append("<tr><td width=\"20%\">Calling AET " + XmlUtil.escapeChars(aet) + ":</td><td>"
+					+ getRates(m) + "</td></tr>");
+		}
+		return sb.toString();
+	}
+
+	//Get a string displaying the totals and rates of a meter.
+	private String getRates(ReceiveMeter m) {
+		return String.format("%,d objects; %,d KB; %.1f objects/s, %,.0f KB/s (last minute)",
+								m.getObjects(), m.getBytes()/1024, m.getObjectRate(), m.getByteRate()/1024);
+	}
+
+	//Record a received object in the overall and calling AET meters.
+	//The number of calling AET meters is limited; when the limit is
+	//reached, the meter of the AET which has been idle longest is dropped.
+	private void count(String callingAET, long length) {
+		meter.add(length);
+		ReceiveMeter m;
+		synchronized (aetMeters) {
+			m = aetMeters.get(callingAET);
+			if (m == null) {
+				if (aetMeters.size() >= maxAETMeters) removeIdlestMeter();
+				m = new ReceiveMeter();
+				aetMeters.put(callingAET, m);
+			}
+		}
+		m.add(length);
+	}
+
+	//Remove the calling AET meter with the oldest last receive time.
+	//This method must be called while synchronized on aetMeters.
+	private void removeIdlestMeter() {
+		String idlest = null;
+		long idlestTime = Long.MAX_VALUE;
+		for (String aet : aetMeters.keySet()) {
+			long time = aetMeters.get(aet).getLastTime();
+			if (time < idlestTime) {
+				idlest = aet;
+				idlestTime = time;
+			}
+		}
+		if (idlest != null) aetMeters.remove(idlest);
 	}
 
     //Note: this method does not handle file sets.
     protected void doCStore(ActiveAssociation assoc, Dimse rq, Command rspCmd)
         		throws IOException {
         InputStream in = rq.getDataAsStream();
+        int status = Status.Success;
         try {
 			Command rqCmd = rq.getCommand();
 			Association a = assoc.getAssociation();
@@ -163,6 +277,12 @@ public class DicomStorageSCP extends DcmServiceBase {
 			if (!accept) {
 				skipObject(in);
 			}
+			else if (rejectWhenThrottled && dicomImportService.isThrottled()) {
+				//The pipeline is behind; tell the SCU to try again later.
+				skipObject(in);
+				status = Status.OutOfResources;
+				dicomImportService.objectRefused();
+			}
 			else {
 				String affectedSOPClassUID = rqCmd.getAffectedSOPClassUID();
 				String affectedSOPInstanceUID = rqCmd.getAffectedSOPInstanceUID();
@@ -212,7 +332,9 @@ public class DicomStorageSCP extends DcmServiceBase {
 
 				//Handle the object
 				if (!isDuplicate || !isRecent || !suppressDuplicates) {
-					storeToDir(in, fmi, calledAET, callingAET, connectionIP, System.currentTimeMillis());
+					if (!storeToDir(in, fmi, calledAET, callingAET, connectionIP, System.currentTimeMillis())) {
+						status = Status.ProcessingFailure;
+					}
 				}
 				else {
 					skipObject(in);
@@ -229,11 +351,29 @@ public class DicomStorageSCP extends DcmServiceBase {
             try { Thread.sleep(rspDelay); }
             catch (Exception ignore) { boolean dummy = true; }
         }
-        rspCmd.putUS(Tags.Status, Status.Success);
+        if ((status == Status.Success) && !rejectWhenThrottled) waitWhileThrottled();
+        rspCmd.putUS(Tags.Status, status);
     }
 
+    //Delay the response while the pipeline is throttled, up to the maximum delay.
+    //Since the SCU waits for each response, this slows it to the rate
+    //at which the pipeline can keep up.
+    private void waitWhileThrottled() {
+		if (!dicomImportService.isThrottled()) return;
+		dicomImportService.objectDelayed();
+		long endTime = System.currentTimeMillis() + maxThrottledDelay;
+		while (dicomImportService.isThrottled() && (System.currentTimeMillis() < endTime)) {
+			try { Thread.sleep(throttledPollInterval); }
+			catch (Exception ex) { break; }
+		}
+	}
+
     //Store the object in the temp directory and then queue it.
-    private void storeToDir(InputStream in,
+    //If the elements which record the connection are all before the pixels,
+    //they are set in the dataset as it is copied, so the object is written once.
+    //If the object cannot be stored, the temp file is deleted and false is returned,
+    //so the SCU is told that the object was not received.
+    private boolean storeToDir(InputStream in,
     						FileMetaInfo fmi,
     						String calledAET,
     						String callingAET,
@@ -242,33 +382,88 @@ public class DicomStorageSCP extends DcmServiceBase {
 		File file = File.createTempFile("TMP-",".dcm",temp);
 		OutputStream out = null;
         try {
-			out = new BufferedOutputStream(new FileOutputStream(file));
+			String tsUID = fmi.getTransferSyntaxUID();
+			boolean stamp = stampInStream && !tsUID.equals(UIDs.DeflatedExplicitVRLittleEndian);
+			out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
             fmi.write(out);
-            copy(in, out, -1);
+            if (stamp) copyAndStamp(in, out, tsUID, calledAET, callingAET, connectionIP, time);
+            else copy(in, out, -1);
             out.close();
             out = null;
+            long length = file.length();
             //Queue up the rest of the processing so we can return now.
-            execSvc.execute( new Handler(file, calledAET, callingAET, connectionIP, time) );
+            execSvc.execute( new Handler(file, calledAET, callingAET, connectionIP, time, stamp) );
+            count(callingAET, length);
+            return true;
         }
-        catch (Exception ex) { logger.warn("Unable to store a received file.",ex); }
-        finally {
+        catch (Exception ex) {
+			logger.warn("Unable to store a received file.",ex);
             try { if (out != null) out.close(); }
             catch (IOException ignore) {
 				logger.debug("Unable to close the received file.");
 			}
-        }
+			file.delete();
+			return false;
+		}
     }
 
+    //Determine whether the elements which record the connection can be set
+    //while an object is received. This requires that they all precede the pixels.
+    private boolean canStampInStream() {
+		int[] tags = { calledAETTag, callingAETTag, connectionIPTag, timeTag };
+		boolean any = false;
+		for (int tag : tags) {
+			if (tag == 0) continue;
+			if ((tag & 0xFFFFFFFFL) >= (Tags.PixelData & 0xFFFFFFFFL)) return false;
+			any = true;
+		}
+		return any;
+	}
+
+    //Copy the dataset of an object, setting the elements which record the connection.
+    //The elements before the pixels are parsed and written with the new elements;
+    //the pixels and anything after them are copied as they are.
+    private void copyAndStamp(InputStream in,
+							  OutputStream out,
+							  String tsUID,
+							  String calledAET,
+							  String callingAET,
+							  String connectionIP,
+							  long time) throws Exception {
+		DcmDecodeParam decodeParam = DcmDecodeParam.valueOf(tsUID);
+		DcmEncodeParam encoding = (DcmEncodeParam)decodeParam;
+		DcmParser parser = pFact.newDcmParser(in);
+		Dataset dataset = oFact.newDataset();
+		parser.setDcmHandler(dataset.getDcmHandler());
+		parser.parseDataset(decodeParam, Tags.PixelData);
+
+		if (calledAETTag != 0) DicomObject.setElementValue(dataset, calledAETTag, calledAET);
+		if (callingAETTag != 0) DicomObject.setElementValue(dataset, callingAETTag, callingAET);
+		if (connectionIPTag != 0) DicomObject.setElementValue(dataset, connectionIPTag, connectionIP);
+		if (timeTag != 0) DicomObject.setElementValue(dataset, timeTag, Long.toString(time));
+
+		dataset.writeDataset(out, encoding);
+		if (parser.getReadTag() == Tags.PixelData) {
+			dataset.writeHeader(
+				out,
+				encoding,
+				parser.getReadTag(),
+				parser.getReadVR(),
+				parser.getReadLength());
+			copy(parser.getInputStream(), out, -1);
+		}
+	}
+
     //Skip an object completely. This is called if we are suppressing recent duplicates.
     private void skipObject(InputStream in) throws IOException {
-		byte[] buffer = new byte[bufferSize];
+		byte[] buffer = copyBuffer.get();
 		int len;
 		while ((len=in.read(buffer, 0, buffer.length)) != -1) /*do nothing*/;
 	}
 
     private void copy(InputStream in, OutputStream out, int totLen) throws IOException {
         int toRead = (totLen == -1) ? Integer.MAX_VALUE : totLen;
-		byte[] buffer = new byte[bufferSize];
+		byte[] buffer = copyBuffer.get();
 		for (int len; toRead > 0; toRead -= len) {
 			len = in.read(buffer, 0, Math.min(toRead, buffer.length));
 			if (len == -1) {
@@ -316,18 +511,20 @@ public class DicomStorageSCP extends DcmServiceBase {
 		String callingAET;
 		String connectionIP;
 		long time;
+		boolean stamped;
 
-		public Handler(File file, String calledAET, String callingAET, String connectionIP, long time) {
+		public Handler(File file, String calledAET, String callingAET, String connectionIP, long time, boolean stamped) {
 			super("DicomStorageSCP Handler");
 			this.file = file;
 			this.calledAET = calledAET;
 			this.callingAET = callingAET;
 			this.connectionIP = connectionIP;
 			this.time = time;
+			this.stamped = stamped;
 		}
 
 		public void run() {
-			file = setAET();
+			if (!stamped) file = setAET();
             if (file != null) dicomImportService.fileReceived(file);
 		}
 
@@ -0,0 +1,119 @@
+/*---------------------------------------------------------------
+*  Copyright 2015 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense.pdf)
+*----------------------------------------------------------------*/
+
+package org.rsna.ctp.stdstages.dicom;
+
+/**
+ * A class to count the objects and bytes received by a DicomStorageSCP,
+ * both in total and over the last minute. The rates are computed from
+ * a ring of one-second buckets, so recording an object is a constant-time
+ * operation and the meter uses a fixed amount of memory.
+ */
+public class ReceiveMeter {
+
+	static final int window = 60; //seconds
+
+	long objects = 0;
+	long bytes = 0;
+	long firstTime = 0;
+	long lastTime = 0;
+	final long[] bucketObjects = new long[window];
+	final long[] bucketBytes = new long[window];
+	long currentSecond = 0;
+
+	/**
+	 * Construct an empty ReceiveMeter.
+	 */
+	public ReceiveMeter() { }
+
+	/**
+	 * Record an object.
+	 * @param length the number of bytes in the object.
+	 */
+	public synchronized void add(long length) {
+		long now = System.currentTimeMillis();
+		advance(now / 1000);
+		int k = (int)(currentSecond % window);
+		bucketObjects[k]++;
+		bucketBytes[k] += length;
+		objects++;
+		bytes += length;
+		if (firstTime == 0) firstTime = now;
+		lastTime = now;
+	}
+
+	//Move the ring to the specified second, clearing
+	//the buckets of the seconds which have passed.
+	private void advance(long second) {
+		if (second <= currentSecond) return;
+		long n = Math.min(second - currentSecond, window);
+		for (long s=second-n+1; s<=second; s++) {
+			int k = (int)(s % window);
+			bucketObjects[k] = 0;
+			bucketBytes[k] = 0;
+		}
+		currentSecond = second;
+	}
+
+	/**
+	 * Get the total number of objects received.
+	 * @return the total number of objects received.
+	 */
+	public synchronized long getObjects() {
+		return objects;
+	}
+
+	/**
+	 * Get the total number of bytes received.
+	 * @return the total number of bytes received.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the time at which the last object was received.
+	 * @return the time at which the last object was received, or zero
+	 * if no object has been received.
+	 */
+	public synchronized long getLastTime() {
+		return lastTime;
+	}
+
+	/**
+	 * Get the number of objects received per second over the last minute.
+	 * @return the average object rate over the last minute.
+	 */
+	public synchronized double getObjectRate() {
+		advance(System.currentTimeMillis() / 1000);
+		return (double)sum(bucketObjects) / getInterval();
+	}
+
+	/**
+	 * Get the number of bytes received per second over the last minute.
+	 * @return the average byte rate over the last minute.
+	 */
+	public synchronized double getByteRate() {
+		advance(System.currentTimeMillis() / 1000);
+		return (double)sum(bucketBytes) / getInterval();
+	}
+
+	//Get the number of seconds covered by the ring, which is
+	//less than the window when the meter is new.
+	private long getInterval() {
+		if (firstTime == 0) return window;
+		long seconds = currentSecond - firstTime/1000 + 1;
+		return Math.max(1, Math.min(seconds, window));
+	}
+
+	private long sum(long[] buckets) {
+		long total = 0;
+		for (long b : buckets) total += b;
+		return total;
+	}
+
+}
@@ -296,12 +296,12 @@ public class StorageServlet extends Servlet {
 			Hashtable<String,Integer> entryNames = new Hashtable<String,Integer>();
 			Hashtable<String,String> dcmEntryNames = new Hashtable<String,String>();
 
-			//Put in the files, skipping .db, .lg, and __index.xml files
+			//Put in the files, skipping .db, .lg, and __index.* files (the index and its journal)
 			File[] files = studyDir.listFiles();
 			Arrays.sort(files, new FileComparator());
 			for (File file : files) {
 				String fn = file.getName();
-				if (file.exists() && file.isFile() && !fn.endsWith(".db") && !fn.endsWith(".lg") && !fn.equals("__index.xml")) {
+				if (file.exists() && file.isFile() && !fn.endsWith(".db") && !fn.endsWith(".lg") && !fn.startsWith("__index.")) {
 					
 					//Get the file name without the extension
 					String origName = file.getName();
@@ -8,9 +8,18 @@
 package org.rsna.ctp.stdstages.storage;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
 import org.apache.log4j.Logger;
 import org.rsna.ctp.objects.DicomObject;
 import org.rsna.ctp.objects.FileObject;
@@ -18,10 +27,21 @@ import org.rsna.util.FileUtil;
 import org.rsna.util.XmlUtil;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
 /**
  * A class to manage the FileObjects in a single study.
+ * <p>
+ * The index of the study is kept in memory, with a table of the
+ * entries by filename and a table of the entries by UID. On disk,
+ * the index is kept in two files: __index.xml, a snapshot of the
+ * index in XML, and __index.journal, an append-only log of the changes
+ * made since the snapshot was written. Storing an object appends a
+ * few records to the journal instead of rewriting the whole index.
+ * When the journal grows as large as the index, a background thread
+ * writes a new snapshot and discards the journal records it includes.
+ * The index document is built from the in-memory index on demand.
  */
 public class Study implements Comparable {
 
@@ -35,7 +55,17 @@ public class Study implements Comparable {
 	String accessionNumber = "";
 	File dir = null;
 	File indexFile = null;
+	File journalFile = null;
 	Document indexDoc = null;
+	LinkedHashMap<String,String> rootAttributes = null;
+	LinkedHashMap<String,IndexEntry> entries = null;
+	Hashtable<String,LinkedList<IndexEntry>> uidIndex = null;
+	int journalRecords = 0;
+	boolean compactionPending = false;
+
+	static final String journalName = "__index.journal";
+	static final int minCompactionRecords = 100;
+	static Compactor compactor = null;
 
 	/**
 	 * Create a Study in an assigned directory.
@@ -51,13 +81,13 @@ public class Study implements Comparable {
 		if (fileSystem.getSetReadable()) dir.setReadable(true,false); //Java 1.6
 		if (fileSystem.getSetWritable()) dir.setWritable(true,false); //Java 1.6
 		indexFile = new File(dir,"__index.xml");
+		journalFile = new File(dir,journalName);
 		try {
-			getIndex();
-			Element root = indexDoc.getDocumentElement();
-			patientName = getStringDefault(root.getAttribute("patientName"), "");
-			patientID = getStringDefault(root.getAttribute("patientID"), "");
-			studyDate = getStringDefault(root.getAttribute("studyDate"), "");
-			accessionNumber = getStringDefault(root.getAttribute("accessionNumber"), "");
+			loadIndex();
+			patientName = getStringDefault(rootAttributes.get("patientName"), "");
+			patientID = getStringDefault(rootAttributes.get("patientID"), "");
+			studyDate = getStringDefault(rootAttributes.get("studyDate"), "");
+			accessionNumber = getStringDefault(rootAttributes.get("accessionNumber"), "");
 		}
 		catch (Exception ex) {
 			logger.warn("Unable to load the index for "+studyName);
@@ -186,24 +216,16 @@ public class Study implements Comparable {
 	 * @return a list containing the File objects of files which have
 	 * the specified UID.
 	 */
-	public List<File> listFilesForUID(String uid) {
+	public synchronized List<File> listFilesForUID(String uid) {
 		List<File> list = new LinkedList<File>();
-		try {
-			getIndex();
-			Element studyRoot = indexDoc.getDocumentElement();
-			Node child = studyRoot.getFirstChild();
-			while (child != null) {
-				if (child.getNodeType() == Node.ELEMENT_NODE) {
-					if (getValue(child, "uid").equals(uid)) {
-						String filename = getValue(child, "file");
-						File file = getFile(filename);
-						if (file != null) list.add(file);
-					}
-				}
-				child = child.getNextSibling();
+		if ((uid == null) || (uidIndex == null)) return list;
+		LinkedList<IndexEntry> uidEntries = uidIndex.get(uid);
+		if (uidEntries != null) {
+			for (IndexEntry entry : uidEntries) {
+				File file = getFile(entry.file);
+				if (file != null) list.add(file);
 			}
 		}
-		catch (Exception noIndex) { logger.debug("Unable to get the study index"); }
 		return list;
 	}
 
@@ -227,8 +249,9 @@ public class Study implements Comparable {
 	 * @param filename the filename whose index entry is to be returned
 	 * @return the DOM Element in the index corresponding to the filename
 	 */
-	public Element getIndexElementForFilename(String filename) {
+	public synchronized Element getIndexElementForFilename(String filename) {
 		try {
+			if ((entries == null) || !entries.containsKey(filename)) return null;
 			getIndex();
 			Element studyRoot = indexDoc.getDocumentElement();
 			Node child = studyRoot.getFirstChild();
@@ -253,9 +276,10 @@ public class Study implements Comparable {
 	 * @return the file that was stored.
 	 * @throws Exception on any error
 	 */
-	public File store(FileObject fileObject, boolean acceptDuplicateUIDs) throws Exception {
+	public synchronized File store(FileObject fileObject, boolean acceptDuplicateUIDs) throws Exception {
 
-		getIndex();
+		if (entries == null) loadIndex();
+		StringBuffer records = new StringBuffer();
 
 		//Make a file to save the object.
 		//Handle the duplicate problem.
@@ -266,9 +290,8 @@ public class Study implements Comparable {
 				File oldFile = list.get(0);
 				newFile = oldFile;
 				//Find and remove the index entry for the oldFile
-				Element oldIndexElement = getIndexElementForFilename(oldFile.getName());
-				if (oldIndexElement != null) {
-					oldIndexElement.getParentNode().removeChild(oldIndexElement);
+				if (remove(oldFile.getName())) {
+					addRecord(records, new String[] { "R", oldFile.getName() });
 				}
 			}
 		}
@@ -285,53 +308,53 @@ public class Study implements Comparable {
 		//Update the index.
 		String className = fileObject.getClass().getName();
 		className = className.substring(className.lastIndexOf(".")+1);
-		Element o = indexDoc.createElement(className);
-		append(o, "file", newFile.getName());
+		IndexEntry o = new IndexEntry(className);
+		o.addChild("file", newFile.getName());
 		String uid = fileObject.getUID();
 		if ((uid == null) || uid.equals("")) uid = newFile.getName();
-		append(o, "uid", uid);
+		o.addChild("uid", uid);
 		if (fileObject instanceof DicomObject) {
 			DicomObject dob = (DicomObject)fileObject;
-			append(o, "series", fixNumber(dob.getSeriesNumber()));
-			append(o, "acquisition", fixNumber(dob.getAcquisitionNumber()));
-			append(o, "instance", fixNumber(dob.getInstanceNumber()));
+			o.addChild("series", fixNumber(dob.getSeriesNumber()));
+			o.addChild("acquisition", fixNumber(dob.getAcquisitionNumber()));
+			o.addChild("instance", fixNumber(dob.getInstanceNumber()));
 			if (dob.isImage()) {
 				o.setAttribute("type","image");
-				append(o, "rows", ""+dob.getRows());
-				append(o, "columns", ""+dob.getColumns());
+				o.addChild("rows", ""+dob.getRows());
+				o.addChild("columns", ""+dob.getColumns());
 			}
 		}
-		Element root = indexDoc.getDocumentElement();
-		root.appendChild(o);
+		put(o);
+		addRecord(records, o.toRecord());
 
 		//Set the study attributes in case they haven't been set before.
 		//Set the patientName if we don't have one.
 		if (patientName.equals("")) {
 			patientName = getStringDefault(fileObject.getPatientName(), "");
-			root.setAttribute("patientName", patientName);
+			setRootAttribute(records, "patientName", patientName);
 		}
 		//Set the patientID if we don't have one.
 		if (patientID.equals("")) {
 			patientID = getStringDefault(fileObject.getPatientID(), "");
-			root.setAttribute("patientID", patientID);
+			setRootAttribute(records, "patientID", patientID);
 		}
 		//Set the date if we don't have one.
 		if (studyDate.equals("")) {
 			studyDate = getStringDefault(fileObject.getStudyDate(), "");
-			root.setAttribute("studyDate", studyDate);
+			setRootAttribute(records, "studyDate", studyDate);
 		}
 		//Set the accessionNumber if we don't have one
 		if (accessionNumber.equals("") && (fileObject instanceof DicomObject)) {
 			accessionNumber = fileObject.getAccessionNumber().trim();
-			root.setAttribute("accessionNumber", accessionNumber);
+			setRootAttribute(records, "accessionNumber", accessionNumber);
 		}
 		//Set the studyName.
-		root.setAttribute("studyName", studyName);
+		setRootAttribute(records, "studyName", studyName);
 		//Set the fileSystemName.
-		root.setAttribute("fileSystemName", fileSystem.getName());
+		setRootAttribute(records, "fileSystemName", fileSystem.getName());
 
-		//Save the index in the indexFile.
-		FileUtil.setText(indexFile, XmlUtil.toString(indexDoc));
+		//Save the changes in the journal.
+		appendToJournal(records);
 
 		//Create any required JPEG images
 		//Note: this method always saves the first frame.
@@ -360,59 +383,268 @@ public class Study implements Comparable {
 		return text;
 	}
 
-	//Create a child element and append it to a parent.
-	private void append(Element parent, String name, String content) {
-		Element child = indexDoc.createElement(name);
-		child.setTextContent(content);
-		parent.appendChild(child);
-	}
-
 	/**
-	 * Load the index, creating it if it doesn't exist.
+	 * Get the index of this Study, creating it if it doesn't exist.
+	 * The document is built from the in-memory index the first time
+	 * it is requested after a change; it must not be modified by the caller.
 	 * @return the index of this Study.
 	 * @throws Exception if the index cannot be found or parsed.
 	 */
-	public Document getIndex() throws Exception {
+	public synchronized Document getIndex() throws Exception {
+		if (entries == null) loadIndex();
 		if (indexDoc == null) {
-			if (indexFile.exists()) {
-				indexDoc = XmlUtil.getDocument(indexFile);
-/**/			upgradeSchema();
+			Document doc = XmlUtil.getDocument();
+			Element root = doc.createElement("index");
+			for (String name : rootAttributes.keySet()) {
+				root.setAttribute(name, rootAttributes.get(name));
 			}
-			else {
-				indexDoc = XmlUtil.getDocument();
-				Element root = indexDoc.createElement("index");
-				root.setAttribute("fileSystemName", fileSystem.getName());
-				indexDoc.appendChild(root);
-				FileUtil.setText(indexFile, XmlUtil.toString(indexDoc));
+			doc.appendChild(root);
+			for (IndexEntry entry : entries.values()) {
+				root.appendChild(entry.toElement(doc));
 			}
+			indexDoc = doc;
 		}
 		return indexDoc;
 	}
 
+	//Load the index from the index file and the journal,
+	//creating the index file if neither one exists.
+	private synchronized void loadIndex() throws Exception {
+		rootAttributes = new LinkedHashMap<String,String>();
+		entries = new LinkedHashMap<String,IndexEntry>();
+		uidIndex = new Hashtable<String,LinkedList<IndexEntry>>();
+		indexDoc = null;
+		journalRecords = 0;
+		if (indexFile.exists()) {
+			Document doc = XmlUtil.getDocument(indexFile);
+			Element root = doc.getDocumentElement();
+			NamedNodeMap attrs = root.getAttributes();
+			for (int i=0; i<attrs.getLength(); i++) {
+				Node attr = attrs.item(i);
+				rootAttributes.put(attr.getNodeName(), attr.getNodeValue());
+			}
+			Node child = root.getFirstChild();
+			while (child != null) {
+				if (child.getNodeType() == Node.ELEMENT_NODE) {
+					put(new IndexEntry((Element)child));
+				}
+				child = child.getNextSibling();
+			}
+/**/		upgradeSchema();
+		}
+		else if (!journalFile.exists()) {
+			rootAttributes.put("fileSystemName", fileSystem.getName());
+			FileUtil.setText(indexFile, XmlUtil.toString(getIndex()));
+		}
+		if (journalFile.exists()) {
+			//Apply the complete records in the journal. A record that
+			//was only partially written when the program stopped is ignored.
+			String journal = FileUtil.getText(journalFile, FileUtil.utf8);
+			String[] lines = journal.split("\n", -1);
+			for (int i=0; i<lines.length-1; i++) {
+				try {
+					apply(lines[i].split("\t", -1));
+					journalRecords++;
+				}
+				catch (Exception ex) {
+					logger.warn(studyName+": Unable to apply journal record "+i, ex);
+				}
+			}
+			indexDoc = null;
+		}
+	}
+
 	//Upgrade the index if necessary
 	private void upgradeSchema() {
-		Element root = indexDoc.getDocumentElement();
-		String date = root.getAttribute("date");
-		if (!date.equals("")) {
-			if (studyDate.equals("")) studyDate = date;
-			root.removeAttribute("date");
-			FileUtil.setText(indexFile, XmlUtil.toString(indexDoc));
+		String date = rootAttributes.get("date");
+		if (date != null) {
+			if (!date.equals("")) {
+				if (studyDate.equals("")) studyDate = date;
+				rootAttributes.remove("date");
+				indexDoc = null;
+				try { FileUtil.setText(indexFile, XmlUtil.toString(getIndex())); }
+				catch (Exception ex) { logger.warn(studyName+": Unable to upgrade the index", ex); }
+			}
 		}
 	}
 
-	//Get the content of an child element
-	private String getContent(Node node, String childName) {
-		if (node == null) return "";
-		if (node instanceof Element) {
-			Node child = node.getFirstChild();
-			while (child != null) {
-				if (child.getNodeName().equals(childName)) {
-					return child.getTextContent();
+	//Add an entry to the index, replacing any entry for the same file.
+	private void put(IndexEntry entry) {
+		remove(entry.file);
+		entries.put(entry.file, entry);
+		LinkedList<IndexEntry> uidEntries = uidIndex.get(entry.uid);
+		if (uidEntries == null) {
+			uidEntries = new LinkedList<IndexEntry>();
+			uidIndex.put(entry.uid, uidEntries);
+		}
+		uidEntries.add(entry);
+		indexDoc = null;
+	}
+
+	//Remove the entry for a file from the index.
+	private boolean remove(String filename) {
+		IndexEntry entry = entries.remove(filename);
+		if (entry == null) return false;
+		LinkedList<IndexEntry> uidEntries = uidIndex.get(entry.uid);
+		if (uidEntries != null) {
+			uidEntries.remove(entry);
+			if (uidEntries.size() == 0) uidIndex.remove(entry.uid);
+		}
+		indexDoc = null;
+		return true;
+	}
+
+	//Set an attribute of the index root, recording it in the journal if it changed.
+	private void setRootAttribute(StringBuffer records, String name, String value) {
+		if (!value.equals(rootAttributes.get(name))) {
+			rootAttributes.put(name, value);
+			addRecord(records, new String[] { "P", name, value });
+			indexDoc = null;
+		}
+	}
+
+	//Apply a journal record to the index.
+	private void apply(String[] fields) throws Exception {
+		String op = fields[0];
+		if (op.equals("A")) put(new IndexEntry(fields));
+		else if (op.equals("R")) remove(unescape(fields[1]));
+		else if (op.equals("P")) rootAttributes.put(unescape(fields[1]), unescape(fields[2]));
+		else throw new Exception("Unknown journal record type: "+op);
+	}
+
+	//Add a record to a buffer of journal records.
+	private void addRecord(StringBuffer records, String[] fields) {
+		for (int i=0; i<fields.length; i++) {
+			if (i > 0) records.append("\t");
+			records.append(escape(fields[i]));
+		}
+		records.append("\n");
+		journalRecords++;
+	}
+
+	//Append a buffer of records to the journal, and schedule
+	//a compaction if the journal has grown large enough.
+	private void appendToJournal(StringBuffer records) {
+		if (records.length() == 0) return;
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(journalFile, true), FileUtil.utf8);
+			writer.write(records.toString());
+			writer.flush();
+		}
+		catch (Exception ex) { logger.warn(studyName+": Unable to update the index journal", ex); }
+		finally { FileUtil.close(writer); }
+
+		if (!compactionPending
+				&& (journalRecords >= minCompactionRecords)
+					&& (journalRecords >= entries.size())) {
+			compactionPending = true;
+			getCompactor().add(this);
+		}
+	}
+
+	/**
+	 * Write the index file from the in-memory index and remove the
+	 * records it includes from the journal. The index file is written
+	 * without holding the lock on the Study, so objects can be stored
+	 * while the compaction is in progress. If the program stops after
+	 * the new index file is in place but before the journal is trimmed,
+	 * the journal records are applied again when the study is loaded,
+	 * which leaves the index unchanged.
+	 */
+	void compact() {
+		String xml;
+		long journalLength;
+		int includedRecords;
+		synchronized (this) {
+			compactionPending = false;
+			if (!dir.exists() || (journalRecords == 0)) return;
+			try { xml = XmlUtil.toString(getIndex()); }
+			catch (Exception ex) {
+				logger.warn(studyName+": Unable to compact the index", ex);
+				return;
+			}
+			journalLength = journalFile.length();
+			includedRecords = journalRecords;
+		}
+
+		File temp = new File(dir, "__index.tmp");
+		if (!FileUtil.setText(temp, xml) || !replace(temp, indexFile)) {
+			logger.warn(studyName+": Unable to write the compacted index");
+			temp.delete();
+			return;
+		}
+
+		synchronized (this) {
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(journalFile, "rw");
+				long remaining = raf.length() - journalLength;
+				if (remaining <= 0) raf.setLength(0);
+				else {
+					byte[] tail = new byte[(int)remaining];
+					raf.seek(journalLength);
+					raf.readFully(tail);
+					raf.setLength(0);
+					raf.write(tail);
 				}
-				child = child.getNextSibling();
+				journalRecords -= includedRecords;
+			}
+			catch (Exception ex) { logger.warn(studyName+": Unable to trim the index journal", ex); }
+			finally {
+				try { if (raf != null) raf.close(); }
+				catch (Exception ignore) { }
 			}
 		}
-		return "";
+	}
+
+	//Replace a file with another, atomically if the file system allows it.
+	private static boolean replace(File source, File target) {
+		try {
+			Files.move(source.toPath(), target.toPath(),
+							StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		}
+		catch (Exception notAtomic) {
+			try {
+				Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				return true;
+			}
+			catch (Exception ex) { return false; }
+		}
+	}
+
+	//Escape the tab, newline, return, and backslash characters in a journal field.
+	private static String escape(String s) {
+		if (s == null) return "";
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\') sb.append("\\\\");
+			else if (c == '\t') sb.append("\\t");
+			else if (c == '\n') sb.append("\\n");
+			else if (c == '\r') sb.append("\\r");
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	//Reverse the escape method.
+	private static String unescape(String s) {
+		if (s.indexOf('\\') == -1) return s;
+		StringBuffer sb = new StringBuffer();
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			if ((c == '\\') && (i < s.length()-1)) {
+				c = s.charAt(++i);
+				if (c == 't') sb.append('\t');
+				else if (c == 'n') sb.append('\n');
+				else if (c == 'r') sb.append('\r');
+				else sb.append(c);
+			}
+			else sb.append(c);
+		}
+		return sb.toString();
 	}
 
 	//Return a default String if a String is null; else return the String.
@@ -420,4 +652,125 @@ public class Study implements Comparable {
 		return (string != null) ? string : defaultString;
 	}
 
+	//Get the thread that compacts the study indexes, starting it if necessary.
+	private static synchronized Compactor getCompactor() {
+		if (compactor == null) {
+			compactor = new Compactor();
+			compactor.start();
+		}
+		return compactor;
+	}
+
+	/**
+	 * One object entry in the index of a Study: the name of the
+	 * object's class, the attributes of the entry, and its child elements.
+	 */
+	static class IndexEntry {
+		String className;
+		LinkedList<String[]> attributes = new LinkedList<String[]>();
+		LinkedList<String[]> children = new LinkedList<String[]>();
+		String file = "";
+		String uid = "";
+
+		IndexEntry(String className) {
+			this.className = className;
+		}
+
+		//Create an entry from an element in an index document.
+		IndexEntry(Element element) {
+			this.className = element.getTagName();
+			NamedNodeMap attrs = element.getAttributes();
+			for (int i=0; i<attrs.getLength(); i++) {
+				Node attr = attrs.item(i);
+				setAttribute(attr.getNodeName(), attr.getNodeValue());
+			}
+			Node child = element.getFirstChild();
+			while (child != null) {
+				if (child.getNodeType() == Node.ELEMENT_NODE) {
+					addChild(child.getNodeName(), child.getTextContent());
+				}
+				child = child.getNextSibling();
+			}
+		}
+
+		//Create an entry from the fields of a journal record:
+		//"A", className, number of attributes, the attribute names and
+		//values, and then the names and values of the child elements.
+		IndexEntry(String[] fields) {
+			this.className = unescape(fields[1]);
+			int nAttrs = Integer.parseInt(fields[2]);
+			int k = 3;
+			for (int i=0; i<nAttrs; i++, k+=2) {
+				setAttribute(unescape(fields[k]), unescape(fields[k+1]));
+			}
+			for ( ; k<fields.length-1; k+=2) {
+				addChild(unescape(fields[k]), unescape(fields[k+1]));
+			}
+		}
+
+		void setAttribute(String name, String value) {
+			attributes.add(new String[] { name, value });
+		}
+
+		void addChild(String name, String text) {
+			children.add(new String[] { name, text });
+			if (name.equals("file")) file = text;
+			else if (name.equals("uid")) uid = text;
+		}
+
+		String[] toRecord() {
+			String[] fields = new String[3 + 2*attributes.size() + 2*children.size()];
+			fields[0] = "A";
+			fields[1] = className;
+			fields[2] = Integer.toString(attributes.size());
+			int k = 3;
+			for (String[] attr : attributes) {
+				fields[k++] = attr[0];
+				fields[k++] = attr[1];
+			}
+			for (String[] child : children) {
+				fields[k++] = child[0];
+				fields[k++] = child[1];
+			}
+			return fields;
+		}
+
+		Element toElement(Document doc) {
+			Element element = doc.createElement(className);
+			for (String[] attr : attributes) {
+				element.setAttribute(attr[0], attr[1]);
+			}
+			for (String[] child : children) {
+				Element e = doc.createElement(child[0]);
+				e.setTextContent(child[1]);
+				element.appendChild(e);
+			}
+			return element;
+		}
+	}
+
+	/**
+	 * The thread that compacts the indexes of studies whose journals have grown large.
+	 */
+	static class Compactor extends Thread {
+		LinkedBlockingQueue<Study> queue = new LinkedBlockingQueue<Study>();
+
+		public Compactor() {
+			super("Study index compactor");
+			setDaemon(true);
+		}
+
+		public void add(Study study) {
+			queue.offer(study);
+		}
+
+		public void run() {
+			while (true) {
+				try { queue.take().compact(); }
+				catch (InterruptedException stop) { return; }
+				catch (Exception ex) { logger.warn("Unable to compact a study index", ex); }
+			}
+		}
+	}
+
 }
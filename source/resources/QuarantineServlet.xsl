@@ -19,6 +19,10 @@
 			<script language="JavaScript" type="text/javascript" src="/JSAJAX.js">;</script>
 			<script language="JavaScript" type="text/javascript" src="/JSPopup.js">;</script>
 			<script language="JavaScript" type="text/javascript" src="/QuarantineServlet.js">;</script>
+			<xsl:if test="Requeue/@running = 'yes'">
+				<meta http-equiv="refresh"
+					content="5;url=/{$context}?p={$p}&amp;s={$s}&amp;offset={@offset}&amp;limit={@limit}"/>
+			</xsl:if>
 			<script>
 				var context = '<xsl:value-of select="$context"/>';
 				var p = '<xsl:value-of select="$p"/>';
@@ -33,6 +37,8 @@
 					<xsl:value-of select="$stage"/> Quarantine
 				</h1>
 
+				<xsl:apply-templates select="Requeue"/>
+
 				<xsl:if test="Study">
 					<input type="button" value="Rebuild Index"
 						onclick="window.open('/{$context}/rebuildIndex?p={$p}&amp;s={$s}','_self');"/>
@@ -43,6 +49,7 @@
 					<input type="button" value="Delete All"
 						   onclick="window.open('/{$context}/deleteAll?p={$p}&amp;s={$s}','_self');"/>
 					<br/>
+					<xsl:call-template name="Pages"/>
 					<div id="StudiesDiv">
 						<table id="StudiesTable" class="StudiesTable">
 							<xsl:call-template name="StudyHeadings"/>
@@ -96,6 +103,65 @@
 
 </xsl:template>
 
+<xsl:template match="Requeue">
+	<p>
+		<xsl:text>Requeue: </xsl:text>
+		<xsl:value-of select="@description"/>
+		<xsl:text>: </xsl:text>
+		<xsl:value-of select="@processed"/>
+		<xsl:text> of </xsl:text>
+		<xsl:value-of select="@total"/>
+		<xsl:text> files processed; </xsl:text>
+		<xsl:value-of select="@queued"/>
+		<xsl:text> queued; </xsl:text>
+		<xsl:value-of select="@failed"/>
+		<xsl:text> failed; </xsl:text>
+		<xsl:value-of select="@time"/>
+		<xsl:text> s; </xsl:text>
+		<xsl:value-of select="@rate"/>
+		<xsl:text> files/s</xsl:text>
+		<xsl:choose>
+			<xsl:when test="@running = 'yes'">
+				<xsl:text>&#160;&#160;&#160;</xsl:text>
+				<input type="button" value="Cancel"
+					onclick="window.open('/{$context}/cancelQueue?p={$p}&amp;s={$s}','_self');"/>
+			</xsl:when>
+			<xsl:when test="@cancelled = 'yes'"> (cancelled)</xsl:when>
+			<xsl:otherwise> (complete)</xsl:otherwise>
+		</xsl:choose>
+	</p>
+</xsl:template>
+
+<xsl:template name="Pages">
+	<p>
+		<xsl:text>Studies </xsl:text>
+		<xsl:value-of select="@offset + 1"/>
+		<xsl:text> - </xsl:text>
+		<xsl:value-of select="@offset + count(Study)"/>
+		<xsl:text> of </xsl:text>
+		<xsl:value-of select="@total"/>
+		<xsl:text> (</xsl:text>
+		<xsl:value-of select="@nFiles"/>
+		<xsl:text> files)</xsl:text>
+		<xsl:if test="@total &gt; @limit">
+			<xsl:text>&#160;&#160;&#160;</xsl:text>
+			<input type="button" value="Previous">
+				<xsl:if test="@offset = 0">
+					<xsl:attribute name="disabled">disabled</xsl:attribute>
+				</xsl:if>
+				<xsl:attribute name="onclick">window.open('/<xsl:value-of select="$context"/>?p=<xsl:value-of select="$p"/>&amp;s=<xsl:value-of select="$s"/>&amp;offset=<xsl:value-of select="@offset - @limit"/>&amp;limit=<xsl:value-of select="@limit"/>','_self');</xsl:attribute>
+			</input>
+			<xsl:text>&#160;</xsl:text>
+			<input type="button" value="Next">
+				<xsl:if test="@offset + @limit &gt;= @total">
+					<xsl:attribute name="disabled">disabled</xsl:attribute>
+				</xsl:if>
+				<xsl:attribute name="onclick">window.open('/<xsl:value-of select="$context"/>?p=<xsl:value-of select="$p"/>&amp;s=<xsl:value-of select="$s"/>&amp;offset=<xsl:value-of select="@offset + @limit"/>&amp;limit=<xsl:value-of select="@limit"/>','_self');</xsl:attribute>
+			</input>
+		</xsl:if>
+	</p>
+</xsl:template>
+
 <xsl:template name="StudyHeadings">
 	<tr>
 		<th class="left">Patient ID</th>